@@ -15,7 +15,7 @@
  */
 package com.turn.ttorrent.bcodec;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.EOFException;
@@ -26,8 +26,6 @@ import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.apache.commons.io.input.AutoCloseInputStream;
-
 
 /**
  * B-encoding decoder.
@@ -39,6 +37,12 @@ import org.apache.commons.io.input.AutoCloseInputStream;
  * </p>
  *
  * <p>
+ * Data in memory is decoded in place: byte strings are returned as slices
+ * of it, only copied when asked for as <code>byte[]</code>. Numbers are
+ * decoded as {@link Long}s, or as {@link BigInteger}s when too large.
+ * </p>
+ *
+ * <p>
  * Inspired by Snark's implementation.
  * </p>
  *
@@ -47,9 +51,15 @@ import org.apache.commons.io.input.AutoCloseInputStream;
  */
 public class BDecoder {
 
-  // The InputStream to BDecode.
+  // The InputStream to BDecode, or null when decoding data in memory.
 	private final InputStream in;
 
+	// The data to BDecode from position pos to limit, or null when decoding
+	// a stream.
+	private final byte[] data;
+	private int pos;
+	private final int limit;
+
 	// The last indicator read.
 	// Zero if unknown.
 	// '0'..'9' indicates a byte[].
@@ -72,34 +82,74 @@ public class BDecoder {
 	 */
 	public BDecoder(InputStream in) {
 		this.in = in;
+		this.data = null;
+		this.limit = 0;
+	}
+
+	/**
+	 * Initializes a new BDecoder over the remaining bytes of the given buffer.
+	 *
+	 * <p>
+	 * The buffer itself is left untouched. Byte strings decoded from a heap
+	 * buffer share its content, which must thus not change while they are
+	 * in use.
+	 * </p>
+	 *
+	 * @param data The buffer to read from.
+	 */
+	public BDecoder(ByteBuffer data) {
+		this.in = null;
+		if (data.hasArray()) {
+			this.data = data.array();
+			this.pos = data.arrayOffset() + data.position();
+		} else {
+			this.data = new byte[data.remaining()];
+			data.duplicate().get(this.data);
+			this.pos = 0;
+		}
+		this.limit = this.pos + data.remaining();
 	}
 
 	/**
 	 * Decode a B-encoded stream.
 	 *
 	 * <p>
-	 * Automatically instantiates a new BDecoder for the provided input stream
-	 * and decodes its root member.
+	 * Reads the rest of the given input stream and decodes its root member.
 	 * </p>
 	 *
 	 * @param in The input stream to read from.
 	 */
 	public static BEValue bdecode(InputStream in) throws IOException {
-		return new BDecoder(in).bdecode();
+		final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		final byte[] chunk = new byte[8192];
+		int read;
+		while ((read = in.read(chunk)) != -1) {
+			content.write(chunk, 0, read);
+		}
+		return new BDecoder(ByteBuffer.wrap(content.toByteArray())).bdecode();
 	}
 
 	/**
 	 * Decode a B-encoded byte buffer.
 	 *
 	 * <p>
-	 * Automatically instantiates a new BDecoder for the provided buffer and
-	 * decodes its root member.
+	 * Automatically instantiates a new BDecoder for the remaining bytes of the
+	 * provided buffer and decodes its root member.
 	 * </p>
 	 *
 	 * @param data The {@link ByteBuffer} to read from.
 	 */
 	public static BEValue bdecode(ByteBuffer data) throws IOException {
-		return BDecoder.bdecode(new ByteArrayInputStream(data.array()));
+		return new BDecoder(data).bdecode();
+	}
+
+	/**
+	 * Decode a B-encoded byte array.
+	 *
+	 * @param data The bytes to read from.
+	 */
+	public static BEValue bdecode(byte[] data) throws IOException {
+		return new BDecoder(ByteBuffer.wrap(data)).bdecode();
 	}
 
 	/**
@@ -115,7 +165,7 @@ public class BDecoder {
 	 */
 	private int getNextIndicator() throws IOException {
 		if (this.indicator == 0) {
-			this.indicator = in.read();
+			this.indicator = this.next();
 		}
 		return this.indicator;
 	}
@@ -149,8 +199,23 @@ public class BDecoder {
 	 * @throws InvalidBEncodingException If it is not a b-encoded byte array.
 	 */
 	public BEValue bdecodeBytes() throws IOException {
+		final int length = this.bdecodeLength();
+		if (this.data == null) {
+			return new BEValue(read(length));
+		}
+		if (length > this.limit - this.pos)
+			throw new EOFException();
+		final ByteBuffer slice = ByteBuffer.wrap(this.data, this.pos, length).slice();
+		this.pos += length;
+		return new BEValue(slice);
+	}
+
+	/**
+	 * Reads the length prefix of a byte array, up to and including the colon.
+	 */
+	private int bdecodeLength() throws IOException {
 		int c = this.getNextIndicator();
-		int num = c - '0';
+		long num = c - '0';
 		if (num < 0 || num > 9)
 			throw new InvalidBEncodingException("Number expected, not '"
 					+ (char)c + "'");
@@ -159,8 +224,9 @@ public class BDecoder {
 		c = this.read();
 		int i = c - '0';
 		while (i >= 0 && i <= 9) {
-			// This can overflow!
 			num = num*10 + i;
+			if (num > Integer.MAX_VALUE)
+				throw new InvalidBEncodingException("Byte array too long");
 			c = this.read();
 			i = c - '0';
 		}
@@ -169,8 +235,7 @@ public class BDecoder {
 			throw new InvalidBEncodingException("Colon expected, not '" +
 				(char)c + "'");
 		}
-
-		return new BEValue(read(num));
+		return (int) num;
 	}
 
 	/**
@@ -191,44 +256,50 @@ public class BDecoder {
 		if (c == '0') {
 			c = this.read();
 			if (c == 'e')
-				return new BEValue(BigInteger.ZERO);
+				return new BEValue(0L);
 			else
 				throw new InvalidBEncodingException("'e' expected after zero," +
 					" not '" + (char)c + "'");
 		}
 
-		// We don't support more the 255 char big integers
-		char[] chars = new char[256];
-		int off = 0;
-
+		boolean negative = false;
 		if (c == '-') {
 			c = this.read();
 			if (c == '0')
 				throw new InvalidBEncodingException("Negative zero not allowed");
-			chars[off] = (char)c;
-			off++;
+			negative = true;
 		}
 
 		if (c < '1' || c > '9')
 			throw new InvalidBEncodingException("Invalid Integer start '"
 					+ (char)c + "'");
-		chars[off] = (char)c;
-		off++;
 
+		// Accumulate in a long as long as it fits, the digits of larger
+		// numbers go to a BigInteger.
+		long value = c - '0';
+		StringBuilder digits = null;
 		c = this.read();
 		int i = c - '0';
 		while (i >= 0 && i <= 9) {
-			chars[off] = (char)c;
-			off++;
-			c = read();
+			if (digits == null && value > (Long.MAX_VALUE - i) / 10) {
+				digits = new StringBuilder(negative ? "-" : "").append(value);
+			}
+			if (digits == null) {
+				value = value * 10 + i;
+			} else {
+				digits.append((char)c);
+			}
+			c = this.read();
 			i = c - '0';
 		}
 
 		if (c != 'e')
 			throw new InvalidBEncodingException("Integer should end with 'e'");
 
-		String s = new String(chars, 0, off);
-		return new BEValue(new BigInteger(s));
+		if (digits != null) {
+			return new BEValue(new BigInteger(digits.toString()));
+		}
+		return new BEValue(negative ? -value : value);
 	}
 
 	/**
@@ -248,6 +319,8 @@ public class BDecoder {
 		List<BEValue> result = new ArrayList<BEValue>();
 		c = this.getNextIndicator();
 		while (c != 'e') {
+			if (c == -1)
+				throw new EOFException();
 			result.add(this.bdecode());
 			c = this.getNextIndicator();
 		}
@@ -273,10 +346,14 @@ public class BDecoder {
 		Map<String, BEValue> result = new HashMap<String, BEValue>();
 		c = this.getNextIndicator();
 		while (c != 'e') {
+			if (c == -1)
+				throw new EOFException();
 			// Dictionary keys are always strings.
-			String key = this.bdecode().getString();
+			String key = this.bdecodeKey();
 
 			BEValue value = this.bdecode();
+			if (value == null)
+				throw new EOFException();
 			result.put(key, value);
 
 			c = this.getNextIndicator();
@@ -287,12 +364,180 @@ public class BDecoder {
 	}
 
 	/**
-	 * Returns the next byte read from the InputStream (as int).
+	 * Returns the encoded bytes of the next b-encoded value, without decoding
+	 * it, or null at the end of the data.
+	 *
+	 * <p>
+	 * The value is checked to be well-formed and the returned buffer is a
+	 * slice of the data this decoder reads from. It can be decoded later on
+	 * with {@link #bdecode(ByteBuffer)}. Only available when decoding a
+	 * buffer.
+	 * </p>
+	 *
+	 * @throws InvalidBEncodingException If the value is not b-encoded.
+	 * @throws IllegalStateException If this decoder reads a stream.
+	 */
+	public ByteBuffer bdecodeRaw() throws IOException {
+		if (this.data == null)
+			throw new IllegalStateException("Raw values can only be read from a buffer");
+		if (this.getNextIndicator() == -1)
+			return null;
+
+		// The indicator is always the last byte read.
+		final int start = this.pos - 1;
+		this.skip();
+		return ByteBuffer.wrap(this.data, start, this.pos - start).slice();
+	}
+
+	/**
+	 * Returns the next b-encoded value, which must be a map (dictionary), as
+	 * its keys and the encoded bytes of their values.
+	 *
+	 * <p>
+	 * Only the keys are decoded: each value is a slice of the data this
+	 * decoder reads from, see {@link #bdecodeRaw()}. This lets the parts of
+	 * a dictionary be decoded only when needed, or hashed as they were
+	 * encoded.
+	 * </p>
+	 *
+	 * @throws InvalidBEncodingException If it is not a map.
+	 * @throws IllegalStateException If this decoder reads a stream.
+	 */
+	public Map<String, ByteBuffer> bdecodeRawMap() throws IOException {
+		if (this.data == null)
+			throw new IllegalStateException("Raw values can only be read from a buffer");
+		int c = this.getNextIndicator();
+		if (c != 'd') {
+			throw new InvalidBEncodingException("Expected 'd', not '" +
+				(char)c + "'");
+		}
+		this.indicator = 0;
+
+		Map<String, ByteBuffer> result = new HashMap<String, ByteBuffer>();
+		c = this.getNextIndicator();
+		while (c != 'e') {
+			if (c == -1)
+				throw new EOFException();
+			String key = this.bdecodeKey();
+
+			ByteBuffer value = this.bdecodeRaw();
+			if (value == null)
+				throw new EOFException();
+			result.put(key, value);
+
+			c = this.getNextIndicator();
+		}
+		this.indicator = 0;
+
+		return result;
+	}
+
+	/**
+	 * Returns the next b-encoded value, which must be a list, as the encoded
+	 * bytes of its elements.
+	 *
+	 * <p>
+	 * Each element is a slice of the data this decoder reads from, see
+	 * {@link #bdecodeRaw()}.
+	 * </p>
+	 *
+	 * @throws InvalidBEncodingException If it is not a list.
+	 * @throws IllegalStateException If this decoder reads a stream.
+	 */
+	public List<ByteBuffer> bdecodeRawList() throws IOException {
+		if (this.data == null)
+			throw new IllegalStateException("Raw values can only be read from a buffer");
+		int c = this.getNextIndicator();
+		if (c != 'l') {
+			throw new InvalidBEncodingException("Expected 'l', not '" +
+				(char)c + "'");
+		}
+		this.indicator = 0;
+
+		List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+		c = this.getNextIndicator();
+		while (c != 'e') {
+			if (c == -1)
+				throw new EOFException();
+			result.add(this.bdecodeRaw());
+			c = this.getNextIndicator();
+		}
+		this.indicator = 0;
+
+		return result;
+	}
+
+	/**
+	 * Skips over the next b-encoded value of the data, checking its
+	 * structure along the way.
+	 */
+	private void skip() throws IOException {
+		int c = this.getNextIndicator();
+		if (c == -1) {
+			throw new EOFException();
+		} else if (c >= '0' && c <= '9') {
+			this.skipBytes();
+		} else if (c == 'i') {
+			this.bdecodeNumber();
+		} else if (c == 'l' || c == 'd') {
+			final boolean dictionary = c == 'd';
+			this.indicator = 0;
+			c = this.getNextIndicator();
+			while (c != 'e') {
+				if (c == -1)
+					throw new EOFException();
+				// Dictionary keys are always strings.
+				if (dictionary)
+					this.skipBytes();
+				this.skip();
+				c = this.getNextIndicator();
+			}
+			this.indicator = 0;
+		} else {
+			throw new InvalidBEncodingException
+				("Unknown indicator '" + c + "'");
+		}
+	}
+
+	private void skipBytes() throws IOException {
+		final int length = this.bdecodeLength();
+		if (length > this.limit - this.pos)
+			throw new EOFException();
+		this.pos += length;
+	}
+
+	/**
+	 * Returns the next dictionary key, decoded as UTF-8.
+	 */
+	private String bdecodeKey() throws IOException {
+		final int length = this.bdecodeLength();
+		if (this.data == null) {
+			return new String(read(length), "UTF-8");
+		}
+		if (length > this.limit - this.pos)
+			throw new EOFException();
+		final String key = new String(this.data, this.pos, length, "UTF-8");
+		this.pos += length;
+		return key;
+	}
+
+	/**
+	 * Returns the next byte (as int), or -1 at the end of the data.
+	 */
+	private int next() throws IOException {
+		if (this.data == null) {
+			return this.in.read();
+		}
+		return this.pos < this.limit ? this.data[this.pos++] & 0xff : -1;
+	}
+
+	/**
+	 * Returns the next byte read (as int).
 	 *
-	 * @throws EOFException If InputStream.read() returned -1.
+	 * @throws EOFException At the end of the data.
 	 */
 	private int read() throws IOException {
-		int c = this.in.read();
+		int c = this.next();
 		if (c == -1)
 			throw new EOFException();
 		return c;
@@ -16,6 +16,7 @@
 package com.turn.ttorrent.bcodec;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -31,7 +32,8 @@ public class BEValue {
 
 	/**
 	 * The B-encoded value can be a byte array, a Number, a List or a Map.
-	 * Lists and Maps contains BEValues too.
+	 * Lists and Maps contains BEValues too. Byte arrays decoded in place are
+	 * kept as ByteBuffer slices of the decoded data.
 	 */
 	private final Object value;
 
@@ -39,6 +41,13 @@ public class BEValue {
 		this.value = value;
 	}
 
+	/**
+	 * Wraps the remaining bytes of the given buffer, without copying them.
+	 */
+	public BEValue(ByteBuffer value) {
+		this.value = value.slice();
+	}
+
 	public BEValue(String value) throws UnsupportedEncodingException {
 		this.value = value.getBytes("UTF-8");
 	}
@@ -68,7 +77,20 @@ public class BEValue {
 		this.value = value;
 	}
 
+	/**
+	 * Returns the value: a byte[], a {@link Number}, a List or a Map.
+	 */
 	public Object getValue() {
+		if (this.value instanceof ByteBuffer) {
+			return this.copyBytes();
+		}
+		return this.value;
+	}
+
+	/**
+	 * Returns the value without copying byte arrays kept as buffers.
+	 */
+	Object getRawValue() {
 		return this.value;
 	}
 
@@ -90,6 +112,11 @@ public class BEValue {
 	 */
 	public String getString(String encoding) throws InvalidBEncodingException {
 		try {
+			if (this.value instanceof ByteBuffer && ((ByteBuffer) this.value).hasArray()) {
+				final ByteBuffer bytes = (ByteBuffer) this.value;
+				return new String(bytes.array(), bytes.arrayOffset() + bytes.position(),
+					bytes.remaining(), encoding);
+			}
 			return new String(this.getBytes(), encoding);
 		} catch (ClassCastException cce) {
 			throw new InvalidBEncodingException(cce.toString());
@@ -104,6 +131,9 @@ public class BEValue {
 	 * @throws InvalidBEncodingException If the value is not a byte[].
 	 */
 	public byte[] getBytes() throws InvalidBEncodingException {
+		if (this.value instanceof ByteBuffer) {
+			return this.copyBytes();
+		}
 		try {
 			return (byte[])this.value;
 		} catch (ClassCastException cce) {
@@ -111,6 +141,26 @@ public class BEValue {
 		}
 	}
 
+	/**
+	 * Returns this BEValue as a read-only ByteBuffer, without copying the
+	 * bytes.
+	 *
+	 * @throws InvalidBEncodingException If the value is not a byte[].
+	 */
+	public ByteBuffer getByteBuffer() throws InvalidBEncodingException {
+		if (this.value instanceof ByteBuffer) {
+			return ((ByteBuffer) this.value).asReadOnlyBuffer();
+		}
+		return ByteBuffer.wrap(this.getBytes()).asReadOnlyBuffer();
+	}
+
+	private byte[] copyBytes() {
+		final ByteBuffer bytes = ((ByteBuffer) this.value).duplicate();
+		final byte[] result = new byte[bytes.remaining()];
+		bytes.get(result);
+		return result;
+	}
+
 	/**
 	 * Returns this BEValue as a Number.
 	 *
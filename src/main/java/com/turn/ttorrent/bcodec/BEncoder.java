@@ -47,13 +47,15 @@ public class BEncoder {
 	public static void bencode(Object o, OutputStream out)
 		throws IOException, IllegalArgumentException {
 		if (o instanceof BEValue) {
-			o = ((BEValue)o).getValue();
+			o = ((BEValue)o).getRawValue();
 		}
 
 		if (o instanceof String) {
 			bencode((String)o, out);
 		} else if (o instanceof byte[]) {
 			bencode((byte[])o, out);
+		} else if (o instanceof ByteBuffer) {
+			bencode((ByteBuffer)o, out);
 		} else if (o instanceof Number) {
 			bencode((Number)o, out);
 		} else if (o instanceof List) {
@@ -94,6 +96,22 @@ public class BEncoder {
 		out.write(bs);
 	}
 
+	/**
+	 * B-encode the remaining bytes of the given buffer, as a byte array.
+	 */
+	public static void bencode(ByteBuffer bs, OutputStream out) throws IOException {
+		String l = Integer.toString(bs.remaining());
+		out.write(l.getBytes("UTF-8"));
+		out.write(':');
+		if (bs.hasArray()) {
+			out.write(bs.array(), bs.arrayOffset() + bs.position(), bs.remaining());
+		} else {
+			final byte[] copy = new byte[bs.remaining()];
+			bs.duplicate().get(copy);
+			out.write(copy);
+		}
+	}
+
 	public static void bencode(Map<String, BEValue> m, OutputStream out)
 		throws IOException {
 		out.write('d');
@@ -0,0 +1,221 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.client.peer.PieceSet;
+import com.turn.ttorrent.client.strategy.PieceAvailability;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Swarm availability of the pieces of a torrent.
+ *
+ * <p>
+ * The index keeps, for every piece, the number of connected peers that have
+ * it, and threads the pieces into one doubly-linked list (bucket) per
+ * availability count. A HAVE message moves a single piece to the next bucket
+ * in constant time, a bitfield costs one move per set bit, and walking the
+ * buckets from the lowest non-zero count yields the pieces in rarest-first
+ * order without any sorting.
+ * </p>
+ *
+ * <p>
+ * Seeds add the same count to every piece, which does not change the
+ * rarest-first order: they are only counted, in constant time.
+ * </p>
+ *
+ * <p>
+ * This class is not thread-safe: it is owned and guarded by its
+ * {@link SharedTorrent}.
+ * </p>
+ */
+public class AvailabilityIndex implements PieceAvailability {
+
+  private final int[] myCounts;
+  private final int[] myNext;
+  private final int[] myPrev;
+  private int[] myHeads;
+  private int myMaxCount;
+  private int myAvailablePieceCount;
+  private int mySeedCount;
+
+  public AvailabilityIndex(int pieceCount) {
+    myCounts = new int[pieceCount];
+    myNext = new int[pieceCount];
+    myPrev = new int[pieceCount];
+    myHeads = new int[8];
+    Arrays.fill(myHeads, NONE);
+    myMaxCount = 0;
+    myAvailablePieceCount = 0;
+    mySeedCount = 0;
+
+    // Every piece starts unseen, in bucket 0.
+    for (int i = pieceCount - 1; i >= 0; i--) {
+      link(i, 0);
+    }
+  }
+
+  @Override
+  public int getPieceCount() {
+    return myCounts.length;
+  }
+
+  @Override
+  public int getAvailability(int pieceIndex) {
+    return myCounts[pieceIndex] + mySeedCount;
+  }
+
+  /**
+   * Returns the number of pieces available from at least one peer.
+   */
+  public int getAvailablePieceCount() {
+    return mySeedCount > 0 ? myCounts.length : myAvailablePieceCount;
+  }
+
+  /**
+   * Record that one more peer has every piece.
+   */
+  public void addSeed() {
+    mySeedCount++;
+  }
+
+  /**
+   * Record that one less peer has every piece.
+   */
+  public void removeSeed() {
+    if (mySeedCount > 0) {
+      mySeedCount--;
+    }
+  }
+
+  public int getSeedCount() {
+    return mySeedCount;
+  }
+
+  /**
+   * Record that one more peer has the given piece.
+   */
+  public void increment(int pieceIndex) {
+    final int count = myCounts[pieceIndex];
+    unlink(pieceIndex, count);
+    link(pieceIndex, count + 1);
+    if (count == 0) {
+      myAvailablePieceCount++;
+    }
+  }
+
+  /**
+   * Record that one less peer has the given piece.
+   */
+  public void decrement(int pieceIndex) {
+    final int count = myCounts[pieceIndex];
+    if (count == 0) {
+      return;
+    }
+    unlink(pieceIndex, count);
+    link(pieceIndex, count - 1);
+    if (count == 1) {
+      myAvailablePieceCount--;
+    }
+  }
+
+  /**
+   * Record that one more peer has all the pieces set in the given bit field.
+   */
+  public void increment(BitSet pieces) {
+    for (int i = pieces.nextSetBit(0); i >= 0 && i < myCounts.length; i = pieces.nextSetBit(i + 1)) {
+      increment(i);
+    }
+  }
+
+  /**
+   * Record that one less peer has the pieces set in the given bit field.
+   */
+  public void decrement(BitSet pieces) {
+    for (int i = pieces.nextSetBit(0); i >= 0 && i < myCounts.length; i = pieces.nextSetBit(i + 1)) {
+      decrement(i);
+    }
+  }
+
+  /**
+   * Record that one less peer has the pieces of the given set.
+   */
+  public void decrement(PieceSet pieces) {
+    for (int i = pieces.nextSetBit(0); i >= 0 && i < myCounts.length; i = pieces.nextSetBit(i + 1)) {
+      decrement(i);
+    }
+  }
+
+  @Override
+  public int firstRarest() {
+    // With a seed around, even pieces no partial peer has are available.
+    return firstInBucketsFrom(mySeedCount > 0 ? 0 : 1);
+  }
+
+  @Override
+  public int nextRarest(int pieceIndex) {
+    final int next = myNext[pieceIndex];
+    if (next != NONE) {
+      return next;
+    }
+    return firstInBucketsFrom(myCounts[pieceIndex] + 1);
+  }
+
+  /**
+   * Returns a new bit field of the pieces available from at least one peer.
+   */
+  public BitSet getAvailablePieces() {
+    BitSet result = new BitSet(myCounts.length);
+    if (mySeedCount > 0) {
+      result.set(0, myCounts.length);
+      return result;
+    }
+    for (int i = firstRarest(); i != NONE; i = nextRarest(i)) {
+      result.set(i);
+    }
+    return result;
+  }
+
+  private int firstInBucketsFrom(int count) {
+    for (int c = count; c <= myMaxCount; c++) {
+      if (myHeads[c] != NONE) {
+        return myHeads[c];
+      }
+    }
+    return NONE;
+  }
+
+  private void link(int pieceIndex, int count) {
+    if (count >= myHeads.length) {
+      final int oldLength = myHeads.length;
+      myHeads = Arrays.copyOf(myHeads, Math.max(count + 1, oldLength * 2));
+      Arrays.fill(myHeads, oldLength, myHeads.length, NONE);
+    }
+    final int head = myHeads[count];
+    myCounts[pieceIndex] = count;
+    myPrev[pieceIndex] = NONE;
+    myNext[pieceIndex] = head;
+    if (head != NONE) {
+      myPrev[head] = pieceIndex;
+    }
+    myHeads[count] = pieceIndex;
+    if (count > myMaxCount) {
+      myMaxCount = count;
+    }
+  }
+
+  private void unlink(int pieceIndex, int count) {
+    final int prev = myPrev[pieceIndex];
+    final int next = myNext[pieceIndex];
+    if (prev != NONE) {
+      myNext[prev] = next;
+    } else {
+      myHeads[count] = next;
+    }
+    if (next != NONE) {
+      myPrev[next] = prev;
+    }
+    while (myMaxCount > 0 && myHeads[myMaxCount] == NONE) {
+      myMaxCount--;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.common.InfoHash;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of the piece blocks sent to peers.
+ *
+ * <p>
+ * When many leechers download the same torrent, they request the same
+ * blocks over and over. Blocks read from the storage to be uploaded are
+ * kept off-heap, up to a byte budget shared by all the torrents of the
+ * process, so that popular blocks are served from memory.
+ * </p>
+ *
+ * <p>
+ * Blocks are keyed by torrent, piece, offset and length. Only valid pieces
+ * are ever uploaded and their content does not change, so entries only
+ * need to be dropped when their torrent is removed.
+ * </p>
+ *
+ * <p>
+ * Blocks are copied in and out of the cache without holding its lock, so
+ * that uploads don't wait for each other: an entry being read is pinned,
+ * and its buffer only goes back to the pool once the last read is done.
+ * </p>
+ */
+public class BlockReadCache {
+
+  /**
+   * Default budget of the shared cache.
+   */
+  public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+  private static volatile BlockReadCache ourShared = new BlockReadCache(DEFAULT_BUDGET);
+
+  private final PieceBufferPool myBuffers;
+  private final LinkedHashMap<BlockKey, Entry> myBlocks =
+    new LinkedHashMap<BlockKey, Entry>(16, 0.75f, true);
+  private long myCachedBytes = 0;
+  private long myHits = 0;
+  private long myMisses = 0;
+
+  /**
+   * @param budget The maximum number of bytes of off-heap memory used by the
+   * cache. A budget of 0 disables the cache.
+   */
+  public BlockReadCache(long budget) {
+    myBuffers = new PieceBufferPool(budget, true);
+  }
+
+  /**
+   * Returns the cache shared by all the torrents of this process.
+   */
+  public static BlockReadCache getShared() {
+    return ourShared;
+  }
+
+  /**
+   * Replace the cache shared by all the torrents of this process.
+   */
+  public static void setShared(BlockReadCache cache) {
+    ourShared = cache;
+  }
+
+  /**
+   * Copy a cached block into the given buffer.
+   *
+   * @param torrent The info hash of the torrent.
+   * @param piece The piece index.
+   * @param offset The block offset in the piece.
+   * @param target The buffer to copy into; the block length is its number of
+   * remaining bytes.
+   * @return Whether the block was cached. If not, the buffer is left
+   * untouched.
+   */
+  public boolean read(InfoHash torrent, int piece, int offset, ByteBuffer target) {
+    final Entry entry;
+    synchronized (this) {
+      entry = myBlocks.get(new BlockKey(torrent, piece, offset, target.remaining()));
+      if (entry == null) {
+        myMisses++;
+        return false;
+      }
+      myHits++;
+      entry.pins++;
+    }
+    try {
+      target.put(entry.block.duplicate());
+    } finally {
+      synchronized (this) {
+        entry.pins--;
+        if (entry.evicted && entry.pins == 0) {
+          myBuffers.release(entry.block);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Cache the remaining bytes of the given block, evicting the least recently
+   * used blocks if needed.
+   */
+  public void put(InfoHash torrent, int piece, int offset, ByteBuffer block) {
+    final int length = block.remaining();
+    if (length == 0 || length > myBuffers.getBudget()) {
+      return;
+    }
+    final BlockKey key = new BlockKey(torrent, piece, offset, length);
+    ByteBuffer copy;
+    synchronized (this) {
+      if (myBlocks.containsKey(key)) {
+        return;
+      }
+      copy = myBuffers.tryAcquire(length);
+      final Iterator<Entry> eldest = myBlocks.values().iterator();
+      while (copy == null && eldest.hasNext()) {
+        release(eldest.next());
+        eldest.remove();
+        copy = myBuffers.tryAcquire(length);
+      }
+      if (copy == null) {
+        return;
+      }
+    }
+    copy.put(block.duplicate());
+    copy.flip();
+    synchronized (this) {
+      if (myBlocks.containsKey(key)) {
+        // Cached by another upload meanwhile.
+        myBuffers.release(copy);
+        return;
+      }
+      myBlocks.put(key, new Entry(copy));
+      myCachedBytes += length;
+    }
+  }
+
+  /**
+   * Drop all the cached blocks of the given torrent.
+   */
+  public synchronized void invalidate(InfoHash torrent) {
+    final Iterator<Map.Entry<BlockKey, Entry>> it = myBlocks.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<BlockKey, Entry> entry = it.next();
+      if (entry.getKey().torrent.equals(torrent)) {
+        release(entry.getValue());
+        it.remove();
+      }
+    }
+  }
+
+  public long getBudget() {
+    return myBuffers.getBudget();
+  }
+
+  /**
+   * Returns the number of block bytes currently cached.
+   */
+  public synchronized long getCachedBytes() {
+    return myCachedBytes;
+  }
+
+  public synchronized long getHits() {
+    return myHits;
+  }
+
+  public synchronized long getMisses() {
+    return myMisses;
+  }
+
+  /**
+   * Returns the ratio of reads served from the cache, between 0 and 1.
+   */
+  public synchronized double getHitRate() {
+    final long reads = myHits + myMisses;
+    return reads == 0 ? 0 : (double) myHits / reads;
+  }
+
+  private void release(Entry entry) {
+    myCachedBytes -= entry.block.remaining();
+    entry.evicted = true;
+    if (entry.pins == 0) {
+      myBuffers.release(entry.block);
+    }
+  }
+
+  private static class Entry {
+
+    private final ByteBuffer block;
+    // Reads copying the block, guarded by the cache.
+    private int pins = 0;
+    private boolean evicted = false;
+
+    private Entry(ByteBuffer block) {
+      this.block = block;
+    }
+  }
+
+  private static class BlockKey {
+
+    private final InfoHash torrent;
+    private final int piece;
+    private final int offset;
+    private final int length;
+
+    private BlockKey(InfoHash torrent, int piece, int offset, int length) {
+      this.torrent = torrent;
+      this.piece = piece;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof BlockKey)) {
+        return false;
+      }
+      final BlockKey other = (BlockKey) obj;
+      return piece == other.piece && offset == other.offset &&
+        length == other.length && torrent.equals(other.torrent);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = torrent.hashCode();
+      result = 31 * result + piece;
+      result = 31 * result + offset;
+      return 31 * result + length;
+    }
+  }
+}
@@ -98,7 +98,9 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
   private volatile boolean myStarted = false;
   private final PeersStorageProvider peersStorageProvider;
   private final TorrentsStorageProvider torrentsStorageProvider;
-  private final TorrentLoader myTorrentLoader;
+  private final TorrentLoaderImpl myTorrentLoader;
+  private final HibernationManager myHibernationManager;
+  private final HaveBroadcaster myHaveBroadcaster;
   private final TorrentsStorage torrentsStorage;
   private final CountLimitConnectionAllower myInConnectionAllower;
   private final CountLimitConnectionAllower myOutConnectionAllower;
@@ -107,6 +109,7 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
   private final PeersStorage peersStorage;
   private volatile ConnectionManager myConnectionManager;
   private final ExecutorService myExecutorService;
+  private volatile File myResumeDirectory = null;
 
   /**
    * @param executorService executor service for run connection worker and process incoming data. Must have a pool size at least 2
@@ -120,6 +123,8 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
     this.peersStorage = this.peersStorageProvider.getPeersStorage();
     this.mySendBufferSize = new AtomicInteger();
     this.myTorrentLoader = new TorrentLoaderImpl(this.torrentsStorage);
+    this.myHibernationManager = new HibernationManager(this.torrentsStorage);
+    this.myHaveBroadcaster = new HaveBroadcaster(this.peersStorage);
     this.myReceiveBufferSize = new AtomicInteger();
     this.myInConnectionAllower = new CountLimitConnectionAllower(peersStorage);
     this.myOutConnectionAllower = new CountLimitConnectionAllower(peersStorage);
@@ -136,6 +141,10 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
       // we don't seed zero-size files
       return torrent.getHexInfoHash();
     }
+    final File resumeDirectory = myResumeDirectory;
+    if (resumeDirectory != null) {
+      torrent.setResumeFile(new File(resumeDirectory, torrent.getHexInfoHash() + ".resume"));
+    }
     torrent.init();
     if (!torrent.isInitialized()) {
       torrent.close();
@@ -151,7 +160,7 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
             downloadDirPath,
             dotTorrentFilePath,
             seeder);
-    this.torrentsStorage.addAnnounceableTorrent(torrent.getHexInfoHash(), announceableTorrent);
+    this.torrentsStorage.addAnnounceableTorrent(torrent.getInfoHashKey(), announceableTorrent);
 
     // Initial completion test
     final boolean finished = torrent.isFinished();
@@ -166,12 +175,14 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
 
   public void removeTorrent(TorrentHash torrentHash) {
     logger.info("Stopping seeding " + torrentHash.getHexInfoHash());
-    final AnnounceableFileTorrent announceableTorrent = torrentsStorage.getAnnounceableTorrent(torrentHash.getHexInfoHash());
+    final InfoHash infoHash = InfoHash.of(torrentHash);
+    final AnnounceableFileTorrent announceableTorrent = torrentsStorage.getAnnounceableTorrent(infoHash);
 
-    SharedTorrent torrent = this.torrentsStorage.remove(torrentHash.getHexInfoHash());
+    SharedTorrent torrent = this.torrentsStorage.remove(infoHash);
     if (torrent != null) {
       torrent.setClientState(ClientState.DONE);
       torrent.close();
+      BlockReadCache.getShared().invalidate(torrent.getInfoHashKey());
     } else {
       logger.warn(String.format("Torrent %s already removed from myTorrents", torrentHash.getHexInfoHash()));
     }
@@ -183,9 +194,10 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
   }
 
   public void removeAndDeleteTorrent(SharedTorrent torrent) {
-    final AnnounceableFileTorrent announceableTorrent = torrentsStorage.getAnnounceableTorrent(torrent.getHexInfoHash());
+    final AnnounceableFileTorrent announceableTorrent = torrentsStorage.getAnnounceableTorrent(torrent.getInfoHashKey());
     torrent.setClientState(ClientState.DONE);
     torrent.delete();
+    BlockReadCache.getShared().invalidate(torrent.getInfoHashKey());
     try {
       this.announce.forceAnnounce(announceableTorrent, this, STOPPED);
     } catch (IOException e) {
@@ -254,6 +266,37 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
     mySendBufferSize.set(newSize);
   }
 
+  /**
+   * Set the directory fast-resume records of the torrents added from now on
+   * are kept in, so that their data is not all hashed again on restart.
+   * <code>null</code>, the default, disables fast-resume.
+   *
+   * @param resumeDirectory an existing directory
+   */
+  public void setResumeDirectory(File resumeDirectory) {
+    myResumeDirectory = resumeDirectory;
+    myTorrentLoader.setResumeDirectory(resumeDirectory);
+  }
+
+  /**
+   * Set how long a torrent nobody downloads from stays loaded before it
+   * hibernates, down to its announceable record. It is loaded again when a
+   * peer connects for it. With 0, the default, torrents hibernate as soon
+   * as their last peer goes away.
+   */
+  public void setIdleTorrentTimeout(long timeout, TimeUnit timeUnit) {
+    myHibernationManager.setIdleTimeout(timeUnit.toMillis(timeout));
+  }
+
+  /**
+   * Set how long HAVE messages for completed pieces are held, to be sent to
+   * each peer in one write. With 0, they are sent right away. Takes effect
+   * when the client starts.
+   */
+  public void setHaveFlushInterval(long interval, TimeUnit timeUnit) {
+    myHaveBroadcaster.setFlushInterval(timeUnit.toMillis(interval));
+  }
+
   public void setMaxOutConnectionsCount(int maxConnectionsCount) {
     this.myOutConnectionAllower.setMyMaxConnectionCount(maxConnectionsCount);
   }
@@ -320,6 +363,8 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
             });
 
     announce.start(defaultTrackerURI, this, getSelfPeers(bindAddresses), announceIntervalSec);
+    myHibernationManager.start();
+    myHaveBroadcaster.start();
     this.stop.set(false);
 
     myStarted = true;
@@ -353,6 +398,8 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
     }
 
     this.announce.stop();
+    myHibernationManager.stop();
+    myHaveBroadcaster.stop();
 
     logger.trace("announce thread is stopped");
 
@@ -395,7 +442,7 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
    * Tells whether we are a seed for the torrent we're sharing.
    */
   public boolean isSeed(String hexInfoHash) {
-    SharedTorrent t = this.torrentsStorage.getTorrent(hexInfoHash);
+    SharedTorrent t = this.torrentsStorage.getTorrent(InfoHash.fromHexString(hexInfoHash));
     return t != null && t.isComplete();
   }
 
@@ -411,7 +458,7 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
                                       final int minSeedersCount,
                                       final AtomicBoolean isInterrupted,
                                       final long maxTimeForConnectMs) throws IOException, InterruptedException, NoSuchAlgorithmException {
-    String hash = addTorrent(dotTorrentPath, downloadDirPath, false, true);
+    InfoHash hash = InfoHash.fromHexString(addTorrent(dotTorrentPath, downloadDirPath, false, true));
 
     SharedTorrent torrent;
     int timeoutForFoundPeersMs = 10000;
@@ -476,13 +523,7 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
   public List<SharingPeer> getPeersForTorrent(String torrentHash) {
     if (torrentHash == null) return new ArrayList<SharingPeer>();
 
-    List<SharingPeer> result = new ArrayList<SharingPeer>();
-    for (SharingPeer sharingPeer : peersStorage.getSharingPeers()) {
-      if (torrentHash.equals(sharingPeer.getHexInfoHash())) {
-        result.add(sharingPeer);
-      }
-    }
-    return result;
+    return new ArrayList<SharingPeer>(peersStorage.getSharingPeers(InfoHash.fromHexString(torrentHash)));
   }
 
   public boolean isRunning() {
@@ -654,23 +695,20 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
   }
 
   private Collection<SharingPeer> getConnectedPeers() {
-    Set<SharingPeer> result = new HashSet<SharingPeer>();
-    Set<SharingPeer> toRemove = new HashSet<SharingPeer>();
-    for (SharingPeer peer : this.peersStorage.getSharingPeers()) {
-      if (peer.isConnected()) {
-        result.add(peer);
-      } else {
-        toRemove.add(peer);
+    // Peers that went away are removed from the storage by their
+    // disconnection handler.
+    final Collection<SharingPeer> peers = this.peersStorage.getSharingPeers();
+    final Iterator<SharingPeer> it = peers.iterator();
+    while (it.hasNext()) {
+      if (!it.next().isConnected()) {
+        it.remove();
       }
     }
-    for (SharingPeer peer : toRemove) {
-      this.peersStorage.removeSharingPeer(peer);
-    }
-    return result;
+    return peers;
   }
 
   public boolean containsTorrentWithHash(String hash) {
-    return torrentsStorage.hasTorrent(hash);
+    return torrentsStorage.hasTorrent(InfoHash.fromHexString(hash));
   }
 
   @Override
@@ -715,7 +753,7 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
    */
   @Override
   public void handleAnnounceResponse(int interval, int complete, int incomplete, String hexInfoHash) {
-    final SharedTorrent sharedTorrent = this.torrentsStorage.getTorrent(hexInfoHash);
+    final SharedTorrent sharedTorrent = this.torrentsStorage.getTorrent(InfoHash.fromHexString(hexInfoHash));
     if (sharedTorrent != null) {
       sharedTorrent.setSeedersCount(complete);
       sharedTorrent.setLastAnnounceTime(System.currentTimeMillis());
@@ -734,7 +772,8 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
 
     if (peers.size() == 0) return;
 
-    SharedTorrent torrent = torrentsStorage.getTorrent(hexInfoHash);
+    final InfoHash infoHash = InfoHash.fromHexString(hexInfoHash);
+    SharedTorrent torrent = torrentsStorage.getTorrent(infoHash);
 
     if (torrent != null && torrent.isFinished()) return;
 
@@ -743,7 +782,7 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
 
     Map<PeerUID, Peer> uniquePeers = new HashMap<PeerUID, Peer>();
     for (Peer peer : peers) {
-      final PeerUID peerUID = new PeerUID(peer.getAddress(), hexInfoHash);
+      final PeerUID peerUID = new PeerUID(peer.getAddress(), infoHash);
       if (uniquePeers.containsKey(peerUID)) continue;
       uniquePeers.put(peerUID, peer);
     }
@@ -761,7 +800,7 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
 
       ConnectionListener connectionListener = new OutgoingConnectionListener(
               this,
-              torrentsStorage.getAnnounceableTorrent(hexInfoHash),
+              torrentsStorage.getAnnounceableTorrent(infoHash),
               new InetSocketAddress(peer.getIp(), peer.getPort()));
 
       logger.debug("trying to connect to the peer {}", peer);
@@ -821,14 +860,9 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
   public void handlePieceCompleted(final SharingPeer peer, Piece piece)
           throws IOException {
     final SharedTorrent torrent = peer.getTorrent();
-    final String torrentHash = torrent.getHexInfoHash();
     if (piece.isValid()) {
-      // Send a HAVE message to all connected peers
-      PeerMessage have = PeerMessage.HaveMessage.craft(piece.getIndex());
-      for (SharingPeer remote : getConnectedPeers()) {
-        if (remote.getTorrent().getHexInfoHash().equals(torrentHash))
-          remote.send(have);
-      }
+      // Tell the connected peers of the torrent that lack the piece
+      myHaveBroadcaster.pieceCompleted(torrent.getInfoHashKey(), piece.getIndex());
     }
     synchronized (torrent) {
       if (piece.isValid()) {
@@ -846,17 +880,14 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
                         torrent.getPieceCount()
                 });
 
-        BitSet completed = new BitSet();
-        completed.or(torrent.getCompletedPieces());
-        completed.and(peer.getAvailablePieces());
-        if (completed.equals(peer.getAvailablePieces())) {
+        if (peer.getAvailablePieces().isSubsetOf(torrent.getCompletedPieces())) {
           // send not interested when have no interested pieces;
           peer.send(PeerMessage.NotInterestedMessage.craft());
         }
 
       } else {
         logger.info("Downloaded piece #{} from {} was not valid ;-(. Trying another peer", piece.getIndex(), peer);
-        peer.getPoorlyAvailablePieces().set(piece.getIndex());
+        peer.markPoorlyAvailable(piece.getIndex());
       }
 
       if (torrent.isComplete()) {
@@ -882,19 +913,19 @@ public class Client implements AnnounceResponseListener, PeerActivityListener, T
     Peer p = new Peer(peer.getIp(), peer.getPort());
     p.setPeerId(peer.getPeerId());
     p.setTorrentHash(peer.getHexInfoHash());
-    PeerUID peerUID = new PeerUID(p.getAddress(), p.getHexInfoHash());
+    PeerUID peerUID = new PeerUID(p.getAddress(), peerTorrent.getInfoHashKey());
     SharingPeer sharingPeer = this.peersStorage.removeSharingPeer(peerUID);
-    logger.debug("Peer {} disconnected, [{}/{}].",
+    logger.debug("Peer {} disconnected, {} peer(s) left for the torrent, {} in all.",
             new Object[]{
                     peer,
-                    getConnectedPeers().size(),
-                    this.peersStorage.getSharingPeers().size()
+                    this.peersStorage.getSharingPeers(peerTorrent.getInfoHashKey()).size(),
+                    this.peersStorage.getSharingPeersCount()
             });
   }
 
   @Override
   public void afterPeerRemoved(SharingPeer peer) {
-    torrentsStorage.peerDisconnected(peer.getHexInfoHash());
+    myHibernationManager.peerDisconnected(peer.getTorrent().getInfoHashKey());
   }
 
   @Override
@@ -0,0 +1,231 @@
+package com.turn.ttorrent.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stage running the disk operations of peer exchanges off the network
+ * threads.
+ *
+ * <p>
+ * Writing completed pieces and reading blocks to upload can take as long as
+ * the disk needs. Rather than running them in the message handlers, and
+ * stalling every peer served by the same thread, they are queued here and
+ * run by worker threads. Tasks report back to their peer themselves once
+ * done.
+ * </p>
+ *
+ * <p>
+ * Each device gets its own queue and workers, so that a slow disk only
+ * delays the torrents stored on it. The JVM gives no portable way to tell
+ * which device a file is on: the directory a torrent is stored in stands for
+ * its device. Its key is computed once per torrent with
+ * {@link #deviceKey(File)}, so that submitting a task never touches the
+ * file system.
+ * </p>
+ */
+public class DiskIOStage {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(DiskIOStage.class);
+
+  /**
+   * Default number of worker threads per device.
+   */
+  public static final int DEFAULT_THREADS_PER_DEVICE = 2;
+
+  private static volatile DiskIOStage ourShared = new DiskIOStage(DEFAULT_THREADS_PER_DEVICE);
+
+  private final int myThreadsPerDevice;
+  private final Map<String, Device> myDevices = new HashMap<String, Device>();
+  private boolean myShutdown = false;
+
+  private final AtomicLong myCompleted = new AtomicLong();
+  private final AtomicLong myTotalLatency = new AtomicLong();
+  private final AtomicLong myMaxLatency = new AtomicLong();
+
+  /**
+   * @param threadsPerDevice The number of worker threads running the tasks
+   * of each device.
+   */
+  public DiskIOStage(int threadsPerDevice) {
+    myThreadsPerDevice = threadsPerDevice;
+  }
+
+  /**
+   * Returns the stage shared by all the torrents of this process.
+   */
+  public static DiskIOStage getShared() {
+    return ourShared;
+  }
+
+  /**
+   * Replace the stage shared by all the torrents of this process. Tasks
+   * already queued still run on the previous stage.
+   */
+  public static void setShared(DiskIOStage stage) {
+    ourShared = stage;
+  }
+
+  /**
+   * Returns the key of the device queue of the tasks working on the given
+   * file or directory.
+   *
+   * <p>
+   * This checks whether the location is a directory: call it once, not for
+   * every task.
+   * </p>
+   */
+  public static String deviceKey(File location) {
+    final File directory = location.isDirectory() ? location : location.getAbsoluteFile().getParentFile();
+    return directory == null ? location.getAbsolutePath() : directory.getAbsolutePath();
+  }
+
+  /**
+   * Queue a disk task.
+   *
+   * @param deviceKey The key of the device the task works on, as returned
+   * by {@link #deviceKey(File)}.
+   * @param task The task, which reports its own outcome.
+   * @throws RejectedExecutionException If the stage was shut down.
+   */
+  public void submit(String deviceKey, final Runnable task) {
+    final Device device = device(deviceKey);
+    final long queued = System.nanoTime();
+    device.myPending.incrementAndGet();
+    try {
+      device.myExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          } catch (RuntimeException re) {
+            logger.error("Disk task failed", re);
+          } finally {
+            device.myPending.decrementAndGet();
+            completed(System.nanoTime() - queued);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      device.myPending.decrementAndGet();
+      throw ree;
+    }
+  }
+
+  /**
+   * Stop the workers of all the devices once the queued tasks are done.
+   */
+  public void shutdown() {
+    final List<Device> devices;
+    synchronized (this) {
+      myShutdown = true;
+      devices = new ArrayList<Device>(myDevices.values());
+    }
+    for (Device device : devices) {
+      device.myExecutor.shutdown();
+    }
+  }
+
+  public int getThreadsPerDevice() {
+    return myThreadsPerDevice;
+  }
+
+  /**
+   * Returns the number of tasks queued or running on all the devices.
+   */
+  public synchronized int getQueueDepth() {
+    int depth = 0;
+    for (Device device : myDevices.values()) {
+      depth += device.myPending.get();
+    }
+    return depth;
+  }
+
+  /**
+   * Returns the number of tasks queued or running on the given device.
+   */
+  public synchronized int getQueueDepth(String deviceKey) {
+    final Device device = myDevices.get(deviceKey);
+    return device == null ? 0 : device.myPending.get();
+  }
+
+  /**
+   * Returns the number of tasks run so far.
+   */
+  public long getCompletedTasks() {
+    return myCompleted.get();
+  }
+
+  /**
+   * Returns the average time, in milliseconds, from the queueing of a task
+   * to its completion.
+   */
+  public double getAverageLatencyMillis() {
+    final long completed = myCompleted.get();
+    return completed == 0 ? 0 : myTotalLatency.get() / 1e6 / completed;
+  }
+
+  /**
+   * Returns the longest time, in milliseconds, from the queueing of a task
+   * to its completion.
+   */
+  public double getMaxLatencyMillis() {
+    return myMaxLatency.get() / 1e6;
+  }
+
+  private void completed(long latency) {
+    myCompleted.incrementAndGet();
+    myTotalLatency.addAndGet(latency);
+    long max = myMaxLatency.get();
+    while (latency > max && !myMaxLatency.compareAndSet(max, latency)) {
+      max = myMaxLatency.get();
+    }
+  }
+
+  private synchronized Device device(String key) {
+    if (myShutdown) {
+      throw new RejectedExecutionException("Disk I/O stage is shut down");
+    }
+    Device device = myDevices.get(key);
+    if (device == null) {
+      device = new Device(key, myThreadsPerDevice);
+      myDevices.put(key, device);
+    }
+    return device;
+  }
+
+  private static class Device {
+
+    private final ThreadPoolExecutor myExecutor;
+    private final AtomicInteger myPending = new AtomicInteger();
+
+    private Device(final String name, int threads) {
+      myExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger myCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          final Thread thread = new Thread(r, "ttorrent disk I/O " + myCount.incrementAndGet() + " [" + name + "]");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      myExecutor.allowCoreThreadTimeOut(true);
+    }
+  }
+}
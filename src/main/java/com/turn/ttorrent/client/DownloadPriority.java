@@ -0,0 +1,17 @@
+package com.turn.ttorrent.client;
+
+/**
+ * Download priority of a file or byte range of a torrent.
+ *
+ * <p>
+ * Pieces are requested from the highest priority down; {@link #SKIP}ped
+ * pieces are not requested at all, unless they are shared with data of a
+ * higher priority.
+ * </p>
+ */
+public enum DownloadPriority {
+  SKIP,
+  LOW,
+  NORMAL,
+  HIGH
+}
@@ -0,0 +1,128 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.common.InfoHash;
+import com.turn.ttorrent.common.PeersStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells the peers of a torrent about the pieces we complete.
+ *
+ * <p>
+ * Peers that already have a piece are not told about it. The HAVE messages
+ * of the other peers are queued and sent every flush interval, all the
+ * pieces completed meanwhile in one write per peer, rather than one write
+ * per piece and peer. With a flush interval of 0, they are sent right away.
+ * </p>
+ */
+public class HaveBroadcaster {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(HaveBroadcaster.class);
+
+  public static final long DEFAULT_FLUSH_INTERVAL_MS = 100;
+
+  private final PeersStorage myPeersStorage;
+  private final Queue<SharingPeer> myPendingPeers = new ConcurrentLinkedQueue<SharingPeer>();
+  private volatile long myFlushInterval = DEFAULT_FLUSH_INTERVAL_MS;
+  private volatile ScheduledExecutorService myFlusher = null;
+
+  public HaveBroadcaster(PeersStorage peersStorage) {
+    myPeersStorage = peersStorage;
+  }
+
+  /**
+   * Set the time, in milliseconds, HAVE messages are held to be sent
+   * together. Takes effect on the next {@link #start()}.
+   */
+  public void setFlushInterval(long flushInterval) {
+    myFlushInterval = Math.max(flushInterval, 0);
+  }
+
+  public long getFlushInterval() {
+    return myFlushInterval;
+  }
+
+  public synchronized void start() {
+    if (myFlusher != null || myFlushInterval <= 0) {
+      return;
+    }
+    final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "ttorrent HAVE flusher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          logger.warn("Error sending HAVE messages", e);
+        }
+      }
+    }, myFlushInterval, myFlushInterval, TimeUnit.MILLISECONDS);
+    myFlusher = flusher;
+  }
+
+  /**
+   * Stop flushing in the background, after sending what is queued. Pieces
+   * completed from then on are announced right away.
+   */
+  public synchronized void stop() {
+    if (myFlusher != null) {
+      myFlusher.shutdownNow();
+      myFlusher = null;
+    }
+    flush();
+  }
+
+  /**
+   * Queue HAVE messages for the given completed piece to the connected peers
+   * of its torrent that do not have it.
+   */
+  public void pieceCompleted(InfoHash torrentHash, int piece) {
+    final List<SharingPeer> toFlush = new ArrayList<SharingPeer>();
+    // Under the lock of stop(), so that nothing is queued after its last
+    // flush.
+    synchronized (this) {
+      final boolean batched = myFlusher != null;
+      for (SharingPeer peer : myPeersStorage.getSharingPeers(torrentHash)) {
+        if (!peer.isConnected() || !peer.queueHave(piece)) {
+          continue;
+        }
+        if (batched) {
+          myPendingPeers.add(peer);
+        } else {
+          toFlush.add(peer);
+        }
+      }
+    }
+    for (SharingPeer peer : toFlush) {
+      peer.flushHaves();
+    }
+  }
+
+  /**
+   * Send the queued HAVE messages now.
+   */
+  public void flush() {
+    SharingPeer peer;
+    while ((peer = myPendingPeers.poll()) != null) {
+      peer.flushHaves();
+    }
+  }
+}
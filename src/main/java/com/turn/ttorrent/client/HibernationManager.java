@@ -0,0 +1,145 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.common.InfoHash;
+import com.turn.ttorrent.common.TorrentsStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts the torrents nobody downloads from back to sleep.
+ *
+ * <p>
+ * A client only keeps the announceable record of its torrents. The torrent
+ * itself, with its piece table, storage and meta-info, is loaded when a peer
+ * connects for it and initialized in the background. Once no peer has
+ * downloaded from it for the idle timeout, it is closed and dropped, which
+ * writes its fast-resume record: the next peer wakes it up without hashing
+ * its data again.
+ * </p>
+ *
+ * <p>
+ * With an idle timeout of 0, the default, a torrent is dropped as soon as
+ * its last peer goes away.
+ * </p>
+ */
+public class HibernationManager {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(HibernationManager.class);
+
+  private final TorrentsStorage myTorrentsStorage;
+  private volatile long myIdleTimeout = 0;
+  private boolean myStarted = false;
+  private ScheduledExecutorService myReaper = null;
+
+  public HibernationManager(TorrentsStorage torrentsStorage) {
+    myTorrentsStorage = torrentsStorage;
+  }
+
+  /**
+   * Set the time, in milliseconds, a torrent nobody downloads from stays
+   * loaded.
+   */
+  public synchronized void setIdleTimeout(long idleTimeout) {
+    myIdleTimeout = Math.max(idleTimeout, 0);
+    if (myStarted) {
+      stopReaper();
+      startReaper();
+    }
+  }
+
+  public long getIdleTimeout() {
+    return myIdleTimeout;
+  }
+
+  /**
+   * Start hibernating the idle torrents in the background.
+   */
+  public synchronized void start() {
+    myStarted = true;
+    startReaper();
+  }
+
+  public synchronized void stop() {
+    myStarted = false;
+    stopReaper();
+  }
+
+  /**
+   * Called once a peer of the given torrent went away.
+   */
+  public void peerDisconnected(InfoHash torrentHash) {
+    if (myIdleTimeout > 0) {
+      // Left to the reaper.
+      return;
+    }
+    final SharedTorrent torrent = myTorrentsStorage.getTorrent(torrentHash);
+    if (torrent != null) {
+      hibernate(torrent);
+    }
+  }
+
+  /**
+   * Hibernate the torrents nobody downloaded from for the idle timeout.
+   *
+   * @return The number of hibernated torrents.
+   */
+  public int hibernateIdleTorrents() {
+    final long idleTimeout = myIdleTimeout;
+    int hibernated = 0;
+    for (SharedTorrent torrent : myTorrentsStorage.activeTorrents()) {
+      if (torrent.getDownloadersCount() == 0 &&
+        torrent.getIdleTime() >= idleTimeout &&
+        hibernate(torrent)) {
+        hibernated++;
+      }
+    }
+    return hibernated;
+  }
+
+  private boolean hibernate(SharedTorrent torrent) {
+    if (!myTorrentsStorage.hibernate(torrent.getInfoHashKey(), torrent)) {
+      return false;
+    }
+    BlockReadCache.getShared().invalidate(torrent.getInfoHashKey());
+    logger.debug("Hibernated {}, idle for {} ms.", torrent.getName(), torrent.getIdleTime());
+    return true;
+  }
+
+  private void startReaper() {
+    if (myReaper != null || myIdleTimeout <= 0) {
+      return;
+    }
+    myReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "ttorrent torrent hibernation");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final long period = Math.max(myIdleTimeout / 2, 1);
+    myReaper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          hibernateIdleTorrents();
+        } catch (RuntimeException e) {
+          logger.warn("Error hibernating idle torrents", e);
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private void stopReaper() {
+    if (myReaper != null) {
+      myReaper.shutdownNow();
+      myReaper = null;
+    }
+  }
+}
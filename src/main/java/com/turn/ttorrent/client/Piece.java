@@ -15,15 +15,15 @@
  */
 package com.turn.ttorrent.client;
 
-import com.turn.ttorrent.common.Torrent;
-import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.common.protocol.PeerMessage;
 import com.turn.ttorrent.client.storage.TorrentByteStorage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.concurrent.Callable;
+import java.util.BitSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,6 +45,12 @@ import org.slf4j.LoggerFactory;
  * impression of a contiguous, linear byte storage.
  * </p>
  *
+ * <p>
+ * The pieces of a shared torrent are kept in its {@link PieceTable}, which
+ * holds their hash and validity: Piece objects then only exist for the
+ * pieces being downloaded, or briefly while a piece is looked at.
+ * </p>
+ *
  * @author mpetazzoni
  */
 public class Piece implements Comparable<Piece> {
@@ -52,6 +58,12 @@ public class Piece implements Comparable<Piece> {
 	private static final Logger logger =
 		LoggerFactory.getLogger(Piece.class);
 
+	/**
+	 * Size of the blocks the piece is downloaded by.
+	 */
+	public static final int BLOCK_SIZE =
+		PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE;
+
 	private final TorrentByteStorage bucket;
 	private final int index;
 	private final long offset;
@@ -59,10 +71,29 @@ public class Piece implements Comparable<Piece> {
 	private final byte[] hash;
 	private final boolean seeder;
 	private final boolean leecher;
+	private final PieceBufferPool bufferPool;
 
+	// Validity of the piece, kept in its table if it has one.
+	private final PieceTable table;
 	private volatile boolean valid;
-	private int seen;
+
+	// Assembly buffer, taken from the pool under its own lock so that the
+	// torrent can reserve it without holding the piece's monitor. The digest
+	// is advanced over the contiguous blocks received from the start of the
+	// piece, up to hashedLength.
+	private final Object bufferLock = new Object();
 	private ByteBuffer data;
+	private MessageDigest digest;
+	private int hashedLength;
+
+	// Block download state, shared by all the peers downloading this piece.
+	// Guarded by its own lock, never held while calling out.
+	private final Object blocksLock = new Object();
+	private final int blockCount;
+	private BitSet claimedBlocks;
+	private BitSet receivedBlocks;
+	private int receivedCount;
+	private boolean finishing;
 
 	/**
 	 * Initialize a new piece in the byte bucket.
@@ -76,6 +107,36 @@ public class Piece implements Comparable<Piece> {
 	 */
 	public Piece(TorrentByteStorage bucket, int index, long offset,
 							 long length, byte[] hash, boolean seeder, boolean leecher) {
+		this(bucket, index, offset, length, hash, seeder, leecher,
+			PieceBufferPool.getShared());
+	}
+
+	/**
+	 * Initialize a new piece in the byte bucket, assembled in buffers from
+	 * the given pool.
+	 */
+	public Piece(TorrentByteStorage bucket, int index, long offset,
+							 long length, byte[] hash, boolean seeder, boolean leecher,
+							 PieceBufferPool bufferPool) {
+		this(null, bucket, index, offset, length, hash, seeder, leecher,
+			bufferPool);
+	}
+
+	/**
+	 * Initialize a piece of the given table, which holds its hash and
+	 * validity.
+	 */
+	Piece(PieceTable table, TorrentByteStorage bucket, int index, long offset,
+				long length, boolean seeder, boolean leecher,
+				PieceBufferPool bufferPool) {
+		this(table, bucket, index, offset, length, null, seeder, leecher,
+			bufferPool);
+	}
+
+	private Piece(PieceTable table, TorrentByteStorage bucket, int index,
+								long offset, long length, byte[] hash, boolean seeder,
+								boolean leecher, PieceBufferPool bufferPool) {
+		this.table = table;
 		this.bucket = bucket;
 		this.index = index;
 		this.offset = offset;
@@ -83,21 +144,40 @@ public class Piece implements Comparable<Piece> {
 		this.hash = hash;
 		this.seeder = seeder;
 		this.leecher = leecher;
+		this.bufferPool = bufferPool;
 
 		// Piece is considered invalid until first check.
 		this.valid = false;
 
-		// Piece start unseen
-		this.seen = 0;
-
 		this.data = null;
+		this.digest = null;
+		this.hashedLength = 0;
+
+		this.blockCount = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		this.claimedBlocks = null;
+		this.receivedBlocks = null;
+		this.receivedCount = 0;
 	}
 
 	/**
 	 * Tells whether this piece's data is valid or not.
 	 */
 	public boolean isValid() {
-		return this.valid;
+		return this.table != null ? this.table.isValid(this.index) : this.valid;
+	}
+
+	private void setValid(boolean valid) {
+		if (this.table != null) {
+			this.table.setValid(this.index, valid);
+		} else {
+			this.valid = valid;
+		}
+	}
+
+	private boolean hashMatches(byte[] calculatedHash) {
+		return this.table != null
+			? this.table.hashMatches(this.index, calculatedHash)
+			: Arrays.equals(calculatedHash, this.hash);
 	}
 
 	/**
@@ -119,67 +199,167 @@ public class Piece implements Comparable<Piece> {
 	}
 
 	/**
-	 * Tells whether this piece is available in the current connected peer swarm.
+	 * Claim the next block of this piece nobody requested yet.
+	 *
+	 * <p>
+	 * Blocks of a piece are handed out one at a time so that several peers
+	 * can download the same piece concurrently.
+	 * </p>
+	 *
+	 * @return The offset of the claimed block in this piece, or -1 if every
+	 * block is already requested or received.
 	 */
-	public boolean available() {
-		return this.seen > 0;
+	public int claimBlock() {
+		synchronized (this.blocksLock) {
+			if (this.claimedBlocks == null) {
+				this.claimedBlocks = new BitSet(this.blockCount);
+				this.receivedBlocks = new BitSet(this.blockCount);
+			}
+			int block = this.claimedBlocks.nextClearBit(0);
+			if (block >= this.blockCount) {
+				return -1;
+			}
+			this.claimedBlocks.set(block);
+			return block * BLOCK_SIZE;
+		}
 	}
 
 	/**
-	 * Mark this piece as being seen at the given peer.
+	 * Return a block requested but not yet received, for end-game duplicate
+	 * requests.
 	 *
-	 * @param peer The sharing peer this piece has been seen available at.
+	 * @param fromOffset The offset to start looking from.
+	 * @return The offset of the block in this piece, or -1 if there is none.
 	 */
-	public void seenAt(SharingPeer peer) {
-		this.seen++;
+	public int nextPendingBlock(int fromOffset) {
+		synchronized (this.blocksLock) {
+			if (this.claimedBlocks == null) {
+				return -1;
+			}
+			for (int block = this.claimedBlocks.nextSetBit(fromOffset / BLOCK_SIZE);
+					 block >= 0 && block < this.blockCount;
+					 block = this.claimedBlocks.nextSetBit(block + 1)) {
+				if (!this.receivedBlocks.get(block)) {
+					return block * BLOCK_SIZE;
+				}
+			}
+			return -1;
+		}
 	}
 
 	/**
-	 * Mark this piece as no longer being available at the given peer.
+	 * Give back a claimed block that will not be received, e.g. because the
+	 * peer it was requested from choked or went away.
+	 */
+	public void releaseBlock(int offset) {
+		synchronized (this.blocksLock) {
+			final int block = offset / BLOCK_SIZE;
+			if (this.claimedBlocks != null && !this.receivedBlocks.get(block)) {
+				this.claimedBlocks.clear(block);
+			}
+		}
+	}
+
+	/**
+	 * Tells whether some block of this piece was not requested from any
+	 * peer yet.
+	 */
+	public boolean hasUnclaimedBlocks() {
+		synchronized (this.blocksLock) {
+			return this.claimedBlocks == null ||
+				this.claimedBlocks.nextClearBit(0) < this.blockCount;
+		}
+	}
+
+	/**
+	 * Tells whether all the blocks of this piece were received.
+	 */
+	public boolean isDownloaded() {
+		synchronized (this.blocksLock) {
+			return this.receivedCount == this.blockCount;
+		}
+	}
+
+	/**
+	 * Claim the writing of this downloaded piece. Only the first caller gets
+	 * it, until the blocks are reset; blocks received in the meantime are
+	 * ignored.
 	 *
-	 * @param peer The sharing peer from which the piece is no longer available.
+	 * @return Whether the caller should finish this piece.
 	 */
-	public void noLongerAt(SharingPeer peer) {
-		this.seen--;
+	public boolean startFinishing() {
+		synchronized (this.blocksLock) {
+			if (this.finishing || this.receivedCount != this.blockCount) {
+				return false;
+			}
+			this.finishing = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Forget the download state of this piece's blocks, so it can be
+	 * downloaded again from scratch.
+	 */
+	public void resetBlocks() {
+		synchronized (this.bufferLock) {
+			if (this.digest != null) {
+				this.digest.reset();
+			}
+			this.hashedLength = 0;
+			synchronized (this.blocksLock) {
+				this.claimedBlocks = null;
+				this.receivedBlocks = null;
+				this.receivedCount = 0;
+				this.finishing = false;
+			}
+		}
 	}
 
 	/**
-	 * Validates this piece.
+	 * Returns the length of the block at the given offset in this piece.
+	 */
+	public int getBlockLength(int offset) {
+		return (int) Math.min(BLOCK_SIZE, this.length - offset);
+	}
+
+	/**
+	 * Validates this piece from its data, read with {@link #readData}.
 	 *
-	 * @return Returns true if this piece, as stored in the underlying byte
-	 * storage, is valid, i.e. its SHA1 sum matches the one from the torrent
-	 * meta-info.
+	 * @param data The piece data.
+	 * @param md The digest to use, reset first.
+	 * @return Whether this piece is valid.
 	 */
-  public synchronized boolean validate(SharedTorrent torrent, Piece piece) throws IOException {
+	boolean validateData(ByteBuffer data, MessageDigest md) {
 		if (this.seeder) {
-			logger.trace("Skipping validation of {} (seeder mode).", this);
-			this.valid = true;
+			this.setValid(true);
 			return true;
 		}
 
-		this.valid = false;
+		this.setValid(false);
 
 		if (this.leecher) {
-			return this.isValid();
+			return false;
 		}
 
-		logger.trace("Validating {}...", this);
-
-		try {
-			// TODO: remove cast to int when large ByteBuffer support is
-			// implemented in Java.
-			ByteBuffer buffer = ByteBuffer.allocate((int)this.length);
-			this._read(0, this.length, buffer);
-			byte[] data = new byte[(int)this.length];
-			buffer.get(data);
-      final byte[] calculatedHash = Torrent.hash(data);
-      this.valid = Arrays.equals(calculatedHash, this.hash);
-      logger.trace("validating result of piece {} is {}", this.index, this.valid);
-		} catch (NoSuchAlgorithmException nsae) {
-			logger.error("{}", nsae);
-		}
+		md.reset();
+		md.update(data);
+		final boolean valid = this.hashMatches(md.digest());
+		this.setValid(valid);
+		logger.trace("validating result of piece {} is {}", this.index, valid);
+		return valid;
+	}
 
-		return this.isValid();
+	/**
+	 * Read this piece's data from the storage, whether it is valid or not.
+	 *
+	 * @param buffer The buffer to read into, at least as large as the piece.
+	 * On return, it holds the bytes read.
+	 */
+	void readData(ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		buffer.limit((int) this.length);
+		this._read(0, this.length, buffer);
 	}
 
 	/**
@@ -237,7 +417,7 @@ public class Piece implements Comparable<Piece> {
 	 */
 	public ByteBuffer read(long offset, int length, ByteBuffer block)
 		throws IllegalArgumentException, IllegalStateException, IOException {
-		if (!this.valid) {
+		if (!this.isValid()) {
 			throw new IllegalStateException("Attempting to read an " +
 					"known-to-be invalid piece!");
 		}
@@ -245,6 +425,41 @@ public class Piece implements Comparable<Piece> {
 		return this._read(offset, length, block);
 	}
 
+	/**
+	 * Take the buffer this piece is assembled in from the buffer pool, if it
+	 * does not have one yet.
+	 *
+	 * @return <code>false</code> if the pool's budget is used up, in which
+	 * case the download of this piece should not be started yet, or if this
+	 * piece is a flyweight of its table rather than the piece registered for
+	 * download.
+	 */
+	public boolean acquireBuffer() {
+		return this.acquireBuffer(null);
+	}
+
+	/**
+	 * Take the buffer this piece is assembled in from the buffer pool, or
+	 * have the given task run once a buffer is released if the pool's budget
+	 * is used up.
+	 *
+	 * @see PieceBufferPool#tryAcquire(int, Runnable)
+	 */
+	public boolean acquireBuffer(Runnable whenReleased) {
+		synchronized (this.bufferLock) {
+			if (this.data == null) {
+				if (this.table != null && !this.table.isActive(this)) {
+					return false;
+				}
+				// TODO: remove cast to int when large ByteBuffer support is
+				// implemented in Java.
+				this.data = this.bufferPool.tryAcquire((int)this.length, whenReleased);
+				this.hashedLength = 0;
+			}
+			return this.data != null;
+		}
+	}
+
 	/**
 	 * Record the given block at the given offset in this piece.
 	 *
@@ -252,29 +467,151 @@ public class Piece implements Comparable<Piece> {
 	 * <b>Note:</b> this has synchronized access to the underlying byte storage.
 	 * </p>
 	 *
+	 * <p>
+	 * Blocks are hashed as soon as every block before them was received, so
+	 * that the piece can be checked without reading it back from the
+	 * storage once the last block arrives.
+	 * </p>
+	 *
 	 * @param block The ByteBuffer containing the block data.
 	 * @param offset The block offset in this piece.
+	 * @return <code>false</code> if the block was dropped because no buffer
+	 * could be taken from the pool to assemble this piece.
 	 */
-	public synchronized void record(ByteBuffer block, int offset)
+	public boolean record(ByteBuffer block, int offset)
 		throws IOException {
-		if (this.data == null) {
-			// TODO: remove cast to int when large ByteBuffer support is
-			// implemented in Java.
-			this.data = ByteBuffer.allocate((int)this.length);
+		synchronized (this.bufferLock) {
+			synchronized (this.blocksLock) {
+				if (this.finishing) {
+					// Complete already, this block is a duplicate.
+					return true;
+				}
+			}
+			if (!this.acquireBuffer()) {
+				return false;
+			}
+
+			int pos = block.position();
+			this.data.position(offset);
+			this.data.put(block);
+			block.position(pos);
+
+			synchronized (this.blocksLock) {
+				if (this.claimedBlocks == null) {
+					this.claimedBlocks = new BitSet(this.blockCount);
+					this.receivedBlocks = new BitSet(this.blockCount);
+				}
+				final int received = offset / BLOCK_SIZE;
+				if (!this.receivedBlocks.get(received)) {
+					this.receivedBlocks.set(received);
+					this.claimedBlocks.set(received);
+					this.receivedCount++;
+				}
+			}
+
+			this.advanceDigest();
 		}
+		return true;
+	}
 
-		int pos = block.position();
-		this.data.position(offset);
-		this.data.put(block);
-		block.position(pos);
-  }
+	/**
+	 * Feed the digest with the blocks received right after the hashed part
+	 * of the piece. Blocks received out of order wait in the assembly buffer
+	 * until the gap before them is filled.
+	 */
+	private void advanceDigest() {
+		if (this.digest == null) {
+			try {
+				this.digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException nsae) {
+				logger.error("{}", nsae);
+				return;
+			}
+		}
+		final int end = this.hashedLength;
+		int next = end;
+		synchronized (this.blocksLock) {
+			while (next < this.length && this.receivedBlocks.get(next / BLOCK_SIZE)) {
+				next += this.getBlockLength(next);
+			}
+		}
+		if (next > end) {
+			final ByteBuffer contiguous = this.data.duplicate();
+			contiguous.limit(next);
+			contiguous.position(end);
+			this.digest.update(contiguous);
+			this.hashedLength = next;
+		}
+	}
 
-    public synchronized void finish() throws IOException {
-        this.data.rewind();
-        logger.trace("Recording {}...", this);
-        this.bucket.write(this.data, this.offset);
-        this.data = null;
-    }
+	/**
+	 * Check the downloaded piece against its hash and, if valid, write it to
+	 * the underlying byte storage. The buffer is given back to the pool in
+	 * any case.
+	 *
+	 * <p>
+	 * The hash was computed as the blocks were recorded, so this does not
+	 * read anything back from the storage. The buffer is taken from the
+	 * piece first: the write runs without holding any of its locks, and
+	 * blocks still coming in for it are dropped meanwhile.
+	 * </p>
+	 *
+	 * @return Whether the piece is valid.
+	 */
+	public boolean finish() throws IOException {
+		final ByteBuffer buffer;
+		final byte[] calculatedHash;
+		synchronized (this.bufferLock) {
+			buffer = this.data;
+			calculatedHash = this.hashedLength == this.length && this.digest != null
+				? this.digest.digest()
+				: null;
+			this.data = null;
+			this.digest = null;
+			this.hashedLength = 0;
+		}
+		if (buffer == null) {
+			return this.isValid();
+		}
+		try {
+			final boolean valid;
+			if (this.seeder) {
+				valid = true;
+			} else if (this.leecher) {
+				valid = false;
+			} else {
+				valid = this.hashMatches(calculatedHash);
+				logger.trace("validating result of piece {} is {}", this.index, valid);
+				if (!valid) {
+					this.setValid(false);
+					return false;
+				}
+			}
+			buffer.rewind();
+			logger.trace("Recording {}...", this);
+			this.bucket.write(buffer, this.offset);
+			// Only readable by other peers once in the storage.
+			this.setValid(valid);
+			return valid;
+		} finally {
+			this.bufferPool.release(buffer);
+		}
+	}
+
+	/**
+	 * Give the buffer of this piece back to the pool, dropping any data
+	 * assembled so far.
+	 */
+	public void releaseBuffer() {
+		synchronized (this.bufferLock) {
+			if (this.data != null) {
+				this.bufferPool.release(this.data);
+				this.data = null;
+				this.digest = null;
+				this.hashedLength = 0;
+			}
+		}
+	}
 
     /**
 	 * Return a human-readable representation of this piece.
@@ -295,49 +632,25 @@ public class Piece implements Comparable<Piece> {
   }
 
   /**
-	 * Piece comparison function for ordering pieces based on their
-	 * availability.
-	 *
-	 * @param other The piece to compare with, should not be <em>null</em>.
-	 */
-	public int compareTo(Piece other) {
-      // return true for the same pieces, otherwise sort by time seen, then by index;
-      if (this.equals(other)) {
-        return 0;
-      } else if (this.seen == other.seen) {
-        return new Integer(this.index).compareTo(other.index);
-      } else if (this.seen < other.seen) {
-        return -1;
-      } else {
-        return 1;
-      }
-    }
+   * Pieces of a table are transient flyweights, equal by index: so is their
+   * hash code, for them to be found again in maps and sets.
+   */
+  @Override
+  public int hashCode() {
+    return this.index;
+  }
 
-	/**
-	 * A {@link Callable} to call the piece validation function.
+  /**
+	 * Piece comparison function for ordering pieces by index.
 	 *
 	 * <p>
-	 * This {@link Callable} implementation allows for the calling of the piece
-	 * validation function in a controlled context like a thread or an
-	 * executor. It returns the piece it was created for. Results of the
-	 * validation can easily be extracted from the {@link Piece} object after
-	 * it is returned.
+	 * Swarm availability is tracked by the torrent's {@link AvailabilityIndex}
+	 * rather than by the pieces themselves.
 	 * </p>
 	 *
-	 * @author mpetazzoni
+	 * @param other The piece to compare with, should not be <em>null</em>.
 	 */
-	public static class CallableHasher implements Callable<Piece> {
-
-		private final Piece piece;
-
-		public CallableHasher(Piece piece) {
-			this.piece = piece;
-		}
-
-		@Override
-		public Piece call() throws IOException {
-      this.piece.validate(null, null);
-			return this.piece;
-		}
+	public int compareTo(Piece other) {
+		return this.index < other.index ? -1 : (this.index == other.index ? 0 : 1);
 	}
 }
@@ -0,0 +1,224 @@
+package com.turn.ttorrent.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pool of reusable piece assembly buffers with a global byte budget.
+ *
+ * <p>
+ * Pieces being downloaded are assembled in memory until complete. Instead
+ * of allocating a fresh piece-sized buffer for each of them, buffers are
+ * taken from this pool and given back once the piece has been written out.
+ * Buffers are sized to the next power of two of the piece length, so that
+ * the last, shorter piece of a torrent and torrents with the same piece
+ * length share them.
+ * </p>
+ *
+ * <p>
+ * The pool never holds more than its budget: when it is used up,
+ * {@link #tryAcquire(int)} fails and no new piece download should be
+ * started until a buffer is released. Callers can ask to be told when that
+ * happens with {@link #tryAcquire(int, Runnable)}. Idle buffers of another
+ * size are dropped to make room when needed.
+ * </p>
+ */
+public class PieceBufferPool {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(PieceBufferPool.class);
+
+  /**
+   * Default budget of the shared pool.
+   */
+  public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+  private static volatile PieceBufferPool ourShared =
+    new PieceBufferPool(DEFAULT_BUDGET, false);
+
+  private final long myBudget;
+  private final boolean myDirect;
+  private final Map<Integer, ArrayDeque<ByteBuffer>> myIdleBuffers =
+    new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+  private long myAllocatedBytes = 0;
+  private long myUsedBytes = 0;
+  // Run once when the next buffer is released.
+  private final Set<Runnable> myReleaseWaiters = new LinkedHashSet<Runnable>();
+
+  /**
+   * @param budget The maximum number of bytes allocated by the pool.
+   * @param direct Whether to allocate the buffers off-heap.
+   */
+  public PieceBufferPool(long budget, boolean direct) {
+    myBudget = budget;
+    myDirect = direct;
+  }
+
+  /**
+   * Returns the pool shared by all the torrents of this process.
+   */
+  public static PieceBufferPool getShared() {
+    return ourShared;
+  }
+
+  /**
+   * Replace the pool shared by all the torrents of this process. Pieces
+   * already being downloaded keep using the previous pool.
+   */
+  public static void setShared(PieceBufferPool pool) {
+    ourShared = pool;
+  }
+
+  /**
+   * Take a buffer of at least the given length from the pool.
+   *
+   * <p>
+   * A buffer is allocated even above the budget when no buffer at all is in
+   * use, so that a budget smaller than a piece does not stall downloads.
+   * </p>
+   *
+   * @param length The length of the piece to assemble.
+   * @return A cleared buffer whose limit is the given length, or
+   * <code>null</code> if the budget is used up.
+   */
+  public ByteBuffer tryAcquire(int length) {
+    return tryAcquire(length, null);
+  }
+
+  /**
+   * Take a buffer of at least the given length from the pool, or have the
+   * given task run once a buffer is released if the budget is used up.
+   *
+   * <p>
+   * The task runs once, on the thread releasing the buffer and possibly
+   * with its locks held: it should only hand the work over to another
+   * thread.
+   * </p>
+   *
+   * @param length The length of the piece to assemble.
+   * @param whenReleased The task to run when a buffer is released if none
+   * is returned, or <code>null</code>.
+   * @return A cleared buffer whose limit is the given length, or
+   * <code>null</code> if the budget is used up.
+   */
+  public synchronized ByteBuffer tryAcquire(int length, Runnable whenReleased) {
+    final int capacity = capacityFor(length);
+    ByteBuffer buffer = null;
+
+    final ArrayDeque<ByteBuffer> idle = myIdleBuffers.get(capacity);
+    if (idle != null) {
+      buffer = idle.poll();
+    }
+
+    if (buffer == null) {
+      while (myAllocatedBytes + capacity > myBudget && dropIdleBuffer()) {
+        // make room for a buffer of the requested size
+      }
+      if (myAllocatedBytes + capacity > myBudget && myUsedBytes > 0) {
+        logger.trace("Piece buffer budget of {} byte(s) used up", myBudget);
+        if (whenReleased != null) {
+          myReleaseWaiters.add(whenReleased);
+        }
+        return null;
+      }
+      buffer = myDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+      myAllocatedBytes += capacity;
+    }
+
+    myUsedBytes += capacity;
+    buffer.clear();
+    buffer.limit(length);
+    return buffer;
+  }
+
+  /**
+   * Give a buffer obtained from {@link #tryAcquire(int)} back to the pool.
+   */
+  public void release(ByteBuffer buffer) {
+    final List<Runnable> waiters;
+    synchronized (this) {
+      releaseBuffer(buffer);
+      if (myReleaseWaiters.isEmpty()) {
+        return;
+      }
+      waiters = new ArrayList<Runnable>(myReleaseWaiters);
+      myReleaseWaiters.clear();
+    }
+    for (Runnable waiter : waiters) {
+      waiter.run();
+    }
+  }
+
+  private void releaseBuffer(ByteBuffer buffer) {
+    final int capacity = buffer.capacity();
+    myUsedBytes -= capacity;
+    if (myAllocatedBytes > myBudget) {
+      // allocated over budget, don't keep it
+      myAllocatedBytes -= capacity;
+      return;
+    }
+    ArrayDeque<ByteBuffer> idle = myIdleBuffers.get(capacity);
+    if (idle == null) {
+      idle = new ArrayDeque<ByteBuffer>();
+      myIdleBuffers.put(capacity, idle);
+    }
+    buffer.clear();
+    idle.push(buffer);
+  }
+
+  public long getBudget() {
+    return myBudget;
+  }
+
+  public boolean isDirect() {
+    return myDirect;
+  }
+
+  /**
+   * Returns the number of bytes allocated by the pool, in use or idle.
+   */
+  public synchronized long getAllocatedBytes() {
+    return myAllocatedBytes;
+  }
+
+  /**
+   * Returns the number of bytes of the buffers currently in use.
+   */
+  public synchronized long getUsedBytes() {
+    return myUsedBytes;
+  }
+
+  private boolean dropIdleBuffer() {
+    final Iterator<ArrayDeque<ByteBuffer>> it = myIdleBuffers.values().iterator();
+    while (it.hasNext()) {
+      final ArrayDeque<ByteBuffer> idle = it.next();
+      final ByteBuffer buffer = idle.poll();
+      if (idle.isEmpty()) {
+        it.remove();
+      }
+      if (buffer != null) {
+        myAllocatedBytes -= buffer.capacity();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static int capacityFor(int length) {
+    if (length <= 1) {
+      return 1;
+    }
+    final int highest = Integer.highestOneBit(length - 1) << 1;
+    return highest > 0 ? highest : length;
+  }
+}
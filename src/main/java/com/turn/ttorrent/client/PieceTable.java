@@ -0,0 +1,212 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.client.storage.TorrentByteStorage;
+import com.turn.ttorrent.common.Torrent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The pieces of a torrent, as a few flat structures rather than one object
+ * per piece.
+ *
+ * <p>
+ * The piece hashes stay the slice of the meta-info they were read from, the
+ * offset and size of a piece are computed from its index, and the validity
+ * of the pieces is one bitmap. {@link Piece} objects only hold the download
+ * state of the pieces in flight: those are registered with
+ * {@link #activate(int)} so that all the peers downloading a piece share it.
+ * For any other piece, {@link #getPiece(int)} returns a short-lived
+ * flyweight reading and writing this table.
+ * </p>
+ *
+ * <p>
+ * This class is thread-safe. The validity bitmap is updated without locking,
+ * from the hashing threads among others.
+ * </p>
+ */
+public class PieceTable {
+
+  private final TorrentByteStorage myBucket;
+  private final ByteBuffer myHashes;
+  private final int myPieceLength;
+  private final int myPieceCount;
+  private final boolean mySeeder;
+  private final boolean myLeecher;
+  private final PieceBufferPool myBufferPool;
+
+  private final AtomicLongArray myValid;
+  private final ConcurrentMap<Integer, Piece> myActivePieces;
+
+  /**
+   * @param bucket      The storage of the torrent data.
+   * @param hashes      The concatenated SHA-1 hashes of the pieces, shared.
+   * @param pieceLength The length of all the pieces but the last one.
+   * @param pieceCount  The number of pieces.
+   * @param seeder      Whether all the pieces are valid without checking.
+   * @param leecher     Whether no piece is ever valid.
+   */
+  public PieceTable(TorrentByteStorage bucket, ByteBuffer hashes, int pieceLength,
+                    int pieceCount, boolean seeder, boolean leecher) {
+    this(bucket, hashes, pieceLength, pieceCount, seeder, leecher,
+      PieceBufferPool.getShared());
+  }
+
+  public PieceTable(TorrentByteStorage bucket, ByteBuffer hashes, int pieceLength,
+                    int pieceCount, boolean seeder, boolean leecher,
+                    PieceBufferPool bufferPool) {
+    if (hashes.remaining() < (long) pieceCount * Torrent.PIECE_HASH_SIZE) {
+      throw new IllegalArgumentException("Missing hashes for " + pieceCount + " pieces");
+    }
+    myBucket = bucket;
+    myHashes = hashes.slice();
+    myPieceLength = pieceLength;
+    myPieceCount = pieceCount;
+    mySeeder = seeder;
+    myLeecher = leecher;
+    myBufferPool = bufferPool;
+    myValid = new AtomicLongArray((pieceCount + 63) >>> 6);
+    myActivePieces = new ConcurrentHashMap<Integer, Piece>();
+  }
+
+  public int getPieceCount() {
+    return myPieceCount;
+  }
+
+  /**
+   * Returns the offset of the given piece in the torrent data.
+   */
+  public long getOffset(int index) {
+    return (long) index * myPieceLength;
+  }
+
+  /**
+   * Returns the size of the given piece. The last piece may be shorter than
+   * the others.
+   */
+  public long getSize(int index) {
+    final long offset = getOffset(index);
+    return Math.min(myBucket.size() - offset, myPieceLength);
+  }
+
+  public boolean isValid(int index) {
+    return (myValid.get(index >>> 6) & (1L << index)) != 0;
+  }
+
+  void setValid(int index, boolean valid) {
+    final int word = index >>> 6;
+    final long bit = 1L << index;
+    long current;
+    do {
+      current = myValid.get(word);
+    } while (!myValid.compareAndSet(word, current, valid ? current | bit : current & ~bit));
+  }
+
+  /**
+   * Returns the number of valid pieces.
+   */
+  public int getValidCount() {
+    int count = 0;
+    for (int i = 0; i < myValid.length(); i++) {
+      count += Long.bitCount(myValid.get(i));
+    }
+    return count;
+  }
+
+  /**
+   * Tells whether the given SHA-1 digest is the hash of the given piece.
+   */
+  boolean hashMatches(int index, byte[] digest) {
+    if (digest == null || digest.length != Torrent.PIECE_HASH_SIZE) {
+      return false;
+    }
+    final int start = index * Torrent.PIECE_HASH_SIZE;
+    for (int i = 0; i < Torrent.PIECE_HASH_SIZE; i++) {
+      if (myHashes.get(start + i) != digest[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the piece being downloaded at the given index or, if there is
+   * none, a flyweight for it that is not kept.
+   *
+   * @throws IllegalArgumentException If there is no such piece.
+   */
+  public Piece getPiece(int index) {
+    checkIndex(index);
+    final Piece active = myActivePieces.get(index);
+    return active != null ? active : newPiece(index);
+  }
+
+  /**
+   * Returns the piece at the given index, registering it for download if it
+   * was not already. Only registered pieces assemble blocks.
+   */
+  public Piece activate(int index) {
+    checkIndex(index);
+    final Piece active = myActivePieces.get(index);
+    if (active != null) {
+      return active;
+    }
+    final Piece piece = newPiece(index);
+    final Piece raced = myActivePieces.putIfAbsent(index, piece);
+    return raced != null ? raced : piece;
+  }
+
+  /**
+   * Forget the download state of the given piece, once it is complete.
+   */
+  public void deactivate(Piece piece) {
+    myActivePieces.remove(piece.getIndex(), piece);
+  }
+
+  /**
+   * Tells whether the given piece is the one registered for download.
+   */
+  boolean isActive(Piece piece) {
+    return myActivePieces.get(piece.getIndex()) == piece;
+  }
+
+  /**
+   * Returns the pieces registered for download.
+   */
+  public Collection<Piece> getActivePieces() {
+    return new ArrayList<Piece>(myActivePieces.values());
+  }
+
+  /**
+   * Give the buffers of the pieces being downloaded back to the pool and
+   * forget them.
+   */
+  public void releaseActivePieces() {
+    for (Piece piece : getActivePieces()) {
+      piece.releaseBuffer();
+      deactivate(piece);
+    }
+  }
+
+  /**
+   * Returns the size of the largest piece.
+   */
+  public int getMaxPieceSize() {
+    return myPieceCount == 0 ? 0 : (int) getSize(0);
+  }
+
+  private Piece newPiece(int index) {
+    return new Piece(this, myBucket, index, getOffset(index), getSize(index),
+      mySeeder, myLeecher, myBufferPool);
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= myPieceCount) {
+      throw new IllegalArgumentException("Invalid piece index " + index + "!");
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.common.Torrent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the local data of torrents against their piece hashes.
+ *
+ * <p>
+ * The calling thread reads the pieces to check one after the other, so that
+ * the disk sees one sequential stream, and hands them over to a pool of
+ * hashing threads shared by all the torrents. Pieces are read into a few
+ * reusable buffers, two per hashing thread: when they are all being
+ * hashed, reading waits. Memory use thus does not depend on the size of the
+ * torrent, and each hashing thread keeps its own digest. The buffers are
+ * kept from one verification to the next, as long as the piece size is
+ * the same.
+ * </p>
+ */
+public class PieceVerifier {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(PieceVerifier.class);
+
+  private static final int BUFFERS_PER_THREAD = 2;
+
+  private static volatile PieceVerifier ourShared = null;
+
+  private static final ThreadLocal<MessageDigest> ourDigests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException nsae) {
+        throw new IllegalStateException(nsae);
+      }
+    }
+  };
+
+  private final int myThreads;
+  private final ThreadPoolExecutor myExecutor;
+  private final BlockingQueue<ByteBuffer> myIdleBuffers;
+
+  /**
+   * Progress of a verification.
+   */
+  public interface Listener {
+
+    /**
+     * Called once the given piece was checked, from any thread. The piece
+     * tells whether it is valid.
+     */
+    void pieceVerified(Piece piece);
+
+    /**
+     * Polled between pieces; the verification stops if it returns
+     * <code>true</code>.
+     */
+    boolean isCancelled();
+  }
+
+  /**
+   * @param threads The number of hashing threads. With 0, pieces are hashed
+   * by the thread reading them.
+   */
+  public PieceVerifier(int threads) {
+    myThreads = threads;
+    myIdleBuffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(threads, 1) * BUFFERS_PER_THREAD);
+    if (threads == 0) {
+      myExecutor = null;
+      return;
+    }
+    myExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger myCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "ttorrent piece hasher " + myCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    myExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the verifier shared by all the torrents of this process, with
+   * {@link Torrent#HASHING_THREADS_COUNT} hashing threads.
+   */
+  public static PieceVerifier getShared() {
+    PieceVerifier shared = ourShared;
+    if (shared == null) {
+      synchronized (PieceVerifier.class) {
+        shared = ourShared;
+        if (shared == null) {
+          shared = new PieceVerifier(Torrent.HASHING_THREADS_COUNT);
+          ourShared = shared;
+        }
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Replace the verifier shared by all the torrents of this process.
+   */
+  public static void setShared(PieceVerifier verifier) {
+    ourShared = verifier;
+  }
+
+  public int getThreads() {
+    return myThreads;
+  }
+
+  /**
+   * Check the given pieces, returning once they are all checked. A piece
+   * that cannot be read is invalid.
+   *
+   * @param pieces The piece table of the torrent, updated with the validity
+   * of the checked pieces.
+   * @param toVerify The indices of the pieces to check.
+   * @param listener Told about each checked piece.
+   * @throws InterruptedException If the verification was cancelled or the
+   * thread interrupted.
+   */
+  public void verify(PieceTable pieces, BitSet toVerify, final Listener listener)
+    throws InterruptedException {
+    final int bufferCount = Math.max(myThreads, 1) * BUFFERS_PER_THREAD;
+    final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+    int taken = 0;
+    final int capacity = PieceBufferPool.capacityFor(pieces.getMaxPieceSize());
+
+    try {
+      for (int idx = toVerify.nextSetBit(0); idx >= 0 && idx < pieces.getPieceCount();
+           idx = toVerify.nextSetBit(idx + 1)) {
+        if (listener.isCancelled()) {
+          throw new InterruptedException("Torrent data analysis interrupted.");
+        }
+
+        ByteBuffer buffer = free.poll();
+        if (buffer == null && taken < bufferCount) {
+          buffer = takeIdleBuffer(capacity);
+          taken++;
+        } else if (buffer == null) {
+          buffer = free.take();
+        }
+
+        // From here on, the buffer goes back to the free queue whatever
+        // happens, or the wait for the outstanding buffers never ends.
+        final Piece piece = pieces.getPiece(idx);
+        try {
+          piece.readData(buffer);
+        } catch (IOException ioe) {
+          logger.debug("Could not read {}: {}", piece, ioe.getMessage());
+          free.add(buffer);
+          listener.pieceVerified(piece);
+          continue;
+        } catch (RuntimeException e) {
+          free.add(buffer);
+          throw e;
+        }
+        this.hash(piece, buffer, free, listener);
+      }
+    } finally {
+      // All the buffers are back once every piece is hashed.
+      for (int i = 0; i < taken; i++) {
+        myIdleBuffers.offer(free.take());
+      }
+    }
+  }
+
+  /**
+   * Take a buffer of the given capacity kept from a previous verification,
+   * or allocate one. Buffers of another capacity are dropped.
+   */
+  private ByteBuffer takeIdleBuffer(int capacity) {
+    ByteBuffer buffer;
+    while ((buffer = myIdleBuffers.poll()) != null) {
+      if (buffer.capacity() == capacity) {
+        return buffer;
+      }
+    }
+    return ByteBuffer.allocateDirect(capacity);
+  }
+
+  private void hash(final Piece piece, final ByteBuffer buffer,
+                    final BlockingQueue<ByteBuffer> free, final Listener listener) {
+    final Runnable hasher = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          piece.validateData(buffer, ourDigests.get());
+          listener.pieceVerified(piece);
+        } finally {
+          free.add(buffer);
+        }
+      }
+    };
+    if (myExecutor == null) {
+      hasher.run();
+      return;
+    }
+    try {
+      myExecutor.execute(hasher);
+    } catch (RejectedExecutionException e) {
+      free.add(buffer);
+      throw e;
+    }
+  }
+}
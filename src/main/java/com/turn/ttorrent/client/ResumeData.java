@@ -0,0 +1,195 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.bcodec.BDecoder;
+import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.bcodec.BEncoder;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fast-resume record of a torrent: which pieces were complete, and the
+ * length and modification time of each of its files at that point.
+ *
+ * <p>
+ * When the files are found unchanged on the next start, their complete
+ * pieces can be trusted without being hashed again. Only the pieces of
+ * files that changed, or are missing, need to be checked.
+ * </p>
+ *
+ * <p>
+ * The record is stored bencoded, and replaced atomically where the file
+ * system allows it.
+ * </p>
+ */
+public class ResumeData {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(ResumeData.class);
+
+  private final String myHexInfoHash;
+  private final int myPieceCount;
+  private final BitSet myCompletedPieces;
+  private final long[] myFileLengths;
+  private final long[] myFileModificationTimes;
+
+  private ResumeData(String hexInfoHash, int pieceCount, BitSet completedPieces,
+                     long[] fileLengths, long[] fileModificationTimes) {
+    myHexInfoHash = hexInfoHash;
+    myPieceCount = pieceCount;
+    myCompletedPieces = completedPieces;
+    myFileLengths = fileLengths;
+    myFileModificationTimes = fileModificationTimes;
+  }
+
+  /**
+   * Record the current state of a torrent's files. This should be done once
+   * all the data is written to them.
+   *
+   * @param hexInfoHash The torrent's info hash.
+   * @param pieceCount The number of pieces of the torrent.
+   * @param completedPieces The pieces complete and valid in the files.
+   * @param files The torrent's files, in torrent order.
+   */
+  public static ResumeData capture(String hexInfoHash, int pieceCount,
+                                   BitSet completedPieces, List<File> files) {
+    final long[] lengths = new long[files.size()];
+    final long[] modificationTimes = new long[files.size()];
+    for (int i = 0; i < lengths.length; i++) {
+      final File file = files.get(i);
+      lengths[i] = file.exists() ? file.length() : -1;
+      modificationTimes[i] = file.lastModified();
+    }
+    return new ResumeData(hexInfoHash, pieceCount,
+      (BitSet) completedPieces.clone(), lengths, modificationTimes);
+  }
+
+  /**
+   * Read a record written by {@link #write(File)}.
+   *
+   * @return The record, or <code>null</code> if there is none or it cannot
+   * be read.
+   */
+  public static ResumeData read(File source) {
+    if (!source.isFile()) {
+      return null;
+    }
+    InputStream in = null;
+    try {
+      in = new FileInputStream(source);
+      final Map<String, BEValue> record = BDecoder.bdecode(in).getMap();
+      final List<BEValue> files = record.get("files").getList();
+      final long[] lengths = new long[files.size()];
+      final long[] modificationTimes = new long[files.size()];
+      for (int i = 0; i < lengths.length; i++) {
+        final Map<String, BEValue> file = files.get(i).getMap();
+        lengths[i] = file.get("length").getLong();
+        modificationTimes[i] = file.get("mtime").getLong();
+      }
+      return new ResumeData(
+        record.get("info hash").getString(),
+        record.get("piece count").getInt(),
+        fromBitfield(record.get("pieces").getBytes()),
+        lengths,
+        modificationTimes);
+    } catch (Exception e) {
+      logger.warn("Ignoring unreadable resume data {}: {}", source, e.toString());
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException ioe) {
+          logger.debug("Error closing {}: {}", source, ioe.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Store this record in the given file, replacing any previous one.
+   */
+  public void write(File target) throws IOException {
+    final Map<String, BEValue> record = new HashMap<String, BEValue>();
+    record.put("info hash", new BEValue(myHexInfoHash));
+    record.put("piece count", new BEValue(myPieceCount));
+    record.put("pieces", new BEValue(toBitfield(myCompletedPieces, myPieceCount)));
+    final List<BEValue> files = new ArrayList<BEValue>(myFileLengths.length);
+    for (int i = 0; i < myFileLengths.length; i++) {
+      final Map<String, BEValue> file = new HashMap<String, BEValue>();
+      file.put("length", new BEValue(myFileLengths[i]));
+      file.put("mtime", new BEValue(myFileModificationTimes[i]));
+      files.add(new BEValue(file));
+    }
+    record.put("files", new BEValue(files));
+
+    final File temporary = new File(target.getPath() + ".tmp");
+    final OutputStream out = new FileOutputStream(temporary);
+    try {
+      BEncoder.bencode(record, out);
+    } finally {
+      out.close();
+    }
+    if (!temporary.renameTo(target)) {
+      // Some file systems don't replace on rename.
+      FileUtils.deleteQuietly(target);
+      FileUtils.moveFile(temporary, target);
+    }
+  }
+
+  /**
+   * Tells whether this record was made for the given torrent layout.
+   */
+  public boolean matches(String hexInfoHash, int pieceCount, int fileCount) {
+    return myHexInfoHash.equals(hexInfoHash) &&
+      myPieceCount == pieceCount &&
+      myFileLengths.length == fileCount;
+  }
+
+  /**
+   * Tells whether the given file, at the given index in the torrent, is as
+   * it was when this record was made.
+   */
+  public boolean isUnchanged(int index, File file) {
+    return file.exists() &&
+      file.length() == myFileLengths[index] &&
+      file.lastModified() == myFileModificationTimes[index];
+  }
+
+  /**
+   * Returns a copy of the pieces that were complete.
+   */
+  public BitSet getCompletedPieces() {
+    return (BitSet) myCompletedPieces.clone();
+  }
+
+  private static byte[] toBitfield(BitSet pieces, int pieceCount) {
+    final byte[] bitfield = new byte[(pieceCount + 7) / 8];
+    for (int i = pieces.nextSetBit(0); i >= 0 && i < pieceCount; i = pieces.nextSetBit(i + 1)) {
+      bitfield[i / 8] |= (byte) (1 << (7 - i % 8));
+    }
+    return bitfield;
+  }
+
+  private static BitSet fromBitfield(byte[] bitfield) {
+    final BitSet pieces = new BitSet(bitfield.length * 8);
+    for (int i = 0; i < bitfield.length * 8; i++) {
+      if ((bitfield[i / 8] & (1 << (7 - i % 8))) != 0) {
+        pieces.set(i);
+      }
+    }
+    return pieces;
+  }
+}
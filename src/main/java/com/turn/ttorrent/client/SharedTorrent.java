@@ -15,17 +15,20 @@
  */
 package com.turn.ttorrent.client;
 
-import com.turn.ttorrent.bcodec.BEValue;
 import com.turn.ttorrent.bcodec.InvalidBEncodingException;
 import com.turn.ttorrent.client.peer.PeerActivityListener;
+import com.turn.ttorrent.client.peer.PieceSet;
 import com.turn.ttorrent.client.peer.SharingPeer;
 import com.turn.ttorrent.client.storage.FileCollectionStorage;
 import com.turn.ttorrent.client.storage.FileStorage;
+import com.turn.ttorrent.client.storage.MappedFileStorage;
 import com.turn.ttorrent.client.storage.TorrentByteStorage;
+import com.turn.ttorrent.client.storage.WriteBackCacheStorage;
 import com.turn.ttorrent.client.strategy.RequestStrategy;
 import com.turn.ttorrent.client.strategy.RequestStrategyImplAnyInteresting;
 import com.turn.ttorrent.common.Peer;
 import com.turn.ttorrent.common.Torrent;
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +40,7 @@ import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -64,6 +68,16 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
    * RAREST_PIECE_JITTER available from it.
    */
   private static final int RAREST_PIECE_JITTER = 42;
+
+  /**
+   * Maximum number of pieces being downloaded from a single peer at once.
+   */
+  private static final int MAX_DOWNLOADING_PIECES_PER_PEER = 10;
+
+  /**
+   * Default maximum number of pieces being downloaded at once per torrent.
+   */
+  public static final int DEFAULT_MAX_IN_FLIGHT_PIECES = 64;
   private final static RequestStrategy DEFAULT_REQUEST_STRATEGY = new RequestStrategyImplAnyInteresting();
 
     /** End-game trigger ratio.
@@ -78,7 +92,7 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
     private static final float ENG_GAME_COMPLETION_RATIO = 0.95f;
 
     private Random random;
-  private boolean stop;
+  private volatile boolean stop;
 
   private long uploaded;
   private long downloaded;
@@ -88,16 +102,37 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
   private int mySeedersCount=0;
 
   private TorrentByteStorage bucket;
+  private final WriteBackCacheStorage myWriteBackCache;
+  // Set once closing the storage failed, losing written data.
+  private volatile boolean myDataLost = false;
 
   private final int pieceLength;
   private final ByteBuffer piecesHashes;
 
   private boolean initialized;
-  private Piece[] pieces;
-  private SortedSet<Piece> rarest;
+  private PieceTable pieces;
+  private AvailabilityIndex availability;
   private BitSet completedPieces;
+  // The lowest piece not completed yet, or one before it.
+  private int myFirstIncompletePiece = 0;
   private final BitSet requestedPieces;
   private final RequestStrategy myRequestStrategy;
+  private final int[] myPicks = new int[MAX_DOWNLOADING_PIECES_PER_PEER];
+
+  private final List<FileStorage> myFileStorages;
+  private final DownloadPriority[] myFilePriorities;
+  private final List<PriorityRange> myRangePriorities = new ArrayList<PriorityRange>();
+  private final BitSet[] myPriorityPieces = new BitSet[DownloadPriority.values().length];
+  private final BitSet myWantedPieces = new BitSet();
+  private final BitSet myPrioritizedPieces = new BitSet();
+  private final BitSet myMissingPieces = new BitSet();
+  private boolean myHasCustomPriorities = false;
+
+  private final BitSet myInterestingPieces = new BitSet();
+  private final BitSet myInFlightPieces = new BitSet();
+  private int myMaxInFlightPieces = DEFAULT_MAX_IN_FLIGHT_PIECES;
+  private final Set<SharingPeer> mySeedPeers =
+    Collections.newSetFromMap(new IdentityHashMap<SharingPeer, Boolean>());
 
   private List<Peer> myDownloaders = new CopyOnWriteArrayList<Peer>();
 
@@ -108,11 +143,31 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
   private boolean multiThreadHash;
 
   private File parentFile;
+  private final String myDiskDevice;
   private final boolean isLeecher;
+  private File myResumeFile = null;
+  private volatile int myPiecesToCheck = 0;
+  private final AtomicInteger myCheckedPieces = new AtomicInteger();
 
-  private volatile long myLastClose = System.currentTimeMillis();
+  private volatile long myLastUsed = System.currentTimeMillis();
 
-  private static long myUnloadTimeout = 1000*86400; // keep torrents loaded for 1 day
+  // Registered with the piece buffer pool when it refuses a buffer: picks
+  // pieces again for the ready peers once a buffer is given back.
+  private final Runnable myBufferWaiter = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        DiskIOStage.getShared().submit(myDiskDevice, new Runnable() {
+          @Override
+          public void run() {
+            startWaitingPieces();
+          }
+        });
+      } catch (RejectedExecutionException ree) {
+        logger.debug("Not starting waiting pieces of {}, disk I/O stage is shut down", getName());
+      }
+    }
+  };
 
   /**
    * Create a new shared torrent from a base Torrent object.
@@ -185,6 +240,25 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
    */
   public SharedTorrent(byte[] torrent, File parent, boolean multiThreadHash, boolean seeder, boolean leecher, RequestStrategy requestStrategy)
     throws IOException, NoSuchAlgorithmException {
+    this(torrent, parent, multiThreadHash, seeder, leecher, requestStrategy, false);
+  }
+
+  /**
+   * Create a new shared torrent from meta-info binary data.
+   *
+   * @param torrent      The meta-info byte data.
+   * @param parent       The parent directory or location the torrent files.
+   * @param seeder       Whether we're a seeder for this torrent or not (disables
+   *                     validation).
+   * @param memoryMapped Whether to access the torrent files through
+   *                     memory-mapped windows rather than channel reads and
+   *                     writes.
+   * @throws IOException              If the torrent file cannot be read or decoded.
+   * @throws NoSuchAlgorithmException
+   */
+  public SharedTorrent(byte[] torrent, File parent, boolean multiThreadHash, boolean seeder, boolean leecher,
+                       RequestStrategy requestStrategy, boolean memoryMapped)
+    throws IOException, NoSuchAlgorithmException {
     super(torrent, seeder);
 
     this.isLeecher = leecher;
@@ -198,12 +272,11 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
     }
 
     String parentPath = parent.getCanonicalPath();
+    this.myDiskDevice = DiskIOStage.deviceKey(parent);
 
     try {
-      final Map<String,BEValue> decodedInfo = getDecodedInfo();
-      this.pieceLength = decodedInfo.get("piece length").getInt();
-      this.piecesHashes = ByteBuffer.wrap(decodedInfo.get("pieces")
-        .getBytes());
+      this.pieceLength = getMetainfo().getPieceLength();
+      this.piecesHashes = getMetainfo().getPieceHashes();
 
       if (this.piecesHashes.capacity() / Torrent.PIECE_HASH_SIZE *
         (long) this.pieceLength < this.getSize()) {
@@ -215,9 +288,9 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
         "Error reading torrent meta-info fields!");
     }
 
-    List<FileStorage> files = new LinkedList<FileStorage>();
+    List<FileStorage> files = new ArrayList<FileStorage>();
     long offset = 0L;
-    for (Torrent.TorrentFile file : this.files) {
+    for (Torrent.TorrentFile file : this.getFiles()) {
       File actual = new File(parent, file.file.getPath());
 
       if (!actual.getCanonicalPath().startsWith(parentPath)) {
@@ -226,10 +299,21 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
       }
 
       actual.getParentFile().mkdirs();
-      files.add(new FileStorage(actual, offset, file.size));
+      files.add(memoryMapped
+        ? new MappedFileStorage(actual, offset, file.size)
+        : new FileStorage(actual, offset, file.size));
       offset += file.size;
     }
-    this.bucket = new FileCollectionStorage(files, this.getSize());
+    this.myWriteBackCache = new WriteBackCacheStorage(
+      new FileCollectionStorage(files, this.getSize(), this.pieceLength));
+    this.bucket = this.myWriteBackCache;
+    this.myFileStorages = files;
+    this.myFilePriorities = new DownloadPriority[files.size()];
+    Arrays.fill(this.myFilePriorities, DownloadPriority.NORMAL);
+    for (int i = 0; i < this.myPriorityPieces.length; i++) {
+      this.myPriorityPieces[i] = new BitSet();
+    }
+    updatePiecePriorities();
 
     this.random = new Random(System.currentTimeMillis());
     this.stop = false;
@@ -239,9 +323,11 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
     this.left = this.getSize();
 
     this.initialized = false;
-    this.pieces = new Piece[0];
-    this.rarest = Collections.synchronizedSortedSet(new TreeSet<Piece>());
+    this.pieces = new PieceTable(this.bucket, this.piecesHashes, this.pieceLength, 0,
+      this.isSeeder(), isLeecher);
+    this.availability = new AvailabilityIndex(0);
     this.completedPieces = new BitSet();
+    this.myFirstIncompletePiece = 0;
     this.requestedPieces = new BitSet();
   }
 
@@ -288,8 +374,44 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
   private synchronized void closeFileChannelIfNecessary() throws IOException {
     logger.debug("Closing file  channel for {} if necessary. Downloaders: {}",getParentFile().getAbsolutePath() + "/" + getName(), myDownloaders.size());
     if (this.myDownloaders.size() == 0) {
-      this.bucket.close();
-      myLastClose = System.currentTimeMillis();
+      try {
+        this.bucket.close();
+      } catch (IOException ioe) {
+        myDataLost = true;
+        throw ioe;
+      }
+      myLastUsed = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Have the disk I/O stage close the storage once no peer uses it.
+   *
+   * <p>
+   * Closing flushes the write-back cache, which can take as long as the
+   * disk needs: it must not run on a network thread. Most of the flushing
+   * is done before taking this torrent's lock, so that a peer connecting
+   * meanwhile does not wait for it.
+   * </p>
+   */
+  private void closeFileChannelLater() {
+    final Runnable close = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (myDownloaders.isEmpty()) {
+            myWriteBackCache.flush();
+          }
+          closeFileChannelIfNecessary();
+        } catch (IOException e) {
+          logger.info("I/O error on attempt to close file storage: " + e.toString());
+        }
+      }
+    };
+    try {
+      DiskIOStage.getShared().submit(myDiskDevice, close);
+    } catch (RejectedExecutionException ree) {
+      close.run();
     }
   }
 
@@ -359,21 +481,27 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
       return;
     }
     initialized = false;
-    this.pieces = new Piece[0];
+    this.pieces = new PieceTable(this.bucket, this.piecesHashes, this.pieceLength, 0,
+      this.isSeeder(), isLeecher);
   }
 
   /**
-   * Build this torrent's pieces array.
+   * Build this torrent's piece table.
    * <p/>
    * <p>
-   * Hash and verify any potentially present local data and create this
-   * torrent's pieces array from their respective hash provided in the
-   * torrent meta-info.
+   * Hash and verify any potentially present local data against the piece
+   * hashes provided in the torrent meta-info.
    * </p>
    * <p/>
    * <p>
    * This function should be called soon after the constructor to initialize
-   * the pieces array.
+   * the piece table.
+   * </p>
+   * <p/>
+   * <p>
+   * If a resume file is set and holds a record of this torrent, the pieces
+   * it lists as complete are trusted without being hashed, as long as the
+   * files they span are unchanged since.
    * </p>
    */
   public synchronized void init() throws InterruptedException, IOException {
@@ -385,11 +513,11 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 
     try {
       openFileChannelIfNecessary();
-      if (multiThreadHash) {
-        hashMultiThread();
-      } else {
-        hashSingleThread();
-      }
+      initPieces();
+      final BitSet trusted = new BitSet();
+      final BitSet toVerify = piecesToVerify(trusted);
+      verifyPieces(toVerify, trusted);
+      markValidPiecesCompleted();
     } finally {
       closeFileChannelIfNecessary();
     }
@@ -400,108 +528,159 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
         (this.getSize() - this.left),
         this.getSize(),
         this.completedPieces.cardinality(),
-        this.pieces.length
+        this.pieces.getPieceCount()
       });
 
 //    Client.cleanupProcessor().registerCleanable(this);
     this.initialized = true;
+
+    // Nothing will be written to a complete torrent: its record stays true
+    // even if the process dies. Otherwise the record would go stale with the
+    // first write, and it is only written again on close.
+    if (this.isComplete()) {
+      saveResumeData();
+    } else {
+      deleteResumeData();
+    }
   }
 
   private void initPieces() {
     int nPieces = (int) (Math.ceil(
       (double) this.getSize() / this.pieceLength));
-    this.pieces = new Piece[nPieces];
+    this.pieces = new PieceTable(this.bucket, this.piecesHashes, this.pieceLength, nPieces,
+      this.isSeeder(), isLeecher);
+    this.availability = new AvailabilityIndex(nPieces);
+    this.mySeedPeers.clear();
+    this.myInFlightPieces.clear();
     this.completedPieces = new BitSet(nPieces);
-    this.piecesHashes.clear();
+    this.myFirstIncompletePiece = 0;
   }
 
-  private void hashMultiThread() throws InterruptedException, IOException {
-    initPieces();
-
-    ExecutorService executor = Executors.newFixedThreadPool(
-            HASHING_THREADS_COUNT);
-    List<Future<Piece>> results = new LinkedList<Future<Piece>>();
+  /**
+   * Find the pieces whose local data needs hashing.
+   *
+   * @param trusted Filled with the pieces known to be complete from the
+   * resume record.
+   */
+  private BitSet piecesToVerify(BitSet trusted) {
+    final BitSet toVerify = new BitSet(this.pieces.getPieceCount());
+    toVerify.set(0, this.pieces.getPieceCount());
+    if (this.myResumeFile == null || this.isLeecher) {
+      return toVerify;
+    }
+    final ResumeData resume = ResumeData.read(this.myResumeFile);
+    if (resume == null ||
+      !resume.matches(this.getHexInfoHash(), this.pieces.getPieceCount(), this.myFileStorages.size())) {
+      return toVerify;
+    }
 
-    logger.debug("Analyzing local data for {} with {} threads...",
-      this.getName(), HASHING_THREADS_COUNT);
-    for (int idx = 0; idx < this.pieces.length; idx++) {
-      byte[] hash = new byte[Torrent.PIECE_HASH_SIZE];
-      this.piecesHashes.get(hash);
-
-      // The last piece may be shorter than the torrent's global piece
-      // length. Let's make sure we get the right piece length in any
-      // situation.
-      long off = ((long) idx) * this.pieceLength;
-      long len = Math.min(
-        this.bucket.size() - off,
-        this.pieceLength);
-
-      this.pieces[idx] = new Piece(this.bucket, idx, off, len, hash,
-        this.isSeeder(), isLeecher);
-
-      Callable<Piece> hasher = new Piece.CallableHasher(this.pieces[idx]);
-      results.add(executor.submit(hasher));
-    }
-
-    // Request orderly executor shutdown and wait for hashing tasks to
-    // complete.
-    executor.shutdown();
-    while (!executor.isTerminated()) {
-      if (this.stop) {
-        throw new InterruptedException("Torrent data analysis interrupted.");
+    // Pieces of unchanged files are as recorded, only the pieces touching
+    // a changed file need hashing.
+    toVerify.clear();
+    long offset = 0;
+    for (int i = 0; i < this.myFileStorages.size(); i++) {
+      final FileStorage file = this.myFileStorages.get(i);
+      if (file.size() > 0 && !resume.isUnchanged(i, file.getFile())) {
+        toVerify.set((int) (offset / this.pieceLength),
+          (int) ((offset + file.size() - 1) / this.pieceLength) + 1);
       }
-
-      Thread.sleep(10);
+      offset += file.size();
     }
+    trusted.or(resume.getCompletedPieces());
+    trusted.andNot(toVerify);
+    trusted.clear(this.pieces.getPieceCount(), Math.max(trusted.length(), this.pieces.getPieceCount()));
+    logger.debug("Resuming {}: {} piece(s) trusted complete, {} to verify.",
+      new Object[]{this.getName(), trusted.cardinality(), toVerify.cardinality()});
+    return toVerify;
+  }
+
+  /**
+   * Set the file the fast-resume record of this torrent is kept in.
+   */
+  public synchronized void setResumeFile(File resumeFile) {
+    this.myResumeFile = resumeFile;
+  }
+
+  public synchronized File getResumeFile() {
+    return this.myResumeFile;
+  }
 
+  private void saveResumeData() {
+    if (this.myResumeFile == null || !this.initialized || this.pieces.getPieceCount() == 0) {
+      return;
+    }
+    if (myDataLost) {
+      // Pieces marked valid may not have reached the disk: the next start
+      // must hash the data again.
+      deleteResumeData();
+      return;
+    }
+    final List<File> files = new ArrayList<File>(this.myFileStorages.size());
+    for (FileStorage file : this.myFileStorages) {
+      files.add(file.getFile());
+    }
     try {
-      for (Future<Piece> task : results) {
-        Piece piece = task.get();
-        if (this.pieces[piece.getIndex()].isValid()) {
-          this.completedPieces.set(piece.getIndex());
-          this.left -= piece.size();
-        }
-      }
-    } catch (ExecutionException e) {
-      throw new IOException("Error while hashing a torrent piece!", e);
+      ResumeData.capture(this.getHexInfoHash(), this.pieces.getPieceCount(), this.completedPieces, files)
+        .write(this.myResumeFile);
+    } catch (IOException ioe) {
+      logger.warn("Error writing resume data of {}: {}", this.getName(), ioe.getMessage());
+    }
+  }
+
+  private void deleteResumeData() {
+    if (this.myResumeFile != null) {
+      FileUtils.deleteQuietly(this.myResumeFile);
     }
   }
 
-  private void hashSingleThread() throws InterruptedException, IOException {
-    initPieces();
+  private void verifyPieces(BitSet toVerify, BitSet trusted) throws InterruptedException {
+    for (int idx = trusted.nextSetBit(0); idx >= 0; idx = trusted.nextSetBit(idx + 1)) {
+      this.pieces.setValid(idx, true);
+    }
 
-    List<Piece> results = new LinkedList<Piece>();
+    this.myPiecesToCheck = toVerify.cardinality();
+    this.myCheckedPieces.set(0);
+    if (this.isSeeder() || this.isLeecher) {
+      // Nothing to read, the piece validity is given.
+      for (int idx = toVerify.nextSetBit(0); idx >= 0; idx = toVerify.nextSetBit(idx + 1)) {
+        this.pieces.getPiece(idx).validateData(null, null);
+        this.myCheckedPieces.incrementAndGet();
+      }
+      return;
+    }
 
+    final PieceVerifier verifier = this.multiThreadHash
+      ? PieceVerifier.getShared()
+      : new PieceVerifier(0);
     logger.debug("Analyzing local data for {} with {} threads...",
-      this.getName(), HASHING_THREADS_COUNT);
-    for (int idx = 0; idx < this.pieces.length; idx++) {
-      byte[] hash = new byte[Torrent.PIECE_HASH_SIZE];
-      this.piecesHashes.get(hash);
-
-      // The last piece may be shorter than the torrent's global piece
-      // length. Let's make sure we get the right piece length in any
-      // situation.
-      long off = ((long) idx) * this.pieceLength;
-      long len = Math.min(
-        this.bucket.size() - off,
-        this.pieceLength);
-
-      this.pieces[idx] = new Piece(this.bucket, idx, off, len, hash,
-        this.isSeeder(), isLeecher);
-
-      Callable<Piece> hasher = new Piece.CallableHasher(this.pieces[idx]);
-      try {
-        results.add(hasher.call());
-      } catch (Exception e) {
-        if (Thread.currentThread().isInterrupted()) break;
-        logger.error("There was a problem initializing piece " + idx);
+      this.getName(), Math.max(verifier.getThreads(), 1));
+    verifier.verify(this.pieces, toVerify, new PieceVerifier.Listener() {
+      @Override
+      public void pieceVerified(Piece piece) {
+        myCheckedPieces.incrementAndGet();
       }
-    }
 
-    for (Piece piece : results) {
-      if (this.pieces[piece.getIndex()].isValid()) {
-        this.completedPieces.set(piece.getIndex());
-        this.left -= piece.size();
+      @Override
+      public boolean isCancelled() {
+        return stop;
+      }
+    });
+  }
+
+  /**
+   * Returns the percentage of the local data checked so far by
+   * {@link #init()}.
+   */
+  public float getValidationProgress() {
+    final int toCheck = this.myPiecesToCheck;
+    return toCheck == 0 ? 100.0f : (float) this.myCheckedPieces.get() / toCheck * 100.0f;
+  }
+
+  private void markValidPiecesCompleted() {
+    for (int idx = 0; idx < this.pieces.getPieceCount(); idx++) {
+      if (this.pieces.isValid(idx)) {
+        this.completedPieces.set(idx);
+        this.left -= this.pieces.getSize(idx);
       }
     }
   }
@@ -509,12 +688,16 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
   public synchronized void close() {
     logger.trace("Closing torrent", getName());
 //    Client.cleanupProcessor().unregisterCleanable(this);
+    this.pieces.releaseActivePieces();
     try {
       this.bucket.close();
     } catch (IOException ioe) {
       logger.error("Error closing torrent byte storage: {}",
         ioe.getMessage());
+      myDataLost = true;
     }
+    // The data is on disk now, record it.
+    saveResumeData();
   }
 
   public synchronized void delete() {
@@ -522,6 +705,7 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
     try {
       close();
       this.bucket.delete();
+      deleteResumeData();
     } catch (IOException ioe) {
       logger.error("Error deleting torrent byte storage: {}",
         ioe.getMessage());
@@ -531,18 +715,15 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
   /**
    * Retrieve a piece object by index.
    *
+   * <p>
+   * This is the piece being downloaded if it is in flight, or else a
+   * flyweight of the piece table that should not be kept.
+   * </p>
+   *
    * @param index The index of the piece in this torrent.
    */
   public Piece getPiece(int index) {
-    if (this.pieces == null) {
-      throw new IllegalStateException("Torrent not initialized yet.");
-    }
-
-    if (index >= this.pieces.length) {
-      throw new IllegalArgumentException("Invalid piece index!");
-    }
-
-    return this.pieces[index];
+    return this.pieces.getPiece(index);
   }
 
 
@@ -550,6 +731,14 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
     return parentFile;
   }
 
+  /**
+   * Returns the key of the {@link DiskIOStage} device queue of this
+   * torrent's disk tasks.
+   */
+  public String getDiskDevice() {
+    return myDiskDevice;
+  }
+
   /**
    * Return a copy of the bit field of available pieces for this torrent.
    * <p/>
@@ -558,22 +747,12 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
    * include our own pieces.
    * </p>
    */
-  public BitSet getAvailablePieces() {
+  public synchronized BitSet getAvailablePieces() {
     if (!this.isInitialized()) {
       throw new IllegalStateException("Torrent not yet initialized!");
     }
 
-    BitSet availablePieces = new BitSet(this.pieces.length);
-
-    synchronized (this.pieces) {
-      for (Piece piece : this.pieces) {
-        if (piece.available()) {
-          availablePieces.set(piece.getIndex());
-        }
-      }
-    }
-
-    return availablePieces;
+    return this.availability.getAvailablePieces();
   }
 
   /**
@@ -605,10 +784,20 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
   /**
    * Tells whether this torrent has been fully downloaded, or is fully
    * available locally.
+   *
+   * <p>
+   * Only the wanted pieces count: a torrent with skipped files is complete
+   * once all the pieces of the other files are.
+   * </p>
    */
   public synchronized boolean isComplete() {
-    return this.pieces.length > 0 &&
-      this.completedPieces.cardinality() == this.pieces.length;
+    if (this.pieces.getPieceCount() == 0) {
+      return false;
+    }
+    this.myMissingPieces.clear();
+    this.myMissingPieces.or(this.myWantedPieces);
+    this.myMissingPieces.andNot(this.completedPieces);
+    return this.myMissingPieces.isEmpty();
   }
 
   /**
@@ -667,7 +856,7 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
   public float getCompletion() {
     return this.isInitialized()
       ? (float) this.completedPieces.cardinality() /
-      (float) this.pieces.length * 100.0f
+      (float) this.pieces.getPieceCount() * 100.0f
       : 0.0f;
   }
 
@@ -686,6 +875,168 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
     this.completedPieces.set(piece.getIndex());
   }
 
+  /**
+   * Set the maximum number of pieces downloaded at once for this torrent.
+   *
+   * <p>
+   * Every piece in flight holds a piece-sized buffer until it completes, and
+   * peers join in-flight pieces before new ones get started.
+   * </p>
+   */
+  public synchronized void setMaxInFlightPieces(int maxInFlightPieces) {
+    this.myMaxInFlightPieces = maxInFlightPieces;
+  }
+
+  public synchronized int getMaxInFlightPieces() {
+    return this.myMaxInFlightPieces;
+  }
+
+  /**
+   * Return a copy of the bit field of the pieces being downloaded.
+   */
+  public synchronized BitSet getInFlightPieces() {
+    return (BitSet) this.myInFlightPieces.clone();
+  }
+
+  /**
+   * Set the download priority of one of the files of this torrent.
+   *
+   * <p>
+   * Files are indexed in the order of {@link #getFilenames()}. A
+   * {@link DownloadPriority#SKIP}ped file is not created on disk, except
+   * for the pieces it shares with wanted files.
+   * </p>
+   *
+   * @param fileIndex The index of the file in the torrent.
+   * @param priority  The new download priority of the file.
+   */
+  public synchronized void setFilePriority(int fileIndex, DownloadPriority priority) {
+    this.myFilePriorities[fileIndex] = priority;
+    this.myFileStorages.get(fileIndex).setSkipped(priority == DownloadPriority.SKIP);
+    updatePiecePriorities();
+  }
+
+  public synchronized DownloadPriority getFilePriority(int fileIndex) {
+    return this.myFilePriorities[fileIndex];
+  }
+
+  /**
+   * Set the download priority of a byte range of this torrent.
+   *
+   * <p>
+   * Range priorities override file priorities for the pieces they fully
+   * cover and are applied in the order they were set. Pieces only partially
+   * covered by the range keep the highest of both priorities.
+   * </p>
+   *
+   * @param offset   The offset of the range in the torrent data, in bytes.
+   * @param length   The length of the range, in bytes.
+   * @param priority The download priority of the range.
+   */
+  public synchronized void setRangePriority(long offset, long length, DownloadPriority priority) {
+    if (offset < 0 || length < 0 || offset + length > this.getSize()) {
+      throw new IllegalArgumentException("Invalid range " + offset + "+" + length +
+        " for torrent of " + this.getSize() + " byte(s)");
+    }
+    this.myRangePriorities.add(new PriorityRange(offset, length, priority));
+    updatePiecePriorities();
+  }
+
+  /**
+   * Remove all the byte range priorities, leaving only the file priorities.
+   */
+  public synchronized void clearRangePriorities() {
+    this.myRangePriorities.clear();
+    updatePiecePriorities();
+  }
+
+  /**
+   * Return a copy of the bit field of the pieces we want to download, i.e.
+   * the pieces that are not skipped.
+   */
+  public synchronized BitSet getWantedPieces() {
+    return (BitSet) this.myWantedPieces.clone();
+  }
+
+  private void updatePiecePriorities() {
+    final int nPieces = this.getPieceCount();
+    final byte[] piecePriorities = new byte[nPieces];
+    boolean customPriorities = false;
+
+    long offset = 0;
+    for (int i = 0; i < this.myFilePriorities.length; i++) {
+      final long size = this.myFileStorages.get(i).size();
+      applyPriority(piecePriorities, offset, size, this.myFilePriorities[i], false);
+      customPriorities |= this.myFilePriorities[i] != DownloadPriority.NORMAL;
+      offset += size;
+    }
+    for (PriorityRange range : this.myRangePriorities) {
+      applyPriority(piecePriorities, range.offset, range.length, range.priority, true);
+      customPriorities = true;
+    }
+
+    for (BitSet priorityPieces : this.myPriorityPieces) {
+      priorityPieces.clear();
+    }
+    for (int i = 0; i < nPieces; i++) {
+      this.myPriorityPieces[piecePriorities[i]].set(i);
+    }
+    this.myWantedPieces.clear();
+    this.myWantedPieces.set(0, nPieces);
+    this.myWantedPieces.andNot(this.myPriorityPieces[DownloadPriority.SKIP.ordinal()]);
+    this.myHasCustomPriorities = customPriorities;
+  }
+
+  private void applyPriority(byte[] piecePriorities, long offset, long length,
+                             DownloadPriority priority, boolean override) {
+    if (length <= 0 || piecePriorities.length == 0) {
+      return;
+    }
+    final int first = (int) (offset / this.pieceLength);
+    final int last = (int) Math.min((offset + length - 1) / this.pieceLength,
+      piecePriorities.length - 1);
+    for (int i = first; i <= last; i++) {
+      final long pieceStart = (long) i * this.pieceLength;
+      final long pieceEnd = Math.min(pieceStart + this.pieceLength, this.getSize());
+      final boolean covered = pieceStart >= offset && pieceEnd <= offset + length;
+      if ((override && covered) || priority.ordinal() > piecePriorities[i]) {
+        piecePriorities[i] = (byte) priority.ordinal();
+      }
+    }
+  }
+
+  /**
+   * Restrict the given interesting pieces to those of the highest priority
+   * present among them.
+   */
+  private BitSet selectHighestPriority(BitSet interesting) {
+    if (!this.myHasCustomPriorities) {
+      return interesting;
+    }
+    for (int p = this.myPriorityPieces.length - 1; p > DownloadPriority.SKIP.ordinal(); p--) {
+      this.myPrioritizedPieces.clear();
+      this.myPrioritizedPieces.or(interesting);
+      this.myPrioritizedPieces.and(this.myPriorityPieces[p]);
+      if (!this.myPrioritizedPieces.isEmpty()) {
+        return this.myPrioritizedPieces;
+      }
+    }
+    return interesting;
+  }
+
+  private static class PriorityRange {
+
+    private final long offset;
+    private final long length;
+    private final DownloadPriority priority;
+
+    private PriorityRange(long offset, long length, DownloadPriority priority) {
+      this.offset = offset;
+      this.length = length;
+      this.priority = priority;
+    }
+  }
+
   /** PeerActivityListener handler(s). *************************************/
 
   /**
@@ -731,58 +1082,107 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
   @Override
   public synchronized void handlePeerReady(SharingPeer peer) {
     initIfNecessary(peer);
-    boolean endGameMode = false;
-    int requestedPiecesCount = 0;
-    final BitSet interesting = peer.getAvailablePieces();
+    if (!peer.isConnected()) {
+      return;
+    }
+    final BitSet interesting = this.myInterestingPieces;
+    peer.getAvailablePieces().copyTo(interesting);
+    interesting.and(this.myWantedPieces);
     interesting.andNot(this.completedPieces);
-    interesting.andNot(this.requestedPieces);
 //    interesting.andNot(peer.getPoorlyAvailablePieces());
 
-    while (peer.getDownloadingPiecesCount() < Math.min(10, interesting.cardinality())) {
-      if (!peer.isConnected()){
-        break;
+    logger.trace("Peer {} is ready and has {} interesting piece(s).",
+            peer, interesting.cardinality());
+
+    // Finish what was started before opening new pieces: join the in-flight
+    // pieces of this peer that still have blocks nobody requested.
+    for (int i = this.myInFlightPieces.nextSetBit(0);
+         i >= 0 && peer.getDownloadingPiecesCount() < MAX_DOWNLOADING_PIECES_PER_PEER;
+         i = this.myInFlightPieces.nextSetBit(i + 1)) {
+      final Piece piece = this.pieces.getPiece(i);
+      if (interesting.get(i) && piece.hasUnclaimedBlocks() &&
+              !peer.getRequestedPieces().contains(piece)) {
+        logger.trace("Joining download of in-flight {} with {}.", piece, peer);
+        this.requestedPieces.set(i);
+        peer.downloadPiece(piece);
       }
-      logger.trace("Peer {} is ready and has {} interesting piece(s).",
-              peer, interesting.cardinality());
-
-      logger.trace("Currently requested pieces from {} : {}", peer, requestedPieces);
-
-      // If we didn't find interesting pieces, we need to check if we're in
-      // an end-game situation. If yes, we request an already requested piece
-      // to try to speed up the end.
-      if (interesting.cardinality() == 0) {
-        interesting.or(this.requestedPieces);
-        if (interesting.cardinality() == 0) {
-          logger.trace("No interesting piece from {}!", peer);
-          return;
-        }
+    }
 
-        if (this.completedPieces.cardinality() <
-                ENG_GAME_COMPLETION_RATIO * this.pieces.length) {
-          logger.trace("Not far along enough to warrant end-game mode.");
-          return;
+    interesting.andNot(this.myInFlightPieces);
+    interesting.andNot(this.requestedPieces);
+    final int maxPicks = Math.min(
+            MAX_DOWNLOADING_PIECES_PER_PEER - peer.getDownloadingPiecesCount(),
+            this.myMaxInFlightPieces - this.myInFlightPieces.cardinality());
+    if (!interesting.isEmpty()) {
+      if (maxPicks <= 0) {
+        logger.trace("Not starting new pieces from {}, {} piece(s) in flight.",
+                peer, this.myInFlightPieces.cardinality());
+        return;
+      }
+      // Completed pieces are never cleared: the cursor only moves forward.
+      this.myFirstIncompletePiece = this.completedPieces.nextClearBit(this.myFirstIncompletePiece);
+      final int picksCount = myRequestStrategy.choosePieces(selectHighestPriority(interesting),
+              availability, this.myFirstIncompletePiece, myPicks, maxPicks);
+      for (int i = 0; i < picksCount; i++) {
+        // Pieces that failed validation stay registered for the peers still
+        // sending their blocks.
+        final boolean wasActive = this.pieces.isActive(this.pieces.getPiece(myPicks[i]));
+        Piece chosen = this.pieces.activate(myPicks[i]);
+        if (!chosen.acquireBuffer(myBufferWaiter)) {
+          // The piece buffer budget is used up: new pieces wait until
+          // completed ones give their buffer back.
+          logger.trace("No piece buffer left, not starting {} from {}.", chosen, peer);
+          if (!wasActive) {
+            this.pieces.deactivate(chosen);
+          }
+          break;
         }
-        endGameMode = true;
-        logger.trace("Possible end-game, we're about to request a piece " +
-                "that was already requested from another peer.");
+        this.requestedPieces.set(chosen.getIndex());
+        this.myInFlightPieces.set(chosen.getIndex());
+        logger.trace("Requesting {} from {}, we now have {} " +
+                " outstanding request(s): {}.",
+                new Object[]{chosen, peer,
+                        this.requestedPieces.cardinality(),
+                        this.requestedPieces
+                });
+        peer.downloadPiece(chosen);
       }
+      return;
+    }
 
-      Piece chosen = myRequestStrategy.choosePiece(rarest, interesting, pieces);
-      if (chosen == null) {
-        logger.info("chosen piece is null");
-        continue;
+    // Nothing new to download from this peer. If we're in an end-game
+    // situation, we request blocks already requested from other peers to
+    // try to speed up the end.
+    if (peer.getDownloadingPiecesCount() > 0) {
+      return;
+    }
+    if (this.completedPieces.cardinality() <
+            ENG_GAME_COMPLETION_RATIO * this.myWantedPieces.cardinality()) {
+      logger.trace("No interesting piece from {}!", peer);
+      return;
+    }
+    final PieceSet available = peer.getAvailablePieces();
+    for (int i = this.myInFlightPieces.nextSetBit(0); i >= 0;
+         i = this.myInFlightPieces.nextSetBit(i + 1)) {
+      if (available.get(i)) {
+        logger.trace("End-game, requesting {} from {} although it was " +
+                "already requested from another peer.", this.pieces.getPiece(i), peer);
+        peer.downloadPiece(this.pieces.getPiece(i), true);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Pick pieces again for the peers ready to download, once a piece buffer
+   * was given back.
+   */
+  private synchronized void startWaitingPieces() {
+    for (Peer downloader : myDownloaders) {
+      final SharingPeer peer = (SharingPeer) downloader;
+      if (peer.isConnected() && !peer.isChoked() && peer.isInteresting()) {
+        handlePeerReady(peer);
       }
-      this.requestedPieces.set(chosen.getIndex());
-      logger.trace("Requesting {} from {}, we now have {} " +
-              " outstanding request(s): {}.",
-              new Object[]{chosen, peer,
-                      this.requestedPieces.cardinality(),
-                      this.requestedPieces
-              });
-      peer.downloadPiece(chosen, endGameMode);
-      interesting.clear(chosen.getIndex());
-      //stop requesting if in endGameMode
-      if (endGameMode) return;
     }
   }
 
@@ -818,21 +1218,26 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
                                                    Piece piece) {
     // If we don't have this piece, tell the peer we're interested in
     // getting it from him.
-    if (!this.completedPieces.get(piece.getIndex()) &&
+    if (this.myWantedPieces.get(piece.getIndex()) &&
+      !this.completedPieces.get(piece.getIndex()) &&
       !this.requestedPieces.get(piece.getIndex())) {
       peer.interesting();
     }
 
-    piece.seenAt(peer);
-    this.rarest.add(piece);
+    this.availability.increment(piece.getIndex());
+    if (peer.isSeed() && this.mySeedPeers.add(peer)) {
+      // The peer just completed: account for it as a seed from now on.
+      this.availability.decrement(peer.getAvailablePieces());
+      this.availability.addSeed();
+    }
 
     logger.trace("Peer {} contributes {} piece(s) [{}/{}/{}].",
       new Object[]{
         peer,
         peer.getAvailablePieces().cardinality(),
         this.completedPieces.cardinality(),
-        this.getAvailablePieces().cardinality(),
-        this.pieces.length
+        this.availability.getAvailablePieceCount(),
+        this.pieces.getPieceCount()
       });
 
     if (!peer.isChoked() &&
@@ -859,30 +1264,38 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
   public synchronized void handleBitfieldAvailability(SharingPeer peer,
                                                       BitSet availablePieces) {
     // Determine if the peer is interesting for us or not, and notify it.
-    BitSet interesting = (BitSet) availablePieces.clone();
+    BitSet interesting = this.myInterestingPieces;
+    peer.getAvailablePieces().copyTo(interesting);
+    interesting.and(this.myWantedPieces);
     interesting.andNot(this.completedPieces);
     interesting.andNot(this.requestedPieces);
 
-    if (interesting.cardinality() == 0) {
+    if (interesting.isEmpty()) {
       peer.notInteresting();
     } else {
       peer.interesting();
     }
 
-    // Record the peer has all the pieces it told us it had.
-    for (int i = availablePieces.nextSetBit(0); i >= 0;
-         i = availablePieces.nextSetBit(i + 1)) {
-      this.pieces[i].seenAt(peer);
-      this.rarest.add(this.pieces[i]);
+    // Record the peer has all the pieces it told us it had. Seeds are
+    // accounted for as such, without touching every piece.
+    if (peer.isSeed() && this.mySeedPeers.add(peer)) {
+      if (availablePieces.cardinality() < peer.getAvailablePieces().cardinality()) {
+        // Some pieces were already counted from HAVE messages.
+        this.availability.increment(availablePieces);
+        this.availability.decrement(peer.getAvailablePieces());
+      }
+      this.availability.addSeed();
+    } else {
+      this.availability.increment(availablePieces);
     }
 
     logger.trace("Peer {} contributes {} piece(s) [{}/{}/{}].",
       new Object[]{
         peer,
-        availablePieces.cardinality(),
+        peer.getAvailablePieces().cardinality(),
         this.completedPieces.cardinality(),
-        this.getAvailablePieces().cardinality(),
-        this.pieces.length
+        this.availability.getAvailablePieceCount(),
+        this.pieces.getPieceCount()
       });
   }
 
@@ -932,6 +1345,11 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 		// mark the piece as not requested anymore
     this.downloaded += piece.size();
     this.requestedPieces.set(piece.getIndex(), false);
+    this.myInFlightPieces.clear(piece.getIndex());
+    if (piece.isValid()) {
+      // Invalid pieces keep their state for the peers still sending blocks.
+      this.pieces.deactivate(piece);
+    }
 
 		logger.trace("We now have {} piece(s) and {} outstanding request(s): {}",
       new Object[]{
@@ -953,12 +1371,12 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
    */
   @Override
   public synchronized void handlePeerDisconnected(SharingPeer peer) {
-    BitSet availablePieces = peer.getAvailablePieces();
+    final PieceSet availablePieces = peer.getAvailablePieces();
 
-    for (int i = availablePieces.nextSetBit(0); i >= 0;
-         i = availablePieces.nextSetBit(i + 1)) {
-      this.pieces[i].noLongerAt(peer);
-      this.rarest.add(this.pieces[i]);
+    if (this.mySeedPeers.remove(peer)) {
+      this.availability.removeSeed();
+    } else {
+      this.availability.decrement(availablePieces);
     }
 
     Set<Piece> requested = peer.getRequestedPieces();
@@ -969,11 +1387,8 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
     }
 
     myDownloaders.remove(peer);
-
-    try {
-        closeFileChannelIfNecessary();
-    } catch (IOException e) {
-      logger.info("I/O error on attempt to close file storage: " + e.toString());
+    if (myDownloaders.isEmpty()) {
+      closeFileChannelLater();
     }
 
     logger.debug("Peer {} went away with {} piece(s) [{}/{}/{}].",
@@ -981,8 +1396,8 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
         peer,
         availablePieces.cardinality(),
         this.completedPieces.cardinality(),
-        this.getAvailablePieces().cardinality(),
-        this.pieces.length
+        this.availability.getAvailablePieceCount(),
+        this.pieces.getPieceCount()
       });
     logger.trace("We now have {} piece(s) and {} outstanding request(s): {}",
       new Object[]{
@@ -1012,17 +1427,30 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
           "}";
     }
 
-/*
-  @Override
-  public void cleanUp() {
-    if ((System.currentTimeMillis() - myLastClose) > myUnloadTimeout){
-      unloadPieces();
+  /**
+   * Returns for how long, in milliseconds, no peer downloaded from this
+   * torrent, or 0 if some peer does.
+   */
+  public long getIdleTime() {
+    if (!myDownloaders.isEmpty()) {
+      return 0;
     }
-    if ()
+    return Math.max(System.currentTimeMillis() - myLastUsed, 0);
   }
-*/
 
+  /**
+   * Record this torrent is in use, e.g. by a peer about to connect for it,
+   * so that it is not hibernated meanwhile.
+   */
+  public void touch() {
+    myLastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * @deprecated Idle torrents are hibernated by the client, see
+   * {@link Client#setIdleTorrentTimeout(long, TimeUnit)}.
+   */
+  @Deprecated
   public static void setUnloadTimeout(final int unloadTimeout){
-    myUnloadTimeout = unloadTimeout;
   }
 }
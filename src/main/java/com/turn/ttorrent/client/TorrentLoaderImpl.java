@@ -1,6 +1,7 @@
 package com.turn.ttorrent.client;
 
 import com.turn.ttorrent.common.AnnounceableFileTorrent;
+import com.turn.ttorrent.common.InfoHash;
 import com.turn.ttorrent.common.TorrentsStorage;
 
 import java.io.File;
@@ -10,17 +11,27 @@ import java.security.NoSuchAlgorithmException;
 public class TorrentLoaderImpl implements TorrentLoader {
 
   private final TorrentsStorage myTorrentsStorage;
+  private volatile File myResumeDirectory = null;
 
   public TorrentLoaderImpl(TorrentsStorage torrentsStorage) {
     myTorrentsStorage = torrentsStorage;
   }
 
+  /**
+   * Set the directory the fast-resume records of the torrents are kept in,
+   * so that a torrent waking up from hibernation trusts the pieces it had.
+   */
+  public void setResumeDirectory(File resumeDirectory) {
+    myResumeDirectory = resumeDirectory;
+  }
+
   @Override
   public SharedTorrent loadTorrent(AnnounceableFileTorrent announceableFileTorrent) throws IOException, NoSuchAlgorithmException {
 
-    final String hexInfoHash = announceableFileTorrent.getHexInfoHash();
-    SharedTorrent old = myTorrentsStorage.getTorrent(hexInfoHash);
+    final InfoHash infoHash = InfoHash.of(announceableFileTorrent);
+    SharedTorrent old = myTorrentsStorage.getTorrent(infoHash);
     if (old != null) {
+      old.touch();
       return old;
     }
 
@@ -29,9 +40,14 @@ public class TorrentLoaderImpl implements TorrentLoader {
 
     final SharedTorrent sharedTorrent = SharedTorrent.fromFile(dotTorrentFile, downloadDir, false,
             announceableFileTorrent.isSeeded());
+    final File resumeDirectory = myResumeDirectory;
+    if (resumeDirectory != null) {
+      sharedTorrent.setResumeFile(new File(resumeDirectory, sharedTorrent.getHexInfoHash() + ".resume"));
+    }
 
-    old = myTorrentsStorage.putIfAbsentActiveTorrent(hexInfoHash, sharedTorrent);
+    old = myTorrentsStorage.putIfAbsentActiveTorrent(infoHash, sharedTorrent);
     if (old != null) {
+      old.touch();
       return old;
     }
     return sharedTorrent;
@@ -27,6 +27,6 @@ public class CountLimitConnectionAllower implements NewConnectionAllower {
 
   @Override
   public boolean isNewConnectionAllowed() {
-    return myPeersStorage.getSharingPeers().size() < myMaxConnectionCount.get();
+    return myPeersStorage.getSharingPeersCount() < myMaxConnectionCount.get();
   }
 }
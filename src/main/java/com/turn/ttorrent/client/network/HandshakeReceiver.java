@@ -6,6 +6,7 @@ import com.turn.ttorrent.client.SharedTorrent;
 import com.turn.ttorrent.client.peer.SharingPeer;
 import com.turn.ttorrent.common.AnnounceableFileTorrent;
 import com.turn.ttorrent.common.ConnectionUtils;
+import com.turn.ttorrent.common.InfoHash;
 import com.turn.ttorrent.common.LoggerUtils;
 import com.turn.ttorrent.common.PeerUID;
 import org.slf4j.Logger;
@@ -78,19 +79,20 @@ public class HandshakeReceiver implements DataProcessor {
       return new ShutdownProcessor().processAndGetNext(socketChannel);
     }
 
-    final AnnounceableFileTorrent announceableTorrent = myContext.getTorrentsStorage().getAnnounceableTorrent(hs.getHexInfoHash());
+    final InfoHash infoHash = new InfoHash(hs.getInfoHash());
+    final AnnounceableFileTorrent announceableTorrent = myContext.getTorrentsStorage().getAnnounceableTorrent(infoHash);
     SharedTorrent torrent;
     try {
       torrent = myContext.getTorrentLoader().loadTorrent(announceableTorrent);
     } catch (Exception e) {
-      LoggerUtils.warnAndDebugDetails(logger, "cannot load torrent {}", hs.getHexInfoHash(), e);
+      LoggerUtils.warnAndDebugDetails(logger, "cannot load torrent {}", infoHash, e);
       return new ShutdownProcessor().processAndGetNext(socketChannel);
     }
 
     if (torrent == null) {
       logger.debug("peer {} tries to download unknown torrent {}",
               Arrays.toString(hs.getPeerId()),
-              hs.getHexInfoHash());
+              infoHash);
       return new ShutdownProcessor().processAndGetNext(socketChannel);
     }
 
@@ -98,7 +100,7 @@ public class HandshakeReceiver implements DataProcessor {
 
     final SharingPeer sharingPeer =
             myContext.createSharingPeer(myHostAddress, myPort, ByteBuffer.wrap(hs.getPeerId()), torrent, socketChannel);
-    PeerUID peerUID = new PeerUID(sharingPeer.getAddress(), hs.getHexInfoHash());
+    PeerUID peerUID = new PeerUID(sharingPeer.getAddress(), infoHash);
 
     SharingPeer old = myContext.getPeersStorage().putIfAbsent(peerUID, sharingPeer);
     if (old != null) {
@@ -82,7 +82,7 @@ public class WorkingReceiver implements DataProcessor {
 
     final SharingPeer peer = myContext.getPeersStorage().getSharingPeer(myPeerUID);
 
-    SharedTorrent torrent = myContext.getTorrentsStorage().getTorrent(peer.getHexInfoHash());
+    SharedTorrent torrent = myContext.getTorrentsStorage().getTorrent(myPeerUID.getTorrentHash());
     if (torrent == null) {
       logger.debug("torrent with hash {} for peer {} doesn't found in storage. Maybe somebody deletes it manually", peer.getHexInfoHash(), peer);
       return new ShutdownAndRemovePeerProcessor(myPeerUID, myContext).processAndGetNext(socketChannel);
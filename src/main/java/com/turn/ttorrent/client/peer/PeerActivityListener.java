@@ -79,7 +79,9 @@ public interface PeerActivityListener extends EventListener {
 	 * </p>
 	 *
 	 * @param peer The peer we got the update from.
-	 * @param availablePieces The pieces availability bit field of the peer.
+	 * @param availablePieces The pieces that became available from the peer
+	 * with this bit field; see {@link SharingPeer#getAvailablePieces()} for
+	 * all of its pieces.
 	 */
 	public void handleBitfieldAvailability(SharingPeer peer,
 			BitSet availablePieces);
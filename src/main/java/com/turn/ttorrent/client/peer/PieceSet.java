@@ -0,0 +1,233 @@
+package com.turn.ttorrent.client.peer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compact set of the pieces a peer has.
+ *
+ * <p>
+ * The representation adapts to the number of pieces in the set: a sorted
+ * array of piece indices while the set is sparse, a bit field once the
+ * array would take more room than the bit field, and a single flag once
+ * the peer has every piece (a seed). Torrents with a million pieces and
+ * hundreds of peers thus only pay for the pieces actually known.
+ * </p>
+ *
+ * <p>
+ * Other classes only get read access: instances are shared as live views
+ * rather than cloned, and are safe to read from any thread.
+ * </p>
+ */
+public class PieceSet {
+
+  private static final int MIN_SPARSE_CAPACITY = 8;
+
+  private final int myPieceCount;
+  private int myCardinality;
+  private int[] mySparse;
+  private BitSet myDense;
+  private boolean myAll;
+
+  PieceSet(int pieceCount) {
+    myPieceCount = pieceCount;
+    myCardinality = 0;
+    mySparse = null;
+    myDense = null;
+    myAll = pieceCount == 0;
+  }
+
+  public int getPieceCount() {
+    return myPieceCount;
+  }
+
+  public synchronized int cardinality() {
+    return myCardinality;
+  }
+
+  public synchronized boolean isEmpty() {
+    return myCardinality == 0;
+  }
+
+  /**
+   * Tells whether the set holds every piece of the torrent, i.e. whether
+   * the peer is a seed.
+   */
+  public synchronized boolean isAll() {
+    return myAll;
+  }
+
+  public synchronized boolean get(int pieceIndex) {
+    if (pieceIndex < 0 || pieceIndex >= myPieceCount) {
+      return false;
+    }
+    if (myAll) {
+      return true;
+    }
+    if (myDense != null) {
+      return myDense.get(pieceIndex);
+    }
+    return mySparse != null &&
+      Arrays.binarySearch(mySparse, 0, myCardinality, pieceIndex) >= 0;
+  }
+
+  /**
+   * Returns the first piece in the set at or after the given index, or
+   * <code>-1</code> if there is none.
+   */
+  public synchronized int nextSetBit(int fromIndex) {
+    if (fromIndex < 0) {
+      fromIndex = 0;
+    }
+    if (fromIndex >= myPieceCount) {
+      return -1;
+    }
+    if (myAll) {
+      return fromIndex;
+    }
+    if (myDense != null) {
+      return myDense.nextSetBit(fromIndex);
+    }
+    if (mySparse == null) {
+      return -1;
+    }
+    int pos = Arrays.binarySearch(mySparse, 0, myCardinality, fromIndex);
+    if (pos < 0) {
+      pos = -pos - 1;
+    }
+    return pos < myCardinality ? mySparse[pos] : -1;
+  }
+
+  /**
+   * Replace the content of the given bit field with the pieces of this set.
+   */
+  public synchronized void copyTo(BitSet target) {
+    target.clear();
+    if (myAll) {
+      target.set(0, myPieceCount);
+    } else if (myDense != null) {
+      target.or(myDense);
+    } else {
+      for (int i = 0; i < myCardinality; i++) {
+        target.set(mySparse[i]);
+      }
+    }
+  }
+
+  /**
+   * Tells whether every piece of this set is also set in the given bit field.
+   */
+  public synchronized boolean isSubsetOf(BitSet other) {
+    if (myAll) {
+      return other.nextClearBit(0) >= myPieceCount;
+    }
+    if (myDense != null) {
+      for (int i = myDense.nextSetBit(0); i >= 0; i = myDense.nextSetBit(i + 1)) {
+        if (!other.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    for (int i = 0; i < myCardinality; i++) {
+      if (!other.get(mySparse[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a new bit field of the pieces of this set.
+   */
+  public BitSet toBitSet() {
+    BitSet result = new BitSet(myPieceCount);
+    copyTo(result);
+    return result;
+  }
+
+  /**
+   * Add a piece to the set.
+   *
+   * @return <code>true</code> if the piece was not in the set yet.
+   */
+  synchronized boolean add(int pieceIndex) {
+    if (pieceIndex < 0 || pieceIndex >= myPieceCount || myAll) {
+      return false;
+    }
+    if (myDense != null) {
+      if (myDense.get(pieceIndex)) {
+        return false;
+      }
+      myDense.set(pieceIndex);
+    } else {
+      int pos = mySparse == null ? -1 :
+        Arrays.binarySearch(mySparse, 0, myCardinality, pieceIndex);
+      if (pos >= 0) {
+        return false;
+      }
+      pos = -pos - 1;
+      if (mySparse == null || myCardinality == mySparse.length) {
+        if (shouldBeDense(myCardinality + 1)) {
+          toDense();
+          myDense.set(pieceIndex);
+          return added();
+        }
+        final int capacity = mySparse == null ? MIN_SPARSE_CAPACITY : mySparse.length * 2;
+        mySparse = mySparse == null ? new int[capacity] : Arrays.copyOf(mySparse, capacity);
+      }
+      System.arraycopy(mySparse, pos, mySparse, pos + 1, myCardinality - pos);
+      mySparse[pos] = pieceIndex;
+    }
+    return added();
+  }
+
+  /**
+   * Add all the pieces of the given bit field to the set.
+   *
+   * <p>
+   * On return, the given bit field only holds the pieces that were not in
+   * the set before the call.
+   * </p>
+   */
+  synchronized void addAll(BitSet pieces) {
+    if (myAll) {
+      pieces.clear();
+      return;
+    }
+    if (pieces.length() > myPieceCount) {
+      pieces.clear(myPieceCount, pieces.length());
+    }
+    if (myDense == null && shouldBeDense(myCardinality + pieces.cardinality())) {
+      toDense();
+    }
+    for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1)) {
+      if (!add(i)) {
+        pieces.clear(i);
+      }
+    }
+  }
+
+  private boolean added() {
+    myCardinality++;
+    if (myCardinality == myPieceCount) {
+      myAll = true;
+      myDense = null;
+      mySparse = null;
+    }
+    return true;
+  }
+
+  private boolean shouldBeDense(int cardinality) {
+    // An int per piece index against a bit per piece of the torrent.
+    return (long) cardinality * Integer.SIZE >= myPieceCount;
+  }
+
+  private void toDense() {
+    myDense = new BitSet(myPieceCount);
+    for (int i = 0; i < myCardinality; i++) {
+      myDense.set(mySparse[i]);
+    }
+    mySparse = null;
+  }
+}
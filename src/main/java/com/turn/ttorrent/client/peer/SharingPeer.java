@@ -15,11 +15,14 @@
  */
 package com.turn.ttorrent.client.peer;
 
+import com.turn.ttorrent.client.BlockReadCache;
+import com.turn.ttorrent.client.DiskIOStage;
 import com.turn.ttorrent.client.Piece;
 import com.turn.ttorrent.client.SharedTorrent;
 import com.turn.ttorrent.client.network.ConnectionManager;
 import com.turn.ttorrent.client.network.WriteListener;
 import com.turn.ttorrent.client.network.WriteTask;
+import com.turn.ttorrent.common.InfoHash;
 import com.turn.ttorrent.common.LoggerUtils;
 import com.turn.ttorrent.common.Peer;
 import com.turn.ttorrent.common.TorrentHash;
@@ -71,21 +74,42 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
 
   private static final Logger logger = LoggerFactory.getLogger(SharingPeer.class);
   private static final int MAX_PIPELINED_REQUESTS = 100;
+
+  /**
+   * Number of block requests kept outstanding with the peer. Blocks are
+   * claimed from the pieces this peer works on as earlier ones arrive, so
+   * that fast peers end up downloading more blocks of a shared piece.
+   */
+  private static final int REQUEST_PIPELINE_DEPTH = 32;
   private static final long MAX_REQUEST_TIMEOUT = 20*1000;
 
-  private final Object availablePiecesLock;
+  /**
+   * Maximum number of blocks requested by the peer and not read for upload
+   * yet. Further requests are ignored until earlier ones are served.
+   */
+  private static final int MAX_QUEUED_UPLOADS = 64;
+
   private volatile boolean choking;
   private volatile boolean interesting;
   private volatile boolean choked;
   private volatile boolean interested;
   private final SharedTorrent torrent;
-  private BitSet availablePieces;
-  private BitSet poorlyAvailablePieces;
-  private final ConcurrentMap<Piece, Integer> myRequestedPieces;
+  private final PieceSet availablePieces;
+  private final PieceSet poorlyAvailablePieces;
+  // completed pieces to tell this peer about on the next HAVE flush
+  private final BitSet myPendingHaves = new BitSet();
+  // pieces this peer downloads blocks of, mapped to the end-game flag
+  private final ConcurrentMap<Piece, Boolean> myRequestedPieces;
 
   private final BlockingQueue<PeerMessage.RequestMessage> myRequests;
   private volatile boolean downloading;
 
+  // blocks requested by the peer, read and sent by the disk I/O stage
+  private final LinkedList<PeerMessage.RequestMessage> myQueuedUploads =
+    new LinkedList<PeerMessage.RequestMessage>();
+  // upload tasks submitted and not done yet, guarded by myQueuedUploads
+  private int myUploadTasks = 0;
+
   private final Rate download;
   private final Rate upload;
   private final Set<PeerActivityListener> listeners;
@@ -117,14 +141,13 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
 
     this.torrent = torrent;
     this.listeners = Collections.unmodifiableSet(new HashSet<PeerActivityListener>(Arrays.asList(client, torrent)));
-    this.availablePieces = new BitSet(torrent.getPieceCount());
-    this.poorlyAvailablePieces = new BitSet(torrent.getPieceCount());
+    this.availablePieces = new PieceSet(torrent.getPieceCount());
+    this.poorlyAvailablePieces = new PieceSet(torrent.getPieceCount());
 
     this.requestsLock = new Object();
     this.socketChannel = channel;
     this.isStopped = new AtomicBoolean(false);
-    this.availablePiecesLock = new Object();
-    this.myRequestedPieces = new ConcurrentHashMap<Piece, Integer>();
+    this.myRequestedPieces = new ConcurrentHashMap<Piece, Boolean>();
     myRequests = new LinkedBlockingQueue<PeerMessage.RequestMessage>(SharingPeer.MAX_PIPELINED_REQUESTS);
     this.connectionManager = connectionManager;
     this.download = new Rate();
@@ -159,6 +182,9 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
       this.myRequests.clear();
       this.downloading = false;
     }
+    synchronized (this.myQueuedUploads) {
+      this.myQueuedUploads.clear();
+    }
   }
 
   /**
@@ -174,6 +200,10 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
       logger.trace("Choking {}", this);
       this.send(PeerMessage.ChokeMessage.craft());
       this.choking = true;
+      // Choking discards the requests of the peer.
+      synchronized (this.myQueuedUploads) {
+        this.myQueuedUploads.clear();
+      }
     }
   }
 
@@ -232,19 +262,35 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
     return this.interested;
   }
 
-  public BitSet getPoorlyAvailablePieces(){
+  /**
+   * Returns a read-only view of the pieces that failed validation when
+   * downloaded from this peer.
+   */
+  public PieceSet getPoorlyAvailablePieces(){
     return poorlyAvailablePieces;
   }
 
+  /**
+   * Record that a piece downloaded from this peer failed validation.
+   */
+  public void markPoorlyAvailable(int pieceIndex) {
+    this.poorlyAvailablePieces.add(pieceIndex);
+  }
+
   /**
    * Returns the available pieces from this peer.
    *
-   * @return A clone of the available pieces bit field from this peer.
+   * @return A read-only, live view of the available pieces from this peer.
    */
-  public BitSet getAvailablePieces() {
-    synchronized (this.availablePiecesLock) {
-      return (BitSet) this.availablePieces.clone();
-    }
+  public PieceSet getAvailablePieces() {
+    return this.availablePieces;
+  }
+
+  /**
+   * Tells whether this peer has all the pieces of the torrent.
+   */
+  public boolean isSeed() {
+    return this.availablePieces.isAll();
   }
 
   /**
@@ -281,7 +327,7 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
     if (isStopped.getAndSet(true))
       return;
     this.downloading = myRequests.size() > 0;
-    myRequests.clear();
+    releasePendingRequests();
 
     try {
       connectionManager.closeChannel(socketChannel);
@@ -306,9 +352,56 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
    */
   public void send(PeerMessage message) throws IllegalStateException {
     logger.trace("Sending msg {} to {}", message.getType(), this);
+    ByteBuffer data = message.getData();
+    data.rewind();
+    this.send(data);
+  }
+
+  /**
+   * Queue a HAVE message for the given completed piece, unless this peer
+   * already has it.
+   *
+   * @return Whether this is the first HAVE queued since the last
+   * {@link #flushHaves()}, in which case a flush should be planned.
+   */
+  public boolean queueHave(int piece) {
+    if (this.availablePieces.get(piece)) {
+      return false;
+    }
+    synchronized (this.myPendingHaves) {
+      final boolean first = this.myPendingHaves.isEmpty();
+      this.myPendingHaves.set(piece);
+      return first;
+    }
+  }
+
+  /**
+   * Send the queued HAVE messages in one write, leaving out the pieces this
+   * peer got in the meantime.
+   */
+  public void flushHaves() {
+    final BitSet haves;
+    synchronized (this.myPendingHaves) {
+      if (this.myPendingHaves.isEmpty()) {
+        return;
+      }
+      haves = (BitSet) this.myPendingHaves.clone();
+      this.myPendingHaves.clear();
+    }
+    for (int i = haves.nextSetBit(0); i >= 0; i = haves.nextSetBit(i + 1)) {
+      if (this.availablePieces.get(i)) {
+        haves.clear(i);
+      }
+    }
+    if (haves.isEmpty() || !this.isConnected()) {
+      return;
+    }
+    logger.trace("Sending {} HAVE message(s) to {}", haves.cardinality(), this);
+    this.send(PeerMessage.HaveMessage.craftAll(haves));
+  }
+
+  private void send(ByteBuffer data) {
     if (this.isConnected()) {
-      ByteBuffer data = message.getData();
-      data.rewind();
       connectionManager.offerWrite(new WriteTask(socketChannel, data, new WriteListener() {
         @Override
         public void onWriteFailed(String message, Throwable e) {
@@ -330,8 +423,9 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
    * Download the given piece from this peer.
    * <p/>
    * <p>
-   * Starts a block request queue and pre-fill it with MAX_PIPELINED_REQUESTS
-   * block requests.
+   * Claims blocks of the piece not requested from any other peer yet and
+   * fills the request pipeline with them, up to REQUEST_PIPELINE_DEPTH
+   * outstanding block requests.
    * </p>
    * <p/>
    * <p>
@@ -345,14 +439,22 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
     downloadPiece(piece, false);
   }
 
+  /**
+   * Download the given piece from this peer.
+   *
+   * @param piece The piece chosen to be downloaded from this peer.
+   * @param force Whether to also request blocks already requested from
+   *              other peers (end-game mode).
+   */
   public void downloadPiece(final Piece piece, boolean force)
     throws IllegalStateException {
     synchronized (this.requestsLock) {
-      if (!myRequestedPieces.containsKey(piece) || force) {
-        myRequestedPieces.put(piece, 0);
+      final Boolean current = myRequestedPieces.get(piece);
+      if (current == null || (force && !current)) {
+        myRequestedPieces.put(piece, force);
       }
     }
-    this.requestNextBlocksForPiece(piece);
+    this.requestNextBlocks();
   }
 
   public synchronized boolean isDownloading() {
@@ -363,36 +465,110 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
    * Request some more blocks from this peer.
    * <p/>
    * <p>
-   * Re-fill the pipeline to get download the next blocks from the peer.
+   * Re-fill the pipeline with blocks of the pieces we download from the peer.
+   * Pieces with no block left to request from this peer are dropped.
    * </p>
    */
-  private void requestNextBlocksForPiece(final Piece piece) {
+  private void requestNextBlocks() {
     synchronized (this.requestsLock) {
-      while ( myRequestedPieces.get(piece) < piece.size()) {
-        final int lastRequestedOffset = myRequestedPieces.get(piece);
-        PeerMessage.RequestMessage request = PeerMessage.RequestMessage
-          .craft(piece.getIndex(),lastRequestedOffset,
-            Math.min((int) (piece.size() - lastRequestedOffset),
-              PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE));
-        removeBlockRequest(piece.getIndex(), lastRequestedOffset);
-        try {
-          boolean addedCorrectly = myRequests.offer(request, 1, TimeUnit.SECONDS);
-          if (!addedCorrectly) {
-            logger.warn("unable to add message {} to my requests queue in specified timeout. Try unbind from peer {}", request, this);
-            unbind(true);
+      for (Map.Entry<Piece, Boolean> entry : myRequestedPieces.entrySet()) {
+        final Piece piece = entry.getKey();
+        final boolean force = entry.getValue();
+        while (!piece.isValid() && myRequests.size() < REQUEST_PIPELINE_DEPTH) {
+          int offset = piece.claimBlock();
+          if (offset < 0 && force) {
+            offset = nextDuplicateBlock(piece);
+          }
+          if (offset < 0) {
+            break;
+          }
+          if (!requestBlock(piece, offset)) {
             return;
           }
-        } catch (InterruptedException e) {
-          unbind(false);
-          return;
         }
-        this.send(request);
-        myRequestedPieces.put(piece, request.getLength() + lastRequestedOffset);
+        if (piece.isValid() || !hasPendingRequests(piece)) {
+          myRequestedPieces.remove(piece);
+        }
+        if (myRequests.size() >= REQUEST_PIPELINE_DEPTH) {
+          break;
+        }
       }
       this.downloading = myRequests.size() > 0;
     }
   }
 
+  private boolean requestBlock(final Piece piece, final int offset) {
+    PeerMessage.RequestMessage request = PeerMessage.RequestMessage
+      .craft(piece.getIndex(), offset, piece.getBlockLength(offset));
+    try {
+      boolean addedCorrectly = myRequests.offer(request, 1, TimeUnit.SECONDS);
+      if (!addedCorrectly) {
+        logger.warn("unable to add message {} to my requests queue in specified timeout. Try unbind from peer {}", request, this);
+        piece.releaseBlock(offset);
+        unbind(true);
+        return false;
+      }
+    } catch (InterruptedException e) {
+      piece.releaseBlock(offset);
+      unbind(false);
+      return false;
+    }
+    this.send(request);
+    return true;
+  }
+
+  /**
+   * Find a block of the piece requested from another peer, but not from
+   * this one, to request it again in end-game mode.
+   */
+  private int nextDuplicateBlock(final Piece piece) {
+    int offset = piece.nextPendingBlock(0);
+    while (offset >= 0 && isRequested(piece.getIndex(), offset)) {
+      offset = piece.nextPendingBlock(offset + Piece.BLOCK_SIZE);
+    }
+    return offset;
+  }
+
+  private boolean isRequested(final int pieceIdx, final int offset) {
+    for (PeerMessage.RequestMessage request : myRequests) {
+      if (request.getPiece() == pieceIdx && request.getOffset() == offset) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean hasPendingRequests(final Piece piece) {
+    for (PeerMessage.RequestMessage request : myRequests) {
+      if (request.getPiece() == piece.getIndex()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drop all the outstanding requests, giving their blocks back to their
+   * pieces so that other peers can download them.
+   */
+  private void releasePendingRequests() {
+    synchronized (this.requestsLock) {
+      for (PeerMessage.RequestMessage request : myRequests) {
+        releaseBlock(request);
+      }
+      myRequests.clear();
+      this.downloading = false;
+    }
+  }
+
+  private void releaseBlock(PeerMessage.RequestMessage request) {
+    try {
+      this.torrent.getPiece(request.getPiece()).releaseBlock(request.getOffset());
+    } catch (IllegalArgumentException e) {
+      // pieces were unloaded, nothing to give back
+    }
+  }
+
   /**
    * Remove the REQUEST message from the request pipeline matching this
    * PIECE message.
@@ -444,6 +620,7 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
         if (piece == null || piece.getIndex() == request.getPiece()) {
           this.send(PeerMessage.CancelMessage.craft(request.getPiece(),
                   request.getOffset(), request.getLength()));
+          releaseBlock(request);
           cancelled.add(request);
         }
       }
@@ -488,6 +665,7 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
         this.choked = true;
         this.firePeerChoked();
         this.cancelPendingRequests();
+        this.myRequestedPieces.clear();
         break;
       case UNCHOKE:
         this.choked = false;
@@ -511,16 +689,18 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
         PeerMessage.HaveMessage have = (PeerMessage.HaveMessage) msg;
         Piece havePiece = this.torrent.getPiece(have.getPieceIndex());
 
-        synchronized (this.availablePiecesLock) {
-          this.availablePieces.set(havePiece.getIndex());
-          logger.trace("Peer {} now has {} [{}/{}].",
-            new Object[]{
-              this,
-              havePiece,
-              this.availablePieces.cardinality(),
-              this.torrent.getPieceCount()
-            });
+        // A repeated HAVE must not count the piece twice in the torrent's
+        // availability index.
+        if (!this.availablePieces.add(havePiece.getIndex())) {
+          break;
         }
+        logger.trace("Peer {} now has {} [{}/{}].",
+          new Object[]{
+            this,
+            havePiece,
+            this.availablePieces.cardinality(),
+            this.torrent.getPieceCount()
+          });
 
         this.firePieceAvailabity(havePiece);
         break;
@@ -529,19 +709,20 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
         PeerMessage.BitfieldMessage bitfield =
           (PeerMessage.BitfieldMessage) msg;
 
-        synchronized (this.availablePiecesLock) {
-          this.availablePieces.or(bitfield.getBitfield());
-          logger.trace("Recorded bitfield from {} with {} " +
-            "pieces(s) [{}/{}].",
-            new Object[]{
-              this,
-              bitfield.getBitfield().cardinality(),
-              this.availablePieces.cardinality(),
-              this.torrent.getPieceCount()
-            });
-        }
-
-        this.fireBitfieldAvailabity();
+        // Only keep the pieces we did not know about in the message's bit
+        // field, they are the ones to account for.
+        final BitSet newPieces = bitfield.getBitfield();
+        this.availablePieces.addAll(newPieces);
+        logger.trace("Recorded bitfield from {} with {} " +
+          "new pieces(s) [{}/{}].",
+          new Object[]{
+            this,
+            newPieces.cardinality(),
+            this.availablePieces.cardinality(),
+            this.torrent.getPieceCount()
+          });
+
+        this.fireBitfieldAvailabity(newPieces);
         break;
       case REQUEST:
         PeerMessage.RequestMessage request =
@@ -574,27 +755,9 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
         }
 
         // At this point we agree to send the requested piece block to
-        // the remote peer, so let's queue a message with that block
-        try {
-
-          ByteBuffer bufferForMessage = PeerMessage.PieceMessage.createBufferWithHeaderForMessage(
-                  request.getPiece(), request.getOffset(), request.getLength());
-
-          rp.read(request.getOffset(), request.getLength(), bufferForMessage);
-
-          this.send(PeerMessage.PieceMessage.craft(request.getPiece(),
-                  request.getOffset(), bufferForMessage));
-          this.upload.add(request.getLength());
-
-          if (request.getOffset() + request.getLength() == rp.size()) {
-            this.firePieceSent(rp);
-          }
-        } catch (IOException ioe) {
-          logger.debug("error", ioe);
-          this.fireIOException(new IOException(
-            "Error while sending piece block request!", ioe));
-        }
-
+        // the remote peer. The block is read, and the message queued, by
+        // the disk I/O stage.
+        this.uploadBlock(request);
         break;
       case PIECE:
         // Record the incoming piece block.
@@ -623,31 +786,34 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
           synchronized (p) {
             if (p.isValid()) {
               this.cancelPendingRequests(p);
+              this.myRequestedPieces.remove(p);
               this.firePeerReady();
               logger.debug("Discarding block for already completed " + p);
               break;
             }
             //TODO add proper catch for IOException
-            p.record(piece.getBlock(), piece.getOffset());
-
-            // If the block offset equals the piece size and the block
-            // length is 0, it means the piece has been entirely
-            // downloaded. In this case, we have nothing to save, but
-            // we should validate the piece.
-            if (getRemainingRequestedPieces(p).size() == 0) {
-              p.finish();
-              p.validate(torrent, p);
-              this.firePieceCompleted(p);
-              myRequestedPieces.remove(p);
+            if (!p.record(piece.getBlock(), piece.getOffset())) {
+              // No buffer to assemble the piece in, the block will have to
+              // be requested again.
+              logger.debug("No piece buffer left, dropping block of {}", p);
+              p.releaseBlock(piece.getOffset());
+              break;
+            }
+
+            // Blocks of the piece may come from several peers: whoever
+            // receives the last one has the piece written and validated.
+            if (p.isDownloaded()) {
+              if (p.startFinishing()) {
+                this.finishPiece(p);
+              }
+              this.cancelPendingRequests(p);
+              this.myRequestedPieces.remove(p);
               this.firePeerReady();
             } else {
-              if (piece.getOffset() + piece.getBlock().capacity()
-                == p.size()) { // final request reached
-                for (PeerMessage.RequestMessage requestMessage : getRemainingRequestedPieces(p)) {
-                  send(requestMessage);
-                }
-              } else {
-                this.requestNextBlocksForPiece(p);
+              this.requestNextBlocks();
+              if (myRequests.size() <= REQUEST_PIPELINE_DEPTH / 2) {
+                // Running out of blocks to request, ask for more pieces.
+                this.firePeerReady();
               }
             }
           }
@@ -659,11 +825,152 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
         }
         break;
       case CANCEL:
-        // No need to support
+        // The block may not be read yet: spare the disk.
+        PeerMessage.CancelMessage cancel = (PeerMessage.CancelMessage) msg;
+        synchronized (this.myQueuedUploads) {
+          for (Iterator<PeerMessage.RequestMessage> it = this.myQueuedUploads.iterator(); it.hasNext(); ) {
+            final PeerMessage.RequestMessage queued = it.next();
+            if (queued.getPiece() == cancel.getPiece() &&
+              queued.getOffset() == cancel.getOffset() &&
+              queued.getLength() == cancel.getLength()) {
+              it.remove();
+              break;
+            }
+          }
+        }
         break;
     }
   }
 
+  /**
+   * Have the disk I/O stage read the requested block and send it to the
+   * peer.
+   *
+   * <p>
+   * Requests wait in this peer's queue, where CANCEL and CHOKE can still
+   * drop them, and each task serves the oldest one left. Requests beyond
+   * {@link #MAX_QUEUED_UPLOADS} outstanding tasks are ignored.
+   * </p>
+   */
+  private void uploadBlock(final PeerMessage.RequestMessage request) {
+    synchronized (this.myQueuedUploads) {
+      if (this.myUploadTasks >= MAX_QUEUED_UPLOADS) {
+        logger.debug("Too many blocks queued for upload to {}, ignoring request", this);
+        return;
+      }
+      this.myQueuedUploads.add(request);
+      this.myUploadTasks++;
+    }
+    try {
+      DiskIOStage.getShared().submit(this.torrent.getDiskDevice(), new Runnable() {
+        @Override
+        public void run() {
+          try {
+            uploadQueuedBlock();
+          } finally {
+            synchronized (myQueuedUploads) {
+              myUploadTasks--;
+            }
+          }
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      synchronized (this.myQueuedUploads) {
+        this.myQueuedUploads.remove(request);
+        this.myUploadTasks--;
+      }
+      throw ree;
+    }
+  }
+
+  private void uploadQueuedBlock() {
+    final PeerMessage.RequestMessage request;
+    synchronized (this.myQueuedUploads) {
+      request = this.myQueuedUploads.poll();
+    }
+    if (request == null || !isConnected()) {
+      return;
+    }
+    final Piece piece = this.torrent.getPiece(request.getPiece());
+    try {
+      ByteBuffer bufferForMessage = PeerMessage.PieceMessage.createBufferWithHeaderForMessage(
+              request.getPiece(), request.getOffset(), request.getLength());
+
+      readBlock(piece, request.getOffset(), bufferForMessage);
+
+      send(PeerMessage.PieceMessage.craft(request.getPiece(),
+              request.getOffset(), bufferForMessage));
+      upload.add(request.getLength());
+
+      if (request.getOffset() + request.getLength() == piece.size()) {
+        firePieceSent(piece);
+      }
+    } catch (IOException ioe) {
+      logger.debug("error", ioe);
+      fireIOException(new IOException(
+        "Error while sending piece block request!", ioe));
+    }
+  }
+
+  /**
+   * Have the disk I/O stage check and write the given downloaded piece,
+   * then report its completion from this peer.
+   *
+   * <p>
+   * An invalid piece, or one that could not be written, is reset so that
+   * it is downloaded again.
+   * </p>
+   */
+  private void finishPiece(final Piece piece) {
+    DiskIOStage.getShared().submit(this.torrent.getDiskDevice(), new Runnable() {
+      @Override
+      public void run() {
+        boolean valid = false;
+        try {
+          valid = piece.finish();
+        } catch (IOException ioe) {
+          logger.error(ioe.getMessage(), ioe);
+          fireIOException(new IOException(
+            "Error while storing received piece block!", ioe));
+        }
+        if (!valid) {
+          piece.resetBlocks();
+        }
+        synchronized (SharingPeer.this) {
+          try {
+            firePieceCompleted(piece);
+          } catch (IOException ioe) {
+            logger.error(ioe.getMessage(), ioe);
+            fireIOException(ioe);
+          }
+          firePeerReady();
+        }
+      }
+    });
+  }
+
+  /**
+   * Read a block to upload into the given buffer, from the shared block
+   * cache if possible.
+   *
+   * <p>
+   * On return, the buffer is positioned as by {@link Piece#read}.
+   * </p>
+   */
+  private void readBlock(Piece piece, int offset, ByteBuffer buffer) throws IOException {
+    final BlockReadCache cache = BlockReadCache.getShared();
+    final InfoHash torrentHash = this.torrent.getInfoHashKey();
+    final int start = buffer.position();
+    if (cache.read(torrentHash, piece.getIndex(), offset, buffer)) {
+      buffer.rewind();
+      return;
+    }
+    piece.read(offset, buffer.remaining(), buffer);
+    final ByteBuffer block = buffer.duplicate();
+    block.position(start);
+    cache.put(torrentHash, piece.getIndex(), offset, block);
+  }
+
   /**
    * Fire the peer choked event to all registered listeners.
    * <p/>
@@ -706,13 +1013,12 @@ public class SharingPeer extends Peer implements MessageListener, SharingPeerInf
   /**
    * Fire the bit field availability event to all registered listeners.
    * <p/>
-   * The event contains the peer (this), and the bit field of available pieces
-   * from this peer.
+   * The event contains the peer (this), and the bit field of the pieces
+   * that became available from this peer.
    */
-  private void fireBitfieldAvailabity() {
+  private void fireBitfieldAvailabity(BitSet newPieces) {
     for (PeerActivityListener listener : this.listeners) {
-      listener.handleBitfieldAvailability(this,
-              this.getAvailablePieces());
+      listener.handleBitfieldAvailability(this, newPieces);
     }
   }
 
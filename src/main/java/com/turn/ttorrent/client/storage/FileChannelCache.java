@@ -0,0 +1,303 @@
+package com.turn.ttorrent.client.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of open file channels.
+ *
+ * <p>
+ * File storages do not keep their files open: they lease a channel from
+ * this cache for each operation. At most a bounded number of files are
+ * kept open, the least recently used idle ones are closed first, and a
+ * channel nobody used for the idle timeout is closed as well. Torrents with
+ * many files thus do not exhaust file descriptors, and peers coming and
+ * going do not cause storms of opens and closes.
+ * </p>
+ *
+ * <p>
+ * A leased channel is never closed under its user: the cache may go over
+ * its bound while every channel is leased.
+ * </p>
+ */
+public class FileChannelCache {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(FileChannelCache.class);
+
+  public static final int DEFAULT_MAX_OPEN_FILES = 512;
+  public static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+
+  private static volatile FileChannelCache ourShared =
+    new FileChannelCache(DEFAULT_MAX_OPEN_FILES, DEFAULT_IDLE_TIMEOUT_MS);
+
+  private final int myMaxOpenFiles;
+  private final long myIdleTimeout;
+  private final LinkedHashMap<String, Handle> myHandles =
+    new LinkedHashMap<String, Handle>(16, 0.75f, true);
+  private ScheduledExecutorService myReaper = null;
+
+  private long myOpens = 0;
+  private long myEvictions = 0;
+  private long myHits = 0;
+  private long myMisses = 0;
+
+  /**
+   * @param maxOpenFiles The number of files kept open at most, unless they
+   * are all leased.
+   * @param idleTimeout The time, in milliseconds, after which a file nobody
+   * uses is closed.
+   */
+  public FileChannelCache(int maxOpenFiles, long idleTimeout) {
+    myMaxOpenFiles = maxOpenFiles;
+    myIdleTimeout = idleTimeout;
+  }
+
+  /**
+   * Returns the cache shared by all the torrents of this process.
+   */
+  public static FileChannelCache getShared() {
+    return ourShared;
+  }
+
+  /**
+   * Replace the cache shared by all the torrents of this process. Storages
+   * opened before keep using the previous cache.
+   */
+  public static void setShared(FileChannelCache cache) {
+    ourShared = cache;
+  }
+
+  /**
+   * Lease an open channel to the given file, opening the file if needed.
+   * The lease must be given back with {@link #release(Handle)}.
+   *
+   * @param file The file to open.
+   * @param writable Whether to open the file for writing, creating it if it
+   * does not exist.
+   */
+  public Handle acquire(File file, boolean writable) throws IOException {
+    final String key = key(file, writable);
+    synchronized (this) {
+      final Handle handle = myHandles.get(key);
+      if (handle != null) {
+        myHits++;
+        handle.leases++;
+        return handle;
+      }
+      myMisses++;
+    }
+
+    final RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+    final Handle opened = new Handle(file, raf);
+    final Handle result;
+    final List<Handle> toClose = new ArrayList<Handle>();
+    synchronized (this) {
+      final Handle existing = myHandles.get(key);
+      if (existing != null) {
+        // opened concurrently by another thread
+        toClose.add(opened);
+        result = existing;
+        result.leases++;
+      } else {
+        myHandles.put(key, opened);
+        myOpens++;
+        result = opened;
+        result.leases++;
+        evictOverCapacity(toClose);
+        startReaper();
+      }
+    }
+    closeAll(toClose);
+    return result;
+  }
+
+  /**
+   * Give back a channel leased with {@link #acquire(File, boolean)}.
+   */
+  public void release(Handle handle) {
+    final List<Handle> toClose = new ArrayList<Handle>();
+    synchronized (this) {
+      handle.leases--;
+      handle.lastUsed = System.currentTimeMillis();
+      if (handle.leases == 0) {
+        if (handle.invalidated) {
+          toClose.add(handle);
+        } else {
+          evictOverCapacity(toClose);
+        }
+      }
+    }
+    closeAll(toClose);
+  }
+
+  /**
+   * Close the channels to the given file, e.g. before it is moved or
+   * deleted. Leased channels are closed when given back.
+   */
+  public void invalidate(File file) {
+    final List<Handle> toClose = new ArrayList<Handle>();
+    synchronized (this) {
+      for (boolean writable : new boolean[]{false, true}) {
+        final Handle handle = myHandles.remove(key(file, writable));
+        if (handle == null) {
+          continue;
+        }
+        handle.invalidated = true;
+        if (handle.leases == 0) {
+          toClose.add(handle);
+        }
+      }
+    }
+    closeAll(toClose);
+  }
+
+  /**
+   * Close the channels that were not used for the idle timeout.
+   */
+  public void closeIdle() {
+    final List<Handle> toClose = new ArrayList<Handle>();
+    final long now = System.currentTimeMillis();
+    synchronized (this) {
+      final Iterator<Handle> it = myHandles.values().iterator();
+      while (it.hasNext()) {
+        final Handle handle = it.next();
+        if (handle.leases == 0 && now - handle.lastUsed >= myIdleTimeout) {
+          it.remove();
+          toClose.add(handle);
+          myEvictions++;
+        }
+      }
+      if (myHandles.isEmpty() && myReaper != null) {
+        myReaper.shutdown();
+        myReaper = null;
+      }
+    }
+    closeAll(toClose);
+  }
+
+  public int getMaxOpenFiles() {
+    return myMaxOpenFiles;
+  }
+
+  /**
+   * Returns the number of files currently open.
+   */
+  public synchronized int getOpenFiles() {
+    return myHandles.size();
+  }
+
+  /**
+   * Returns the number of files opened so far.
+   */
+  public synchronized long getOpens() {
+    return myOpens;
+  }
+
+  /**
+   * Returns the number of files closed so far to stay within bounds or
+   * because they were idle.
+   */
+  public synchronized long getEvictions() {
+    return myEvictions;
+  }
+
+  /**
+   * Returns the ratio of leases served by an already open file, between 0
+   * and 1.
+   */
+  public synchronized double getHitRate() {
+    final long leases = myHits + myMisses;
+    return leases == 0 ? 0 : (double) myHits / leases;
+  }
+
+  private void evictOverCapacity(List<Handle> toClose) {
+    final Iterator<Handle> it = myHandles.values().iterator();
+    while (myHandles.size() > myMaxOpenFiles && it.hasNext()) {
+      final Handle handle = it.next();
+      if (handle.leases == 0) {
+        it.remove();
+        toClose.add(handle);
+        myEvictions++;
+      }
+    }
+  }
+
+  private void startReaper() {
+    if (myReaper != null || myIdleTimeout <= 0) {
+      return;
+    }
+    myReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "ttorrent idle file closer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final long period = Math.max(myIdleTimeout / 2, 1);
+    myReaper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        closeIdle();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private void closeAll(List<Handle> handles) {
+    for (Handle handle : handles) {
+      try {
+        handle.raf.close();
+      } catch (IOException ioe) {
+        logger.warn("Error closing {}: {}", handle.file, ioe.getMessage());
+      }
+    }
+  }
+
+  private static String key(File file, boolean writable) {
+    return file.getAbsolutePath() + (writable ? "#rw" : "#r");
+  }
+
+  /**
+   * An open file leased from the cache.
+   */
+  public static class Handle {
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private int leases = 0;
+    private long lastUsed = System.currentTimeMillis();
+    private boolean invalidated = false;
+
+    private Handle(File file, RandomAccessFile raf) {
+      this.file = file;
+      this.raf = raf;
+      this.channel = raf.getChannel();
+    }
+
+    public FileChannel getChannel() {
+      return channel;
+    }
+
+    /**
+     * Set the length of the file, truncating or extending it.
+     */
+    public void setLength(long length) throws IOException {
+      raf.setLength(length);
+    }
+  }
+}
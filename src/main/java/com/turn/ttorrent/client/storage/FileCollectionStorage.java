@@ -17,7 +17,6 @@ package com.turn.ttorrent.client.storage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -35,6 +34,13 @@ import org.slf4j.LoggerFactory;
  * file this offset lands.
  * </p>
  *
+ * <p>
+ * The start offsets of the files are precomputed, so that the files an
+ * operation spans are found by binary search. When the piece length is
+ * known, a table of the files each piece starts in narrows the search down
+ * to the few files of a piece.
+ * </p>
+ *
  * @author mpetazzoni
  * @author dgiffin
  */
@@ -47,6 +53,11 @@ public class FileCollectionStorage implements TorrentByteStorage {
 	private final long size;
   private volatile boolean myIsOpen;
 
+  private final FileStorage[] myFiles;
+  private final long[] myFileOffsets;
+  private final long myPieceLength;
+  private final int[] myPieceFirstFiles;
+
 	/**
 	 * Initialize a new multi-file torrent byte storage.
 	 *
@@ -56,9 +67,42 @@ public class FileCollectionStorage implements TorrentByteStorage {
 	 */
 	public FileCollectionStorage(List<FileStorage> files,
 		long size) {
+		this(files, size, 0);
+	}
+
+	/**
+	 * Initialize a new multi-file torrent byte storage.
+	 *
+	 * @param files The list of individual {@link FileStorage}
+	 * objects making up the torrent, in offset order.
+	 * @param size The total size of the torrent data, in bytes.
+	 * @param pieceLength The piece length of the torrent, to index the files
+	 * of each piece, or 0 to only rely on the binary search.
+	 */
+	public FileCollectionStorage(List<FileStorage> files,
+		long size, long pieceLength) {
 		this.files = files;
 		this.size = size;
 
+		this.myFiles = files.toArray(new FileStorage[files.size()]);
+		this.myFileOffsets = new long[this.myFiles.length];
+		for (int i = 0; i < this.myFiles.length; i++) {
+			this.myFileOffsets[i] = this.myFiles[i].offset();
+		}
+
+		if (pieceLength > 0 && size > 0 && this.myFiles.length > 0) {
+			final int pieceCount = (int) ((size + pieceLength - 1) / pieceLength);
+			this.myPieceLength = pieceLength;
+			this.myPieceFirstFiles = new int[pieceCount + 1];
+			for (int i = 0; i < pieceCount; i++) {
+				this.myPieceFirstFiles[i] = this.searchFile(i * pieceLength, 0, this.myFiles.length - 1);
+			}
+			this.myPieceFirstFiles[pieceCount] = this.myFiles.length - 1;
+		} else {
+			this.myPieceLength = 0;
+			this.myPieceFirstFiles = null;
+		}
+
     logger.debug("Initialized torrent byte storage on {} file(s) " +
 			"({} total byte(s)).", files.size(), size);
 	}
@@ -78,15 +122,27 @@ public class FileCollectionStorage implements TorrentByteStorage {
 
 	@Override
 	public int read(ByteBuffer buffer, long offset) throws IOException {
-		int requested = buffer.remaining();
+		final int requested = buffer.remaining();
+		final int limit = buffer.limit();
 		int bytes = 0;
 
-		for (FileOffset fo : this.select(offset, requested)) {
+		this.checkBounds(offset, requested);
+		for (int i = this.fileIndexAt(offset); bytes < requested; i++) {
+			final long position = offset + bytes - this.myFileOffsets[i];
+			final int length = this.chunkLength(i, position, requested - bytes);
+			if (length == 0) {
+				continue;
+			}
 			// TODO: remove cast to int when large ByteBuffer support is
 			// implemented in Java.
-			buffer.limit((int)(buffer.position() + fo.length));
-			bytes += fo.file.read(buffer, fo.offset);
+			buffer.limit(buffer.position() + length);
+			final int read = this.myFiles[i].read(buffer, position);
+			bytes += read;
+			if (read < length) {
+				break;
+			}
 		}
+		buffer.limit(limit);
 
 		if (bytes < requested) {
 			throw new IOException("Storage collection read underrun!");
@@ -97,14 +153,25 @@ public class FileCollectionStorage implements TorrentByteStorage {
 
 	@Override
 	public int write(ByteBuffer buffer, long offset) throws IOException {
-		int requested = buffer.remaining();
-
+		final int requested = buffer.remaining();
+		final int limit = buffer.limit();
 		int bytes = 0;
 
-		for (FileOffset fo : this.select(offset, requested)) {
-			buffer.limit(bytes + (int)fo.length);
-      bytes += fo.file.write(buffer, fo.offset);
+		this.checkBounds(offset, requested);
+		for (int i = this.fileIndexAt(offset); bytes < requested; i++) {
+			final long position = offset + bytes - this.myFileOffsets[i];
+			final int length = this.chunkLength(i, position, requested - bytes);
+			if (length == 0) {
+				continue;
+			}
+			buffer.limit(buffer.position() + length);
+			final int written = this.myFiles[i].write(buffer, position);
+			bytes += written;
+			if (written < length) {
+				break;
+			}
 		}
+		buffer.limit(limit);
 
 		if (bytes < requested) {
 			throw new IOException("Storage collection write underrun!");
@@ -156,81 +223,66 @@ public class FileCollectionStorage implements TorrentByteStorage {
     }
   }
 
-  /**
-	 * File operation details holder.
-	 *
-	 * <p>
-	 * This simple inner class holds the details for a read or write operation
-	 * on one of the underlying {@link FileStorage}s.
-	 * </p>
-	 *
-	 * @author dgiffin
-	 * @author mpetazzoni
-	 */
-	private static class FileOffset {
-
-		public final FileStorage file;
-		public final long offset;
-		public final long length;
-
-		FileOffset(FileStorage file, long offset, long length) {
-			this.file = file;
-			this.offset = offset;
-			this.length = length;
-		}
-	};
-
 	/**
-	 * Select the group of files impacted by an operation.
-	 *
-	 * <p>
-	 * This function selects which files are impacted by a read or write
-	 * operation, with their respective relative offset and chunk length.
-	 * </p>
+	 * Check that an operation fits in the byte storage and that files are
+	 * registered to accommodate it.
 	 *
-	 * @param offset The offset of the operation, in bytes, relative to the
-	 * complete byte storage.
-	 * @param length The number of bytes to read or write.
-	 * @return A list of {@link FileOffset} objects representing the {@link
-	 * FileStorage}s impacted by the operation, bundled with their
-	 * respective relative offset and number of bytes to read or write.
 	 * @throws IllegalArgumentException If the offset and length go over the
 	 * byte storage size.
 	 * @throws IllegalStateException If the files registered with this byte
 	 * storage can't accommodate the request (should not happen, really).
 	 */
-	private List<FileOffset> select(long offset, long length) {
+	private void checkBounds(long offset, long length) {
 		if (offset + length > this.size) {
 			throw new IllegalArgumentException("Buffer overrun (" +
 				offset + " + " + length + " > " + this.size + ") !");
 		}
+		if (this.myFiles.length == 0) {
+			throw new IllegalStateException("Buffer underrun (no file " +
+				"for " + length + " byte(s) requested)!");
+		}
+	}
 
-		List<FileOffset> selected = new LinkedList<FileOffset>();
-		long bytes = 0;
-
-		for (FileStorage file : this.files) {
-			if (file.offset() > offset + length) {
-				break;
-			}
-
-			if (file.offset() + file.size() < offset) {
-				continue;
-			}
-
-			long position = offset - file.offset();
-			position = position > 0 ? position : 0;
-			long size = Math.min(
-				file.size() - position,
-				length - bytes);
-			selected.add(new FileOffset(file, position, size));
-			bytes += size;
+	/**
+	 * Returns the number of bytes of an operation that go to the given file.
+	 *
+	 * @throws IllegalStateException If the operation goes past the last file.
+	 */
+	private int chunkLength(int fileIndex, long position, int remaining) {
+		if (fileIndex >= this.myFiles.length) {
+			throw new IllegalStateException("Buffer underrun (" + remaining +
+				" byte(s) left past the last file)!");
 		}
+		return (int) Math.max(0,
+			Math.min(this.myFiles[fileIndex].size() - position, remaining));
+	}
 
-		if (selected.size() == 0 || bytes < length) {
-			throw new IllegalStateException("Buffer underrun (only got " +
-				bytes + " out of " + length + " byte(s) requested)!");
+	/**
+	 * Returns the index of the file the given storage offset lands in.
+	 */
+	private int fileIndexAt(long offset) {
+		if (this.myPieceFirstFiles != null && offset < this.size) {
+			final int piece = (int) (offset / this.myPieceLength);
+			return this.searchFile(offset, this.myPieceFirstFiles[piece],
+				this.myPieceFirstFiles[piece + 1]);
 		}
+		return this.searchFile(offset, 0, this.myFiles.length - 1);
+	}
 
-		return selected;
+	/**
+	 * Binary search of the last file, between the given indices, that starts
+	 * at or before the given offset. Empty files sharing their start offset
+	 * with the next file are thus skipped.
+	 */
+	private int searchFile(long offset, int low, int high) {
+		while (low < high) {
+			final int middle = (low + high + 1) >>> 1;
+			if (this.myFileOffsets[middle] <= offset) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
 	}
 }
@@ -16,10 +16,9 @@
 package com.turn.ttorrent.client.storage;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -38,6 +37,20 @@ import org.slf4j.LoggerFactory;
  * FileChannel to expose thread-safe read/write methods.
  * </p>
  *
+ * <p>
+ * The file is not kept open: a channel is leased from a process-wide
+ * {@link FileChannelCache} for each operation, so that torrents with many
+ * files do not hold a file descriptor per file.
+ * </p>
+ *
+ * <p>
+ * Positional reads and writes do not exclude each other: blocks of
+ * different pieces are read and written in parallel. Callers never read a
+ * range while it is being written, since a piece only becomes readable
+ * once written. The storage lock is only held exclusively for lifecycle
+ * transitions: open, close, finish and delete.
+ * </p>
+ *
  * @author mpetazzoni
  */
 public class FileStorage implements TorrentByteStorage {
@@ -50,10 +63,12 @@ public class FileStorage implements TorrentByteStorage {
 	private final long offset;
 	private final long size;
 
-	private RandomAccessFile raf;
-  private FileChannel channel;
 	private File current;
   private boolean myIsOpen = false;
+  private boolean myReadOnly = false;
+  private volatile boolean myWritten = false;
+  private FileChannelCache myChannels = null;
+  private volatile boolean mySkipped = false;
 
   private final ReadWriteLock myLock = new ReentrantReadWriteLock();
 
@@ -68,12 +83,13 @@ public class FileStorage implements TorrentByteStorage {
   public void open(final boolean seeder) throws IOException {
     try {
       myLock.writeLock().lock();
+      myChannels = FileChannelCache.getShared();
       if (seeder) {
         if (!target.exists()){
           throw new IOException("Target file " + target.getAbsolutePath() + " doesn't exist.");
         }
         this.current = this.target;
-        this.raf = new RandomAccessFile(this.current, "r");
+        myReadOnly = true;
       } else {
         this.partial = new File(this.target.getAbsolutePath() +
                 TorrentByteStorage.PARTIAL_FILE_NAME_SUFFIX);
@@ -91,14 +107,25 @@ public class FileStorage implements TorrentByteStorage {
                   this.target.getAbsolutePath());
           this.current = this.target;
         }
-        this.raf = new RandomAccessFile(this.current, "rw");
-        this.raf.setLength(this.size);
+        myReadOnly = false;
+        if (mySkipped) {
+          logger.debug("Not preallocating skipped file {}.",
+                  this.current.getAbsolutePath());
+        } else if (!this.current.exists() || this.current.length() != this.size) {
+          // Set the file length to the appropriate size, eventually
+          // truncating or extending the file if it already exists with a
+          // different size.
+          final FileChannelCache.Handle handle = myChannels.acquire(this.current, true);
+          try {
+            handle.setLength(this.size);
+          } finally {
+            myChannels.release(handle);
+          }
+        }
       }
 
-    // Set the file length to the appropriate size, eventually truncating
-    // or extending the file if it already exists with a different size.
-      myIsOpen  = true;
-    this.channel = raf.getChannel();
+      myIsOpen = true;
+      myWritten = false;
 
     logger.debug("Opened byte storage file at {} ({}+{} byte(s)).",
       new Object[] {
@@ -111,6 +138,33 @@ public class FileStorage implements TorrentByteStorage {
     }
   }
 
+  /**
+   * Mark this file as skipped, i.e. not wanted for download.
+   *
+   * <p>
+   * A skipped file is neither created nor preallocated when opened for
+   * download; it is only created, and grown as needed, when data of pieces
+   * it shares with wanted files gets written to it. Until then, reads return
+   * zeros. This takes effect the next time the storage is opened.
+   * </p>
+   */
+  public void setSkipped(boolean skipped) {
+    mySkipped = skipped;
+  }
+
+  public boolean isSkipped() {
+    return mySkipped;
+  }
+
+  /**
+   * Returns the file holding this storage's data: the partial file while
+   * downloading, the target file once finished.
+   */
+  public File getFile() {
+    final File current = this.current;
+    return current != null ? current : this.target;
+  }
+
 	protected long offset() {
 		return this.offset;
 	}
@@ -129,10 +183,30 @@ public class FileStorage implements TorrentByteStorage {
 		if (offset + requested > this.size) {
 			throw new IllegalArgumentException("Invalid storage read request!");
 		}
+		if (!myIsOpen) {
+			throw new ClosedChannelException();
+		}
 
-		int bytes = this.channel.read(buffer, offset);
+		if (mySkipped && !this.current.exists()) {
+			// Skipped file not created yet.
+			fillWithZeros(buffer);
+			return requested;
+		}
+
+		final FileChannelCache.Handle handle = myChannels.acquire(this.current, !myReadOnly);
+		int bytes;
+		try {
+			bytes = Math.max(this.readChannel(handle.getChannel(), buffer, offset), 0);
+		} finally {
+			myChannels.release(handle);
+		}
 		if (bytes < requested) {
-			throw new IOException("Storage underrun!");
+			if (!mySkipped) {
+				throw new IOException("Storage underrun!");
+			}
+			// Skipped files are not preallocated and may be shorter.
+			fillWithZeros(buffer);
+			bytes = requested;
 		}
 
 		return bytes;
@@ -144,16 +218,30 @@ public class FileStorage implements TorrentByteStorage {
 	@Override
 	public int write(ByteBuffer buffer, long offset) throws IOException {
       try {
-        myLock.writeLock().lock();
+        myLock.readLock().lock();
 		int requested = buffer.remaining();
 
 		if (offset + requested > this.size) {
 			throw new IllegalArgumentException("Invalid storage write request!");
 		}
+		if (!myIsOpen) {
+			throw new ClosedChannelException();
+		}
 
-		return this.channel.write(buffer, offset);
+		if (mySkipped && !this.current.exists()) {
+			logger.debug("Creating skipped file {} for shared piece data.",
+				this.current.getAbsolutePath());
+		}
+
+		final FileChannelCache.Handle handle = myChannels.acquire(this.current, true);
+		try {
+			myWritten = true;
+			return this.writeChannel(handle.getChannel(), buffer, offset);
+		} finally {
+			myChannels.release(handle);
+		}
       } finally {
-        myLock.writeLock().unlock();
+        myLock.readLock().unlock();
       }
     }
 
@@ -161,12 +249,13 @@ public class FileStorage implements TorrentByteStorage {
 	public void close() throws IOException {
       try {
         myLock.writeLock().lock();
-        logger.debug("Closing file channel to {}. Channel open: {}", current.getName(), channel.isOpen());
-        if (this.channel.isOpen()) {
-          this.channel.force(true);
+        if (!myIsOpen) {
+          return;
         }
-        this.raf.close();
         myIsOpen = false;
+        logger.debug("Closing byte storage file {}.", current.getName());
+        this.releaseResources();
+        this.force();
       } finally {
         myLock.writeLock().unlock();
       }
@@ -178,11 +267,16 @@ public class FileStorage implements TorrentByteStorage {
 	public void finish() throws IOException {
       try {
         myLock.writeLock().lock();
+		if (mySkipped && !this.current.exists()) {
+			logger.debug("Skipped file {} was never written, nothing to finish.",
+				this.current.getName());
+			return;
+		}
+
 		logger.debug("Closing file channel to " + this.current.getName() +
 			" (download complete).");
-		if (this.channel.isOpen()) {
-			this.channel.force(true);
-		}
+		this.releaseResources();
+		this.force();
 
 		// Nothing more to do if we're already on the target file.
 		if (this.isFinished()) {
@@ -191,7 +285,9 @@ public class FileStorage implements TorrentByteStorage {
 
         try {
           FileUtils.deleteQuietly(this.target);
-          this.raf.close();
+          if (myChannels != null) {
+            myChannels.invalidate(this.current);
+          }
           FileUtils.moveFile(this.current, this.target);
         } catch (Exception ex) {
           logger.error("An error occurred while moving file to its final location", ex);
@@ -222,24 +318,82 @@ public class FileStorage implements TorrentByteStorage {
     }
   }
 
+	/**
+	 * Tells whether the data is at its final location. A skipped file that
+	 * was never written has nothing to move and counts as finished.
+	 */
 	@Override
 	public boolean isFinished() {
-		return this.current.equals(this.target);
+		final File current = this.current;
+		return current != null &&
+			(current.equals(this.target) || (mySkipped && !current.exists()));
 	}
 
   @Override
   public boolean isClosed() {
     try{
       myLock.readLock().lock();
-      return !myIsOpen && (channel==null || !channel.isOpen());
+      return !myIsOpen;
     } finally {
       myLock.readLock().unlock();
     }
   }
 
+  /**
+   * Read from the file channel. Called concurrently with other reads and
+   * writes.
+   *
+   * @return The number of bytes read, or -1 at the end of the file.
+   */
+  protected int readChannel(FileChannel channel, ByteBuffer buffer, long offset)
+    throws IOException {
+    return channel.read(buffer, offset);
+  }
+
+  /**
+   * Write to the file channel. Called concurrently with other reads and
+   * writes, to other ranges.
+   */
+  protected int writeChannel(FileChannel channel, ByteBuffer buffer, long offset)
+    throws IOException {
+    return channel.write(buffer, offset);
+  }
+
+  /**
+   * Release any resource tied to the file before it is forced to disk,
+   * closed or moved. Called with the storage lock held exclusively.
+   */
+  protected void releaseResources() throws IOException {
+  }
+
+  /**
+   * Force what was written since the last call to the disk.
+   */
+  private void force() throws IOException {
+    if (!myWritten) {
+      return;
+    }
+    final FileChannelCache.Handle handle = myChannels.acquire(this.current, true);
+    try {
+      handle.getChannel().force(true);
+    } finally {
+      myChannels.release(handle);
+    }
+    myWritten = false;
+  }
+
+  private static void fillWithZeros(ByteBuffer buffer) {
+    while (buffer.hasRemaining()) {
+      buffer.put((byte) 0);
+    }
+  }
+
   @Override
   public void delete() throws IOException {
     close();
+    if (myChannels != null) {
+      myChannels.invalidate(current);
+    }
     current.delete();
   }
 }
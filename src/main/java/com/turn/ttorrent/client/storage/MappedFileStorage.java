@@ -0,0 +1,203 @@
+package com.turn.ttorrent.client.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single-file torrent byte storage backed by memory-mapped windows.
+ *
+ * <p>
+ * Instead of a positional channel read or write per block, the file is
+ * mapped in aligned windows of bounded size, and blocks are copied from or
+ * to the mapping. Only a few windows are kept mapped at a time, the least
+ * recently used ones are dropped first.
+ * </p>
+ *
+ * <p>
+ * Windows are unmapped when the storage is closed or finished, so that the
+ * file can be moved or deleted right away. Windows dropped while reads or
+ * writes may still be using them are only unmapped then, when the storage
+ * lock is held exclusively.
+ * </p>
+ *
+ * <p>
+ * Unmapping goes through the buffer's cleaner, which the JVM does not give
+ * access to from Java 9 on. There, mappings stay until their buffers are
+ * garbage collected: on some platforms, Windows among them, the file can
+ * then not be moved or deleted until they are. A warning is logged the
+ * first time this happens.
+ * </p>
+ */
+public class MappedFileStorage extends FileStorage {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(MappedFileStorage.class);
+
+  /**
+   * Default size of the mapped windows.
+   */
+  public static final long DEFAULT_WINDOW_SIZE = 32L * 1024 * 1024;
+
+  /**
+   * Number of windows kept mapped per file.
+   */
+  private static final int MAX_WINDOWS = 8;
+
+  private static final AtomicBoolean ourUnmapFailureLogged = new AtomicBoolean();
+
+  private final long myWindowSize;
+  private final Object myWindowsLock = new Object();
+  private final LinkedHashMap<Long, MappedByteBuffer> myWindows =
+    new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true);
+  private final List<MappedByteBuffer> myRetiredWindows = new ArrayList<MappedByteBuffer>();
+  private volatile boolean myReadOnly = false;
+
+  public MappedFileStorage(File file, long offset, long size) throws IOException {
+    this(file, offset, size, DEFAULT_WINDOW_SIZE);
+  }
+
+  public MappedFileStorage(File file, long offset, long size, long windowSize) throws IOException {
+    super(file, offset, size);
+    myWindowSize = windowSize;
+  }
+
+  @Override
+  public void open(boolean seeder) throws IOException {
+    myReadOnly = seeder;
+    super.open(seeder);
+  }
+
+  @Override
+  protected int readChannel(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+    final long fileLength = channel.size();
+    if (offset >= fileLength) {
+      return -1;
+    }
+    int bytes = 0;
+    while (buffer.hasRemaining() && offset < fileLength) {
+      final long start = offset - offset % myWindowSize;
+      final ByteBuffer window = window(channel, start, Math.min(myWindowSize, fileLength - start)).duplicate();
+      final int position = (int) (offset - start);
+      final int length = Math.min(buffer.remaining(), window.capacity() - position);
+      window.limit(position + length);
+      window.position(position);
+      buffer.put(window);
+      offset += length;
+      bytes += length;
+    }
+    return bytes;
+  }
+
+  @Override
+  protected int writeChannel(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+    int bytes = 0;
+    while (buffer.hasRemaining()) {
+      final long start = offset - offset % myWindowSize;
+      final ByteBuffer window = window(channel, start, Math.min(myWindowSize, this.size() - start)).duplicate();
+      final int position = (int) (offset - start);
+      final int length = Math.min(buffer.remaining(), window.capacity() - position);
+      final ByteBuffer source = buffer.duplicate();
+      source.limit(source.position() + length);
+      window.position(position);
+      window.put(source);
+      buffer.position(buffer.position() + length);
+      offset += length;
+      bytes += length;
+    }
+    return bytes;
+  }
+
+  @Override
+  protected void releaseResources() throws IOException {
+    synchronized (myWindowsLock) {
+      myRetiredWindows.addAll(myWindows.values());
+      myWindows.clear();
+    }
+    unmapRetiredWindows();
+  }
+
+  /**
+   * Returns the window starting at the given position, mapping it if it is
+   * not mapped yet or too short.
+   */
+  private MappedByteBuffer window(FileChannel channel, long start, long length) throws IOException {
+    final Long index = start / myWindowSize;
+    synchronized (myWindowsLock) {
+      MappedByteBuffer window = myWindows.get(index);
+      if (window != null && window.capacity() >= length) {
+        return window;
+      }
+      if (window != null) {
+        retire(window);
+      }
+      window = channel.map(myReadOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+        start, length);
+      myWindows.put(index, window);
+      if (myWindows.size() > MAX_WINDOWS) {
+        final Iterator<Map.Entry<Long, MappedByteBuffer>> eldest = myWindows.entrySet().iterator();
+        retire(eldest.next().getValue());
+        eldest.remove();
+      }
+      return window;
+    }
+  }
+
+  private void retire(MappedByteBuffer window) {
+    if (myRetiredWindows.size() >= MAX_WINDOWS) {
+      // Too many waiting: leave the oldest to the garbage collector.
+      myRetiredWindows.remove(0);
+    }
+    myRetiredWindows.add(window);
+  }
+
+  private void unmapRetiredWindows() {
+    final List<MappedByteBuffer> retired;
+    synchronized (myWindowsLock) {
+      if (myRetiredWindows.isEmpty()) {
+        return;
+      }
+      retired = new ArrayList<MappedByteBuffer>(myRetiredWindows);
+      myRetiredWindows.clear();
+    }
+    for (MappedByteBuffer window : retired) {
+      if (!myReadOnly) {
+        window.force();
+      }
+      unmap(window);
+    }
+  }
+
+  /**
+   * Unmap the given buffer right away rather than when it is garbage
+   * collected, where the JVM allows it.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      final Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (Exception e) {
+      if (ourUnmapFailureLogged.compareAndSet(false, true)) {
+        logger.warn("Unable to unmap buffers, mappings will stay until garbage collected: {}", e.toString());
+      } else {
+        logger.debug("Unable to unmap buffer, leaving it to the garbage collector: {}", e.toString());
+      }
+    }
+  }
+}
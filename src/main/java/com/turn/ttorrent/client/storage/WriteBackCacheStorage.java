@@ -0,0 +1,440 @@
+package com.turn.ttorrent.client.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-back cache in front of a torrent byte storage.
+ *
+ * <p>
+ * Writes are copied into the cache and return immediately. The flusher
+ * thread of a {@link WriteBackFlusher} writes them to the underlying storage
+ * in offset order, coalescing adjacent blocks (typically whole verified
+ * pieces) into large sequential writes. Reads see the cached data before it
+ * reaches the storage.
+ * </p>
+ *
+ * <p>
+ * The dirty bytes of all the caches sharing a flusher are bounded together:
+ * a write that would exceed the budget waits for the flusher to make room.
+ * Once flushing the cache failed, writes fail instead until a flush
+ * succeeds, and the bytes left dirty no longer count against the budget.
+ * Closing or finishing the storage flushes every dirty byte first. Writes
+ * to a closed cache are rejected until it is opened again.
+ * </p>
+ */
+public class WriteBackCacheStorage implements TorrentByteStorage {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(WriteBackCacheStorage.class);
+
+  private final TorrentByteStorage myDelegate;
+  private final WriteBackFlusher myFlusher;
+
+  private final ReentrantLock myLock = new ReentrantLock();
+  private final TreeMap<Long, ByteBuffer> myDirty = new TreeMap<Long, ByteBuffer>();
+  private long myDirtyBytes = 0;
+  // The part of the dirty bytes counted against the flusher's budget.
+  private long myBudgetedBytes = 0;
+  private long myFlushedBytes = 0;
+  private long myFlushWrites = 0;
+  private IOException myFlushError = null;
+  // Written under myLock, read by the flusher without it.
+  private volatile boolean myClosed = false;
+
+  // One flush of this cache at a time.
+  private final Object myFlushLock = new Object();
+
+  public WriteBackCacheStorage(TorrentByteStorage delegate) {
+    this(delegate, WriteBackFlusher.getShared());
+  }
+
+  /**
+   * @param delegate The storage to write to.
+   * @param flusher The flusher bounding and writing out the dirty bytes.
+   */
+  public WriteBackCacheStorage(TorrentByteStorage delegate, WriteBackFlusher flusher) {
+    myDelegate = delegate;
+    myFlusher = flusher;
+  }
+
+  @Override
+  public void open(boolean seeder) throws IOException {
+    myDelegate.open(seeder);
+    myLock.lock();
+    try {
+      myClosed = false;
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  @Override
+  public long size() {
+    return myDelegate.size();
+  }
+
+  @Override
+  public int read(ByteBuffer buffer, long offset) throws IOException {
+    final int start = buffer.position();
+    final int requested = buffer.remaining();
+
+    // Take the overlapping dirty blocks before reading the storage: if they
+    // get flushed in the meantime, the copies taken here are still right.
+    final List<Map.Entry<Long, ByteBuffer>> overlapping;
+    myLock.lock();
+    try {
+      overlapping = overlapping(offset, requested);
+    } finally {
+      myLock.unlock();
+    }
+
+    int bytes = requested;
+    if (!isCovered(overlapping, offset, requested)) {
+      bytes = myDelegate.read(buffer, offset);
+    }
+
+    for (Map.Entry<Long, ByteBuffer> entry : overlapping) {
+      final long blockOffset = entry.getKey();
+      final ByteBuffer block = entry.getValue().duplicate();
+      final long from = Math.max(offset, blockOffset);
+      final long to = Math.min(offset + requested, blockOffset + block.remaining());
+      block.position(block.position() + (int) (from - blockOffset));
+      block.limit(block.position() + (int) (to - from));
+      final ByteBuffer target = buffer.duplicate();
+      target.limit(target.capacity());
+      target.position(start + (int) (from - offset));
+      target.put(block);
+    }
+    buffer.position(start + Math.max(bytes, 0));
+    return bytes;
+  }
+
+  @Override
+  public int write(ByteBuffer block, long offset) throws IOException {
+    final int length = block.remaining();
+    final ByteBuffer copy = ByteBuffer.allocate(length);
+    copy.put(block);
+    copy.flip();
+
+    myFlusher.reserve(this, length);
+    ByteBuffer previous = null;
+    long released = 0;
+    final boolean closed;
+    myLock.lock();
+    try {
+      closed = myClosed;
+      if (!closed) {
+        previous = myDirty.put(offset, copy);
+        myDirtyBytes += length;
+        myBudgetedBytes += length;
+        if (previous != null) {
+          myDirtyBytes -= previous.remaining();
+          released = unbudget(previous.remaining());
+        }
+      }
+    } finally {
+      myLock.unlock();
+    }
+    if (closed) {
+      // Closed while waiting for room.
+      myFlusher.release(length);
+      throw new ClosedChannelException();
+    }
+    myFlusher.release(released);
+    return length;
+  }
+
+  /**
+   * Write every dirty byte to the underlying storage, in the calling thread.
+   */
+  public void flush() throws IOException {
+    flushDirty();
+  }
+
+  @Override
+  public void close() throws IOException {
+    myLock.lock();
+    try {
+      myClosed = true;
+    } finally {
+      myLock.unlock();
+    }
+    try {
+      flush();
+    } finally {
+      // What could not be flushed is lost, don't hold its budget.
+      synchronized (myFlushLock) {
+        dropDirty();
+      }
+      myFlusher.unregister(this);
+      myDelegate.close();
+    }
+  }
+
+  @Override
+  public void finish() throws IOException {
+    flush();
+    myDelegate.finish();
+  }
+
+  @Override
+  public boolean isFinished() {
+    return myDelegate.isFinished();
+  }
+
+  @Override
+  public boolean isClosed() {
+    return myDelegate.isClosed();
+  }
+
+  @Override
+  public void delete() throws IOException {
+    myLock.lock();
+    try {
+      myClosed = true;
+    } finally {
+      myLock.unlock();
+    }
+    synchronized (myFlushLock) {
+      dropDirty();
+    }
+    myFlusher.unregister(this);
+    myDelegate.delete();
+  }
+
+  /**
+   * Returns the number of bytes written to the cache and not yet flushed to
+   * the underlying storage.
+   */
+  public long getDirtyBytes() {
+    myLock.lock();
+    try {
+      return myDirtyBytes;
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  public WriteBackFlusher getFlusher() {
+    return myFlusher;
+  }
+
+  /**
+   * Returns the number of bytes flushed to the underlying storage so far.
+   */
+  public long getFlushedBytes() {
+    myLock.lock();
+    try {
+      return myFlushedBytes;
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of writes issued to the underlying storage so far,
+   * each of them covering one or more coalesced blocks.
+   */
+  public long getFlushWrites() {
+    myLock.lock();
+    try {
+      return myFlushWrites;
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  private List<Map.Entry<Long, ByteBuffer>> overlapping(long offset, int length) {
+    final List<Map.Entry<Long, ByteBuffer>> result = new ArrayList<Map.Entry<Long, ByteBuffer>>();
+    if (myDirty.isEmpty() || length == 0) {
+      return result;
+    }
+    Long from = myDirty.floorKey(offset);
+    if (from == null) {
+      from = offset;
+    }
+    final SortedMap<Long, ByteBuffer> candidates = myDirty.subMap(from, offset + length);
+    for (Map.Entry<Long, ByteBuffer> entry : candidates.entrySet()) {
+      if (entry.getKey() + entry.getValue().remaining() > offset) {
+        result.add(new AbstractMap.SimpleImmutableEntry<Long, ByteBuffer>(entry));
+      }
+    }
+    return result;
+  }
+
+  private static boolean isCovered(List<Map.Entry<Long, ByteBuffer>> blocks, long offset, int length) {
+    long covered = offset;
+    for (Map.Entry<Long, ByteBuffer> entry : blocks) {
+      if (entry.getKey() > covered) {
+        return false;
+      }
+      covered = Math.max(covered, entry.getKey() + entry.getValue().remaining());
+    }
+    return covered >= offset + length;
+  }
+
+  /**
+   * Tells whether the cache was closed: it must not be registered with the
+   * flusher again until reopened.
+   */
+  boolean isCacheClosed() {
+    return myClosed;
+  }
+
+  /**
+   * Throw the error of the last flush, if it failed.
+   */
+  void throwFlushError() throws IOException {
+    myLock.lock();
+    try {
+      if (myFlushError != null) {
+        throw new IOException("Error while flushing the write-back cache", myFlushError);
+      }
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  private void dropDirty() {
+    final long dropped;
+    myLock.lock();
+    try {
+      dropped = myBudgetedBytes;
+      myDirty.clear();
+      myDirtyBytes = 0;
+      myBudgetedBytes = 0;
+      myFlushError = null;
+    } finally {
+      myLock.unlock();
+    }
+    myFlusher.release(dropped);
+  }
+
+  /**
+   * Flush the blocks dirty when called, in offset order, coalescing
+   * adjacent ones.
+   */
+  void flushDirty() throws IOException {
+    synchronized (myFlushLock) {
+      flushDirtyBlocks();
+    }
+    final boolean recovered;
+    myLock.lock();
+    try {
+      recovered = myFlushError != null;
+      myFlushError = null;
+    } finally {
+      myLock.unlock();
+    }
+    if (recovered) {
+      myFlusher.flushed(this);
+    }
+  }
+
+  /**
+   * Stop counting up to the given number of dirty bytes against the
+   * budget. Called with myLock held.
+   *
+   * @return The number of bytes to give back to the flusher.
+   */
+  private long unbudget(long bytes) {
+    final long released = Math.min(bytes, myBudgetedBytes);
+    myBudgetedBytes -= released;
+    return released;
+  }
+
+  private void flushDirtyBlocks() throws IOException {
+    final List<Map.Entry<Long, ByteBuffer>> blocks;
+    myLock.lock();
+    try {
+      if (myDirty.isEmpty()) {
+        return;
+      }
+      // Copy the entries: the map's own entries change when overwritten.
+      blocks = new ArrayList<Map.Entry<Long, ByteBuffer>>(myDirty.size());
+      for (Map.Entry<Long, ByteBuffer> entry : myDirty.entrySet()) {
+        blocks.add(new AbstractMap.SimpleImmutableEntry<Long, ByteBuffer>(entry));
+      }
+    } finally {
+      myLock.unlock();
+    }
+
+    int first = 0;
+    while (first < blocks.size()) {
+      int last = first;
+      long end = blocks.get(first).getKey() + blocks.get(first).getValue().remaining();
+      int runLength = blocks.get(first).getValue().remaining();
+      while (last + 1 < blocks.size()) {
+        final Map.Entry<Long, ByteBuffer> next = blocks.get(last + 1);
+        final int nextLength = next.getValue().remaining();
+        if (next.getKey() != end || runLength + nextLength > WriteBackFlusher.MAX_COALESCED_WRITE) {
+          break;
+        }
+        last++;
+        end += nextLength;
+        runLength += nextLength;
+      }
+
+      final List<Map.Entry<Long, ByteBuffer>> run = blocks.subList(first, last + 1);
+      try {
+        writeRun(run, runLength);
+      } catch (IOException ioe) {
+        // Until a flush succeeds, writes fail: the bytes left dirty won't
+        // grow, don't let them hold the budget of the other caches.
+        final long released;
+        myLock.lock();
+        try {
+          myFlushError = ioe;
+          released = unbudget(myBudgetedBytes);
+        } finally {
+          myLock.unlock();
+        }
+        myFlusher.release(released);
+        throw ioe;
+      }
+
+      long cleaned = 0;
+      myLock.lock();
+      try {
+        for (Map.Entry<Long, ByteBuffer> block : run) {
+          // Only forget the block if it was not overwritten meanwhile.
+          if (myDirty.get(block.getKey()) == block.getValue()) {
+            myDirty.remove(block.getKey());
+            myDirtyBytes -= block.getValue().remaining();
+            cleaned += block.getValue().remaining();
+          }
+        }
+        myFlushedBytes += runLength;
+        myFlushWrites++;
+        cleaned = unbudget(cleaned);
+      } finally {
+        myLock.unlock();
+      }
+      myFlusher.release(cleaned);
+      first = last + 1;
+    }
+  }
+
+  private void writeRun(List<Map.Entry<Long, ByteBuffer>> run, int runLength) throws IOException {
+    final long offset = run.get(0).getKey();
+    if (run.size() == 1) {
+      myDelegate.write(run.get(0).getValue().duplicate(), offset);
+      return;
+    }
+    logger.trace("Flushing {} coalesced block(s), {} byte(s) at {}",
+      new Object[]{run.size(), runLength, offset});
+    myFlusher.writeCoalesced(myDelegate, run);
+  }
+}
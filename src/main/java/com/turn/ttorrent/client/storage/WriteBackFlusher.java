@@ -0,0 +1,367 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.common.SystemTimeService;
+import com.turn.ttorrent.common.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide flusher of the write-back caches.
+ *
+ * <p>
+ * All the {@link WriteBackCacheStorage}s of a process share one budget of
+ * dirty bytes and one flusher thread, rather than one of each per torrent.
+ * A write that would exceed the budget waits for the flusher to make room.
+ * The thread runs while caches are in use, and stops with its coalescing
+ * buffer once the last one is closed.
+ * </p>
+ *
+ * <p>
+ * When flushing a cache fails, e.g. on a full disk, writes to that cache
+ * fail until a flush succeeds again, and its dirty bytes stop counting
+ * against the budget, so that the other caches keep writing. The flusher
+ * waits before trying that cache again, for longer after each consecutive
+ * failure, while it keeps flushing the others.
+ * </p>
+ */
+public class WriteBackFlusher {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(WriteBackFlusher.class);
+
+  /**
+   * Default budget of dirty bytes of the shared flusher.
+   */
+  public static final long DEFAULT_MAX_DIRTY_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * Maximum length of a single coalesced write.
+   */
+  public static final int MAX_COALESCED_WRITE = 4 * 1024 * 1024;
+
+  /**
+   * Delay after which dirty bytes are flushed even if the budget is not
+   * filling up.
+   */
+  private static final long FLUSH_INTERVAL_MS = 1000;
+
+  private static final long MIN_RETRY_DELAY_MS = 1000;
+  private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+
+  private static volatile WriteBackFlusher ourShared =
+    new WriteBackFlusher(DEFAULT_MAX_DIRTY_BYTES);
+
+  private final long myMaxDirtyBytes;
+  private final long myFlushThreshold;
+  private final TimeService myTimeService;
+
+  private final ReentrantLock myLock = new ReentrantLock();
+  private final Condition myFlushNeeded = myLock.newCondition();
+  private final Condition myFlushed = myLock.newCondition();
+  private final Set<WriteBackCacheStorage> myCaches = new LinkedHashSet<WriteBackCacheStorage>();
+  private long myDirtyBytes = 0;
+  private Thread myThread = null;
+  // The caches whose last flush failed.
+  private final Map<WriteBackCacheStorage, Backoff> myBackoffs =
+    new HashMap<WriteBackCacheStorage, Backoff>();
+
+  // Shared by the threads flushing, under myBufferLock.
+  private final Object myBufferLock = new Object();
+  private ByteBuffer myCoalesceBuffer = null;
+
+  /**
+   * @param maxDirtyBytes The maximum number of bytes written to the caches
+   * and not yet flushed to their storage.
+   */
+  public WriteBackFlusher(long maxDirtyBytes) {
+    this(maxDirtyBytes, new SystemTimeService());
+  }
+
+  /**
+   * @param maxDirtyBytes The maximum number of bytes written to the caches
+   * and not yet flushed to their storage.
+   * @param timeService The clock timing the retries of failed flushes.
+   */
+  public WriteBackFlusher(long maxDirtyBytes, TimeService timeService) {
+    myMaxDirtyBytes = maxDirtyBytes;
+    myFlushThreshold = maxDirtyBytes / 2;
+    myTimeService = timeService;
+  }
+
+  /**
+   * Returns the flusher shared by all the torrents of this process.
+   */
+  public static WriteBackFlusher getShared() {
+    return ourShared;
+  }
+
+  /**
+   * Replace the flusher shared by all the torrents of this process. Caches
+   * created before keep using the previous flusher.
+   */
+  public static void setShared(WriteBackFlusher flusher) {
+    ourShared = flusher;
+  }
+
+  public long getMaxDirtyBytes() {
+    return myMaxDirtyBytes;
+  }
+
+  /**
+   * Returns the number of dirty bytes of all the caches, except those
+   * whose flush failed.
+   */
+  public long getDirtyBytes() {
+    myLock.lock();
+    try {
+      return myDirtyBytes;
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  /**
+   * Returns for how long, in milliseconds, the flusher waits before trying
+   * the given cache again, or 0 if its last flush did not fail.
+   */
+  long getRetryDelay(WriteBackCacheStorage cache) {
+    myLock.lock();
+    try {
+      final Backoff backoff = myBackoffs.get(cache);
+      return backoff == null ? 0 : backoff.delay;
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  /**
+   * Account for new dirty bytes of the given cache, waiting for the budget
+   * to have room for them.
+   *
+   * @throws ClosedChannelException If the given cache is closed: it is not
+   * registered again.
+   * @throws IOException If flushing the given cache failed meanwhile.
+   */
+  void reserve(WriteBackCacheStorage cache, int length) throws IOException {
+    myLock.lock();
+    try {
+      checkWritable(cache);
+      while (myDirtyBytes > 0 && myDirtyBytes + length > myMaxDirtyBytes) {
+        myFlushNeeded.signal();
+        myFlushed.awaitUninterruptibly();
+        checkWritable(cache);
+      }
+      myDirtyBytes += length;
+      myCaches.add(cache);
+      startThread();
+      if (myDirtyBytes >= myFlushThreshold) {
+        myFlushNeeded.signal();
+      }
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  private static void checkWritable(WriteBackCacheStorage cache) throws IOException {
+    // Closing marks the cache before unregistering it: a cache seen open
+    // here gets unregistered after being added.
+    if (cache.isCacheClosed()) {
+      throw new ClosedChannelException();
+    }
+    cache.throwFlushError();
+  }
+
+  /**
+   * Give back the budget of dirty bytes written out or dropped.
+   */
+  void release(long bytes) {
+    if (bytes == 0) {
+      return;
+    }
+    myLock.lock();
+    try {
+      myDirtyBytes -= bytes;
+      myFlushed.signalAll();
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  /**
+   * Record that the given cache was flushed, ending its retry delay after
+   * failed flushes.
+   */
+  void flushed(WriteBackCacheStorage cache) {
+    myLock.lock();
+    try {
+      myBackoffs.remove(cache);
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  /**
+   * Forget the given closed cache. Once no cache is left, the flusher
+   * thread is stopped and its coalescing buffer dropped.
+   */
+  void unregister(WriteBackCacheStorage cache) {
+    final Thread thread;
+    myLock.lock();
+    try {
+      myCaches.remove(cache);
+      myBackoffs.remove(cache);
+      if (!myCaches.isEmpty()) {
+        return;
+      }
+      thread = myThread;
+      myThread = null;
+      myFlushNeeded.signalAll();
+    } finally {
+      myLock.unlock();
+    }
+    if (thread != null && thread != Thread.currentThread()) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (myBufferLock) {
+      myCoalesceBuffer = null;
+    }
+  }
+
+  /**
+   * Write the given adjacent blocks to the given storage in one write.
+   */
+  void writeCoalesced(TorrentByteStorage storage, List<Map.Entry<Long, ByteBuffer>> run)
+    throws IOException {
+    synchronized (myBufferLock) {
+      if (myCoalesceBuffer == null) {
+        myCoalesceBuffer = ByteBuffer.allocateDirect(MAX_COALESCED_WRITE);
+      }
+      myCoalesceBuffer.clear();
+      for (Map.Entry<Long, ByteBuffer> block : run) {
+        myCoalesceBuffer.put(block.getValue().duplicate());
+      }
+      myCoalesceBuffer.flip();
+      storage.write(myCoalesceBuffer, run.get(0).getKey());
+    }
+  }
+
+  private void startThread() {
+    if (myThread != null) {
+      return;
+    }
+    myThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        flusherLoop();
+      }
+    }, "ttorrent write-back flusher");
+    myThread.setDaemon(true);
+    myThread.start();
+  }
+
+  private void flusherLoop() {
+    final Thread self = Thread.currentThread();
+    while (true) {
+      final List<WriteBackCacheStorage> caches;
+      myLock.lock();
+      try {
+        if (myDirtyBytes < myFlushThreshold) {
+          myFlushNeeded.await(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        if (myThread != self) {
+          return;
+        }
+        caches = new ArrayList<WriteBackCacheStorage>(myCaches);
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        myLock.unlock();
+      }
+
+      for (WriteBackCacheStorage cache : caches) {
+        flush(cache);
+      }
+
+      myLock.lock();
+      try {
+        // Waiting writers look for the error of their cache.
+        myFlushed.signalAll();
+      } finally {
+        myLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Flush the given cache, unless it is waiting to be tried again.
+   */
+  private void flush(WriteBackCacheStorage cache) {
+    final Backoff backoff;
+    myLock.lock();
+    try {
+      backoff = myBackoffs.get(cache);
+      if (backoff != null && myTimeService.now() < backoff.retryAt) {
+        return;
+      }
+    } finally {
+      myLock.unlock();
+    }
+
+    IOException failure = null;
+    try {
+      cache.flushDirty();
+    } catch (IOException ioe) {
+      failure = ioe;
+    }
+
+    myLock.lock();
+    try {
+      if (failure == null) {
+        myBackoffs.remove(cache);
+        return;
+      }
+      if (!myCaches.contains(cache)) {
+        // Closed meanwhile.
+        return;
+      }
+      if (backoff == null) {
+        logger.error("Error while flushing the write-back cache: {}", failure.getMessage());
+      }
+      final long delay = backoff == null
+        ? MIN_RETRY_DELAY_MS
+        : Math.min(backoff.delay * 2, MAX_RETRY_DELAY_MS);
+      myBackoffs.put(cache, new Backoff(delay, myTimeService.now() + delay));
+      logger.debug("Retrying to flush the write-back cache in {} ms", delay);
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  private static class Backoff {
+
+    private final long delay;
+    private final long retryAt;
+
+    private Backoff(long delay, long retryAt) {
+      this.delay = delay;
+      this.retryAt = retryAt;
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package com.turn.ttorrent.client.strategy;
+
+/**
+ * Read-only view of the swarm availability of a torrent's pieces, as seen by
+ * a {@link RequestStrategy}.
+ *
+ * <p>
+ * Pieces are identified by their index in the torrent. Implementations are
+ * expected to answer all queries in constant time.
+ * </p>
+ */
+public interface PieceAvailability {
+
+  /**
+   * Marker returned by the iteration methods when there is no more piece.
+   */
+  int NONE = -1;
+
+  /**
+   * Returns the number of pieces in the torrent.
+   */
+  int getPieceCount();
+
+  /**
+   * Returns the number of connected peers that have the given piece.
+   */
+  int getAvailability(int pieceIndex);
+
+  /**
+   * Returns the index of the rarest available piece, or {@link #NONE} if no
+   * piece is available in the swarm.
+   */
+  int firstRarest();
+
+  /**
+   * Returns the piece following the given one in rarest-first order, or
+   * {@link #NONE} if it was the most common one.
+   *
+   * @param pieceIndex A piece previously returned by {@link #firstRarest()}
+   *                   or by this method.
+   */
+  int nextRarest(int pieceIndex);
+}
@@ -1,24 +1,33 @@
 package com.turn.ttorrent.client.strategy;
 
-import com.turn.ttorrent.client.Piece;
-
 import java.util.BitSet;
-import java.util.SortedSet;
 
 /**
  * Interface for a piece request strategy provider.
  *
+ * <p>
+ * Strategies work on piece indices only and may be shared between torrents,
+ * so implementations must be thread-safe and should not allocate on the
+ * request path.
+ * </p>
+ *
  * @author cjmalloy
  */
 public interface RequestStrategy {
 
   /**
-   * Choose a piece from the remaining pieces.
+   * Choose up to <code>maxPicks</code> distinct pieces from the interesting
+   * ones.
    *
-   * @param rarest      A set sorted by how rare the piece is
-   * @param interesting A set of the index of all interesting pieces
-   * @param pieces      The complete array of pieces
-   * @return The chosen piece, or <code>null</code> if no piece is interesting
+   * @param interesting  A set of the index of all interesting pieces
+   * @param availability The swarm availability of the torrent's pieces
+   * @param from         The index of the lowest piece not completed yet:
+   *                     no piece before it is interesting
+   * @param picks        The array to store the chosen piece indices in
+   * @param maxPicks     The maximum number of pieces to choose, at most
+   *                     <code>picks.length</code>
+   * @return The number of pieces chosen, <code>0</code> if no piece is
+   * interesting
    */
-  Piece choosePiece(SortedSet<Piece> rarest, BitSet interesting, Piece[] pieces);
+  int choosePieces(BitSet interesting, PieceAvailability availability, int from, int[] picks, int maxPicks);
 }
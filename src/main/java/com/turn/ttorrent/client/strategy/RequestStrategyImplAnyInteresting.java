@@ -1,20 +1,27 @@
 package com.turn.ttorrent.client.strategy;
 
-import com.turn.ttorrent.client.Piece;
-
-import java.util.*;
+import java.util.BitSet;
+import java.util.Random;
 
 public class RequestStrategyImplAnyInteresting implements RequestStrategy {
 
   private final Random myRandom = new Random();
 
   @Override
-  public Piece choosePiece(SortedSet<Piece> rarest, BitSet interesting, Piece[] pieces) {
-    List<Piece> onlyInterestingPieces = new ArrayList<Piece>();
-    for (Piece p : pieces) {
-      if (interesting.get(p.getIndex())) onlyInterestingPieces.add(p);
+  public int choosePieces(BitSet interesting, PieceAvailability availability, int from, int[] picks, int maxPicks) {
+    final int length = interesting.length();
+    if (length <= from) return 0;
+
+    // start at a random position and take the next interesting pieces,
+    // wrapping around at the end of the bit field
+    final int start = from + myRandom.nextInt(length - from);
+    int count = 0;
+    for (int i = interesting.nextSetBit(start); i >= 0 && count < maxPicks; i = interesting.nextSetBit(i + 1)) {
+      picks[count++] = i;
+    }
+    for (int i = interesting.nextSetBit(from); i >= 0 && i < start && count < maxPicks; i = interesting.nextSetBit(i + 1)) {
+      picks[count++] = i;
     }
-    if (onlyInterestingPieces.isEmpty()) return null;
-    return onlyInterestingPieces.get(myRandom.nextInt(onlyInterestingPieces.size()));
+    return count;
   }
 }
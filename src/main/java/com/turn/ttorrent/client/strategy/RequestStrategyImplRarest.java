@@ -1,11 +1,7 @@
 package com.turn.ttorrent.client.strategy;
 
-import com.turn.ttorrent.client.Piece;
-
-import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Random;
-import java.util.SortedSet;
 
 /**
  * The default request strategy implementation- rarest first.
@@ -27,27 +23,27 @@ public class RequestStrategyImplRarest implements RequestStrategy {
   }
 
   @Override
-  public Piece choosePiece(SortedSet<Piece> rarest, BitSet interesting, Piece[] pieces) {
-    // Extract the RAREST_PIECE_JITTER rarest pieces from the interesting
-    // pieces of this peer.
-    ArrayList<Piece> choice = new ArrayList<Piece>(RAREST_PIECE_JITTER);
-    synchronized (rarest) {
-      for (Piece piece : rarest) {
-        if (interesting.get(piece.getIndex())) {
-          choice.add(piece);
-          if (choice.size() >= RAREST_PIECE_JITTER) {
-            break;
-          }
+  public int choosePieces(BitSet interesting, PieceAvailability availability, int from, int[] picks, int maxPicks) {
+    // Randomly pick among the RAREST_PIECE_JITTER rarest interesting pieces
+    // of this peer, using reservoir sampling over the rarest-first order.
+    final int candidatesLimit = Math.max(RAREST_PIECE_JITTER, maxPicks);
+    int candidates = 0;
+    for (int i = availability.firstRarest();
+         i != PieceAvailability.NONE && candidates < candidatesLimit;
+         i = availability.nextRarest(i)) {
+      if (!interesting.get(i)) {
+        continue;
+      }
+      if (candidates < maxPicks) {
+        picks[candidates] = i;
+      } else {
+        int slot = this.random.nextInt(candidates + 1);
+        if (slot < maxPicks) {
+          picks[slot] = i;
         }
       }
+      candidates++;
     }
-
-    if (choice.size() == 0) return null;
-
-    Piece chosen = choice.get(
-            this.random.nextInt(
-                    Math.min(choice.size(),
-                            RAREST_PIECE_JITTER)));
-    return chosen;
+    return Math.min(candidates, maxPicks);
   }
 }
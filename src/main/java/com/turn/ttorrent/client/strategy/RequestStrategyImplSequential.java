@@ -1,23 +1,25 @@
 package com.turn.ttorrent.client.strategy;
 
-import com.turn.ttorrent.client.Piece;
-
 import java.util.BitSet;
-import java.util.SortedSet;
 
 /**
  * A sequential request strategy implementation.
  *
+ * <p>
+ * Pieces are taken in order from the lowest one not completed yet, so that
+ * late in a large torrent the completed ones are not scanned again.
+ * </p>
+ *
  * @author cjmalloy
  */
 public class RequestStrategyImplSequential implements RequestStrategy {
 
   @Override
-  public Piece choosePiece(SortedSet<Piece> rarest, BitSet interesting, Piece[] pieces) {
-
-    for (Piece p : pieces) {
-      if (interesting.get(p.getIndex())) return p;
+  public int choosePieces(BitSet interesting, PieceAvailability availability, int from, int[] picks, int maxPicks) {
+    int count = 0;
+    for (int i = interesting.nextSetBit(from); i >= 0 && count < maxPicks; i = interesting.nextSetBit(i + 1)) {
+      picks[count++] = i;
     }
-    return null;
+    return count;
   }
 }
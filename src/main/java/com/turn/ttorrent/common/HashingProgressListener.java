@@ -0,0 +1,15 @@
+package com.turn.ttorrent.common;
+
+/**
+ * Progress of the hashing of files for a new torrent.
+ */
+public interface HashingProgressListener {
+
+  /**
+   * Called, from any thread, each time a piece was hashed.
+   *
+   * @param hashedPieces The number of pieces hashed so far.
+   * @param totalPieces The number of pieces of the torrent.
+   */
+  void piecesHashed(int hashedPieces, int totalPieces);
+}
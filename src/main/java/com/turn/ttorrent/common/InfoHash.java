@@ -0,0 +1,106 @@
+package com.turn.ttorrent.common;
+
+import java.util.Arrays;
+
+/**
+ * Immutable info hash of a torrent, for use as a map key.
+ *
+ * <p>
+ * Holds the 20 bytes of the hash. The hash code is computed once, and the
+ * hexadecimal form only when asked for, so that torrents can be looked up
+ * straight from handshakes and announces.
+ * </p>
+ */
+public final class InfoHash implements TorrentHash {
+
+  public static final int LENGTH = Torrent.PIECE_HASH_SIZE;
+
+  private final byte[] myBytes;
+  private final int myHashCode;
+  private volatile String myHex;
+
+  /**
+   * @param bytes The 20 bytes of the hash, copied.
+   * @throws IllegalArgumentException If there are not 20 bytes.
+   */
+  public InfoHash(byte[] bytes) {
+    if (bytes.length != LENGTH) {
+      throw new IllegalArgumentException("Info hash must be " + LENGTH +
+        " bytes long, not " + bytes.length);
+    }
+    myBytes = bytes.clone();
+    myHashCode = Arrays.hashCode(myBytes);
+  }
+
+  /**
+   * Returns the info hash of the given torrent, which may already be one.
+   */
+  public static InfoHash of(TorrentHash torrentHash) {
+    if (torrentHash instanceof InfoHash) {
+      return (InfoHash) torrentHash;
+    }
+    return new InfoHash(torrentHash.getInfoHash());
+  }
+
+  /**
+   * Parses the hexadecimal form of an info hash, in either case.
+   *
+   * @throws IllegalArgumentException If it is not 40 hexadecimal digits.
+   */
+  public static InfoHash fromHexString(String hex) {
+    if (hex.length() != LENGTH * 2) {
+      throw new IllegalArgumentException("Invalid info hash: " + hex);
+    }
+    final byte[] bytes = new byte[LENGTH];
+    for (int i = 0; i < LENGTH; i++) {
+      final int high = Character.digit(hex.charAt(2 * i), 16);
+      final int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IllegalArgumentException("Invalid info hash: " + hex);
+      }
+      bytes[i] = (byte) (high << 4 | low);
+    }
+    return new InfoHash(bytes);
+  }
+
+  /**
+   * Returns a copy of the bytes of the hash.
+   */
+  @Override
+  public byte[] getInfoHash() {
+    return myBytes.clone();
+  }
+
+  /**
+   * Returns the hash as 40 upper case hexadecimal digits, as
+   * {@link Torrent#getHexInfoHash()} does.
+   */
+  @Override
+  public String getHexInfoHash() {
+    String hex = myHex;
+    if (hex == null) {
+      hex = Torrent.byteArrayToHexString(myBytes);
+      myHex = hex;
+    }
+    return hex;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof InfoHash)) return false;
+
+    final InfoHash other = (InfoHash) o;
+    return myHashCode == other.myHashCode && Arrays.equals(myBytes, other.myBytes);
+  }
+
+  @Override
+  public int hashCode() {
+    return myHashCode;
+  }
+
+  @Override
+  public String toString() {
+    return getHexInfoHash();
+  }
+}
@@ -5,14 +5,16 @@ import java.net.InetSocketAddress;
 public class PeerUID {
 
   private final InetSocketAddress myAddress;
-  private final String myTorrentHash;
+  private final InfoHash myTorrentHash;
+  private final int myHashCode;
 
-  public PeerUID(InetSocketAddress address, String torrentHash) {
+  public PeerUID(InetSocketAddress address, InfoHash torrentHash) {
     myAddress = address;
     myTorrentHash = torrentHash;
+    myHashCode = 31 * address.hashCode() + torrentHash.hashCode();
   }
 
-  public String getTorrentHash() {
+  public InfoHash getTorrentHash() {
     return myTorrentHash;
   }
 
@@ -27,15 +29,14 @@ public class PeerUID {
 
     PeerUID peerUID = (PeerUID) o;
 
+    if (myHashCode != peerUID.myHashCode) return false;
     if (!myAddress.equals(peerUID.myAddress)) return false;
     return myTorrentHash.equals(peerUID.myTorrentHash);
   }
 
   @Override
   public int hashCode() {
-    int result = myAddress.hashCode();
-    result = 31 * result + myTorrentHash.hashCode();
-    return result;
+    return myHashCode;
   }
 
   @Override
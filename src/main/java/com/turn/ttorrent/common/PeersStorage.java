@@ -2,22 +2,33 @@ package com.turn.ttorrent.common;
 
 import com.turn.ttorrent.client.peer.SharingPeer;
 
-import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * The peers a client is connected to.
+ *
+ * <p>
+ * Peers are also indexed by torrent, so that the peers of one torrent are
+ * found without going through those of all the others. Neither lookups nor
+ * updates take a lock: the index is kept up to date with the atomic
+ * operations of its maps, and checked again against the connected peers
+ * when an update races with another.
+ * </p>
+ */
 public class PeersStorage {
 
   private volatile Peer self = null;
-  private final ReadWriteLock myLock = new ReentrantReadWriteLock();
   private final ConcurrentHashMap<PeerUID, SharingPeer> connectedSharingPeers;
+  private final ConcurrentMap<InfoHash, ConcurrentMap<PeerUID, SharingPeer>> myPeersByTorrent;
 
   public PeersStorage() {
     this.connectedSharingPeers = new ConcurrentHashMap<PeerUID, SharingPeer>();
+    this.myPeersByTorrent = new ConcurrentHashMap<InfoHash, ConcurrentMap<PeerUID, SharingPeer>>();
   }
 
   public Peer getSelf() {
@@ -29,11 +40,19 @@ public class PeersStorage {
   }
 
   public SharingPeer putIfAbsent(PeerUID peerId, SharingPeer sharingPeer) {
-    return connectedSharingPeers.putIfAbsent(peerId, sharingPeer);
+    final SharingPeer old = connectedSharingPeers.putIfAbsent(peerId, sharingPeer);
+    if (old == null) {
+      index(peerId, sharingPeer);
+    }
+    return old;
   }
 
   public SharingPeer removeSharingPeer(PeerUID peerId) {
-    return connectedSharingPeers.remove(peerId);
+    final SharingPeer removed = connectedSharingPeers.remove(peerId);
+    if (removed != null) {
+      unindex(peerId, removed);
+    }
+    return removed;
   }
 
   public SharingPeer getSharingPeer(PeerUID peerId) {
@@ -41,10 +60,75 @@ public class PeersStorage {
   }
 
   public void removeSharingPeer(SharingPeer peer) {
-    connectedSharingPeers.values().remove(peer);
+    for (Map.Entry<PeerUID, SharingPeer> entry : connectedSharingPeers.entrySet()) {
+      if (entry.getValue().equals(peer) &&
+        connectedSharingPeers.remove(entry.getKey(), entry.getValue())) {
+        unindex(entry.getKey(), entry.getValue());
+      }
+    }
   }
 
   public Collection<SharingPeer> getSharingPeers() {
     return new ArrayList<SharingPeer>(connectedSharingPeers.values());
   }
+
+  /**
+   * Returns the peers connected for the given torrent, in a new collection.
+   */
+  public Collection<SharingPeer> getSharingPeers(InfoHash torrentHash) {
+    final ConcurrentMap<PeerUID, SharingPeer> torrentPeers = myPeersByTorrent.get(torrentHash);
+    if (torrentPeers == null) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<SharingPeer>(torrentPeers.values());
+  }
+
+  /**
+   * Returns the number of connected peers, without copying them.
+   */
+  public int getSharingPeersCount() {
+    return connectedSharingPeers.size();
+  }
+
+  private void index(PeerUID peerId, SharingPeer peer) {
+    final InfoHash torrentHash = peerId.getTorrentHash();
+    while (true) {
+      ConcurrentMap<PeerUID, SharingPeer> torrentPeers = myPeersByTorrent.get(torrentHash);
+      if (torrentPeers == null) {
+        final ConcurrentMap<PeerUID, SharingPeer> created = new ConcurrentHashMap<PeerUID, SharingPeer>();
+        torrentPeers = myPeersByTorrent.putIfAbsent(torrentHash, created);
+        if (torrentPeers == null) {
+          torrentPeers = created;
+        }
+      }
+      torrentPeers.put(peerId, peer);
+      if (myPeersByTorrent.get(torrentHash) == torrentPeers) {
+        break;
+      }
+      // The map was dropped as empty meanwhile, go again with its successor.
+      torrentPeers.remove(peerId, peer);
+    }
+    if (connectedSharingPeers.get(peerId) != peer) {
+      // Disconnected while being indexed.
+      unindex(peerId, peer);
+    }
+  }
+
+  private void unindex(PeerUID peerId, SharingPeer peer) {
+    final InfoHash torrentHash = peerId.getTorrentHash();
+    final ConcurrentMap<PeerUID, SharingPeer> torrentPeers = myPeersByTorrent.get(torrentHash);
+    if (torrentPeers == null) {
+      return;
+    }
+    torrentPeers.remove(peerId, peer);
+    if (torrentPeers.isEmpty() && myPeersByTorrent.remove(torrentHash, torrentPeers)) {
+      // Peers indexed between the check and the removal move to the map
+      // taking over.
+      for (Map.Entry<PeerUID, SharingPeer> entry : torrentPeers.entrySet()) {
+        if (connectedSharingPeers.get(entry.getKey()) == entry.getValue()) {
+          index(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+  }
 }
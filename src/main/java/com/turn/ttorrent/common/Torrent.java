@@ -19,7 +19,6 @@ import com.turn.ttorrent.bcodec.BDecoder;
 import com.turn.ttorrent.bcodec.BEValue;
 import com.turn.ttorrent.bcodec.BEncoder;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -30,12 +29,10 @@ import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.ConsoleAppender;
@@ -69,7 +66,11 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 	public static final int DEFAULT_PIECE_LENGTH = 512 * 1024;
 
 	public static final int PIECE_HASH_SIZE = 20;
-	private static final int HASHING_TIMEOUT_SEC = 15;
+
+	/** Bounds of the piece lengths chosen by {@link #pieceLengthFor(long)}. */
+	public static final int MIN_PIECE_LENGTH = 64 * 1024;
+	public static final int MAX_PIECE_LENGTH = 16 * 1024 * 1024;
+	private static final int TARGET_PIECE_COUNT = 2048;
 
 	/** The query parameters encoding when parsing byte strings. */
 	public static final String BYTE_ENCODING = "ISO-8859-1";
@@ -105,13 +106,11 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 	};
 
 
-	protected final byte[] encoded;
-//	protected final byte[] encoded_info;
-//	protected final Map<String, BEValue> decoded;
-//	protected final Map<String, BEValue> decoded_info;
+	private final TorrentMetainfo myMetainfo;
 
 	private final byte[] info_hash;
 	private final String hex_info_hash;
+	private final InfoHash myInfoHashKey;
 
 	private final List<List<URI>> trackers;
 	private final Set<URI> allTrackers;
@@ -120,7 +119,7 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 	private final String createdBy;
 	private final String name;
 	private final long size;
-	protected final List<TorrentFile> files;
+	private volatile List<TorrentFile> myFiles;
 
 	private final boolean seeder;
 
@@ -135,24 +134,21 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 	 *
 	 * @param torrent The meta-info byte data.
 	 * @param seeder Whether we'll be seeding for this torrent or not.
-	 * @throws IOException When the info dictionary can't be read or
-	 * encoded and hashed back to create the torrent's SHA-1 hash.
+	 * @throws IOException When the meta-info or its info dictionary can't
+	 * be read.
 	 * @throws NoSuchAlgorithmException If the SHA-1 algorithm is not
 	 * available.
 	 */
 	public Torrent(final byte[] torrent, final boolean seeder)
 		throws IOException, NoSuchAlgorithmException {
 		this.seeder = seeder;
-    encoded = torrent;
-
-    final Map<String, BEValue> decoded = getDecoded();
+		this.myMetainfo = new TorrentMetainfo(torrent);
 
-    final Map<String, BEValue> decoded_info = decoded.get("info").getMap();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		BEncoder.bencode(decoded_info, baos);
-		byte[] encoded_info = baos.toByteArray();
-		this.info_hash = Torrent.hash(encoded_info);
-		this.hex_info_hash = Torrent.byteArrayToHexString(this.info_hash);
+		// The info hash is that of the info dictionary as encoded in the
+		// meta-info, which is not always how it would be encoded again.
+		this.info_hash = myMetainfo.getInfoHash();
+		this.myInfoHashKey = new InfoHash(this.info_hash);
+		this.hex_info_hash = myInfoHashKey.getHexInfoHash();
 
 		/**
 		 * Parses the announce information from the decoded meta-info
@@ -171,8 +167,8 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 			this.trackers = new ArrayList<List<URI>>();
 			this.allTrackers = new HashSet<URI>();
 
-			if (decoded.containsKey("announce-list")) {
-				List<BEValue> tiers = decoded.get("announce-list").getList();
+			if (myMetainfo.containsKey("announce-list")) {
+				List<BEValue> tiers = myMetainfo.get("announce-list").getList();
 				for (BEValue tv : tiers) {
 					List<BEValue> trackers = tv.getList();
 					if (trackers.isEmpty()) {
@@ -195,8 +191,8 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 						this.trackers.add(tier);
 					}
 				}
-			} else if (decoded.containsKey("announce")) {
-				URI tracker = new URI(decoded.get("announce").getString());
+			} else if (myMetainfo.containsKey("announce")) {
+				URI tracker = new URI(myMetainfo.get("announce").getString());
 				this.allTrackers.add(tracker);
 
 				// Build a single-tier announce list.
@@ -208,49 +204,23 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 			throw new IOException(use);
 		}
 
-		this.creationDate = decoded.containsKey("creation date")
-			? new Date(decoded.get("creation date").getLong() * 1000)
+		this.creationDate = myMetainfo.containsKey("creation date")
+			? new Date(myMetainfo.get("creation date").getLong() * 1000)
 			: null;
-		this.comment = decoded.containsKey("comment")
-			? decoded.get("comment").getString()
+		this.comment = myMetainfo.containsKey("comment")
+			? myMetainfo.get("comment").getString()
 			: null;
-		this.createdBy = decoded.containsKey("created by")
-			? decoded.get("created by").getString()
+		this.createdBy = myMetainfo.containsKey("created by")
+			? myMetainfo.get("created by").getString()
 			: null;
-		this.name = decoded_info.get("name").getString();
-
-		this.files = new LinkedList<TorrentFile>();
-
-		// Parse multi-file torrent file information structure.
-		if (decoded_info.containsKey("files")) {
-			for (BEValue file : decoded_info.get("files").getList()) {
-				Map<String, BEValue> fileInfo = file.getMap();
-				StringBuilder path = new StringBuilder();
-				for (BEValue pathElement : fileInfo.get("path").getList()) {
-					path.append(File.separator)
-						.append(pathElement.getString());
-				}
-				this.files.add(new TorrentFile(
-					new File(this.name, path.toString()),
-					fileInfo.get("length").getLong()));
-			}
-		} else {
-			// For single-file torrents, the name of the torrent is
-			// directly the name of the file.
-			this.files.add(new TorrentFile(
-				new File(this.name),
-				decoded_info.get("length").getLong()));
-		}
+		this.name = myMetainfo.getName();
 
-		// Calculate the total size of this torrent from its files' sizes.
-		long size = 0;
-		for (TorrentFile file : this.files) {
-			size += file.size;
-		}
-		this.size = size;
+		// The file list is only decoded once asked for, the size is summed
+		// from the lengths alone.
+		this.size = myMetainfo.getSize();
 
 		logger.debug("{}-file torrent information:",
-			this.isMultifile() ? "Multi" : "Single");
+			myMetainfo.isMultifile() ? "Multi" : "Single");
 		logger.debug("  Torrent name: {}", this.name);
 		logger.debug("  Torrent hash: {}", this.getHexInfoHash());
 		logger.debug("  Announced at:" + (this.trackers.size() == 0 ? " Seems to be trackerless" : ""));
@@ -267,11 +237,11 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 			logger.debug("  Created on..: {}", this.creationDate);
 		}
 
-		if (this.isMultifile()) {
+		if (logger.isDebugEnabled() && this.isMultifile()) {
 			logger.debug("  Found {} file(s) in multi-file torrent structure.",
-				this.files.size());
+				this.getFiles().size());
 			int i = 0;
-			for (TorrentFile file : this.files) {
+			for (TorrentFile file : this.getFiles()) {
 				logger.debug("    {}. {} ({} byte(s))",
 					new Object[] {
 						String.format("%2d", ++i),
@@ -281,13 +251,13 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 			}
 		}
 
+    myPieceLength = myMetainfo.getPieceLength();
 		logger.debug("  Pieces......: {} piece(s) ({} byte(s)/piece)",
-            (this.size / decoded_info.get("piece length").getInt()) + 1,
-            decoded_info.get("piece length").getInt());
+            (this.size / myPieceLength) + 1,
+            myPieceLength);
 		logger.debug("  Total size..: {} byte(s)",
 			String.format("%,d", this.size));
 
-    myPieceLength = decoded_info.get("piece length").getInt();
     myPieceCount = (int) (Math.ceil(
             (double) this.getSize() / myPieceLength));
 	}
@@ -334,7 +304,7 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 	 */
 	public List<String> getFilenames() {
 		List<String> filenames = new LinkedList<String>();
-		for (TorrentFile file : this.files) {
+		for (TorrentFile file : this.getFiles()) {
 			filenames.add(file.file.getPath());
 		}
 		return filenames;
@@ -344,7 +314,28 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 	 * Tells whether this torrent is multi-file or not.
 	 */
 	public boolean isMultifile() {
-		return this.files.size() > 1;
+		return this.getFiles().size() > 1;
+	}
+
+	/**
+	 * Get the files of this torrent, in torrent order.
+	 *
+	 * <p>
+	 * The list is decoded from the meta-info the first time it is needed.
+	 * </p>
+	 */
+	protected List<TorrentFile> getFiles() {
+		List<TorrentFile> files = this.myFiles;
+		if (files == null) {
+			try {
+				files = Collections.unmodifiableList(myMetainfo.getFiles());
+			} catch (IOException ioe) {
+				throw new IllegalStateException("Invalid file list in " +
+					"torrent meta-info", ioe);
+			}
+			this.myFiles = files;
+		}
+		return files;
 	}
 
 	/**
@@ -361,6 +352,13 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 		return this.hex_info_hash;
 	}
 
+	/**
+	 * Get this torrent's info hash as a map key.
+	 */
+	public InfoHash getInfoHashKey() {
+		return this.myInfoHashKey;
+	}
+
   /**
    * Get the number of bytes uploaded for this torrent.
    */
@@ -421,21 +419,29 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 	 * Return the B-encoded meta-info of this torrent.
 	 */
 	public byte[] getEncoded() {
-		return this.encoded;
+		return myMetainfo.getEncoded();
 	}
 
-  protected byte[] getEncodedInfo() throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    BEncoder.bencode(getDecodedInfo(), baos);
-    return baos.toByteArray();
+  /**
+   * Return the lazily decoded view of this torrent's meta-info.
+   */
+  public TorrentMetainfo getMetainfo() {
+    return myMetainfo;
+  }
+
+  protected byte[] getEncodedInfo() {
+    final ByteBuffer info = myMetainfo.getEncodedInfo();
+    final byte[] encodedInfo = new byte[info.remaining()];
+    info.get(encodedInfo);
+    return encodedInfo;
   }
 
   protected Map<String, BEValue> getDecoded() throws IOException {
-    return BDecoder.bdecode(new ByteArrayInputStream(encoded)).getMap();
+    return BDecoder.bdecode(getEncoded()).getMap();
   }
 
   protected Map<String, BEValue> getDecodedInfo() throws IOException{
-    return getDecoded().get("info").getMap();
+    return BDecoder.bdecode(myMetainfo.getEncodedInfo()).getMap();
   }
 
 	/**
@@ -697,14 +703,86 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
   public static Torrent create(File parent, List<File> files, URI announce,
                                List<List<URI>> announceList, String createdBy, final int pieceSize)
           throws NoSuchAlgorithmException, InterruptedException, IOException {
-    return create(parent, files, announce, announceList, createdBy, System.currentTimeMillis() / 1000, pieceSize);
+    return create(parent, files, announce, announceList, createdBy, System.currentTimeMillis() / 1000, pieceSize, null);
   }
 
+	/**
+	 * Create a {@link Torrent} object for a file or a set of files, with a
+	 * piece length chosen from their total size.
+	 *
+	 * @param parent The file to use in the torrent, or the parent directory
+	 * of the torrent files, also used as the torrent's name.
+	 * @param files The files to add into this torrent, or <code>null</code>
+	 * for a single-file torrent.
+	 * @param announce The announce URI that will be used for this torrent.
+	 * @param announceList The announce URIs organized as tiers that will
+	 * be used for this torrent
+	 * @param createdBy The creator's name, or any string identifying the
+	 * torrent's creator.
+	 * @param listener Told about the progress of the hashing, may be
+	 * <code>null</code>.
+	 * @see #pieceLengthFor(long)
+	 */
+  public static Torrent create(File parent, List<File> files, URI announce,
+                               List<List<URI>> announceList, String createdBy,
+                               HashingProgressListener listener)
+          throws NoSuchAlgorithmException, InterruptedException, IOException {
+    long size = 0;
+    if (files == null || files.isEmpty()) {
+      size = parent.length();
+    } else {
+      for (File file : files) {
+        size += file.length();
+      }
+    }
+    return create(parent, files, announce, announceList, createdBy, pieceLengthFor(size), listener);
+  }
+
+	/**
+	 * Create a {@link Torrent} object for a file or a set of files, reporting
+	 * the progress of the hashing.
+	 *
+	 * @param listener Told about the progress of the hashing, may be
+	 * <code>null</code>.
+	 * @see #create(File, List, URI, List, String, HashingProgressListener)
+	 */
+  public static Torrent create(File parent, List<File> files, URI announce,
+                               List<List<URI>> announceList, String createdBy, final int pieceSize,
+                               HashingProgressListener listener)
+          throws NoSuchAlgorithmException, InterruptedException, IOException {
+    return create(parent, files, announce, announceList, createdBy, System.currentTimeMillis() / 1000, pieceSize, listener);
+  }
+
+	/**
+	 * Choose a piece length for a torrent of the given total size.
+	 *
+	 * <p>
+	 * This is the smallest power of two keeping the torrent to a couple
+	 * thousand pieces, within {@link #MIN_PIECE_LENGTH} and
+	 * {@link #MAX_PIECE_LENGTH}: small torrents keep a fine granularity, and
+	 * large ones don't end up with huge piece hash lists and bitfields.
+	 * </p>
+	 */
+	public static int pieceLengthFor(long totalSize) {
+		int pieceLength = MIN_PIECE_LENGTH;
+		while (pieceLength < MAX_PIECE_LENGTH &&
+			(totalSize + pieceLength - 1) / pieceLength > TARGET_PIECE_COUNT) {
+			pieceLength <<= 1;
+		}
+		return pieceLength;
+	}
 
   //for tests
   /*package local*/ static Torrent create(File parent, List<File> files, URI announce,
                                   List<List<URI>> announceList, String createdBy, long creationTimeSecs, final int pieceSize)
 			throws NoSuchAlgorithmException, InterruptedException, IOException {
+		return create(parent, files, announce, announceList, createdBy, creationTimeSecs, pieceSize, null);
+	}
+
+  private static Torrent create(File parent, List<File> files, URI announce,
+                                List<List<URI>> announceList, String createdBy, long creationTimeSecs,
+                                final int pieceSize, HashingProgressListener listener)
+			throws NoSuchAlgorithmException, InterruptedException, IOException {
 		Map<String, BEValue> torrent = new HashMap<String, BEValue>();
 
       if (announce != null) {
@@ -730,8 +808,8 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 
 		if (files == null || files.isEmpty()) {
 			info.put("length", new BEValue(parent.length()));
-			info.put("pieces", new BEValue(Torrent.hashFile(parent, pieceSize),
-				Torrent.BYTE_ENCODING));
+			info.put("pieces", new BEValue(Torrent.hashFiles(
+				Arrays.asList(new File[]{parent}), pieceSize, listener)));
 		} else {
 			List<BEValue> fileInfo = new LinkedList<BEValue>();
 			for (File file : files) {
@@ -752,8 +830,7 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 				fileInfo.add(new BEValue(fileMap));
 			}
 			info.put("files", new BEValue(fileInfo));
-			info.put("pieces", new BEValue(Torrent.hashFiles(files, pieceSize),
-				Torrent.BYTE_ENCODING));
+			info.put("pieces", new BEValue(Torrent.hashFiles(files, pieceSize, listener)));
 		}
 		torrent.put("info", new BEValue(info));
 
@@ -763,154 +840,20 @@ public class Torrent extends Observable implements TorrentInfo, AnnounceableTorr
 	}
 
 	/**
-	 * A {@link Callable} to hash a data chunk.
-	 *
-	 * @author mpetazzoni
-	 */
-	private static class CallableChunkHasher implements Callable<String> {
-
-		private final MessageDigest md;
-		private final ByteBuffer data;
-
-		CallableChunkHasher(final ByteBuffer data)
-			throws NoSuchAlgorithmException {
-			this.md = MessageDigest.getInstance("SHA-1");
-			this.data = data;
-/*
-			this.data = ByteBuffer.allocate(buffer.remaining());
-			buffer.mark();
-			this.data.put(buffer);
-			this.data.clear();
-			buffer.reset();
-*/
-		}
-
-		@Override
-		public String call() throws UnsupportedEncodingException {
-			this.md.reset();
-			this.md.update(this.data.array());
-			return new String(md.digest(), Torrent.BYTE_ENCODING);
-		}
-	}
-
-	/**
-	 * Return the concatenation of the SHA-1 hashes of a file's pieces.
+	 * Return the concatenation of the SHA-1 hashes of the pieces of the given
+	 * files, taken as one contiguous stream of data.
 	 *
 	 * <p>
-	 * Hashes the given file piece by piece using the default Torrent piece
-	 * length (see {@link #DEFAULT_PIECE_LENGTH}) and returns the concatenation of
-	 * these hashes, as a string.
+	 * This is used for creating Torrent meta-info structures from files.
 	 * </p>
-	 *
-	 * <p>
-	 * This is used for creating Torrent meta-info structures from a file.
-	 * </p>
-	 *
-	 * @param file The file to hash.
 	 */
-	private static String hashFile(final File file, final int pieceSize)
-		throws NoSuchAlgorithmException, InterruptedException, IOException {
-		return Torrent.hashFiles(Arrays.asList(new File[]{file}), pieceSize);
-	}
-
-	private static String hashFiles(final List<File> files, final int pieceSize)
-		throws NoSuchAlgorithmException, InterruptedException, IOException {
-		if (files.size() == 0){
-			return "";
-		}
-    List<Future<String>> results = new LinkedList<Future<String>>();
-    long length = 0L;
-
-		final ByteBuffer buffer = ByteBuffer.allocate(pieceSize);
-
-
-		final AtomicInteger threadIdx = new AtomicInteger(0);
-		final String firstFileName = files.get(0).getName();
-
-		StringBuilder hashes = new StringBuilder();
-
-		long start = System.nanoTime();
-		for (File file : files) {
-			logger.debug("Analyzing local data for {} with {} threads...",
-        file.getName(), HASHING_THREADS_COUNT);
-
-			length += file.length();
-
-			FileInputStream fis = new FileInputStream(file);
-			FileChannel channel = fis.getChannel();
-
-			try {
-				while (channel.read(buffer) > 0) {
-					if (buffer.remaining() == 0) {
-						buffer.clear();
-						final ByteBuffer data = prepareDataFromBuffer(buffer);
-
-						results.add(HASHING_EXECUTOR.submit(new Callable<String>() {
-							@Override
-							public String call() throws Exception {
-								Thread.currentThread().setName(String.format("%s hasher #%d", firstFileName, threadIdx.incrementAndGet()));
-								return new CallableChunkHasher(data).call();
-							}
-						}));
-					}
-
-          if (results.size() >= HASHING_THREADS_COUNT) {
-            // process hashers, otherwise they will spend too much memory
-            waitForHashesToCalculate(results, hashes);
-            results.clear();
-					}
-				}
-			} finally {
-				channel.close();
-				fis.close();
-			}
-		}
-
-		// Hash the last bit, if any
-		if (buffer.position() > 0) {
-			buffer.limit(buffer.position());
-			buffer.position(0);
-			final ByteBuffer data = prepareDataFromBuffer(buffer);
-			results.add(HASHING_EXECUTOR.submit(new CallableChunkHasher(data)));
-		}
-		// here we have only a few hashes to wait for calculation
-    waitForHashesToCalculate(results, hashes);
-
-		long elapsed = System.nanoTime() - start;
-
-		int expectedPieces = (int) (Math.ceil(
-				(double)length / pieceSize));
-		logger.debug("Hashed {} file(s) ({} bytes) in {} pieces ({} expected) in {}ms.",
-			new Object[] {
-				files.size(),
-				length,
-        results.size(),
-				expectedPieces,
-				String.format("%.1f", elapsed/1e6),
-			});
-
-		return hashes.toString();
-	}
-
-	private static ByteBuffer prepareDataFromBuffer(ByteBuffer buffer) {
-		final ByteBuffer data = ByteBuffer.allocate(buffer.remaining());
-		buffer.mark();
-		data.put(buffer);
-		data.clear();
-		buffer.reset();
-		return data;
-	}
-
-	private static void waitForHashesToCalculate(List<Future<String>> results, StringBuilder hashes) throws InterruptedException, IOException {
-		try {
-			for (Future<String> chunk : results) {
-				hashes.append(chunk.get(HASHING_TIMEOUT_SEC, TimeUnit.SECONDS));
-			}
-		} catch (ExecutionException ee) {
-			throw new IOException("Error while hashing the torrent data!", ee);
-		} catch (TimeoutException e) {
-			throw new RuntimeException(String.format("very slow hashing: took more than %d seconds to calculate several pieces. Cancelling", HASHING_TIMEOUT_SEC));
-		}
+	private static byte[] hashFiles(final List<File> files, final int pieceSize,
+		final HashingProgressListener listener)
+		throws InterruptedException, IOException {
+		logger.debug("Analyzing local data for {} with {} threads...",
+			files.get(0).getName(), HASHING_THREADS_COUNT);
+		return new TorrentHasher(HASHING_EXECUTOR, HASHING_THREADS_COUNT)
+			.hashFiles(files, pieceSize, listener);
 	}
 
 	/**
@@ -0,0 +1,189 @@
+package com.turn.ttorrent.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Computes the piece hashes of the files of a new torrent.
+ *
+ * <p>
+ * The calling thread reads the files one after the other into a few
+ * reusable piece buffers, while the pieces already read are hashed by the
+ * hashing threads: reading goes on as long as a buffer is free. Each hashing
+ * thread keeps its own digest and writes the hash of its piece right into
+ * the result.
+ * </p>
+ */
+class TorrentHasher {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(TorrentHasher.class);
+
+  private static final int BUFFERS_PER_THREAD = 2;
+
+  private static final ThreadLocal<MessageDigest> ourDigests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException nsae) {
+        throw new IllegalStateException(nsae);
+      }
+    }
+  };
+
+  private final ExecutorService myExecutor;
+  private final int myThreads;
+
+  /**
+   * @param executor The executor running the hashing tasks.
+   * @param threads The number of threads of the executor.
+   */
+  TorrentHasher(ExecutorService executor, int threads) {
+    myExecutor = executor;
+    myThreads = Math.max(threads, 1);
+  }
+
+  /**
+   * Hash the given files, taken as one contiguous stream of data, piece by
+   * piece.
+   *
+   * @param files The files to hash, in torrent order.
+   * @param pieceSize The length of the pieces.
+   * @param listener Told about the progress; may be <code>null</code>.
+   * @return The concatenation of the SHA-1 hashes of the pieces.
+   */
+  byte[] hashFiles(List<File> files, int pieceSize, final HashingProgressListener listener)
+    throws InterruptedException, IOException {
+    long length = 0;
+    for (File file : files) {
+      length += file.length();
+    }
+    final int pieceCount = (int) ((length + pieceSize - 1) / pieceSize);
+    final byte[] hashes = new byte[pieceCount * Torrent.PIECE_HASH_SIZE];
+    final AtomicInteger hashed = new AtomicInteger();
+    final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+    final int bufferCount = myThreads * BUFFERS_PER_THREAD;
+    final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+    int allocated = 0;
+    int piece = 0;
+
+    final long start = System.nanoTime();
+    ByteBuffer buffer = null;
+    try {
+      for (File file : files) {
+        final FileInputStream fis = new FileInputStream(file);
+        final FileChannel channel = fis.getChannel();
+        try {
+          while (true) {
+            if (buffer == null) {
+              buffer = free.poll();
+              if (buffer == null && allocated < bufferCount) {
+                buffer = ByteBuffer.allocate(pieceSize);
+                allocated++;
+              } else if (buffer == null) {
+                buffer = free.take();
+              }
+              buffer.clear();
+            }
+            if (channel.read(buffer) < 0) {
+              break;
+            }
+            if (!buffer.hasRemaining()) {
+              final ByteBuffer full = buffer;
+              buffer = null;
+              this.hash(piece++, full, hashes, pieceCount, hashed, failure, free, listener);
+            }
+          }
+        } finally {
+          channel.close();
+          fis.close();
+        }
+      }
+
+      // Hash the last bit, if any
+      if (buffer != null && buffer.position() > 0) {
+        final ByteBuffer last = buffer;
+        buffer = null;
+        this.hash(piece++, last, hashes, pieceCount, hashed, failure, free, listener);
+      }
+    } finally {
+      if (buffer != null) {
+        free.add(buffer);
+      }
+      // All the buffers are back once every piece is hashed.
+      for (int i = 0; i < allocated; i++) {
+        free.take();
+      }
+    }
+
+    if (failure.get() != null) {
+      throw new IOException("Error while hashing the torrent data!", failure.get());
+    }
+    if (piece != pieceCount) {
+      throw new IOException("Torrent files changed while being hashed!");
+    }
+
+    logger.debug("Hashed {} file(s) ({} bytes) in {} pieces with {} threads in {}ms.",
+      new Object[]{
+        files.size(),
+        length,
+        pieceCount,
+        myThreads,
+        String.format("%.1f", (System.nanoTime() - start) / 1e6),
+      });
+    return hashes;
+  }
+
+  private void hash(final int piece, final ByteBuffer buffer, final byte[] hashes,
+                    final int pieceCount, final AtomicInteger hashed,
+                    final AtomicReference<RuntimeException> failure,
+                    final BlockingQueue<ByteBuffer> free,
+                    final HashingProgressListener listener) {
+    buffer.flip();
+    final Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final MessageDigest md = ourDigests.get();
+          md.reset();
+          md.update(buffer);
+          md.digest(hashes, piece * Torrent.PIECE_HASH_SIZE, Torrent.PIECE_HASH_SIZE);
+          final int done = hashed.incrementAndGet();
+          if (listener != null) {
+            listener.piecesHashed(done, pieceCount);
+          }
+        } catch (Exception e) {
+          failure.compareAndSet(null, e instanceof RuntimeException
+            ? (RuntimeException) e
+            : new IllegalStateException(e));
+        } finally {
+          free.add(buffer);
+        }
+      }
+    };
+    try {
+      myExecutor.execute(task);
+    } catch (RejectedExecutionException ree) {
+      // Put the buffer back, or waiting for all of them would never end.
+      free.add(buffer);
+      throw ree;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package com.turn.ttorrent.common;
+
+import com.turn.ttorrent.bcodec.BDecoder;
+import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.bcodec.InvalidBEncodingException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only view of the meta-info of a torrent, decoded on access.
+ *
+ * <p>
+ * Only the top-level dictionary and the info dictionary are parsed upfront,
+ * into their keys and the encoded bytes of their values. The info hash is
+ * computed over the info dictionary exactly as it was encoded, and the piece
+ * hashes stay a slice of the meta-info. The other fields, the file list of
+ * multi-file torrents among them, are decoded each time they are asked for
+ * and not kept.
+ * </p>
+ *
+ * @see <a href="http://bittorrent.org/beps/bep_0003.html">BitTorrent BEP#0003 "The BitTorrent Protocol Specification"</a>
+ */
+public class TorrentMetainfo {
+
+  private final byte[] myEncoded;
+  private final Map<String, ByteBuffer> myFields;
+  private final Map<String, ByteBuffer> myInfoFields;
+  private final ByteBuffer myEncodedInfo;
+  private final ByteBuffer myPieceHashes;
+  private final byte[] myInfoHash;
+
+  /**
+   * @param encoded The b-encoded meta-info, which must not change afterwards.
+   * @throws InvalidBEncodingException If the meta-info is not a dictionary
+   * with an info dictionary holding the piece hashes.
+   * @throws NoSuchAlgorithmException If the SHA-1 algorithm is not
+   * available.
+   */
+  public TorrentMetainfo(byte[] encoded) throws IOException, NoSuchAlgorithmException {
+    myEncoded = encoded;
+    myFields = new BDecoder(ByteBuffer.wrap(encoded)).bdecodeRawMap();
+
+    myEncodedInfo = myFields.get("info");
+    if (myEncodedInfo == null) {
+      throw new InvalidBEncodingException("Meta-info has no info dictionary");
+    }
+    myInfoFields = new BDecoder(myEncodedInfo).bdecodeRawMap();
+
+    final BEValue pieces = getInfo("pieces");
+    if (pieces == null) {
+      throw new InvalidBEncodingException("Meta-info has no piece hashes");
+    }
+    myPieceHashes = pieces.getByteBuffer();
+
+    final MessageDigest md = MessageDigest.getInstance("SHA-1");
+    md.update(myEncodedInfo.duplicate());
+    myInfoHash = md.digest();
+  }
+
+  /**
+   * Returns the b-encoded meta-info.
+   */
+  public byte[] getEncoded() {
+    return myEncoded;
+  }
+
+  /**
+   * Returns the SHA-1 hash of the info dictionary, as encoded.
+   */
+  public byte[] getInfoHash() {
+    return myInfoHash;
+  }
+
+  /**
+   * Returns the info dictionary, as encoded in the meta-info.
+   */
+  public ByteBuffer getEncodedInfo() {
+    return myEncodedInfo.asReadOnlyBuffer();
+  }
+
+  /**
+   * Tells whether the meta-info has the given top-level field.
+   */
+  public boolean containsKey(String key) {
+    return myFields.containsKey(key);
+  }
+
+  /**
+   * Decodes the given top-level field of the meta-info.
+   *
+   * @return The value of the field, or <code>null</code> if there is none.
+   */
+  public BEValue get(String key) throws IOException {
+    final ByteBuffer value = myFields.get(key);
+    return value == null ? null : BDecoder.bdecode(value);
+  }
+
+  /**
+   * Decodes the given field of the info dictionary.
+   *
+   * @return The value of the field, or <code>null</code> if there is none.
+   */
+  public BEValue getInfo(String key) throws IOException {
+    final ByteBuffer value = myInfoFields.get(key);
+    return value == null ? null : BDecoder.bdecode(value);
+  }
+
+  public String getName() throws IOException {
+    return getRequiredInfo("name").getString();
+  }
+
+  public int getPieceLength() throws IOException {
+    return getRequiredInfo("piece length").getInt();
+  }
+
+  /**
+   * Returns the concatenated SHA-1 hashes of the pieces, sharing the
+   * meta-info bytes.
+   */
+  public ByteBuffer getPieceHashes() {
+    return myPieceHashes.duplicate();
+  }
+
+  /**
+   * Tells whether the info dictionary describes several files, even if
+   * there is only one.
+   */
+  public boolean isMultifile() {
+    return myInfoFields.containsKey("files");
+  }
+
+  /**
+   * Decodes the files of the torrent, in torrent order. Their paths are
+   * relative to the download location.
+   */
+  public List<Torrent.TorrentFile> getFiles() throws IOException {
+    final String name = getName();
+    if (!isMultifile()) {
+      // For single-file torrents, the name of the torrent is directly the
+      // name of the file.
+      final List<Torrent.TorrentFile> files = new ArrayList<Torrent.TorrentFile>(1);
+      files.add(new Torrent.TorrentFile(new File(name), getRequiredInfo("length").getLong()));
+      return files;
+    }
+
+    final List<BEValue> entries = getRequiredInfo("files").getList();
+    final List<Torrent.TorrentFile> files = new ArrayList<Torrent.TorrentFile>(entries.size());
+    for (BEValue entry : entries) {
+      final Map<String, BEValue> fileInfo = entry.getMap();
+      final StringBuilder path = new StringBuilder();
+      for (BEValue pathElement : fileInfo.get("path").getList()) {
+        path.append(File.separator).append(pathElement.getString());
+      }
+      files.add(new Torrent.TorrentFile(new File(name, path.toString()),
+        fileInfo.get("length").getLong()));
+    }
+    return files;
+  }
+
+  /**
+   * Returns the total size of the files of the torrent. Only the lengths of
+   * the files are decoded, not their paths.
+   */
+  public long getSize() throws IOException {
+    if (!isMultifile()) {
+      return getRequiredInfo("length").getLong();
+    }
+    long size = 0;
+    final ByteBuffer files = myInfoFields.get("files").duplicate();
+    for (ByteBuffer entry : new BDecoder(files).bdecodeRawList()) {
+      final ByteBuffer length = new BDecoder(entry).bdecodeRawMap().get("length");
+      if (length == null) {
+        throw new InvalidBEncodingException("Meta-info has a file without length");
+      }
+      size += BDecoder.bdecode(length).getLong();
+    }
+    return size;
+  }
+
+  private BEValue getRequiredInfo(String key) throws IOException {
+    final BEValue value = getInfo(key);
+    if (value == null) {
+      throw new InvalidBEncodingException("Meta-info has no '" + key + "' field");
+    }
+    return value;
+  }
+}
@@ -3,132 +3,93 @@ package com.turn.ttorrent.common;
 import com.turn.ttorrent.client.SharedTorrent;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the torrents of a client, by info hash.
+ *
+ * <p>
+ * Lookups, which happen for every handshake and peer message, take no lock.
+ * Updates of one torrent do not block those of the others.
+ * </p>
+ */
 public class TorrentsStorage {
 
-  private final ReadWriteLock myReadWriteLock;
-  private final Map<String, SharedTorrent> myActiveTorrents;
-  private final Map<String, AnnounceableFileTorrent> myAnnounceableTorrents;
+  private final ConcurrentMap<InfoHash, SharedTorrent> myActiveTorrents;
+  private final ConcurrentMap<InfoHash, AnnounceableFileTorrent> myAnnounceableTorrents;
 
   public TorrentsStorage() {
-    myReadWriteLock = new ReentrantReadWriteLock();
-    myActiveTorrents = new HashMap<String, SharedTorrent>();
-    myAnnounceableTorrents = new HashMap<String, AnnounceableFileTorrent>();
+    myActiveTorrents = new ConcurrentHashMap<InfoHash, SharedTorrent>();
+    myAnnounceableTorrents = new ConcurrentHashMap<InfoHash, AnnounceableFileTorrent>();
   }
 
-  public boolean hasTorrent(String hash) {
-    try {
-      myReadWriteLock.readLock().lock();
-      return myAnnounceableTorrents.containsKey(hash);
-    } finally {
-      myReadWriteLock.readLock().unlock();
-    }
+  public boolean hasTorrent(InfoHash hash) {
+    return myAnnounceableTorrents.containsKey(hash);
   }
 
-  public AnnounceableFileTorrent getAnnounceableTorrent(String hash) {
-    try {
-      myReadWriteLock.readLock().lock();
-      return myAnnounceableTorrents.get(hash);
-    } finally {
-      myReadWriteLock.readLock().unlock();
-    }
+  public AnnounceableFileTorrent getAnnounceableTorrent(InfoHash hash) {
+    return myAnnounceableTorrents.get(hash);
   }
 
-  public void peerDisconnected(String torrentHash) {
-    try {
-      myReadWriteLock.writeLock().lock();
-      final SharedTorrent torrent = myActiveTorrents.get(torrentHash);
-      if (torrent == null) return;
-
-      if (torrent.getDownloadersCount() == 0) {
-        myActiveTorrents.remove(torrentHash);
-        torrent.close();
-      }
-    } finally {
-      myReadWriteLock.writeLock().unlock();
-    }
-  }
+  /**
+   * Close and forget the given active torrent once no peer downloads from
+   * it anymore.
+   */
+  public void peerDisconnected(InfoHash torrentHash) {
+    final SharedTorrent torrent = myActiveTorrents.get(torrentHash);
+    if (torrent == null) return;
 
-  public SharedTorrent getTorrent(String hash) {
-    try {
-      myReadWriteLock.readLock().lock();
-      return myActiveTorrents.get(hash);
-    } finally {
-      myReadWriteLock.readLock().unlock();
-    }
+    hibernate(torrentHash, torrent);
   }
 
-  public void addAnnounceableTorrent(String hash, AnnounceableFileTorrent torrent) {
-    try {
-      myReadWriteLock.writeLock().lock();
-      myAnnounceableTorrents.put(hash, torrent);
-    } finally {
-      myReadWriteLock.writeLock().unlock();
+  /**
+   * Close and forget the given active torrent if no peer downloads from it,
+   * keeping only its announceable record.
+   *
+   * @return Whether the torrent was closed.
+   */
+  public boolean hibernate(InfoHash torrentHash, SharedTorrent torrent) {
+    // Only the thread that actually removes the torrent closes it.
+    if (torrent.getDownloadersCount() == 0 && myActiveTorrents.remove(torrentHash, torrent)) {
+      torrent.close();
+      return true;
     }
+    return false;
   }
 
-  public SharedTorrent putIfAbsentActiveTorrent(String hash, SharedTorrent torrent) {
-    try {
-      myReadWriteLock.writeLock().lock();
-      final SharedTorrent old = myActiveTorrents.get(hash);
-      if (old != null) return old;
+  public SharedTorrent getTorrent(InfoHash hash) {
+    return myActiveTorrents.get(hash);
+  }
 
-      return myActiveTorrents.put(hash, torrent);
-    } finally {
-      myReadWriteLock.writeLock().unlock();
-    }
+  public void addAnnounceableTorrent(InfoHash hash, AnnounceableFileTorrent torrent) {
+    myAnnounceableTorrents.put(hash, torrent);
+  }
 
+  public SharedTorrent putIfAbsentActiveTorrent(InfoHash hash, SharedTorrent torrent) {
+    return myActiveTorrents.putIfAbsent(hash, torrent);
   }
 
-  public SharedTorrent remove(String hash) {
-    try {
-      myReadWriteLock.writeLock().lock();
-      myAnnounceableTorrents.remove(hash);
-      return myActiveTorrents.remove(hash);
-    } finally {
-      myReadWriteLock.writeLock().unlock();
-    }
+  public SharedTorrent remove(InfoHash hash) {
+    myAnnounceableTorrents.remove(hash);
+    return myActiveTorrents.remove(hash);
   }
 
-  public void removeAnnounceable(String hash) {
-    try {
-      myReadWriteLock.writeLock().lock();
-      myAnnounceableTorrents.remove(hash);
-    } finally {
-      myReadWriteLock.writeLock().unlock();
-    }
+  public void removeAnnounceable(InfoHash hash) {
+    myAnnounceableTorrents.remove(hash);
   }
 
   public List<SharedTorrent> activeTorrents() {
-    try {
-      myReadWriteLock.readLock().lock();
-      return new ArrayList<SharedTorrent>(myActiveTorrents.values());
-    } finally {
-      myReadWriteLock.readLock().unlock();
-    }
+    return new ArrayList<SharedTorrent>(myActiveTorrents.values());
   }
 
   public List<AnnounceableTorrent> announceableTorrents() {
-    try {
-      myReadWriteLock.readLock().lock();
-      return new ArrayList<AnnounceableTorrent>(myAnnounceableTorrents.values());
-    } finally {
-      myReadWriteLock.readLock().unlock();
-    }
+    return new ArrayList<AnnounceableTorrent>(myAnnounceableTorrents.values());
   }
 
   public void clear() {
-    try {
-      myReadWriteLock.writeLock().lock();
-      myAnnounceableTorrents.clear();
-      myActiveTorrents.clear();
-    } finally {
-      myReadWriteLock.writeLock().unlock();
-    }
+    myAnnounceableTorrents.clear();
+    myActiveTorrents.clear();
   }
 }
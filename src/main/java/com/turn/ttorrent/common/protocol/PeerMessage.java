@@ -32,6 +32,12 @@ import java.util.BitSet;
  * message.
  * </p>
  *
+ * <p>
+ * Messages without payload, like CHOKE or KEEP_ALIVE, are immutable
+ * singletons: crafting or parsing them allocates nothing. Their data is
+ * read-only, use {@link #getData()} to get a buffer of one's own.
+ * </p>
+ *
  * @author mpetazzoni
  * @see <a href="http://wiki.theory.org/BitTorrentSpecification#Peer_wire_protocol_.28TCP.29">BitTorrent peer wire protocol</a>
  */
@@ -74,8 +80,11 @@ public abstract class PeerMessage {
 			return this.id;
 		}
 
+		/** values() copies the array on each call, look types up in one. */
+		private static final Type[] TYPES = Type.values();
+
 		public static Type get(byte c) {
-			for (Type t : Type.values()) {
+			for (Type t : TYPES) {
 				if (t.equals(c)) {
 					return t;
 				}
@@ -161,15 +170,17 @@ public abstract class PeerMessage {
 					buffer.position()-1);
 		}
 
+		// Messages without payload are shared and ignore their buffer, no
+		// need to slice it.
 		switch (type) {
 			case CHOKE:
-				return ChokeMessage.parse(buffer.slice(), torrent);
+				return ChokeMessage.parse(buffer, torrent);
 			case UNCHOKE:
-				return UnchokeMessage.parse(buffer.slice(), torrent);
+				return UnchokeMessage.parse(buffer, torrent);
 			case INTERESTED:
-				return InterestedMessage.parse(buffer.slice(), torrent);
+				return InterestedMessage.parse(buffer, torrent);
 			case NOT_INTERESTED:
-				return NotInterestedMessage.parse(buffer.slice(), torrent);
+				return NotInterestedMessage.parse(buffer, torrent);
 			case HAVE:
 				return HaveMessage.parse(buffer.slice(), torrent);
 			case BITFIELD:
@@ -186,6 +197,21 @@ public abstract class PeerMessage {
 		}
 	}
 
+	/**
+	 * Build the read-only buffer of a message without payload, shared by all
+	 * the senders and receivers of this message.
+	 */
+	private static ByteBuffer craftFixed(Type type, int size) {
+		ByteBuffer buffer = ByteBuffer.allocate(
+			MESSAGE_LENGTH_FIELD_SIZE + size);
+		buffer.putInt(size);
+		if (size > 0) {
+			buffer.put(type.getTypeByte());
+		}
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
 	public static class MessageValidationException extends ParseException {
 
 		static final long serialVersionUID = -1;
@@ -206,21 +232,20 @@ public abstract class PeerMessage {
 
 		private static final int BASE_SIZE = 0;
 
+		private static final KeepAliveMessage INSTANCE =
+			new KeepAliveMessage(craftFixed(Type.KEEP_ALIVE, BASE_SIZE));
+
 		private KeepAliveMessage(ByteBuffer buffer) {
 			super(Type.KEEP_ALIVE, buffer);
 		}
 
 		public static KeepAliveMessage parse(ByteBuffer buffer,
                                          TorrentInfo torrent) throws MessageValidationException {
-			return (KeepAliveMessage)new KeepAliveMessage(buffer)
-				.validate(torrent);
+			return (KeepAliveMessage)INSTANCE.validate(torrent);
 		}
 
 		public static KeepAliveMessage craft() {
-			ByteBuffer buffer = ByteBuffer.allocate(
-				MESSAGE_LENGTH_FIELD_SIZE + KeepAliveMessage.BASE_SIZE);
-			buffer.putInt(KeepAliveMessage.BASE_SIZE);
-			return new KeepAliveMessage(buffer);
+			return INSTANCE;
 		}
 	}
 
@@ -233,22 +258,20 @@ public abstract class PeerMessage {
 
 		private static final int BASE_SIZE = 1;
 
+		private static final ChokeMessage INSTANCE =
+			new ChokeMessage(craftFixed(Type.CHOKE, BASE_SIZE));
+
 		private ChokeMessage(ByteBuffer buffer) {
 			super(Type.CHOKE, buffer);
 		}
 
 		public static ChokeMessage parse(ByteBuffer buffer,
 				TorrentInfo torrent) throws MessageValidationException {
-			return (ChokeMessage)new ChokeMessage(buffer)
-				.validate(torrent);
+			return (ChokeMessage)INSTANCE.validate(torrent);
 		}
 
 		public static ChokeMessage craft() {
-			ByteBuffer buffer = ByteBuffer.allocate(
-				MESSAGE_LENGTH_FIELD_SIZE + ChokeMessage.BASE_SIZE);
-			buffer.putInt(ChokeMessage.BASE_SIZE);
-			buffer.put(PeerMessage.Type.CHOKE.getTypeByte());
-			return new ChokeMessage(buffer);
+			return INSTANCE;
 		}
 	}
 
@@ -261,22 +284,20 @@ public abstract class PeerMessage {
 
 		private static final int BASE_SIZE = 1;
 
+		private static final UnchokeMessage INSTANCE =
+			new UnchokeMessage(craftFixed(Type.UNCHOKE, BASE_SIZE));
+
 		private UnchokeMessage(ByteBuffer buffer) {
 			super(Type.UNCHOKE, buffer);
 		}
 
 		public static UnchokeMessage parse(ByteBuffer buffer,
                                        TorrentInfo torrent) throws MessageValidationException {
-			return (UnchokeMessage)new UnchokeMessage(buffer)
-				.validate(torrent);
+			return (UnchokeMessage)INSTANCE.validate(torrent);
 		}
 
 		public static UnchokeMessage craft() {
-			ByteBuffer buffer = ByteBuffer.allocate(
-				MESSAGE_LENGTH_FIELD_SIZE + UnchokeMessage.BASE_SIZE);
-			buffer.putInt(UnchokeMessage.BASE_SIZE);
-			buffer.put(PeerMessage.Type.UNCHOKE.getTypeByte());
-			return new UnchokeMessage(buffer);
+			return INSTANCE;
 		}
 	}
 
@@ -289,22 +310,20 @@ public abstract class PeerMessage {
 
 		private static final int BASE_SIZE = 1;
 
+		private static final InterestedMessage INSTANCE =
+			new InterestedMessage(craftFixed(Type.INTERESTED, BASE_SIZE));
+
 		private InterestedMessage(ByteBuffer buffer) {
 			super(Type.INTERESTED, buffer);
 		}
 
 		public static InterestedMessage parse(ByteBuffer buffer,
                                           TorrentInfo torrent) throws MessageValidationException {
-			return (InterestedMessage)new InterestedMessage(buffer)
-				.validate(torrent);
+			return (InterestedMessage)INSTANCE.validate(torrent);
 		}
 
 		public static InterestedMessage craft() {
-			ByteBuffer buffer = ByteBuffer.allocate(
-				MESSAGE_LENGTH_FIELD_SIZE + InterestedMessage.BASE_SIZE);
-			buffer.putInt(InterestedMessage.BASE_SIZE);
-			buffer.put(PeerMessage.Type.INTERESTED.getTypeByte());
-			return new InterestedMessage(buffer);
+			return INSTANCE;
 		}
 	}
 
@@ -317,22 +336,20 @@ public abstract class PeerMessage {
 
 		private static final int BASE_SIZE = 1;
 
+		private static final NotInterestedMessage INSTANCE =
+			new NotInterestedMessage(craftFixed(Type.NOT_INTERESTED, BASE_SIZE));
+
 		private NotInterestedMessage(ByteBuffer buffer) {
 			super(Type.NOT_INTERESTED, buffer);
 		}
 
 		public static NotInterestedMessage parse(ByteBuffer buffer,
                                              TorrentInfo torrent) throws MessageValidationException {
-			return (NotInterestedMessage)new NotInterestedMessage(buffer)
-				.validate(torrent);
+			return (NotInterestedMessage)INSTANCE.validate(torrent);
 		}
 
 		public static NotInterestedMessage craft() {
-			ByteBuffer buffer = ByteBuffer.allocate(
-				MESSAGE_LENGTH_FIELD_SIZE + NotInterestedMessage.BASE_SIZE);
-			buffer.putInt(NotInterestedMessage.BASE_SIZE);
-			buffer.put(PeerMessage.Type.NOT_INTERESTED.getTypeByte());
-			return new NotInterestedMessage(buffer);
+			return INSTANCE;
 		}
 	}
 
@@ -375,10 +392,32 @@ public abstract class PeerMessage {
 		public static HaveMessage craft(int piece) {
 			ByteBuffer buffer = ByteBuffer.allocate(
 				MESSAGE_LENGTH_FIELD_SIZE + HaveMessage.BASE_SIZE);
+			encode(piece, buffer);
+			return new HaveMessage(buffer, piece);
+		}
+
+		/**
+		 * Write the HAVE message of the given piece at the position of the
+		 * given buffer, which must have room for it.
+		 */
+		public static void encode(int piece, ByteBuffer buffer) {
 			buffer.putInt(HaveMessage.BASE_SIZE);
 			buffer.put(PeerMessage.Type.HAVE.getTypeByte());
 			buffer.putInt(piece);
-			return new HaveMessage(buffer, piece);
+		}
+
+		/**
+		 * Craft the HAVE messages of the given pieces, one after the other in
+		 * a single buffer, so that they are sent in one write.
+		 */
+		public static ByteBuffer craftAll(BitSet pieces) {
+			final int size = MESSAGE_LENGTH_FIELD_SIZE + HaveMessage.BASE_SIZE;
+			ByteBuffer buffer = ByteBuffer.allocate(pieces.cardinality() * size);
+			for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1)) {
+				encode(i, buffer);
+			}
+			buffer.flip();
+			return buffer;
 		}
 
 		public String toString() {
@@ -418,34 +457,98 @@ public abstract class PeerMessage {
 
 		public static BitfieldMessage parse(ByteBuffer buffer,
                                         TorrentInfo torrent) throws MessageValidationException {
-			BitSet bitfield = new BitSet(buffer.remaining()*8);
-			for (int i=0; i < buffer.remaining()*8; i++) {
-				if ((buffer.get(i/8) & (1 << (7 -(i % 8)))) > 0) {
-					bitfield.set(i);
-				}
-			}
-
-			return new BitfieldMessage(buffer, bitfield)
+			return new BitfieldMessage(buffer, decode(buffer))
 				.validate(torrent);
 		}
 
 		public static BitfieldMessage craft(BitSet availablePieces) {
-      int len = availablePieces.length() / 8;
-      if (availablePieces.length() % 8 > 0) len++;
-      byte[] bitfield = new byte[len];
-			for (int i=availablePieces.nextSetBit(0); i >= 0;
-					i=availablePieces.nextSetBit(i+1)) {
-				bitfield[i/8] |= 1 << (7 -(i % 8));
-			}
-
+			int len = (availablePieces.length() + 7) / 8;
 			ByteBuffer buffer = ByteBuffer.allocate(
-				MESSAGE_LENGTH_FIELD_SIZE + BitfieldMessage.BASE_SIZE + bitfield.length);
-			buffer.putInt(BitfieldMessage.BASE_SIZE + bitfield.length);
+				MESSAGE_LENGTH_FIELD_SIZE + BitfieldMessage.BASE_SIZE + len);
+			buffer.putInt(BitfieldMessage.BASE_SIZE + len);
 			buffer.put(PeerMessage.Type.BITFIELD.getTypeByte());
-			buffer.put(ByteBuffer.wrap(bitfield));
+			encode(availablePieces, buffer);
 			return new BitfieldMessage(buffer, availablePieces);
 		}
 
+		/**
+		 * Write the given pieces as a bit field, high bit first, at the
+		 * position of the given buffer.
+		 *
+		 * <p>
+		 * Pieces are taken by runs: whole bytes of a run are filled at once,
+		 * so that the bit field of a seeder costs one store per byte rather
+		 * than one per piece.
+		 * </p>
+		 */
+		static void encode(BitSet pieces, ByteBuffer buffer) {
+			final int base = buffer.position();
+			final int len = (pieces.length() + 7) / 8;
+			for (int i = 0; i < len; i++) {
+				buffer.put(base + i, (byte) 0);
+			}
+			for (int start = pieces.nextSetBit(0); start >= 0;
+					start = pieces.nextSetBit(start)) {
+				final int end = pieces.nextClearBit(start);
+				int i = start;
+				for (; i < end && (i & 7) != 0; i++) {
+					setBit(buffer, base, i);
+				}
+				for (; i + 8 <= end; i += 8) {
+					buffer.put(base + i / 8, (byte) 0xFF);
+				}
+				for (; i < end; i++) {
+					setBit(buffer, base, i);
+				}
+				start = end;
+			}
+			buffer.position(base + len);
+		}
+
+		private static void setBit(ByteBuffer buffer, int base, int bit) {
+			final int index = base + bit / 8;
+			buffer.put(index, (byte) (buffer.get(index) | (0x80 >>> (bit & 7))));
+		}
+
+		/**
+		 * Read the bit field from the position to the limit of the given
+		 * buffer, without moving it. Empty and full bytes are set a byte at
+		 * a time, and runs of pieces with one range operation.
+		 */
+		static BitSet decode(ByteBuffer buffer) {
+			final int base = buffer.position();
+			final int len = buffer.remaining();
+			BitSet bitfield = new BitSet(len * 8);
+			int runStart = -1;
+			for (int i = 0; i < len; i++) {
+				final int b = buffer.get(base + i) & 0xFF;
+				if (b == 0xFF) {
+					if (runStart < 0) {
+						runStart = i * 8;
+					}
+					continue;
+				}
+				for (int bit = 0; bit < 8; bit++) {
+					final int piece = i * 8 + bit;
+					if ((b & (0x80 >>> bit)) != 0) {
+						if (runStart < 0) {
+							runStart = piece;
+						}
+					} else if (runStart >= 0) {
+						bitfield.set(runStart, piece);
+						runStart = -1;
+					}
+					if (b == 0 && runStart < 0) {
+						break;
+					}
+				}
+			}
+			if (runStart >= 0) {
+				bitfield.set(runStart, len * 8);
+			}
+			return bitfield;
+		}
+
 		public String toString() {
 			return super.toString() + " " + this.getBitfield().cardinality();
 		}
@@ -203,6 +203,10 @@ public class HTTPAnnounceRequestMessage extends HTTPTrackerMessage
 
 		try {
 			byte[] infoHash = params.get("info_hash").getBytes();
+			if (infoHash.length != Torrent.PIECE_HASH_SIZE) {
+				throw new MessageValidationException(
+					ErrorMessage.FailureReason.MISSING_HASH.getMessage());
+			}
 			byte[] peerId = params.get("peer_id").getBytes();
 			int port = params.get("port").getInt();
 
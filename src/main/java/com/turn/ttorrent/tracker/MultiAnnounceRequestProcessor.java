@@ -3,6 +3,7 @@ package com.turn.ttorrent.tracker;
 import com.turn.ttorrent.bcodec.BDecoder;
 import com.turn.ttorrent.bcodec.BEValue;
 import com.turn.ttorrent.bcodec.BEncoder;
+import com.turn.ttorrent.common.InfoHash;
 import com.turn.ttorrent.common.protocol.TrackerMessage;
 import com.turn.ttorrent.common.protocol.http.HTTPTrackerErrorMessage;
 import org.simpleframework.http.Status;
@@ -45,7 +46,7 @@ public class MultiAnnounceRequestProcessor {
         }
 
         @Override
-        public ConcurrentMap<String, TrackedTorrent> getTorrentsMap() {
+        public ConcurrentMap<InfoHash, TrackedTorrent> getTorrentsMap() {
           return requestHandler.getTorrentsMap();
         }
       });
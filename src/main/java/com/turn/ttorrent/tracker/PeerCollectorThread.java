@@ -1,5 +1,7 @@
 package com.turn.ttorrent.tracker;
 
+import com.turn.ttorrent.common.InfoHash;
+
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -13,10 +15,10 @@ import java.util.concurrent.ConcurrentMap;
 public class PeerCollectorThread extends Thread {
 
   public static final int COLLECTION_FREQUENCY=10;
-  private ConcurrentMap<String, TrackedTorrent> myTorrents;
+  private ConcurrentMap<InfoHash, TrackedTorrent> myTorrents;
   private volatile int myTorrentExpireTimeoutSec = 60;
 
-  public PeerCollectorThread(final ConcurrentMap<String, TrackedTorrent> torrents) {
+  public PeerCollectorThread(final ConcurrentMap<InfoHash, TrackedTorrent> torrents) {
     myTorrents = torrents;
   }
 
@@ -30,7 +32,7 @@ public class PeerCollectorThread extends Thread {
       for (TrackedTorrent torrent : myTorrents.values()) {
         torrent.collectUnfreshPeers(myTorrentExpireTimeoutSec);
         if (torrent.getPeers().size() == 0){
-          myTorrents.remove(torrent.getHexInfoHash());
+          myTorrents.remove(torrent.getInfoHashKey(), torrent);
         }
       }
       try {
@@ -15,6 +15,7 @@
  */
 package com.turn.ttorrent.tracker;
 
+import com.turn.ttorrent.common.InfoHash;
 import com.turn.ttorrent.common.Peer;
 import com.turn.ttorrent.common.PeerUID;
 import com.turn.ttorrent.common.Torrent;
@@ -68,6 +69,7 @@ public class TrackedTorrent implements TorrentHash {
 	private int announceInterval;
 
     private final byte[] info_hash;
+    private final InfoHash myInfoHashKey;
 
 	/** Peers currently exchanging on this torrent. */
 	private ConcurrentMap<PeerUID, TrackedPeer> peers;
@@ -81,6 +83,7 @@ public class TrackedTorrent implements TorrentHash {
 	 */
 	public TrackedTorrent(byte[] info_hash) {
 		this.info_hash = info_hash;
+		this.myInfoHashKey = new InfoHash(info_hash);
 
 		this.peers = new ConcurrentHashMap<PeerUID, TrackedPeer>();
 		this.answerPeers = TrackedTorrent.DEFAULT_ANSWER_NUM_PEERS;
@@ -105,7 +108,7 @@ public class TrackedTorrent implements TorrentHash {
 	 * @param peer The new Peer involved with this torrent.
 	 */
 	public void addPeer(TrackedPeer peer) {
-		this.peers.put(new PeerUID(peer.getAddress(), this.getHexInfoHash()), peer);
+		this.peers.put(new PeerUID(peer.getAddress(), myInfoHashKey), peer);
 	}
 
 	public TrackedPeer getPeer(PeerUID peerUID) {
@@ -154,7 +157,7 @@ public class TrackedTorrent implements TorrentHash {
 	public void collectUnfreshPeers(int expireTimeoutSec) {
 		for (TrackedPeer peer : this.peers.values()) {
 			if (!peer.isFresh(expireTimeoutSec)) {
-				this.peers.remove(new PeerUID(peer.getAddress(), this.getHexInfoHash()));
+				this.peers.remove(new PeerUID(peer.getAddress(), myInfoHashKey));
 			}
 		}
 	}
@@ -205,7 +208,7 @@ public class TrackedTorrent implements TorrentHash {
 		TrackedPeer peer = null;
 		TrackedPeer.PeerState state = TrackedPeer.PeerState.UNKNOWN;
 
-		PeerUID peerUID = new PeerUID(new InetSocketAddress(ip, port), getHexInfoHash());
+		PeerUID peerUID = new PeerUID(new InetSocketAddress(ip, port), myInfoHashKey);
 		if (RequestEvent.STARTED.equals(event)) {
 			state = TrackedPeer.PeerState.STARTED;
 		} else if (RequestEvent.STOPPED.equals(event)) {
@@ -285,7 +288,14 @@ public class TrackedTorrent implements TorrentHash {
 
     @Override
     public String getHexInfoHash() {
-        return Torrent.byteArrayToHexString(this.info_hash);
+        return myInfoHashKey.getHexInfoHash();
+    }
+
+    /**
+     * Returns the info hash of this torrent as a map key.
+     */
+    public InfoHash getInfoHashKey() {
+        return myInfoHashKey;
     }
 
     @Override
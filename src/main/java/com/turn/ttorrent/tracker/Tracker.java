@@ -15,7 +15,7 @@
  */
 package com.turn.ttorrent.tracker;
 
-import com.turn.ttorrent.common.Torrent;
+import com.turn.ttorrent.common.InfoHash;
 
 import java.io.IOException;
 import java.net.*;
@@ -58,7 +58,7 @@ public class Tracker {
 	private Connection connection;
 
 	/** The in-memory repository of torrents tracked. */
-	private final ConcurrentMap<String, TrackedTorrent> myTorrents;
+	private final ConcurrentMap<InfoHash, TrackedTorrent> myTorrents;
 
   private PeerCollectorThread myPeerCollectorThread;
 	private boolean stop;
@@ -80,10 +80,10 @@ public class Tracker {
       );
     }
 	public Tracker(int port, String announceURL) throws IOException {
-    this (port, announceURL, new TrackerRequestProcessor(), new ConcurrentHashMap<String, TrackedTorrent>());
+    this (port, announceURL, new TrackerRequestProcessor(), new ConcurrentHashMap<InfoHash, TrackedTorrent>());
   }
 
-	public Tracker(int port, String announceURL, TrackerRequestProcessor requestProcessor, final ConcurrentMap<String, TrackedTorrent> torrents) throws IOException {
+	public Tracker(int port, String announceURL, TrackerRequestProcessor requestProcessor, final ConcurrentMap<InfoHash, TrackedTorrent> torrents) throws IOException {
     this.myPort = port;
     this.myAnnounceUrl = announceURL;
     myTorrents = torrents;
@@ -215,14 +215,14 @@ public class Tracker {
 	 * contained a torrent with the same hash.
 	 */
 	public synchronized TrackedTorrent announce(TrackedTorrent torrent) {
-		TrackedTorrent existing = this.myTorrents.get(torrent.getHexInfoHash());
+		TrackedTorrent existing = this.myTorrents.get(torrent.getInfoHashKey());
 
 		if (existing != null) {
 			logger.warn("Tracker already announced torrent with hash {}.", existing.getHexInfoHash());
 			return existing;
 		}
 
-		this.myTorrents.put(torrent.getHexInfoHash(), torrent);
+		this.myTorrents.put(torrent.getInfoHashKey(), torrent);
 		logger.info("Registered new torrent with hash {}.", torrent.getHexInfoHash());
 		return torrent;
     }
@@ -233,7 +233,7 @@ public class Tracker {
 	 */
 	public synchronized boolean remove(byte[] info_hash) {
     return info_hash != null &&
-           this.myTorrents.remove(Torrent.byteArrayToHexString(info_hash)) != null;
+           this.myTorrents.remove(new InfoHash(info_hash)) != null;
   }
 
   /**
@@ -252,6 +252,10 @@ public class Tracker {
   }
 
   public TrackedTorrent getTrackedTorrent(String hash){
+    return myTorrents.get(InfoHash.fromHexString(hash));
+  }
+
+  public TrackedTorrent getTrackedTorrent(InfoHash hash){
     return myTorrents.get(hash);
   }
 
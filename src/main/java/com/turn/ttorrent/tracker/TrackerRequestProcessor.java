@@ -16,6 +16,7 @@
 package com.turn.ttorrent.tracker;
 
 import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.common.InfoHash;
 import com.turn.ttorrent.common.LoggerUtils;
 import com.turn.ttorrent.common.Peer;
 import com.turn.ttorrent.common.PeerUID;
@@ -130,24 +131,25 @@ public class TrackerRequestProcessor {
 		}
 
     // The requested torrent must be announced by the tracker if and only if myAcceptForeignTorrents is false
-    final ConcurrentMap<String, TrackedTorrent> torrentsMap = requestHandler.getTorrentsMap();
-    TrackedTorrent torrent = torrentsMap.get(announceRequest.getHexInfoHash());
+    final ConcurrentMap<InfoHash, TrackedTorrent> torrentsMap = requestHandler.getTorrentsMap();
+    final InfoHash infoHash = new InfoHash(announceRequest.getInfoHash());
+    TrackedTorrent torrent = torrentsMap.get(infoHash);
     if (!this.myAcceptForeignTorrents && torrent == null) {
-      logger.warn("Requested torrent hash was: {}", announceRequest.getHexInfoHash());
+      logger.warn("Requested torrent hash was: {}", infoHash);
       serveError(Status.BAD_REQUEST, ErrorMessage.FailureReason.UNKNOWN_TORRENT, requestHandler);
       return;
     }
 
     if (torrent == null) {
       torrent = new TrackedTorrent(announceRequest.getInfoHash());
-      TrackedTorrent oldTorrent = requestHandler.getTorrentsMap().putIfAbsent(torrent.getHexInfoHash(), torrent);
+      TrackedTorrent oldTorrent = torrentsMap.putIfAbsent(infoHash, torrent);
       if (oldTorrent != null) {
         torrent = oldTorrent;
       }
     }
 
 		AnnounceRequestMessage.RequestEvent event = announceRequest.getEvent();
-		PeerUID peerUID = new PeerUID(new InetSocketAddress(announceRequest.getIp(), announceRequest.getPort()), announceRequest.getHexInfoHash());
+		PeerUID peerUID = new PeerUID(new InetSocketAddress(announceRequest.getIp(), announceRequest.getPort()), infoHash);
 
 		// When no event is specified, it's a periodic update while the client
 		// is operating. If we don't have a peer for this announce, it means
@@ -343,6 +345,6 @@ public class TrackerRequestProcessor {
   public interface RequestHandler {
     void serveResponse(int code, String description, ByteBuffer responseData);
 
-    ConcurrentMap<String, TrackedTorrent> getTorrentsMap();
+    ConcurrentMap<InfoHash, TrackedTorrent> getTorrentsMap();
   }
 }
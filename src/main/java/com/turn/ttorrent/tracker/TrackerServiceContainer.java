@@ -1,5 +1,6 @@
 package com.turn.ttorrent.tracker;
 
+import com.turn.ttorrent.common.InfoHash;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
 import org.simpleframework.http.core.Container;
@@ -25,10 +26,10 @@ public class TrackerServiceContainer implements Container {
 
   private TrackerRequestProcessor myRequestProcessor;
   private final MultiAnnounceRequestProcessor myMultiAnnounceRequestProcessor;
-  private ConcurrentMap<String, TrackedTorrent> myTorrents;
+  private ConcurrentMap<InfoHash, TrackedTorrent> myTorrents;
 
   public TrackerServiceContainer(final TrackerRequestProcessor requestProcessor,
-                                 final ConcurrentMap<String, TrackedTorrent> torrents) {
+                                 final ConcurrentMap<InfoHash, TrackedTorrent> torrents) {
     myRequestProcessor = requestProcessor;
     myMultiAnnounceRequestProcessor = new MultiAnnounceRequestProcessor(requestProcessor);
     myTorrents = torrents;
@@ -102,7 +103,7 @@ public class TrackerServiceContainer implements Container {
       }
 
       @Override
-      public ConcurrentMap<String, TrackedTorrent> getTorrentsMap() {
+      public ConcurrentMap<InfoHash, TrackedTorrent> getTorrentsMap() {
         return myTorrents;
       }
     };
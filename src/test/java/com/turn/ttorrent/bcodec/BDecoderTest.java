@@ -0,0 +1,169 @@
+package com.turn.ttorrent.bcodec;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+@Test
+public class BDecoderTest {
+
+  private static final String SAMPLE =
+    "d8:announce23:http://tracker/announce4:infod6:lengthi3000000000e" +
+      "4:name4:file12:piece lengthi262144e6:pieces4:\u0001\u0002\u00ff\u0000e" +
+      "4:listli-42ei0el3:abcee3:nowi12345678901234567890ee";
+
+  public void testSameValuesFromStreamAndBuffer() throws Exception {
+    final byte[] encoded = bytes(SAMPLE);
+    final BEValue fromStream = new BDecoder(new ByteArrayInputStream(encoded)).bdecode();
+    final BEValue fromBuffer = BDecoder.bdecode(ByteBuffer.wrap(encoded));
+    final BEValue fromStaticStream = BDecoder.bdecode(new ByteArrayInputStream(encoded));
+
+    for (BEValue decoded : new BEValue[]{fromStream, fromBuffer, fromStaticStream}) {
+      final Map<String, BEValue> root = decoded.getMap();
+      assertEquals(root.get("announce").getString(), "http://tracker/announce");
+
+      final Map<String, BEValue> info = root.get("info").getMap();
+      assertEquals(info.get("length").getLong(), 3000000000L);
+      assertEquals(info.get("piece length").getInt(), 262144);
+      assertEquals(info.get("name").getString(), "file");
+      assertEquals(info.get("pieces").getBytes(), new byte[]{1, 2, (byte) 0xff, 0});
+
+      final List<BEValue> list = root.get("list").getList();
+      assertEquals(list.size(), 3);
+      assertEquals(list.get(0).getInt(), -42);
+      assertEquals(list.get(1).getLong(), 0L);
+      assertEquals(list.get(2).getList().get(0).getString(), "abc");
+
+      assertEquals(root.get("now").getNumber(), new BigInteger("12345678901234567890"));
+    }
+  }
+
+  public void testNumbersFittingALongAreLongs() throws Exception {
+    assertEquals(decode("i0e").getValue(), 0L);
+    assertEquals(decode("i9223372036854775807e").getValue(), Long.MAX_VALUE);
+    assertEquals(decode("i-9223372036854775807e").getValue(), -Long.MAX_VALUE);
+    assertEquals(decode("i9223372036854775808e").getValue(), new BigInteger("9223372036854775808"));
+    assertEquals(decode("i-9223372036854775809e").getValue(), new BigInteger("-9223372036854775809"));
+  }
+
+  public void testByteStringsAreCopiedOnDemand() throws Exception {
+    final byte[] encoded = bytes("5:hello");
+    final BEValue value = BDecoder.bdecode(encoded);
+
+    final byte[] copy = value.getBytes();
+    copy[0] = 'j';
+    assertEquals(value.getString(), "hello");
+    assertTrue(value.getValue() instanceof byte[]);
+
+    // the buffer view shares the decoded data
+    final ByteBuffer view = value.getByteBuffer();
+    assertEquals(view.remaining(), 5);
+    encoded[2] = 'j';
+    assertEquals(view.get(0), (byte) 'j');
+  }
+
+  public void testDecodesFromBufferPosition() throws Exception {
+    final ByteBuffer data = ByteBuffer.wrap(bytes("xxxli1ei2ee"));
+    data.position(3);
+    assertEquals(BDecoder.bdecode(data).getList().size(), 2);
+    assertEquals(data.position(), 3);
+
+    final ByteBuffer direct = ByteBuffer.allocateDirect(7);
+    direct.put(bytes("3:abc")).flip();
+    assertEquals(BDecoder.bdecode(direct).getString(), "abc");
+  }
+
+  public void testReencodesIdentically() throws Exception {
+    final byte[] encoded = bytes(SAMPLE);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BEncoder.bencode(BDecoder.bdecode(encoded), out);
+    assertTrue(Arrays.equals(out.toByteArray(), encoded));
+  }
+
+  public void testRawValues() throws Exception {
+    final byte[] encoded = bytes(SAMPLE);
+    final Map<String, ByteBuffer> raw = new BDecoder(ByteBuffer.wrap(encoded)).bdecodeRawMap();
+    assertEquals(raw.keySet(), BDecoder.bdecode(encoded).getMap().keySet());
+
+    final ByteBuffer info = raw.get("info");
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BEncoder.bencode(BDecoder.bdecode(encoded).getMap().get("info"), out);
+    final byte[] span = new byte[info.remaining()];
+    info.duplicate().get(span);
+    assertEquals(span, out.toByteArray());
+    assertEquals(BDecoder.bdecode(info).getMap().get("name").getString(), "file");
+
+    for (String invalid : new String[]{"d1:ai1e", "d1:ali1e", "d1:ax", "d1:a3:ab"}) {
+      try {
+        new BDecoder(ByteBuffer.wrap(bytes(invalid))).bdecodeRawMap();
+        fail("Decoded " + invalid);
+      } catch (InvalidBEncodingException ibee) {
+        // expected
+      } catch (EOFException eofe) {
+        // expected
+      }
+    }
+  }
+
+  public void testRawList() throws Exception {
+    final List<ByteBuffer> raw = new BDecoder(ByteBuffer.wrap(bytes("li-42ed1:ai1ee3:abce"))).bdecodeRawList();
+    assertEquals(raw.size(), 3);
+    assertEquals(BDecoder.bdecode(raw.get(0)).getInt(), -42);
+    assertEquals(new BDecoder(raw.get(1)).bdecodeRawMap().keySet().iterator().next(), "a");
+    assertEquals(BDecoder.bdecode(raw.get(2)).getString(), "abc");
+
+    for (String invalid : new String[]{"li1e", "d1:ai1ee", "l3:ab"}) {
+      try {
+        new BDecoder(ByteBuffer.wrap(bytes(invalid))).bdecodeRawList();
+        fail("Decoded " + invalid);
+      } catch (InvalidBEncodingException ibee) {
+        // expected
+      } catch (EOFException eofe) {
+        // expected
+      }
+    }
+  }
+
+  public void testEmptyInput() throws Exception {
+    assertNull(BDecoder.bdecode(new byte[0]));
+  }
+
+  public void testInvalidEncodings() throws Exception {
+    for (String invalid : new String[]{"x", "i-0e", "i01e", "i12", "3abc", "d1:ai1e", "li1e", "5:abc", "i1-2e"}) {
+      try {
+        decode(invalid);
+        fail("Decoded " + invalid);
+      } catch (InvalidBEncodingException ibee) {
+        // expected
+      } catch (EOFException eofe) {
+        // expected
+      }
+      try {
+        new BDecoder(new ByteArrayInputStream(bytes(invalid))).bdecode();
+        fail("Decoded " + invalid + " from a stream");
+      } catch (InvalidBEncodingException ibee) {
+        // expected
+      } catch (EOFException eofe) {
+        // expected
+      }
+    }
+  }
+
+  private static BEValue decode(String encoded) throws IOException {
+    return BDecoder.bdecode(ByteBuffer.wrap(bytes(encoded)));
+  }
+
+  private static byte[] bytes(String s) throws IOException {
+    return s.getBytes("ISO-8859-1");
+  }
+}
@@ -0,0 +1,98 @@
+package com.turn.ttorrent.client;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class AvailabilityIndexTest {
+
+  public void testEmptyIndex() {
+    AvailabilityIndex index = new AvailabilityIndex(5);
+    assertEquals(index.firstRarest(), AvailabilityIndex.NONE);
+    assertEquals(index.getAvailablePieceCount(), 0);
+    assertEquals(index.getAvailablePieces(), new BitSet());
+  }
+
+  public void testRarestFirstOrder() {
+    AvailabilityIndex index = new AvailabilityIndex(6);
+    index.increment(3);
+    index.increment(3);
+    index.increment(3);
+    index.increment(1);
+    index.increment(5);
+    index.increment(5);
+
+    assertEquals(rarestOrder(index).get(0), Integer.valueOf(1));
+    assertEquals(rarestOrder(index).get(1), Integer.valueOf(5));
+    assertEquals(rarestOrder(index).get(2), Integer.valueOf(3));
+    assertEquals(rarestOrder(index).size(), 3);
+    assertEquals(index.getAvailability(3), 3);
+    assertEquals(index.getAvailablePieceCount(), 3);
+  }
+
+  public void testBitfieldUpdates() {
+    AvailabilityIndex index = new AvailabilityIndex(10);
+    BitSet first = new BitSet();
+    first.set(0, 10);
+    BitSet second = new BitSet();
+    second.set(2);
+    second.set(7);
+
+    index.increment(first);
+    index.increment(second);
+    assertEquals(index.getAvailablePieceCount(), 10);
+    List<Integer> order = rarestOrder(index);
+    assertEquals(order.size(), 10);
+    assertEquals(order.get(8) + order.get(9), 9);
+
+    index.decrement(first);
+    assertEquals(index.getAvailablePieces(), second);
+    assertEquals(index.getAvailablePieceCount(), 2);
+
+    index.decrement(second);
+    index.decrement(second);
+    assertEquals(index.getAvailablePieceCount(), 0);
+    assertEquals(index.getAvailability(2), 0);
+    assertEquals(index.firstRarest(), AvailabilityIndex.NONE);
+  }
+
+  public void testManyPeers() {
+    AvailabilityIndex index = new AvailabilityIndex(2);
+    for (int i = 0; i < 100; i++) {
+      index.increment(0);
+    }
+    index.increment(1);
+    assertEquals(index.getAvailability(0), 100);
+    assertEquals(index.firstRarest(), 1);
+    assertEquals(index.nextRarest(1), 0);
+    assertEquals(index.nextRarest(0), AvailabilityIndex.NONE);
+  }
+
+  public void testSeeds() {
+    AvailabilityIndex index = new AvailabilityIndex(3);
+    index.increment(1);
+    index.addSeed();
+    assertEquals(index.getAvailablePieceCount(), 3);
+    assertEquals(index.getAvailability(1), 2);
+    assertEquals(index.getAvailability(0), 1);
+    assertEquals(rarestOrder(index).size(), 3);
+    assertEquals(rarestOrder(index).get(2), Integer.valueOf(1));
+
+    index.removeSeed();
+    assertEquals(index.getAvailablePieceCount(), 1);
+    assertEquals(index.firstRarest(), 1);
+  }
+
+  private List<Integer> rarestOrder(AvailabilityIndex index) {
+    List<Integer> result = new ArrayList<Integer>();
+    for (int i = index.firstRarest(); i != AvailabilityIndex.NONE; i = index.nextRarest(i)) {
+      result.add(i);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,74 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.common.InfoHash;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.testng.Assert.*;
+
+@Test
+public class BlockReadCacheTest {
+
+  private static final InfoHash A = infoHash(1);
+  private static final InfoHash B = infoHash(2);
+
+  public void testHitsAndMisses() {
+    BlockReadCache cache = new BlockReadCache(1024);
+    ByteBuffer target = ByteBuffer.allocate(100);
+    assertFalse(cache.read(A, 0, 0, target));
+    assertEquals(target.position(), 0);
+
+    cache.put(A, 0, 0, filled(100, 5));
+    assertTrue(cache.read(A, 0, 0, target));
+    assertEquals(target.position(), 100);
+    assertEquals(target.get(99), 5);
+
+    // other torrent, other offset, other length
+    assertFalse(cache.read(B, 0, 0, ByteBuffer.allocate(100)));
+    assertFalse(cache.read(A, 0, 100, ByteBuffer.allocate(100)));
+    assertFalse(cache.read(A, 0, 0, ByteBuffer.allocate(50)));
+
+    assertEquals(cache.getHits(), 1);
+    assertEquals(cache.getMisses(), 4);
+    assertEquals(cache.getHitRate(), 0.2, 0.0001);
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() {
+    BlockReadCache cache = new BlockReadCache(512);
+    cache.put(A, 0, 0, filled(256, 1));
+    cache.put(A, 1, 0, filled(256, 2));
+    assertTrue(cache.read(A, 0, 0, ByteBuffer.allocate(256)));
+
+    cache.put(A, 2, 0, filled(256, 3));
+    assertTrue(cache.read(A, 0, 0, ByteBuffer.allocate(256)));
+    assertFalse(cache.read(A, 1, 0, ByteBuffer.allocate(256)));
+    assertTrue(cache.read(A, 2, 0, ByteBuffer.allocate(256)));
+    assertEquals(cache.getCachedBytes(), 512);
+  }
+
+  public void testInvalidate() {
+    BlockReadCache cache = new BlockReadCache(1024);
+    cache.put(A, 0, 0, filled(100, 1));
+    cache.put(B, 0, 0, filled(100, 2));
+    cache.invalidate(A);
+    assertFalse(cache.read(A, 0, 0, ByteBuffer.allocate(100)));
+    assertTrue(cache.read(B, 0, 0, ByteBuffer.allocate(100)));
+    assertEquals(cache.getCachedBytes(), 100);
+  }
+
+  private static InfoHash infoHash(int first) {
+    final byte[] bytes = new byte[InfoHash.LENGTH];
+    bytes[0] = (byte) first;
+    return new InfoHash(bytes);
+  }
+
+  private static ByteBuffer filled(int length, int value) {
+    ByteBuffer block = ByteBuffer.allocate(length);
+    while (block.hasRemaining()) {
+      block.put((byte) value);
+    }
+    block.flip();
+    return block;
+  }
+}
@@ -517,9 +517,9 @@ public class ClientTest {
     final int startPort = 6885;
     int port = startPort;
     PeerUID[] peerUids = new PeerUID[]{
-            new PeerUID(new InetSocketAddress("127.0.0.1", port++), hexInfoHash),
-            new PeerUID(new InetSocketAddress("127.0.0.1", port++), hexInfoHash),
-            new PeerUID(new InetSocketAddress("127.0.0.1", port), hexInfoHash)
+            new PeerUID(new InetSocketAddress("127.0.0.1", port++), sharedTorrent.getInfoHashKey()),
+            new PeerUID(new InetSocketAddress("127.0.0.1", port++), sharedTorrent.getInfoHashKey()),
+            new PeerUID(new InetSocketAddress("127.0.0.1", port), sharedTorrent.getInfoHashKey())
     };
     final ExecutorService es = Executors.newSingleThreadExecutor();
     try {
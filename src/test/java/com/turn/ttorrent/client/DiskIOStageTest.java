@@ -0,0 +1,89 @@
+package com.turn.ttorrent.client;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+@Test
+public class DiskIOStageTest {
+
+  public void testTasksQueuedPerDevice() throws Exception {
+    DiskIOStage stage = new DiskIOStage(1);
+    File first = new File("first").getAbsoluteFile();
+    File second = new File("second").getAbsoluteFile();
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(3);
+
+    stage.submit(DiskIOStage.deviceKey(new File(first, "a")), new Runnable() {
+      @Override
+      public void run() {
+        try {
+          blocked.await();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+        done.countDown();
+      }
+    });
+    stage.submit(DiskIOStage.deviceKey(new File(first, "b")), new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    final CountDownLatch otherDevice = new CountDownLatch(1);
+    stage.submit(DiskIOStage.deviceKey(new File(second, "c")), new Runnable() {
+      @Override
+      public void run() {
+        otherDevice.countDown();
+        done.countDown();
+      }
+    });
+
+    // a stalled device does not hold back the others
+    assertTrue(otherDevice.await(5, TimeUnit.SECONDS));
+    assertEquals(stage.getQueueDepth(DiskIOStage.deviceKey(new File(first, "x"))), 2);
+
+    blocked.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    stage.shutdown();
+  }
+
+  public void testMetrics() throws Exception {
+    DiskIOStage stage = new DiskIOStage(2);
+    final CountDownLatch done = new CountDownLatch(4);
+    for (int i = 0; i < 4; i++) {
+      stage.submit(DiskIOStage.deviceKey(new File("dir", "file" + i)), new Runnable() {
+        @Override
+        public void run() {
+          done.countDown();
+        }
+      });
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    stage.shutdown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (stage.getCompletedTasks() < 4 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(stage.getCompletedTasks(), 4);
+    assertEquals(stage.getQueueDepth(), 0);
+    assertTrue(stage.getMaxLatencyMillis() >= stage.getAverageLatencyMillis());
+  }
+
+  @Test(expectedExceptions = RejectedExecutionException.class)
+  public void testRejectedAfterShutdown() {
+    DiskIOStage stage = new DiskIOStage(1);
+    stage.shutdown();
+    stage.submit(DiskIOStage.deviceKey(new File("dir", "file")), new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+  }
+}
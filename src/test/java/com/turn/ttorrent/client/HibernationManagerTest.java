@@ -0,0 +1,62 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.TempFiles;
+import com.turn.ttorrent.common.Torrent;
+import com.turn.ttorrent.common.TorrentsStorage;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Collections;
+
+import static org.testng.Assert.*;
+
+@Test
+public class HibernationManagerTest {
+
+  private TempFiles myTempFiles;
+  private SharedTorrent myTorrent;
+  private TorrentsStorage myTorrentsStorage;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    final File dir = myTempFiles.createTempDir();
+    final File file = new File(dir, "a");
+    FileUtils.writeByteArrayToFile(file, new byte[100000]);
+    final Torrent torrent = Torrent.create(dir, Collections.singletonList(file),
+      new URI("http://localhost:6969/announce"), null, "Test", 65536);
+    myTorrent = new SharedTorrent(torrent, dir, true);
+    myTorrentsStorage = new TorrentsStorage();
+    myTorrentsStorage.putIfAbsentActiveTorrent(myTorrent.getInfoHashKey(), myTorrent);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  public void testIdleTorrentsHibernate() throws Exception {
+    final HibernationManager manager = new HibernationManager(myTorrentsStorage);
+    manager.setIdleTimeout(60 * 1000);
+
+    // just used
+    manager.peerDisconnected(myTorrent.getInfoHashKey());
+    assertEquals(manager.hibernateIdleTorrents(), 0);
+    assertSame(myTorrentsStorage.getTorrent(myTorrent.getInfoHashKey()), myTorrent);
+
+    manager.setIdleTimeout(0);
+    assertEquals(manager.hibernateIdleTorrents(), 1);
+    assertNull(myTorrentsStorage.getTorrent(myTorrent.getInfoHashKey()));
+  }
+
+  public void testHibernatesRightAwayWithoutTimeout() throws Exception {
+    final HibernationManager manager = new HibernationManager(myTorrentsStorage);
+    manager.peerDisconnected(myTorrent.getInfoHashKey());
+    assertNull(myTorrentsStorage.getTorrent(myTorrent.getInfoHashKey()));
+    assertTrue(myTorrentsStorage.activeTorrents().isEmpty());
+  }
+}
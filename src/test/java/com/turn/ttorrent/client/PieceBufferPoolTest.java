@@ -0,0 +1,82 @@
+package com.turn.ttorrent.client;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PieceBufferPoolTest {
+
+  public void testBuffersAreReused() {
+    PieceBufferPool pool = new PieceBufferPool(1024, false);
+    ByteBuffer first = pool.tryAcquire(300);
+    assertNotNull(first);
+    assertEquals(first.capacity(), 512);
+    assertEquals(first.limit(), 300);
+    assertEquals(pool.getUsedBytes(), 512);
+
+    pool.release(first);
+    assertEquals(pool.getUsedBytes(), 0);
+    assertEquals(pool.getAllocatedBytes(), 512);
+
+    ByteBuffer second = pool.tryAcquire(512);
+    assertSame(second, first);
+    assertEquals(second.position(), 0);
+    assertEquals(second.limit(), 512);
+  }
+
+  public void testBudgetIsEnforced() {
+    PieceBufferPool pool = new PieceBufferPool(1024, true);
+    ByteBuffer first = pool.tryAcquire(512);
+    ByteBuffer second = pool.tryAcquire(512);
+    assertTrue(first.isDirect());
+    assertNotNull(second);
+    assertNull(pool.tryAcquire(512));
+
+    pool.release(second);
+    assertNotNull(pool.tryAcquire(500));
+  }
+
+  public void testIdleBuffersAreDroppedForOtherSizes() {
+    PieceBufferPool pool = new PieceBufferPool(1024, false);
+    pool.release(pool.tryAcquire(1024));
+    assertEquals(pool.getAllocatedBytes(), 1024);
+
+    assertNotNull(pool.tryAcquire(256));
+    assertEquals(pool.getAllocatedBytes(), 256);
+  }
+
+  public void testOversizedBufferWhenIdle() {
+    PieceBufferPool pool = new PieceBufferPool(100, false);
+    ByteBuffer buffer = pool.tryAcquire(1000);
+    assertNotNull(buffer);
+    assertNull(pool.tryAcquire(10));
+
+    pool.release(buffer);
+    assertEquals(pool.getAllocatedBytes(), 0);
+  }
+
+  public void testWaitersRunOnRelease() {
+    PieceBufferPool pool = new PieceBufferPool(1024, false);
+    final AtomicInteger runs = new AtomicInteger();
+    Runnable waiter = new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+      }
+    };
+    ByteBuffer buffer = pool.tryAcquire(1024, waiter);
+    assertNotNull(buffer);
+    assertNull(pool.tryAcquire(1024, waiter));
+    assertNull(pool.tryAcquire(512, waiter));
+    assertEquals(runs.get(), 0);
+
+    pool.release(buffer);
+    assertEquals(runs.get(), 1);
+    pool.release(pool.tryAcquire(1024));
+    assertEquals(runs.get(), 1);
+  }
+}
@@ -0,0 +1,298 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.client.storage.TorrentByteStorage;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PieceTest {
+
+  private static final int PIECE_SIZE = 2 * Piece.BLOCK_SIZE + 100;
+
+  public void testBlocksAreClaimedOnce() {
+    Piece piece = new Piece(null, 0, 0, PIECE_SIZE, new byte[0], false, false);
+    assertTrue(piece.hasUnclaimedBlocks());
+    assertEquals(piece.claimBlock(), 0);
+    assertEquals(piece.claimBlock(), Piece.BLOCK_SIZE);
+    assertEquals(piece.claimBlock(), 2 * Piece.BLOCK_SIZE);
+    assertEquals(piece.claimBlock(), -1);
+    assertFalse(piece.hasUnclaimedBlocks());
+    assertEquals(piece.getBlockLength(2 * Piece.BLOCK_SIZE), 100);
+
+    piece.releaseBlock(Piece.BLOCK_SIZE);
+    assertTrue(piece.hasUnclaimedBlocks());
+    assertEquals(piece.claimBlock(), Piece.BLOCK_SIZE);
+  }
+
+  public void testBlocksFromSeveralPeers() throws Exception {
+    Piece piece = new Piece(null, 0, 0, PIECE_SIZE, new byte[0], false, false);
+    int first = piece.claimBlock();
+    int second = piece.claimBlock();
+    int third = piece.claimBlock();
+
+    piece.record(ByteBuffer.allocate(Piece.BLOCK_SIZE), second);
+    piece.record(ByteBuffer.allocate(100), third);
+    assertFalse(piece.isDownloaded());
+    assertEquals(piece.nextPendingBlock(0), first);
+
+    // a received block is not given back
+    piece.releaseBlock(second);
+    assertEquals(piece.claimBlock(), -1);
+
+    piece.record(ByteBuffer.allocate(Piece.BLOCK_SIZE), first);
+    assertTrue(piece.isDownloaded());
+    assertEquals(piece.nextPendingBlock(0), -1);
+
+    piece.resetBlocks();
+    assertFalse(piece.isDownloaded());
+    assertEquals(piece.claimBlock(), 0);
+  }
+
+  public void testFinishedOnce() throws Exception {
+    Piece piece = new Piece(null, 0, 0, PIECE_SIZE, new byte[0], false, false);
+    piece.record(ByteBuffer.allocate(Piece.BLOCK_SIZE), 0);
+    assertFalse(piece.startFinishing());
+    piece.record(ByteBuffer.allocate(Piece.BLOCK_SIZE), Piece.BLOCK_SIZE);
+    piece.record(ByteBuffer.allocate(100), 2 * Piece.BLOCK_SIZE);
+
+    assertTrue(piece.startFinishing());
+    assertFalse(piece.startFinishing());
+
+    piece.resetBlocks();
+    assertFalse(piece.startFinishing());
+  }
+
+  public void testNoBlockRecordedOverBudget() throws Exception {
+    PieceBufferPool pool = new PieceBufferPool(PIECE_SIZE, false);
+    Piece first = new Piece(null, 0, 0, PIECE_SIZE, new byte[0], false, false, pool);
+    Piece second = new Piece(null, 1, PIECE_SIZE, PIECE_SIZE, new byte[0], false, false, pool);
+
+    assertTrue(first.acquireBuffer());
+    assertFalse(second.acquireBuffer());
+    assertFalse(second.record(ByteBuffer.allocate(100), 2 * Piece.BLOCK_SIZE));
+    assertFalse(second.isDownloaded());
+
+    first.releaseBuffer();
+    assertTrue(second.record(ByteBuffer.allocate(100), 2 * Piece.BLOCK_SIZE));
+  }
+
+  public void testHashedAsBlocksArrive() throws Exception {
+    byte[] content = new byte[PIECE_SIZE];
+    new Random(42).nextBytes(content);
+    byte[] hash = MessageDigest.getInstance("SHA-1").digest(content);
+    ByteBuffer stored = ByteBuffer.allocate(PIECE_SIZE);
+    Piece piece = new Piece(new MemoryStorage(stored), 0, 0, PIECE_SIZE, hash, false, false);
+
+    // out of order, with a duplicate
+    piece.record(ByteBuffer.wrap(content, 2 * Piece.BLOCK_SIZE, 100).slice(), 2 * Piece.BLOCK_SIZE);
+    piece.record(ByteBuffer.wrap(content, 0, Piece.BLOCK_SIZE).slice(), 0);
+    piece.record(ByteBuffer.wrap(content, 0, Piece.BLOCK_SIZE).slice(), 0);
+    piece.record(ByteBuffer.wrap(content, Piece.BLOCK_SIZE, Piece.BLOCK_SIZE).slice(), Piece.BLOCK_SIZE);
+    assertTrue(piece.isDownloaded());
+    assertTrue(piece.finish());
+    assertTrue(piece.isValid());
+    assertEquals(stored.array(), content);
+  }
+
+  @Test(timeOut = 10000)
+  public void testLateBlockDoesNotWaitForTheWrite() throws Exception {
+    final byte[] content = new byte[PIECE_SIZE];
+    new Random(42).nextBytes(content);
+    byte[] hash = MessageDigest.getInstance("SHA-1").digest(content);
+    final ByteBuffer stored = ByteBuffer.allocate(PIECE_SIZE);
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch written = new CountDownLatch(1);
+    final Piece piece = new Piece(new MemoryStorage(stored) {
+      @Override
+      public int write(ByteBuffer block, long offset) {
+        writing.countDown();
+        try {
+          written.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return super.write(block, offset);
+      }
+    }, 0, 0, PIECE_SIZE, hash, false, false);
+    for (int offset = 0; offset < PIECE_SIZE; offset += Piece.BLOCK_SIZE) {
+      piece.record(ByteBuffer.wrap(content, offset, piece.getBlockLength(offset)).slice(), offset);
+    }
+    assertTrue(piece.startFinishing());
+
+    final boolean[] valid = new boolean[1];
+    Thread finisher = new Thread() {
+      @Override
+      public void run() {
+        try {
+          valid[0] = piece.finish();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    finisher.start();
+    assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+    // an end-game duplicate is dropped while the piece is being written
+    assertTrue(piece.record(ByteBuffer.wrap(new byte[Piece.BLOCK_SIZE]), 0));
+    written.countDown();
+    finisher.join();
+    assertTrue(valid[0]);
+    assertEquals(stored.array(), content);
+  }
+
+  public void testCorruptedPieceIsNotWritten() throws Exception {
+    byte[] content = new byte[PIECE_SIZE];
+    byte[] hash = MessageDigest.getInstance("SHA-1").digest(content);
+    content[PIECE_SIZE - 1] = 1;
+    ByteBuffer stored = ByteBuffer.allocate(PIECE_SIZE);
+    Piece piece = new Piece(new MemoryStorage(stored), 0, 0, PIECE_SIZE, hash, false, false);
+
+    for (int offset = 0; offset < PIECE_SIZE; offset += Piece.BLOCK_SIZE) {
+      piece.record(ByteBuffer.wrap(content, offset, piece.getBlockLength(offset)).slice(), offset);
+    }
+    assertFalse(piece.finish());
+    assertFalse(piece.isValid());
+    assertEquals(stored.get(PIECE_SIZE - 1), 0);
+  }
+
+  public void testPiecesOfATable() throws Exception {
+    final int pieceCount = 70;
+    byte[] content = new byte[(pieceCount - 1) * PIECE_SIZE + 10];
+    new Random(7).nextBytes(content);
+    ByteBuffer hashes = ByteBuffer.allocate(1 + pieceCount * 20);
+    hashes.put((byte) 0xff);
+    MessageDigest md = MessageDigest.getInstance("SHA-1");
+    for (int i = 0; i < pieceCount; i++) {
+      md.update(content, i * PIECE_SIZE, Math.min(PIECE_SIZE, content.length - i * PIECE_SIZE));
+      hashes.put(md.digest());
+    }
+    hashes.position(1);
+    ByteBuffer stored = ByteBuffer.allocate(content.length);
+    PieceTable table = new PieceTable(new MemoryStorage(stored), hashes, PIECE_SIZE, pieceCount,
+      false, false, new PieceBufferPool(PIECE_SIZE, false));
+
+    Piece last = table.getPiece(pieceCount - 1);
+    assertEquals(last.size(), 10);
+    assertNotSame(table.getPiece(pieceCount - 1), last);
+    // flyweights of a piece stand for each other as keys
+    Set<Piece> requested = new HashSet<Piece>(Collections.singleton(last));
+    assertTrue(requested.remove(table.getPiece(pieceCount - 1)));
+    // a flyweight does not take buffers, the piece registered for download does
+    assertFalse(last.acquireBuffer());
+    Piece active = table.activate(pieceCount - 1);
+    assertSame(table.getPiece(pieceCount - 1), active);
+    assertSame(table.activate(pieceCount - 1), active);
+
+    assertTrue(active.record(ByteBuffer.wrap(content, content.length - 10, 10).slice(), 0));
+    assertTrue(active.finish());
+    assertTrue(table.isValid(pieceCount - 1));
+    assertTrue(last.isValid());
+    assertFalse(table.isValid(pieceCount - 2));
+    assertEquals(table.getValidCount(), 1);
+    table.deactivate(active);
+    assertNotSame(table.getPiece(pieceCount - 1), active);
+
+    stored.put(content, 0, PIECE_SIZE);
+    final BitSet toVerify = new BitSet();
+    toVerify.set(0, 2);
+    new PieceVerifier(1).verify(table, toVerify, NO_LISTENER);
+    assertTrue(table.isValid(0));
+    assertFalse(table.isValid(1));
+    assertEquals(table.getValidCount(), 2);
+  }
+
+  @Test(timeOut = 10000)
+  public void testVerifierGivesUpOnReadErrors() throws Exception {
+    final int pieceCount = 10;
+    ByteBuffer hashes = ByteBuffer.allocate(pieceCount * 20);
+    PieceTable table = new PieceTable(new MemoryStorage(ByteBuffer.allocate(pieceCount * PIECE_SIZE)) {
+      @Override
+      public int read(ByteBuffer buffer, long offset) {
+        throw new IllegalStateException("broken storage");
+      }
+    }, hashes, PIECE_SIZE, pieceCount, false, false, new PieceBufferPool(PIECE_SIZE, false));
+    final BitSet toVerify = new BitSet();
+    toVerify.set(0, pieceCount);
+
+    final PieceVerifier verifier = new PieceVerifier(1);
+    for (int round = 0; round < 2; round++) {
+      try {
+        verifier.verify(table, toVerify, NO_LISTENER);
+        fail();
+      } catch (IllegalStateException e) {
+        // the buffer taken for the read went back, verify() did not hang
+      }
+    }
+  }
+
+  private static final PieceVerifier.Listener NO_LISTENER = new PieceVerifier.Listener() {
+    public void pieceVerified(Piece piece) {
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+  };
+
+  private static class MemoryStorage implements TorrentByteStorage {
+
+    private final ByteBuffer myContent;
+
+    private MemoryStorage(ByteBuffer content) {
+      myContent = content;
+    }
+
+    public void open(boolean seeder) {
+    }
+
+    public long size() {
+      return myContent.capacity();
+    }
+
+    public int read(ByteBuffer buffer, long offset) {
+      ByteBuffer source = myContent.duplicate();
+      source.position((int) offset);
+      source.limit(Math.min(source.capacity(), (int) offset + buffer.remaining()));
+      int bytes = source.remaining();
+      buffer.put(source);
+      return bytes;
+    }
+
+    public int write(ByteBuffer block, long offset) {
+      ByteBuffer target = myContent.duplicate();
+      target.position((int) offset);
+      int bytes = block.remaining();
+      target.put(block);
+      return bytes;
+    }
+
+    public void close() {
+    }
+
+    public void finish() {
+    }
+
+    public boolean isFinished() {
+      return false;
+    }
+
+    public boolean isClosed() {
+      return false;
+    }
+
+    public void delete() {
+    }
+  }
+}
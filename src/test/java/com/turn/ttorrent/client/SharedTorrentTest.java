@@ -0,0 +1,209 @@
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.TempFiles;
+import com.turn.ttorrent.common.Torrent;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+@Test
+public class SharedTorrentTest {
+
+  private static final int PIECE_SIZE = 65536;
+  private static final int FILE_SIZE = 100000;
+
+  private TempFiles myTempFiles;
+  private Torrent myTorrent;
+  private File myDownloadDir;
+  private File mySourceDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    final File sourceDir = new File(myTempFiles.createTempDir(), "bundle");
+    mySourceDir = sourceDir;
+    final Random random = new Random();
+    final List<File> files = new ArrayList<File>();
+    for (String name : new String[]{"a", "b", "c"}) {
+      final byte[] content = new byte[FILE_SIZE];
+      random.nextBytes(content);
+      final File file = new File(sourceDir, name);
+      FileUtils.writeByteArrayToFile(file, content);
+      files.add(file);
+    }
+    myTorrent = Torrent.create(sourceDir, files, new URI("http://localhost:6969/announce"), null, "Test", PIECE_SIZE);
+    myDownloadDir = myTempFiles.createTempDir();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  public void testSkippedFileKeepsSharedPieces() throws Exception {
+    SharedTorrent torrent = new SharedTorrent(myTorrent, myDownloadDir, false);
+    assertEquals(torrent.getPieceCount(), 5);
+    assertEquals(torrent.getWantedPieces().cardinality(), 5);
+
+    // b spans [100000, 200000), i.e. pieces 1 to 3, sharing 1 and 3 with a and c
+    torrent.setFilePriority(fileIndex(torrent, "b"), DownloadPriority.SKIP);
+    BitSet expected = new BitSet();
+    expected.set(0, 2);
+    expected.set(3, 5);
+    assertEquals(torrent.getWantedPieces(), expected);
+
+    torrent.setRangePriority(2 * PIECE_SIZE, PIECE_SIZE, DownloadPriority.HIGH);
+    expected.set(2);
+    assertEquals(torrent.getWantedPieces(), expected);
+
+    torrent.setRangePriority(0, PIECE_SIZE + 1, DownloadPriority.SKIP);
+    expected.clear(0);
+    assertEquals(torrent.getWantedPieces(), expected);
+
+    torrent.clearRangePriorities();
+    expected.set(0);
+    expected.clear(2);
+    assertEquals(torrent.getWantedPieces(), expected);
+  }
+
+  public void testSkippedFileIsNotCreated() throws Exception {
+    SharedTorrent torrent = new SharedTorrent(myTorrent, myDownloadDir, false);
+    torrent.setFilePriority(fileIndex(torrent, "b"), DownloadPriority.SKIP);
+    torrent.init();
+
+    assertEquals(torrent.getCompletedPieces().cardinality(), 0);
+    final File a = new File(myDownloadDir, torrent.getFilenames().get(fileIndex(torrent, "a")));
+    final File b = new File(myDownloadDir, torrent.getFilenames().get(fileIndex(torrent, "b")));
+    assertTrue(new File(a.getPath() + ".part").exists());
+    assertFalse(b.exists());
+    assertFalse(new File(b.getPath() + ".part").exists());
+  }
+
+  public void testFinishesWithSkippedFile() throws Exception {
+    // b spans piece 2 only, shared with neither a nor c
+    final File sourceDir = new File(myTempFiles.createTempDir(), "aligned");
+    final Random random = new Random();
+    final List<File> files = new ArrayList<File>();
+    final int[] sizes = new int[]{2 * PIECE_SIZE, PIECE_SIZE, PIECE_SIZE + 5};
+    final String[] names = new String[]{"a", "b", "c"};
+    for (int i = 0; i < names.length; i++) {
+      final byte[] content = new byte[sizes[i]];
+      random.nextBytes(content);
+      final File file = new File(sourceDir, names[i]);
+      FileUtils.writeByteArrayToFile(file, content);
+      files.add(file);
+    }
+    final Torrent aligned = Torrent.create(sourceDir, files, new URI("http://localhost:6969/announce"), null, "Test", PIECE_SIZE);
+    for (String filename : aligned.getFilenames()) {
+      final String name = new File(filename).getName();
+      if (!name.equals("b")) {
+        FileUtils.copyFile(new File(sourceDir, name), new File(myDownloadDir, filename + ".part"));
+      }
+    }
+
+    SharedTorrent torrent = new SharedTorrent(aligned, myDownloadDir, false);
+    final int b = fileIndex(torrent, "b");
+    torrent.setFilePriority(b, DownloadPriority.SKIP);
+    torrent.init();
+    BitSet expected = new BitSet();
+    expected.set(0, 5);
+    expected.clear(2);
+    assertEquals(torrent.getCompletedPieces(), expected);
+    assertTrue(torrent.isComplete());
+    assertFalse(torrent.isFinished());
+
+    torrent.finish();
+    assertTrue(torrent.isFinished());
+    assertEquals(torrent.getClientState(), ClientState.SEEDING);
+    for (int i = 0; i < aligned.getFilenames().size(); i++) {
+      final File file = new File(myDownloadDir, aligned.getFilenames().get(i));
+      assertEquals(file.exists(), i != b, file.getName());
+      assertFalse(new File(file.getPath() + ".part").exists(), file.getName());
+    }
+    torrent.close();
+
+    // Wanting the file back makes the torrent incomplete again.
+    torrent.setFilePriority(b, DownloadPriority.NORMAL);
+    assertFalse(torrent.isComplete());
+    assertFalse(torrent.isFinished());
+  }
+
+  public void testResumeTrustsUnchangedFiles() throws Exception {
+    final File resumeFile = new File(myTempFiles.createTempDir(), "torrent.resume");
+    final List<File> files = new ArrayList<File>();
+    for (String filename : myTorrent.getFilenames()) {
+      final File file = new File(myDownloadDir, filename);
+      FileUtils.copyFile(new File(mySourceDir, new File(filename).getName()), file);
+      file.setLastModified(1000000000000L);
+      files.add(file);
+    }
+
+    SharedTorrent torrent = new SharedTorrent(myTorrent, myDownloadDir, false);
+    torrent.setResumeFile(resumeFile);
+    torrent.init();
+    assertTrue(torrent.isComplete());
+    torrent.close();
+    assertTrue(resumeFile.exists());
+
+    // a is corrupted behind our back, but looks unchanged: it is trusted.
+    // c is changed, its pieces 3 and 4 are hashed again.
+    final File a = files.get(fileIndex(torrent, "a"));
+    final File c = files.get(fileIndex(torrent, "c"));
+    FileUtils.writeByteArrayToFile(a, new byte[FILE_SIZE]);
+    a.setLastModified(1000000000000L);
+    FileUtils.writeByteArrayToFile(c, new byte[FILE_SIZE]);
+    c.setLastModified(2000000000000L);
+
+    torrent = new SharedTorrent(myTorrent, myDownloadDir, false);
+    torrent.setResumeFile(resumeFile);
+    torrent.init();
+    BitSet expected = new BitSet();
+    expected.set(0, 3);
+    assertEquals(torrent.getCompletedPieces(), expected);
+    assertEquals(torrent.getLeft(), 3L * FILE_SIZE - 3 * PIECE_SIZE);
+    // incomplete, the record would go stale with the first write
+    assertFalse(resumeFile.exists());
+    torrent.close();
+  }
+
+  public void testLocalDataVerified() throws Exception {
+    for (String filename : myTorrent.getFilenames()) {
+      FileUtils.copyFile(new File(mySourceDir, new File(filename).getName()),
+        new File(myDownloadDir, filename));
+    }
+    // b spans pieces 1 to 3
+    FileUtils.writeByteArrayToFile(
+      new File(myDownloadDir, myTorrent.getFilenames().get(1)), new byte[FILE_SIZE]);
+
+    for (boolean multiThreadHash : new boolean[]{false, true}) {
+      SharedTorrent torrent = new SharedTorrent(myTorrent, myDownloadDir, multiThreadHash);
+      torrent.init();
+      BitSet expected = new BitSet();
+      expected.set(0);
+      expected.set(4);
+      assertEquals(torrent.getCompletedPieces(), expected);
+      assertEquals(torrent.getValidationProgress(), 100.0f);
+      torrent.close();
+    }
+  }
+
+  private int fileIndex(SharedTorrent torrent, String name) {
+    final List<String> filenames = torrent.getFilenames();
+    for (int i = 0; i < filenames.size(); i++) {
+      if (new File(filenames.get(i)).getName().equals(name)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException(name);
+  }
+}
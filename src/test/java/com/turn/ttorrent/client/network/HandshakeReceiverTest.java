@@ -88,7 +88,7 @@ public class HandshakeReceiverTest {
     when(myContext.getTorrentLoader()).thenReturn(torrentsLoader);
     final ExecutorService executorService = Executors.newFixedThreadPool(1);
     when(myContext.getExecutor()).thenReturn(executorService);
-    myContext.getTorrentsStorage().addAnnounceableTorrent(hs.getHexInfoHash(), announceableFileTorrent);
+    myContext.getTorrentsStorage().addAnnounceableTorrent(new InfoHash(hs.getInfoHash()), announceableFileTorrent);
 
     final AtomicBoolean onConnectionEstablishedInvoker = new AtomicBoolean(false);
 
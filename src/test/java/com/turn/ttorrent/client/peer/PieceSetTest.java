@@ -0,0 +1,91 @@
+package com.turn.ttorrent.client.peer;
+
+import org.testng.annotations.Test;
+
+import java.util.BitSet;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PieceSetTest {
+
+  public void testSparseSet() {
+    PieceSet set = new PieceSet(1000);
+    assertTrue(set.isEmpty());
+    assertTrue(set.add(500));
+    assertTrue(set.add(3));
+    assertTrue(set.add(999));
+    assertFalse(set.add(3));
+    assertFalse(set.add(1000));
+
+    assertEquals(set.cardinality(), 3);
+    assertTrue(set.get(500));
+    assertFalse(set.get(501));
+    assertEquals(set.nextSetBit(0), 3);
+    assertEquals(set.nextSetBit(4), 500);
+    assertEquals(set.nextSetBit(501), 999);
+    assertEquals(set.nextSetBit(1000), -1);
+
+    BitSet expected = new BitSet();
+    expected.set(3);
+    expected.set(500);
+    expected.set(999);
+    assertEquals(set.toBitSet(), expected);
+  }
+
+  public void testGrowsToDenseThenAll() {
+    PieceSet set = new PieceSet(200);
+    for (int i = 199; i >= 0; i -= 2) {
+      assertTrue(set.add(i));
+    }
+    assertEquals(set.cardinality(), 100);
+    assertFalse(set.isAll());
+    assertEquals(set.nextSetBit(0), 1);
+
+    for (int i = 0; i < 200; i += 2) {
+      assertTrue(set.add(i));
+    }
+    assertTrue(set.isAll());
+    assertEquals(set.cardinality(), 200);
+    assertTrue(set.get(42));
+    assertFalse(set.add(42));
+  }
+
+  public void testAddAllKeepsOnlyNewPieces() {
+    PieceSet set = new PieceSet(100);
+    set.add(10);
+    BitSet bitfield = new BitSet();
+    bitfield.set(5, 15);
+    bitfield.set(120);
+    set.addAll(bitfield);
+
+    BitSet expected = new BitSet();
+    expected.set(5, 15);
+    expected.clear(10);
+    assertEquals(bitfield, expected);
+    assertEquals(set.cardinality(), 10);
+
+    BitSet all = new BitSet();
+    all.set(0, 100);
+    set.addAll(all);
+    assertTrue(set.isAll());
+    assertEquals(all.cardinality(), 90);
+  }
+
+  public void testIsSubsetOf() {
+    PieceSet set = new PieceSet(64);
+    BitSet other = new BitSet();
+    assertTrue(set.isSubsetOf(other));
+    set.add(7);
+    assertFalse(set.isSubsetOf(other));
+    other.set(7);
+    assertTrue(set.isSubsetOf(other));
+
+    BitSet all = new BitSet();
+    all.set(0, 64);
+    set.addAll(all);
+    assertFalse(set.isSubsetOf(other));
+    other.set(0, 64);
+    assertTrue(set.isSubsetOf(other));
+  }
+}
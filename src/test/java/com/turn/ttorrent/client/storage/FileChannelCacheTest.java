@@ -0,0 +1,79 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.TempFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.*;
+
+@Test
+public class FileChannelCacheTest {
+
+  private TempFiles myTempFiles;
+
+  @BeforeMethod
+  public void setUp() {
+    myTempFiles = new TempFiles();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  public void testLeastRecentlyUsedIdleFileIsClosed() throws Exception {
+    FileChannelCache cache = new FileChannelCache(2, 0);
+    File a = myTempFiles.createTempFile(10);
+    File b = myTempFiles.createTempFile(10);
+    File c = myTempFiles.createTempFile(10);
+
+    FileChannelCache.Handle first = cache.acquire(a, false);
+    cache.release(first);
+    FileChannelCache.Handle second = cache.acquire(a, false);
+    assertSame(second, first);
+    cache.release(second);
+
+    FileChannelCache.Handle leased = cache.acquire(b, false);
+    cache.release(cache.acquire(c, false));
+    assertEquals(cache.getOpenFiles(), 2);
+    assertEquals(cache.getEvictions(), 1);
+    assertFalse(first.getChannel().isOpen());
+    assertTrue(leased.getChannel().isOpen());
+    assertEquals(cache.getOpens(), 3);
+    assertEquals(cache.getHitRate(), 0.25, 0.0001);
+    cache.release(leased);
+  }
+
+  public void testLeasedFilesAreNotClosed() throws Exception {
+    FileChannelCache cache = new FileChannelCache(1, 0);
+    FileChannelCache.Handle a = cache.acquire(myTempFiles.createTempFile(10), true);
+    FileChannelCache.Handle b = cache.acquire(myTempFiles.createTempFile(10), true);
+    assertEquals(cache.getOpenFiles(), 2);
+    assertTrue(a.getChannel().isOpen());
+
+    cache.release(a);
+    assertFalse(a.getChannel().isOpen());
+    assertTrue(b.getChannel().isOpen());
+    cache.release(b);
+  }
+
+  public void testInvalidateAndIdleTimeout() throws Exception {
+    FileChannelCache cache = new FileChannelCache(10, 1);
+    File file = myTempFiles.createTempFile(10);
+    FileChannelCache.Handle handle = cache.acquire(file, true);
+    cache.invalidate(file);
+    assertTrue(handle.getChannel().isOpen());
+    cache.release(handle);
+    assertFalse(handle.getChannel().isOpen());
+
+    handle = cache.acquire(file, true);
+    cache.release(handle);
+    Thread.sleep(5);
+    cache.closeIdle();
+    assertFalse(handle.getChannel().isOpen());
+    assertEquals(cache.getOpenFiles(), 0);
+  }
+}
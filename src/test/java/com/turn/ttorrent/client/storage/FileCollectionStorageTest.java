@@ -0,0 +1,83 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.TempFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+@Test
+public class FileCollectionStorageTest {
+
+  // An empty file in the middle and many small files, across pieces of 10
+  private static final int[] SIZES = {7, 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 25};
+
+  private TempFiles myTempFiles;
+
+  @BeforeMethod
+  public void setUp() {
+    myTempFiles = new TempFiles();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  public void testReadWriteWithPieceIndex() throws Exception {
+    checkRoundTrip(10);
+  }
+
+  public void testReadWriteWithoutPieceIndex() throws Exception {
+    checkRoundTrip(0);
+  }
+
+  private void checkRoundTrip(long pieceLength) throws Exception {
+    final File dir = myTempFiles.createTempDir();
+    final List<FileStorage> files = new ArrayList<FileStorage>();
+    long offset = 0;
+    for (int i = 0; i < SIZES.length; i++) {
+      files.add(new FileStorage(new File(dir, "file" + i), offset, SIZES[i]));
+      offset += SIZES[i];
+    }
+    final int size = (int) offset;
+    final FileCollectionStorage storage = new FileCollectionStorage(files, size, pieceLength);
+    storage.open(false);
+
+    final byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) i;
+    }
+    // every possible chunk of 4 bytes, so that every file boundary is crossed
+    for (int start = 0; start + 4 <= size; start += 4) {
+      assertEquals(storage.write(ByteBuffer.wrap(content, start, 4), start), 4);
+    }
+    assertEquals(storage.write(ByteBuffer.wrap(content, size - 4, 4), size - 4), 4);
+
+    for (int start = 0; start < size; start++) {
+      final int length = Math.min(5, size - start);
+      final ByteBuffer buffer = ByteBuffer.allocate(length);
+      assertEquals(storage.read(buffer, start), length);
+      for (int i = 0; i < length; i++) {
+        assertEquals(buffer.get(i), content[start + i], "byte " + (start + i));
+      }
+    }
+    assertEquals(new File(dir, "file3.part").length(), 1);
+    storage.close();
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testOverrun() throws Exception {
+    final File dir = myTempFiles.createTempDir();
+    final List<FileStorage> files = new ArrayList<FileStorage>();
+    files.add(new FileStorage(new File(dir, "a"), 0, 10));
+    final FileCollectionStorage storage = new FileCollectionStorage(files, 10, 4);
+    storage.read(ByteBuffer.allocate(5), 6);
+  }
+}
@@ -0,0 +1,72 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.TempFiles;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+@Test
+public class MappedFileStorageTest {
+
+  private static final int WINDOW_SIZE = 4096;
+  private static final int FILE_SIZE = 3 * WINDOW_SIZE + 100;
+
+  private TempFiles myTempFiles;
+
+  @BeforeMethod
+  public void setUp() {
+    myTempFiles = new TempFiles();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  public void testWriteAcrossWindowsAndFinish() throws Exception {
+    final File target = new File(myTempFiles.createTempDir(), "data");
+    final byte[] content = new byte[FILE_SIZE];
+    new Random().nextBytes(content);
+
+    MappedFileStorage storage = new MappedFileStorage(target, 0, FILE_SIZE, WINDOW_SIZE);
+    storage.open(false);
+    // a block straddling two windows, then the rest
+    final int middle = WINDOW_SIZE + 10;
+    assertEquals(storage.write(ByteBuffer.wrap(content, middle - 100, 200), middle - 100), 200);
+    assertEquals(storage.write(ByteBuffer.wrap(content, 0, middle - 100), 0), middle - 100);
+    assertEquals(storage.write(ByteBuffer.wrap(content, middle + 100, FILE_SIZE - middle - 100), middle + 100),
+      FILE_SIZE - middle - 100);
+
+    ByteBuffer buffer = ByteBuffer.allocate(2 * WINDOW_SIZE);
+    assertEquals(storage.read(buffer, WINDOW_SIZE / 2), 2 * WINDOW_SIZE);
+    buffer.flip();
+    for (int i = 0; i < buffer.limit(); i++) {
+      assertEquals(buffer.get(i), content[WINDOW_SIZE / 2 + i]);
+    }
+
+    storage.finish();
+    storage.close();
+    assertTrue(storage.isFinished());
+    assertEquals(FileUtils.readFileToByteArray(target), content);
+  }
+
+  public void testSeederReadsExistingFile() throws Exception {
+    final File target = myTempFiles.createTempFile(FILE_SIZE);
+    final byte[] content = FileUtils.readFileToByteArray(target);
+
+    MappedFileStorage storage = new MappedFileStorage(target, 0, FILE_SIZE, WINDOW_SIZE);
+    storage.open(true);
+    ByteBuffer buffer = ByteBuffer.allocate(200);
+    assertEquals(storage.read(buffer, FILE_SIZE - 200), 200);
+    assertEquals(buffer.get(199), content[FILE_SIZE - 1]);
+    storage.close();
+    assertTrue(storage.isClosed());
+  }
+}
@@ -0,0 +1,89 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.TempFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compares {@link FileStorage} and {@link MappedFileStorage} on sequential
+ * and random piece access. Not run as part of the test suite:
+ *
+ * <pre>
+ *   java -cp ... com.turn.ttorrent.client.storage.StorageBenchmark [size in MiB]
+ * </pre>
+ */
+public class StorageBenchmark {
+
+  private static final int PIECE_SIZE = 256 * 1024;
+  private static final int BLOCK_SIZE = 16 * 1024;
+  private static final int ROUNDS = 3;
+
+  public static void main(String[] args) throws IOException {
+    final long size = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+    final TempFiles tempFiles = new TempFiles();
+    try {
+      final File dir = tempFiles.createTempDir();
+      for (int round = 0; round < ROUNDS; round++) {
+        run("channel", new FileStorage(new File(dir, "channel-" + round), 0, size), size);
+        run("mapped", new MappedFileStorage(new File(dir, "mapped-" + round), 0, size), size);
+      }
+    } finally {
+      tempFiles.cleanup();
+    }
+  }
+
+  private static void run(String name, FileStorage storage, long size) throws IOException {
+    final int pieces = (int) (size / PIECE_SIZE);
+    final int[] order = new int[pieces];
+    for (int i = 0; i < pieces; i++) {
+      order[i] = i;
+    }
+    final Random random = new Random(42);
+    for (int i = pieces - 1; i > 0; i--) {
+      final int j = random.nextInt(i + 1);
+      final int swap = order[i];
+      order[i] = order[j];
+      order[j] = swap;
+    }
+    final ByteBuffer piece = ByteBuffer.allocate(PIECE_SIZE);
+    random.nextBytes(piece.array());
+    final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+    storage.open(false);
+    try {
+      long start = System.nanoTime();
+      for (int i = 0; i < pieces; i++) {
+        piece.clear();
+        storage.write(piece, (long) order[i] * PIECE_SIZE);
+      }
+      report(name, "random piece writes", start, size);
+
+      start = System.nanoTime();
+      for (long offset = 0; offset + BLOCK_SIZE <= size; offset += BLOCK_SIZE) {
+        block.clear();
+        storage.read(block, offset);
+      }
+      report(name, "sequential block reads", start, size);
+
+      start = System.nanoTime();
+      for (int i = 0; i < pieces; i++) {
+        for (int offset = 0; offset < PIECE_SIZE; offset += BLOCK_SIZE) {
+          block.clear();
+          storage.read(block, (long) order[i] * PIECE_SIZE + offset);
+        }
+      }
+      report(name, "random piece reads", start, size);
+    } finally {
+      storage.close();
+    }
+  }
+
+  private static void report(String name, String operation, long startNanos, long bytes) {
+    final double seconds = (System.nanoTime() - startNanos) / 1e9;
+    System.out.println(String.format("%-8s %-24s %8.1f MiB/s", name, operation,
+      bytes / seconds / (1024 * 1024)));
+  }
+}
@@ -0,0 +1,165 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.TempFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Measures upload reads while pieces of the same file are being written,
+ * with the storage's concurrent positional I/O and with writes holding an
+ * exclusive lock, as {@link FileStorage} used to. Not run as part of the
+ * test suite:
+ *
+ * <pre>
+ *   java -cp ... com.turn.ttorrent.client.storage.StorageContentionBenchmark [size in MiB]
+ * </pre>
+ */
+public class StorageContentionBenchmark {
+
+  private static final int PIECE_SIZE = 256 * 1024;
+  private static final int BLOCK_SIZE = 16 * 1024;
+  private static final int READERS = 4;
+  private static final int WRITERS = 2;
+  private static final long DURATION_MS = 3000;
+
+  public static void main(String[] args) throws Exception {
+    final long size = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+    final TempFiles tempFiles = new TempFiles();
+    try {
+      final File dir = tempFiles.createTempDir();
+      for (int round = 0; round < 2; round++) {
+        final FileStorage concurrent = new FileStorage(new File(dir, "concurrent-" + round), 0, size);
+        run("concurrent", concurrent, concurrent, size);
+        final FileStorage exclusive = new FileStorage(new File(dir, "exclusive-" + round), 0, size);
+        run("exclusive", new ExclusiveWriteStorage(exclusive), exclusive, size);
+      }
+    } finally {
+      tempFiles.cleanup();
+    }
+  }
+
+  private static void run(String name, final TorrentByteStorage storage, FileStorage file, final long size)
+    throws Exception {
+    file.open(false);
+    final int pieces = (int) (size / PIECE_SIZE);
+    final long deadline = System.currentTimeMillis() + DURATION_MS;
+    final AtomicLong readBytes = new AtomicLong();
+    final AtomicLong writtenBytes = new AtomicLong();
+    final List<Thread> threads = new ArrayList<Thread>();
+
+    for (int i = 0; i < READERS; i++) {
+      final long seed = i;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          final Random random = new Random(seed);
+          final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+          try {
+            while (System.currentTimeMillis() < deadline) {
+              block.clear();
+              readBytes.addAndGet(storage.read(block, (long) random.nextInt(pieces) * PIECE_SIZE));
+            }
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+    }
+    for (int i = 0; i < WRITERS; i++) {
+      final int first = i;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          final ByteBuffer piece = ByteBuffer.allocate(PIECE_SIZE);
+          try {
+            for (int p = first; System.currentTimeMillis() < deadline; p = (p + WRITERS) % pieces) {
+              piece.clear();
+              writtenBytes.addAndGet(storage.write(piece, (long) p * PIECE_SIZE));
+            }
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    file.close();
+
+    final double seconds = DURATION_MS / 1000.0;
+    System.out.println(String.format("%-10s reads %8.1f MiB/s, writes %8.1f MiB/s", name,
+      readBytes.get() / seconds / (1024 * 1024), writtenBytes.get() / seconds / (1024 * 1024)));
+  }
+
+  /**
+   * The previous locking model: writes exclude every read and write.
+   */
+  private static class ExclusiveWriteStorage implements TorrentByteStorage {
+
+    private final TorrentByteStorage myDelegate;
+    private final ReadWriteLock myLock = new ReentrantReadWriteLock();
+
+    private ExclusiveWriteStorage(TorrentByteStorage delegate) {
+      myDelegate = delegate;
+    }
+
+    public void open(boolean seeder) throws IOException {
+      myDelegate.open(seeder);
+    }
+
+    public long size() {
+      return myDelegate.size();
+    }
+
+    public int read(ByteBuffer buffer, long offset) throws IOException {
+      myLock.readLock().lock();
+      try {
+        return myDelegate.read(buffer, offset);
+      } finally {
+        myLock.readLock().unlock();
+      }
+    }
+
+    public int write(ByteBuffer block, long offset) throws IOException {
+      myLock.writeLock().lock();
+      try {
+        return myDelegate.write(block, offset);
+      } finally {
+        myLock.writeLock().unlock();
+      }
+    }
+
+    public void close() throws IOException {
+      myDelegate.close();
+    }
+
+    public void finish() throws IOException {
+      myDelegate.finish();
+    }
+
+    public boolean isFinished() {
+      return myDelegate.isFinished();
+    }
+
+    public boolean isClosed() {
+      return myDelegate.isClosed();
+    }
+
+    public void delete() throws IOException {
+      myDelegate.delete();
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.common.MockTimeService;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+@Test
+public class WriteBackCacheStorageTest {
+
+  private static final int BLOCK = 1024;
+
+  public void testAdjacentBlocksAreCoalesced() throws Exception {
+    MemoryStorage memory = new MemoryStorage(4 * BLOCK);
+    WriteBackCacheStorage cache = new WriteBackCacheStorage(memory, new WriteBackFlusher(16 * BLOCK));
+
+    cache.write(block(3, BLOCK), 3 * BLOCK);
+    cache.write(block(1, BLOCK), BLOCK);
+    cache.write(block(0, BLOCK), 0);
+    assertEquals(cache.getDirtyBytes(), 3 * BLOCK);
+    assertTrue(memory.writes.isEmpty());
+
+    cache.flush();
+    assertEquals(cache.getDirtyBytes(), 0);
+    assertEquals(cache.getFlushedBytes(), 3 * BLOCK);
+    // blocks 0 and 1 in one write, then block 3, in offset order
+    assertEquals(memory.writes.size(), 2);
+    assertEquals(memory.writes.get(0), Long.valueOf(0));
+    assertEquals(memory.writes.get(1), Long.valueOf(3 * BLOCK));
+    assertEquals(memory.content.get(BLOCK), 1);
+    assertEquals(memory.content.get(4 * BLOCK - 1), 3);
+    cache.close();
+  }
+
+  public void testReadsSeeDirtyBytes() throws Exception {
+    MemoryStorage memory = new MemoryStorage(4 * BLOCK);
+    WriteBackCacheStorage cache = new WriteBackCacheStorage(memory, new WriteBackFlusher(16 * BLOCK));
+    cache.write(block(7, BLOCK), BLOCK);
+
+    ByteBuffer buffer = ByteBuffer.allocate(2 * BLOCK);
+    assertEquals(cache.read(buffer, BLOCK / 2), 2 * BLOCK);
+    assertEquals(buffer.get(0), 0);
+    assertEquals(buffer.get(BLOCK / 2), 7);
+    assertEquals(buffer.get(3 * BLOCK / 2 - 1), 7);
+    assertEquals(buffer.get(3 * BLOCK / 2), 0);
+    cache.close();
+  }
+
+  public void testCloseFlushes() throws Exception {
+    MemoryStorage memory = new MemoryStorage(4 * BLOCK);
+    WriteBackCacheStorage cache = new WriteBackCacheStorage(memory, new WriteBackFlusher(BLOCK));
+    cache.write(block(1, BLOCK), 0);
+    // over the budget: waits for the flusher thread
+    cache.write(block(2, BLOCK), 2 * BLOCK);
+    cache.close();
+
+    assertEquals(cache.getDirtyBytes(), 0);
+    assertEquals(memory.content.get(0), 1);
+    assertEquals(memory.content.get(2 * BLOCK), 2);
+    assertTrue(memory.closed);
+  }
+
+  public void testWritesAfterCloseAreRejected() throws Exception {
+    WriteBackFlusher flusher = new WriteBackFlusher(16 * BLOCK);
+    MemoryStorage memory = new MemoryStorage(4 * BLOCK);
+    WriteBackCacheStorage cache = new WriteBackCacheStorage(memory, flusher);
+    cache.write(block(1, BLOCK), 0);
+    cache.close();
+
+    try {
+      cache.write(block(2, BLOCK), BLOCK);
+      fail();
+    } catch (ClosedChannelException e) {
+      // expected
+    }
+    assertEquals(flusher.getDirtyBytes(), 0);
+    assertEquals(memory.writes.size(), 1);
+
+    cache.open(false);
+    cache.write(block(2, BLOCK), BLOCK);
+    cache.close();
+    assertEquals(memory.content.get(BLOCK), 2);
+  }
+
+  public void testCachesShareTheBudget() throws Exception {
+    WriteBackFlusher flusher = new WriteBackFlusher(BLOCK);
+    MemoryStorage first = new MemoryStorage(4 * BLOCK);
+    MemoryStorage second = new MemoryStorage(4 * BLOCK);
+    WriteBackCacheStorage firstCache = new WriteBackCacheStorage(first, flusher);
+    WriteBackCacheStorage secondCache = new WriteBackCacheStorage(second, flusher);
+
+    firstCache.write(block(1, BLOCK), 0);
+    // the budget is used up by the other cache: waits for it to be flushed
+    secondCache.write(block(2, BLOCK), 0);
+    assertEquals(firstCache.getDirtyBytes(), 0);
+    assertEquals(first.content.get(0), 1);
+    assertTrue(flusher.getDirtyBytes() <= BLOCK);
+
+    firstCache.close();
+    secondCache.close();
+    assertEquals(flusher.getDirtyBytes(), 0);
+    assertEquals(second.content.get(0), 2);
+  }
+
+  @Test(timeOut = 10000)
+  public void testFailingCacheLeavesTheBudget() throws Exception {
+    MemoryStorage broken = new MemoryStorage(4 * BLOCK) {
+      @Override
+      public synchronized int write(ByteBuffer block, long offset) throws IOException {
+        throw new IOException("No space left on device");
+      }
+    };
+    MemoryStorage healthy = new MemoryStorage(4 * BLOCK);
+    WriteBackFlusher flusher = new WriteBackFlusher(2 * BLOCK);
+    WriteBackCacheStorage brokenCache = new WriteBackCacheStorage(broken, flusher);
+    WriteBackCacheStorage healthyCache = new WriteBackCacheStorage(healthy, flusher);
+
+    brokenCache.write(block(1, BLOCK), 0);
+    try {
+      brokenCache.flush();
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(brokenCache.getDirtyBytes(), BLOCK);
+    assertEquals(flusher.getDirtyBytes(), 0);
+    try {
+      brokenCache.write(block(2, BLOCK), BLOCK);
+      fail();
+    } catch (IOException e) {
+      // writers of the failing cache fail fast
+    }
+
+    // the whole budget is left to the other cache
+    healthyCache.write(block(3, 2 * BLOCK), 0);
+    healthyCache.close();
+    assertEquals(healthy.content.get(2 * BLOCK - 1), 3);
+    try {
+      brokenCache.close();
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(flusher.getDirtyBytes(), 0);
+  }
+
+  @Test(timeOut = 60000)
+  public void testFailedFlushesBackOff() throws Exception {
+    final Semaphore attempts = new Semaphore(0);
+    MemoryStorage broken = new MemoryStorage(4 * BLOCK) {
+      @Override
+      public synchronized int write(ByteBuffer block, long offset) throws IOException {
+        attempts.release();
+        throw new IOException("No space left on device");
+      }
+    };
+    MemoryStorage healthy = new MemoryStorage(4 * BLOCK);
+    MockTimeService time = new MockTimeService();
+    WriteBackFlusher flusher = new WriteBackFlusher(2 * BLOCK, time);
+    WriteBackCacheStorage cache = new WriteBackCacheStorage(broken, flusher);
+    WriteBackCacheStorage healthyCache = new WriteBackCacheStorage(healthy, flusher);
+
+    // at the flush threshold: the flusher tries right away, then backs off
+    cache.write(block(1, BLOCK), 0);
+    assertTrue(attempts.tryAcquire(10, TimeUnit.SECONDS));
+    long delay = 1000;
+    awaitRetryDelay(flusher, cache, delay);
+
+    long now = 0;
+    for (int i = 0; i < 7; i++) {
+      now += delay;
+      time.setTime(now);
+      // reaching the threshold wakes the flusher up
+      healthyCache.write(block(2, BLOCK), 0);
+      assertTrue(attempts.tryAcquire(10, TimeUnit.SECONDS));
+      delay = Math.min(delay * 2, 60 * 1000);
+      awaitRetryDelay(flusher, cache, delay);
+    }
+    assertEquals(delay, 60 * 1000);
+    // the clock did not move since: no other attempt
+    assertEquals(attempts.availablePermits(), 0);
+
+    try {
+      cache.write(block(2, BLOCK), BLOCK);
+      fail();
+    } catch (IOException e) {
+      // the flush error is reported to the writer
+    }
+    try {
+      cache.close();
+      fail();
+    } catch (IOException e) {
+      // the data could not be written out
+    }
+    healthyCache.close();
+    assertEquals(flusher.getDirtyBytes(), 0);
+    assertTrue(broken.closed);
+  }
+
+  private static void awaitRetryDelay(WriteBackFlusher flusher, WriteBackCacheStorage cache, long delay)
+    throws InterruptedException {
+    while (flusher.getRetryDelay(cache) != delay) {
+      Thread.sleep(1);
+    }
+  }
+
+  private static ByteBuffer block(int value, int length) {
+    ByteBuffer block = ByteBuffer.allocate(length);
+    while (block.hasRemaining()) {
+      block.put((byte) value);
+    }
+    block.flip();
+    return block;
+  }
+
+  private static class MemoryStorage implements TorrentByteStorage {
+
+    private final ByteBuffer content;
+    private final List<Long> writes = new ArrayList<Long>();
+    private volatile boolean closed = false;
+
+    private MemoryStorage(int size) {
+      content = ByteBuffer.allocate(size);
+    }
+
+    public void open(boolean seeder) {
+    }
+
+    public long size() {
+      return content.capacity();
+    }
+
+    public synchronized int read(ByteBuffer buffer, long offset) {
+      ByteBuffer source = content.duplicate();
+      source.position((int) offset);
+      source.limit((int) offset + buffer.remaining());
+      int bytes = source.remaining();
+      buffer.put(source);
+      return bytes;
+    }
+
+    public synchronized int write(ByteBuffer block, long offset) throws IOException {
+      writes.add(offset);
+      ByteBuffer target = content.duplicate();
+      target.position((int) offset);
+      int bytes = block.remaining();
+      target.put(block);
+      return bytes;
+    }
+
+    public void close() {
+      closed = true;
+    }
+
+    public void finish() {
+    }
+
+    public boolean isFinished() {
+      return false;
+    }
+
+    public boolean isClosed() {
+      return closed;
+    }
+
+    public void delete() {
+    }
+  }
+}
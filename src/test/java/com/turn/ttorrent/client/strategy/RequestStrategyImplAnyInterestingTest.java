@@ -1,42 +1,32 @@
 package com.turn.ttorrent.client.strategy;
 
-import com.turn.ttorrent.client.Piece;
 import org.testng.Assert;
-import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import java.util.BitSet;
-import java.util.SortedSet;
 
 public class RequestStrategyImplAnyInterestingTest {
 
-  private final SortedSet<Piece> myRarest = null;//myRarest don't need for it strategy
+  private final PieceAvailability myAvailability = null;//availability don't need for it strategy
   private final int myPiecesTotal = 10;
-  private final Piece[] myPieces = new Piece[myPiecesTotal];
+  private final int[] myPicks = new int[myPiecesTotal];
   private final RequestStrategy myRequestStrategy = new RequestStrategyImplAnyInteresting();
 
-  @BeforeClass
-  public void init() {
-    for (int i = 0; i < myPieces.length; i++) {
-      myPieces[i] = new Piece(null, i, 0, 0, new byte[0], false, false);
-    }
-  }
-
   @Test
   public void choosePieceNoInterestingTest() {
-    Piece actual = myRequestStrategy.choosePiece(myRarest, new BitSet(), myPieces);
-    Assert.assertNull(actual);
+    int actual = myRequestStrategy.choosePieces(new BitSet(), myAvailability, 0, myPicks, 1);
+    Assert.assertEquals(actual, 0);
   }
 
   @Test
   public void choosePieceOneInterestingTest() {
     BitSet interesting = new BitSet();
-    for (int i = 0; i < myPieces.length; i++) {
+    for (int i = 0; i < myPiecesTotal; i++) {
       interesting.clear();
       interesting.set(i);
-      Piece expected = myPieces[i];
-      Piece actual = myRequestStrategy.choosePiece(myRarest, interesting, myPieces);
-      Assert.assertEquals(expected, actual);
+      int actual = myRequestStrategy.choosePieces(interesting, myAvailability, 0, myPicks, 1);
+      Assert.assertEquals(actual, 1);
+      Assert.assertEquals(myPicks[0], i);
     }
   }
 
@@ -46,8 +36,24 @@ public class RequestStrategyImplAnyInterestingTest {
     int interestingFrom = 1;
     int interestingTo = 5;
     interesting.set(interestingFrom, interestingTo);
-    Piece actual = myRequestStrategy.choosePiece(myRarest, interesting, myPieces);
-    Assert.assertTrue(actual.getIndex() >= interestingFrom && actual.getIndex() <= interestingTo);
+    int actual = myRequestStrategy.choosePieces(interesting, myAvailability, 0, myPicks, 1);
+    Assert.assertEquals(actual, 1);
+    Assert.assertTrue(myPicks[0] >= interestingFrom && myPicks[0] <= interestingTo);
+  }
+
+  @Test
+  public void chooseSeveralPiecesTest() {
+    BitSet interesting = new BitSet();
+    interesting.set(2);
+    interesting.set(5);
+    interesting.set(7);
+    int actual = myRequestStrategy.choosePieces(interesting, myAvailability, 0, myPicks, myPicks.length);
+    Assert.assertEquals(actual, 3);
+    BitSet chosen = new BitSet();
+    for (int i = 0; i < actual; i++) {
+      chosen.set(myPicks[i]);
+    }
+    Assert.assertEquals(chosen, interesting);
   }
 
 }
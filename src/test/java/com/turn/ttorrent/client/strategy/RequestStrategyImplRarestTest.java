@@ -0,0 +1,61 @@
+package com.turn.ttorrent.client.strategy;
+
+import com.turn.ttorrent.client.AvailabilityIndex;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.BitSet;
+
+public class RequestStrategyImplRarestTest {
+
+  private final int[] myPicks = new int[10];
+  private final RequestStrategy myRequestStrategy = new RequestStrategyImplRarest();
+
+  @Test
+  public void choosePieceNoInterestingTest() {
+    AvailabilityIndex availability = new AvailabilityIndex(10);
+    availability.increment(3);
+    int actual = myRequestStrategy.choosePieces(new BitSet(), availability, 0, myPicks, 1);
+    Assert.assertEquals(actual, 0);
+  }
+
+  @Test
+  public void chooseOnlyInterestingPiecesTest() {
+    AvailabilityIndex availability = new AvailabilityIndex(100);
+    BitSet all = new BitSet();
+    all.set(0, 100);
+    availability.increment(all);
+
+    BitSet interesting = new BitSet();
+    interesting.set(10);
+    interesting.set(20);
+    interesting.set(30);
+    int actual = myRequestStrategy.choosePieces(interesting, availability, 0, myPicks, myPicks.length);
+    Assert.assertEquals(actual, 3);
+    BitSet chosen = new BitSet();
+    for (int i = 0; i < actual; i++) {
+      chosen.set(myPicks[i]);
+    }
+    Assert.assertEquals(chosen, interesting);
+  }
+
+  @Test
+  public void chooseRarestPiecesTest() {
+    AvailabilityIndex availability = new AvailabilityIndex(200);
+    BitSet all = new BitSet();
+    all.set(0, 200);
+    BitSet common = new BitSet();
+    common.set(0, 100);
+    availability.increment(all);
+    availability.increment(common);
+
+    int actual = myRequestStrategy.choosePieces(all, availability, 0, myPicks, myPicks.length);
+    Assert.assertEquals(actual, myPicks.length);
+    BitSet chosen = new BitSet();
+    for (int i = 0; i < actual; i++) {
+      Assert.assertTrue(myPicks[i] >= 100, "piece " + myPicks[i] + " is not among the rarest");
+      chosen.set(myPicks[i]);
+    }
+    Assert.assertEquals(chosen.cardinality(), actual);
+  }
+}
@@ -0,0 +1,38 @@
+package com.turn.ttorrent.client.strategy;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.BitSet;
+
+public class RequestStrategyImplSequentialTest {
+
+  private final int[] myPicks = new int[3];
+  private final RequestStrategy myRequestStrategy = new RequestStrategyImplSequential();
+
+  @Test
+  public void choosePiecesInOrderTest() {
+    BitSet interesting = new BitSet();
+    interesting.set(7);
+    interesting.set(2);
+    interesting.set(40);
+    interesting.set(41);
+    int actual = myRequestStrategy.choosePieces(interesting, null, 0, myPicks, myPicks.length);
+    Assert.assertEquals(actual, 3);
+    Assert.assertEquals(myPicks, new int[]{2, 7, 40});
+  }
+
+  @Test
+  public void choosePiecesFromCursorTest() {
+    BitSet interesting = new BitSet();
+    interesting.set(3);
+    interesting.set(1000);
+    interesting.set(1001);
+    // the pieces before the cursor are completed and not looked at
+    int actual = myRequestStrategy.choosePieces(interesting, null, 999, myPicks, 2);
+    Assert.assertEquals(actual, 2);
+    Assert.assertEquals(myPicks[0], 1000);
+    Assert.assertEquals(myPicks[1], 1001);
+    Assert.assertEquals(myRequestStrategy.choosePieces(new BitSet(), null, 999, myPicks, 2), 0);
+  }
+}
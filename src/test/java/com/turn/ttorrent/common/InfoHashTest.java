@@ -0,0 +1,54 @@
+package com.turn.ttorrent.common;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+
+@Test
+public class InfoHashTest {
+
+  public void testEqualityByContent() {
+    final byte[] bytes = new byte[InfoHash.LENGTH];
+    Arrays.fill(bytes, (byte) 0xab);
+    final InfoHash hash = new InfoHash(bytes);
+
+    // changing the source afterwards does not change the key
+    bytes[0] = 0;
+    assertEquals(hash.getInfoHash()[0], (byte) 0xab);
+
+    final InfoHash same = InfoHash.fromHexString(hash.getHexInfoHash().toLowerCase());
+    assertEquals(same, hash);
+    assertEquals(same.hashCode(), hash.hashCode());
+    assertFalse(hash.equals(new InfoHash(bytes)));
+  }
+
+  public void testSameHexFormAsTorrent() {
+    final byte[] bytes = new byte[InfoHash.LENGTH];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i * 13);
+    }
+    final InfoHash hash = new InfoHash(bytes);
+    assertEquals(hash.getHexInfoHash(), Torrent.byteArrayToHexString(bytes));
+    assertSame(InfoHash.of(hash), hash);
+    assertEquals(InfoHash.fromHexString(hash.getHexInfoHash()), hash);
+  }
+
+  public void testInvalidHashes() {
+    for (String invalid : new String[]{"", "ABCD", "Z000000000000000000000000000000000000000"}) {
+      try {
+        InfoHash.fromHexString(invalid);
+        fail("Parsed " + invalid);
+      } catch (IllegalArgumentException iae) {
+        // expected
+      }
+    }
+    try {
+      new InfoHash(new byte[19]);
+      fail();
+    } catch (IllegalArgumentException iae) {
+      // expected
+    }
+  }
+}
@@ -36,7 +36,7 @@ public class PeersStorageTest {
 
   public void testThatPeersStorageReturnNewCollection() {
     SharingPeer sharingPeer = getMockSharingPeer();
-    myPeersStorage.putIfAbsent(new PeerUID(new InetSocketAddress("127.0.0.1", 6881), ""), sharingPeer);
+    myPeersStorage.putIfAbsent(new PeerUID(new InetSocketAddress("127.0.0.1", 6881), new InfoHash(new byte[InfoHash.LENGTH])), sharingPeer);
     Collection<SharingPeer> sharingPeers = myPeersStorage.getSharingPeers();
 
     assertEquals(1, myPeersStorage.getSharingPeers().size());
@@ -60,7 +60,7 @@ public class PeersStorageTest {
 
   public void getAndRemoveSharingPeersTest() {
     SharingPeer sharingPeer = getMockSharingPeer();
-    PeerUID peerUid = new PeerUID(new InetSocketAddress("127.0.0.1", 6881), "");
+    PeerUID peerUid = new PeerUID(new InetSocketAddress("127.0.0.1", 6881), new InfoHash(new byte[InfoHash.LENGTH]));
     SharingPeer oldPeer = myPeersStorage.putIfAbsent(peerUid, sharingPeer);
 
     assertNull(oldPeer);
@@ -69,4 +69,32 @@ public class PeersStorageTest {
     assertEquals(myPeersStorage.removeSharingPeer(peerUid), sharingPeer);
     assertNull(myPeersStorage.removeSharingPeer(peerUid));
   }
+
+  public void peersByTorrentTest() {
+    final byte[] bytes = new byte[InfoHash.LENGTH];
+    final InfoHash firstTorrent = new InfoHash(bytes);
+    bytes[0] = 1;
+    final InfoHash secondTorrent = new InfoHash(bytes);
+    SharingPeer first = getMockSharingPeer();
+    SharingPeer second = getMockSharingPeer();
+    SharingPeer third = getMockSharingPeer();
+    PeerUID firstUid = new PeerUID(new InetSocketAddress("127.0.0.1", 6881), firstTorrent);
+    myPeersStorage.putIfAbsent(firstUid, first);
+    myPeersStorage.putIfAbsent(new PeerUID(new InetSocketAddress("127.0.0.1", 6882), firstTorrent), second);
+    myPeersStorage.putIfAbsent(new PeerUID(new InetSocketAddress("127.0.0.1", 6881), secondTorrent), third);
+
+    assertEquals(myPeersStorage.getSharingPeersCount(), 3);
+    assertEquals(myPeersStorage.getSharingPeers(firstTorrent).size(), 2);
+    assertEquals(myPeersStorage.getSharingPeers(secondTorrent).size(), 1);
+
+    // a peer already known for the torrent is not indexed twice
+    myPeersStorage.putIfAbsent(firstUid, third);
+    assertEquals(myPeersStorage.getSharingPeers(firstTorrent).size(), 2);
+
+    myPeersStorage.removeSharingPeer(firstUid);
+    assertEquals(myPeersStorage.getSharingPeers(firstTorrent).size(), 1);
+    myPeersStorage.removeSharingPeer(third);
+    assertEquals(myPeersStorage.getSharingPeers(secondTorrent).size(), 0);
+    assertEquals(myPeersStorage.getSharingPeersCount(), 1);
+  }
 }
@@ -10,6 +10,9 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.testng.Assert.*;
 import static org.testng.Assert.assertEqualsNoOrder;
@@ -57,6 +60,60 @@ public class TorrentTest {
     assertTrue(Hex.encodeHexString(expectedBytesWin).equals(Hex.encodeHexString(actualBytes)) || Hex.encodeHexString(expectedBytesLinux).equals(Hex.encodeHexString(actualBytes)));
   }
 
+  public void testPieceLengthFromSize() {
+    assertEquals(Torrent.pieceLengthFor(0), Torrent.MIN_PIECE_LENGTH);
+    assertEquals(Torrent.pieceLengthFor(100L * 1024 * 1024), 64 * 1024);
+    assertEquals(Torrent.pieceLengthFor(1024L * 1024 * 1024), 512 * 1024);
+    assertEquals(Torrent.pieceLengthFor(100L * 1024 * 1024 * 1024), Torrent.MAX_PIECE_LENGTH);
+  }
+
+  public void testHashingProgress() throws Exception {
+    URI announceURI = new URI("http://localhost:6969/announce");
+    final File parentDir = new File("src/test/resources/parentFiles/parentDir");
+    final List<File> files = new ArrayList<File>();
+    for (String fileName : new String[]{"AccuRevCommon.jar", "inDir/application.wadl", "storage.version"}) {
+      files.add(new File(parentDir, fileName));
+    }
+    final List<Integer> progress = Collections.synchronizedList(new ArrayList<Integer>());
+    Torrent torrent = Torrent.create(parentDir, files, announceURI, null, "Test", 16 * 1024,
+      new HashingProgressListener() {
+        @Override
+        public void piecesHashed(int hashedPieces, int totalPieces) {
+          progress.add(hashedPieces);
+        }
+      });
+
+    // the hashes are those of the files' data cut into pieces
+    final byte[] data = new byte[(int) torrent.getSize()];
+    int offset = 0;
+    for (File file : files) {
+      final byte[] content = FileUtils.readFileToByteArray(file);
+      System.arraycopy(content, 0, data, offset, content.length);
+      offset += content.length;
+    }
+    final int pieceCount = (data.length + 16 * 1024 - 1) / (16 * 1024);
+    final byte[] pieces = torrent.getDecodedInfo().get("pieces").getBytes();
+    assertEquals(pieces.length, pieceCount * Torrent.PIECE_HASH_SIZE);
+    for (int i = 0; i < pieceCount; i++) {
+      final int end = Math.min(data.length, (i + 1) * 16 * 1024);
+      assertEquals(Arrays.copyOfRange(pieces, i * Torrent.PIECE_HASH_SIZE, (i + 1) * Torrent.PIECE_HASH_SIZE),
+        Torrent.hash(Arrays.copyOfRange(data, i * 16 * 1024, end)));
+    }
+
+    assertEquals(progress.size(), pieceCount);
+    assertTrue(progress.contains(pieceCount));
+  }
+
+  @Test(timeOut = 10000, expectedExceptions = RejectedExecutionException.class)
+  public void testHashingWithRejectingExecutor() throws Exception {
+    final File parentDir = new File("src/test/resources/parentFiles/parentDir");
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    // the rejected piece's buffer is given back: hashing fails instead of hanging
+    new TorrentHasher(executor, 1).hashFiles(
+      Collections.singletonList(new File(parentDir, "AccuRevCommon.jar")), 16 * 1024, null);
+  }
+
   public void testFilenames() throws IOException, NoSuchAlgorithmException {
     File torrentFile = new File("src/test/resources/torrents/parentDir.win.torrent");
     Torrent t2 = Torrent.load(torrentFile);
@@ -75,4 +132,32 @@ public class TorrentTest {
     System.out.println();
   }
 
+
+  public void testInfoHashOfEncodedInfo() throws Exception {
+    // keys out of order: encoding the info dictionary again would sort them
+    final String info = "d4:name1:a6:lengthi3e12:piece lengthi16384e6:pieces20:01234567890123456789e";
+    final byte[] encoded = ("d8:announce9:http://a/4:info" + info + "e").getBytes(Torrent.BYTE_ENCODING);
+    final Torrent torrent = new Torrent(encoded, false);
+
+    assertEquals(torrent.getInfoHash(), Torrent.hash(info.getBytes(Torrent.BYTE_ENCODING)));
+    assertEquals(torrent.getSize(), 3);
+    assertEquals(torrent.getPieceCount(), 1);
+
+    final TorrentMetainfo metainfo = torrent.getMetainfo();
+    assertEquals(metainfo.getPieceLength(), 16384);
+    assertEquals(metainfo.getPieceHashes().remaining(), Torrent.PIECE_HASH_SIZE);
+    assertEquals(metainfo.getPieceHashes().get(0), (byte) '0');
+    assertFalse(metainfo.isMultifile());
+  }
+
+  public void testLazyFileList() throws IOException, NoSuchAlgorithmException {
+    final Torrent torrent = Torrent.load(new File("src/test/resources/torrents/parentDir.linux.torrent"));
+    final TorrentMetainfo metainfo = torrent.getMetainfo();
+    assertTrue(metainfo.isMultifile());
+    assertEquals(metainfo.getFiles().size(), 5);
+    assertEquals(metainfo.getSize(), torrent.getSize());
+    assertEquals(metainfo.getPieceHashes().remaining(), torrent.getPieceCount() * Torrent.PIECE_HASH_SIZE);
+    assertEquals(Torrent.hash(torrent.getEncodedInfo()), torrent.getInfoHash());
+  }
+
 }
@@ -0,0 +1,103 @@
+package com.turn.ttorrent.common.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Measures the bytes allocated per crafted and parsed peer message, with the
+ * allocation counter of the HotSpot thread bean. Not run as part of the test
+ * suite:
+ *
+ * <pre>
+ *   java -cp ... com.turn.ttorrent.common.protocol.PeerMessageAllocationBenchmark [messages]
+ * </pre>
+ */
+public class PeerMessageAllocationBenchmark {
+
+  private static final int PIECES = 4096;
+
+  private static volatile Object mySink;
+
+  public static void main(String[] args) throws Exception {
+    final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    final com.sun.management.ThreadMXBean bean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    final BitSet seeder = new BitSet();
+    seeder.set(0, PIECES);
+    final ByteBuffer bitfield = PeerMessage.BitfieldMessage.craft(seeder).getData();
+    bitfield.position(5);
+    final ByteBuffer bitfieldPayload = bitfield.slice();
+    final ByteBuffer have = ByteBuffer.allocate(PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + 5);
+
+    final Case[] cases = new Case[]{
+      new Case("craft CHOKE") {
+        Object run(int i) {
+          return PeerMessage.ChokeMessage.craft();
+        }
+      },
+      new Case("craft KEEP_ALIVE") {
+        Object run(int i) {
+          return PeerMessage.KeepAliveMessage.craft();
+        }
+      },
+      new Case("parse UNCHOKE") {
+        final ByteBuffer myData = PeerMessage.UnchokeMessage.craft().getData();
+
+        Object run(int i) throws Exception {
+          myData.rewind();
+          return PeerMessage.parse(myData, null);
+        }
+      },
+      new Case("encode HAVE") {
+        Object run(int i) {
+          have.clear();
+          PeerMessage.HaveMessage.encode(i, have);
+          return have;
+        }
+      },
+      new Case("craft HAVE") {
+        Object run(int i) {
+          return PeerMessage.HaveMessage.craft(i);
+        }
+      },
+      new Case("craft BITFIELD " + PIECES) {
+        Object run(int i) {
+          return PeerMessage.BitfieldMessage.craft(seeder);
+        }
+      },
+      new Case("decode BITFIELD " + PIECES) {
+        Object run(int i) {
+          return PeerMessage.BitfieldMessage.decode(bitfieldPayload);
+        }
+      }
+    };
+
+    for (int round = 0; round < 2; round++) {
+      for (Case c : cases) {
+        final long thread = Thread.currentThread().getId();
+        final long before = bean.getThreadAllocatedBytes(thread);
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+          mySink = c.run(i);
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = bean.getThreadAllocatedBytes(thread) - before;
+        System.out.println(String.format("%-22s %10.1f bytes/msg %8.1f ns/msg", c.myName,
+          (double) allocated / count, (double) elapsed / count));
+      }
+    }
+  }
+
+  private static abstract class Case {
+
+    private final String myName;
+
+    Case(String name) {
+      myName = name;
+    }
+
+    abstract Object run(int i) throws Exception;
+  }
+}
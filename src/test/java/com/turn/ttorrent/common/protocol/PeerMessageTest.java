@@ -0,0 +1,80 @@
+package com.turn.ttorrent.common.protocol;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PeerMessageTest {
+
+  public void testHaveMessagesInOneBuffer() throws Exception {
+    final BitSet pieces = new BitSet();
+    pieces.set(3);
+    pieces.set(70);
+    pieces.set(1000);
+    final ByteBuffer all = PeerMessage.HaveMessage.craftAll(pieces);
+    assertEquals(all.remaining(), 3 * PeerMessage.HaveMessage.craft(0).getData().capacity());
+
+    for (int piece = pieces.nextSetBit(0); piece >= 0; piece = pieces.nextSetBit(piece + 1)) {
+      final ByteBuffer single = PeerMessage.HaveMessage.craft(piece).getData();
+      single.rewind();
+      final ByteBuffer message = all.slice();
+      message.limit(single.remaining());
+      assertEquals(message, single);
+      assertEquals(message.getInt(5), piece);
+      all.position(all.position() + single.remaining());
+    }
+    assertFalse(all.hasRemaining());
+  }
+
+  public void testFixedMessagesAreShared() throws Exception {
+    assertSame(PeerMessage.ChokeMessage.craft(), PeerMessage.ChokeMessage.craft());
+    assertSame(PeerMessage.KeepAliveMessage.craft(), PeerMessage.KeepAliveMessage.craft());
+
+    final ByteBuffer data = PeerMessage.InterestedMessage.craft().getData();
+    assertTrue(data.isReadOnly());
+    assertEquals(data.remaining(), 5);
+    assertEquals(data.getInt(0), 1);
+    assertEquals(data.get(4), PeerMessage.Type.INTERESTED.getTypeByte());
+
+    // one sender draining its buffer leaves it whole for the others
+    data.position(data.limit());
+    assertEquals(PeerMessage.InterestedMessage.craft().getData().remaining(), 5);
+
+    final ByteBuffer unchoke = PeerMessage.UnchokeMessage.craft().getData();
+    assertSame(PeerMessage.parse(unchoke, null), PeerMessage.UnchokeMessage.craft());
+    assertEquals(PeerMessage.KeepAliveMessage.craft().getData().remaining(), 4);
+  }
+
+  public void testBitfieldRoundTrip() throws Exception {
+    final Random random = new Random(1);
+    final BitSet full = new BitSet();
+    full.set(0, 1003);
+    final BitSet sparse = new BitSet();
+    for (int i = 0; i < 1003; i++) {
+      if (random.nextInt(3) == 0) {
+        sparse.set(i);
+      }
+    }
+    final BitSet runs = new BitSet();
+    runs.set(5, 30);
+    runs.set(64, 200);
+    runs.set(1002);
+
+    for (BitSet pieces : new BitSet[]{full, sparse, runs, new BitSet()}) {
+      final ByteBuffer data = PeerMessage.BitfieldMessage.craft(pieces).getData();
+      assertEquals(data.getInt(0), 1 + (pieces.length() + 7) / 8);
+      assertEquals(data.get(4), PeerMessage.Type.BITFIELD.getTypeByte());
+      for (int i = 0; i < pieces.length(); i++) {
+        final boolean set = (data.get(5 + i / 8) & (0x80 >>> (i % 8))) != 0;
+        assertEquals(set, pieces.get(i), "piece " + i);
+      }
+      data.position(5);
+      assertEquals(PeerMessage.BitfieldMessage.decode(data.slice()), pieces);
+    }
+  }
+}
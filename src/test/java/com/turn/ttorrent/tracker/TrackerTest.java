@@ -227,8 +227,8 @@ public class TrackerTest {
 
     final InetSocketAddress c1Address = new InetSocketAddress(InetAddress.getLocalHost(), c1.getConnectionManager().getBindPort());
     final InetSocketAddress c2Address = new InetSocketAddress(InetAddress.getLocalHost(), c2.getConnectionManager().getBindPort());
-    assertTrue(tt.getPeers().containsKey(new PeerUID(c1Address, tt.getHexInfoHash())));
-    assertTrue(tt.getPeers().containsKey(new PeerUID(c2Address, tt.getHexInfoHash())));
+    assertTrue(tt.getPeers().containsKey(new PeerUID(c1Address, tt.getInfoHashKey())));
+    assertTrue(tt.getPeers().containsKey(new PeerUID(c2Address, tt.getInfoHashKey())));
 
     c2.stop();
     new WaitFor(30 * 1000) {
@@ -238,8 +238,8 @@ public class TrackerTest {
         return tt.getPeers().size() == 1;
       }
     };
-    assertTrue(tt.getPeers().containsKey(new PeerUID(c1Address, tt.getHexInfoHash())));
-    assertFalse(tt.getPeers().containsKey(new PeerUID(c2Address, tt.getHexInfoHash())));
+    assertTrue(tt.getPeers().containsKey(new PeerUID(c1Address, tt.getInfoHashKey())));
+    assertFalse(tt.getPeers().containsKey(new PeerUID(c2Address, tt.getInfoHashKey())));
   }
 
   public void tracker_removes_peer_after_timeout() throws IOException, NoSuchAlgorithmException, InterruptedException {
@@ -279,8 +279,8 @@ public class TrackerTest {
 
     final InetSocketAddress c1Address = new InetSocketAddress(peerHost, peerPort);
     final InetSocketAddress c2Address = new InetSocketAddress(InetAddress.getLocalHost(), c2.getConnectionManager().getBindPort());
-    assertTrue(tt.getPeers().containsKey(new PeerUID(c1Address, tt.getHexInfoHash())));
-    assertTrue(tt.getPeers().containsKey(new PeerUID(c2Address, tt.getHexInfoHash())));
+    assertTrue(tt.getPeers().containsKey(new PeerUID(c1Address, tt.getInfoHashKey())));
+    assertTrue(tt.getPeers().containsKey(new PeerUID(c2Address, tt.getInfoHashKey())));
 
     new WaitFor(30 * 1000) {
 
@@ -296,8 +296,8 @@ public class TrackerTest {
       }
     };
     assertEquals(tt.getPeers().size(), 1);
-    assertTrue(tt.getPeers().containsKey(new PeerUID(c1Address, tt.getHexInfoHash())));
-    assertFalse(tt.getPeers().containsKey(new PeerUID(c2Address, tt.getHexInfoHash())));
+    assertTrue(tt.getPeers().containsKey(new PeerUID(c1Address, tt.getInfoHashKey())));
+    assertFalse(tt.getPeers().containsKey(new PeerUID(c2Address, tt.getInfoHashKey())));
   }
 
   //  @Test(invocationCount = 50)